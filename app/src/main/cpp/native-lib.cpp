@@ -1,50 +1,477 @@
 #include <jni.h>
 #include <string>
+#include <cmath>
+#include <algorithm>
+#include <atomic>
+#include <memory>
+#include <mutex>
+#include <unordered_map>
+#include <vector>
 #include <android/log.h>
 #include <android/bitmap.h>
 
 #include <KudanCV.h>
 
 /**
- * Helper method for projecting 3D tracking points to screen-space.
+ * A camera pose combined with the camera intrinsics, for projecting 3D tracking points to
+ * screen-space.
+ *
+ * To project a 3D point X (3x1) according to a camera with rotation R (3x3) and translation T (3x1),
+ * and the camera intrinsic matrix K (3x3), xh = K[R|T]X = K*(RX + T) = (KR)X + KT, where xh is the
+ * homogeneous point. KR and KT are computed once per pose, so each point only costs one 3x3
+ * product and a divide.
  */
-KudanVector2 project(KudanVector3 X, KudanMatrix3 intrinsicMatrix, KudanVector3 position, KudanQuaternion orientation) {
+struct PointProjector {
 
-    // to project a 3D point X (3x1) according to a camera with rotation R (3x3) and translation T (3x1), and the camera intrinsic matrkx K (3x3), xh = K[R|T]X = K*(RX + T), where xh is the homogeneous point
+    // KR in row-major order.
+    float m[9];
 
+    // KT.
+    float t[3];
+};
+
+/**
+ * Helper method for combining a pose expressed as a camera with the camera intrinsics.
+ */
+PointProjector createPointProjector(KudanMatrix3 intrinsicMatrix, KudanVector3 position, KudanQuaternion orientation) {
 
-    //KudanMatrix3 rotationMatrix = KudanQuaternion::quaternionToRotation(orientation);
     KudanMatrix3 rotationMatrix(orientation);
 
-    KudanVector3 RX = rotationMatrix * X;
-    KudanVector3 RXplusT = RX + position; // this is the point X expressed in the camera's coordinate frame
+    PointProjector projector;
+
+    // Build KR a column at a time by transforming each axis.
+    for (int c = 0; c < 3; c++) {
+
+        KudanVector3 axis(c == 0 ? 1.f : 0.f, c == 1 ? 1.f : 0.f, c == 2 ? 1.f : 0.f);
+        KudanVector3 column = intrinsicMatrix * (rotationMatrix * axis);
+
+        projector.m[c] = column.x;
+        projector.m[3 + c] = column.y;
+        projector.m[6 + c] = column.z;
+    }
 
-    // Project using the intrinsicmatrix:
-    KudanVector3 XH = intrinsicMatrix * RXplusT;
+    KudanVector3 KT = intrinsicMatrix * position;
 
-    // Divide the homogeneous coordinates through by the z coordinate
-    KudanVector2 pt(XH.x / XH.z , XH.y / XH.z);
+    projector.t[0] = KT.x;
+    projector.t[1] = KT.y;
+    projector.t[2] = KT.z;
 
-    return pt;
+    return projector;
 }
 
-extern "C" {
+/**
+ * Helper method for projecting 3D tracking points packed as (x,y,z) to screen-space points packed
+ * as (x,y). Points on or behind the camera plane have no projection and are written as NaN.
+ */
+void projectPoints(const PointProjector &projector, const float *__restrict points, float *__restrict projected, int count) {
+
+    // Keep the pose in registers rather than reloading it through the struct on every point, so
+    // the loop has no dependencies between points and can be vectorised.
+    const float m0 = projector.m[0], m1 = projector.m[1], m2 = projector.m[2];
+    const float m3 = projector.m[3], m4 = projector.m[4], m5 = projector.m[5];
+    const float m6 = projector.m[6], m7 = projector.m[7], m8 = projector.m[8];
+    const float t0 = projector.t[0], t1 = projector.t[1], t2 = projector.t[2];
+
+    for (int i = 0; i < count; i++) {
+
+        float x = points[i * 3];
+        float y = points[i * 3 + 1];
+        float z = points[i * 3 + 2];
+
+        float xh = m0 * x + m1 * y + m2 * z + t0;
+        float yh = m3 * x + m4 * y + m5 * z + t1;
+        float zh = m6 * x + m7 * y + m8 * z + t2;
+
+        // Divide the homogeneous coordinates through by the z coordinate. The divide is made
+        // unconditionally so the check compiles to a select rather than a branch.
+        float inverseZ = 1.f / zh;
+        inverseZ = zh > 0.f ? inverseZ : NAN;
+
+        projected[i * 2] = xh * inverseZ;
+        projected[i * 2 + 1] = yh * inverseZ;
+    }
+}
+
+/**
+ * Status codes and result layout shared with TrackingResult.java.
+ */
+static const jint STATUS_NOT_TRACKED = 0;
+static const jint STATUS_TRACKED = 1;
+static const jint STATUS_NO_POSE = 2;
+
+static const int RESULT_MAX_ENTRIES = 4;
+static const int RESULT_ARBITRACK_INDEX = -1;
+
+static const int RESULT_INDEX = 0;
+static const int RESULT_CENTRE = 1;
+static const int RESULT_CORNERS = 3;
+static const int RESULT_POSITION = 11;
+static const int RESULT_ORIENTATION = 14;
+static const int RESULT_EXTENT = 18;
+static const int RESULT_ENTRY_LENGTH = 20;
+
+/**
+ * Helper method for storing the pose of a tracked object after its projected points in a result
+ * entry.
+ */
+void storePose(float *trackedData, KudanVector3 position, KudanQuaternion orientation) {
+
+    trackedData[RESULT_POSITION] = position.x;
+    trackedData[RESULT_POSITION + 1] = position.y;
+    trackedData[RESULT_POSITION + 2] = position.z;
+
+    // Stored in (w,x,y,z) order to match the device orientation passed in from Java.
+    trackedData[RESULT_ORIENTATION] = orientation.w;
+    trackedData[RESULT_ORIENTATION + 1] = orientation.x;
+    trackedData[RESULT_ORIENTATION + 2] = orientation.y;
+    trackedData[RESULT_ORIENTATION + 3] = orientation.z;
+}
+
+/**
+ * Helper method for storing the projected centre and four corners of a rectangle of a given half
+ * size, centred on the origin of a tracked object, in a result entry. The half size is stored too,
+ * so the outline can be projected again through a filtered pose.
+ */
+void storeOutline(float *trackedData, const PointProjector &projector, float halfWidth, float halfHeight) {
+
+    // The centre is followed by the corners in the result, so all five are projected in one pass.
+    const float outline[5 * 3] = {
+            0, 0, 0,
+            -halfWidth, -halfHeight, 0,
+            -halfWidth, halfHeight, 0,
+            halfWidth, halfHeight, 0,
+            halfWidth, -halfHeight, 0
+    };
+
+    projectPoints(projector, outline, trackedData + RESULT_CENTRE, 5);
+
+    trackedData[RESULT_EXTENT] = halfWidth;
+    trackedData[RESULT_EXTENT + 1] = halfHeight;
+}
+
+/**
+ * An image tracker and the state kept alongside it. Every call on an instance holds its lock, so
+ * each instance is used by one thread at a time while separate instances run in parallel.
+ */
+struct ImageTrackerInstance {
+
+    std::mutex lock;
+
+    std::shared_ptr<KudanImageTracker> tracker;
+
+    // The camera parameters of the full frames passed to the tracker, and whether the tracker
+    // currently holds the parameters of a cropped region instead.
+    KudanCameraParameters parameters;
+    bool regionActive = false;
+
+    // Every trackable created for the tracker, in the order they were created. Only the working
+    // set is added to the tracker itself, and results report trackables by their index in this list.
+    std::vector<std::shared_ptr<KudanImageTrackable>> catalog;
+
+    // Settings the tracker is rebuilt with when a trackable is removed.
+    std::string apiKey;
+    int maximumSimultaneous = 1;
+};
+
+/**
+ * A markerless tracker and the half size of the grid drawn for it, guarded like an image tracker.
+ */
+struct ArbiTrackerInstance {
+
+    std::mutex lock;
+
+    std::shared_ptr<KudanArbiTracker> tracker;
+
+    int scale = 100;
+};
+
+/**
+ * Handles shared by every registry, so a handle is never reused and never names trackers of two
+ * kinds. Zero is never a handle.
+ */
+static std::atomic<jlong> nextTrackerHandle(1);
+
+/**
+ * Tracker instances of one kind by the opaque handle returned to Java.
+ *
+ * Lookups copy the shared pointer out under the registry lock, so an instance released while a
+ * call on it is running lives until that call returns, and calls with released handles find nothing.
+ */
+template <typename Instance>
+class TrackerRegistry {
+
+public:
+
+    jlong add(const std::shared_ptr<Instance> &instance) {
+
+        jlong handle = nextTrackerHandle++;
+
+        std::lock_guard<std::mutex> guard(lock);
+        instances[handle] = instance;
+
+        return handle;
+    }
+
+    std::shared_ptr<Instance> get(jlong handle) {
+
+        std::lock_guard<std::mutex> guard(lock);
+
+        typename std::unordered_map<jlong, std::shared_ptr<Instance>>::iterator found = instances.find(handle);
+
+        return found != instances.end() ? found->second : std::shared_ptr<Instance>();
+    }
+
+    bool remove(jlong handle) {
+
+        std::lock_guard<std::mutex> guard(lock);
+
+        return instances.erase(handle) > 0;
+    }
+
+private:
+
+    std::mutex lock;
+    std::unordered_map<jlong, std::shared_ptr<Instance>> instances;
+};
+
+static TrackerRegistry<ImageTrackerInstance> imageTrackers;
+static TrackerRegistry<ArbiTrackerInstance> arbiTrackers;
+
+/**
+ * Finds the image tracker with a handle, logging if there is none.
+ */
+std::shared_ptr<ImageTrackerInstance> getImageTracker(jlong handle) {
+
+    std::shared_ptr<ImageTrackerInstance> instance = imageTrackers.get(handle);
+
+    if (!instance) {
+        __android_log_print(ANDROID_LOG_ERROR, "JNI", "No image tracker has handle %lld.", (long long) handle);
+    }
+
+    return instance;
+}
+
+/**
+ * Finds the markerless tracker with a handle, logging if there is none.
+ */
+std::shared_ptr<ArbiTrackerInstance> getArbiTracker(jlong handle) {
+
+    std::shared_ptr<ArbiTrackerInstance> instance = arbiTrackers.get(handle);
+
+    if (!instance) {
+        __android_log_print(ANDROID_LOG_ERROR, "JNI", "No markerless tracker has handle %lld.", (long long) handle);
+    }
+
+    return instance;
+}
+
+/**
+ * Creates an image tracker with the current settings of an instance and no trackables.
+ */
+std::shared_ptr<KudanImageTracker> createImageTracker(const ImageTrackerInstance &instance) {
+
+    std::shared_ptr<KudanImageTracker> tracker = std::make_shared<KudanImageTracker>();
+
+    tracker->setMaximumSimultaneousTracking(instance.maximumSimultaneous);
+    tracker->setCameraParameters(instance.parameters);
+    tracker->setApiKey(instance.apiKey);
+
+    return tracker;
+}
+
+/**
+ * Restores the full-frame camera parameters of an image tracker after a region has been tracked.
+ */
+void useImageTrackerFullFrame(ImageTrackerInstance &instance) {
+
+    if (instance.regionActive) {
+        instance.tracker->setCameraParameters(instance.parameters);
+        instance.regionActive = false;
+    }
+}
+
+/**
+ * Finds the index of a trackable in the order trackables were created for an image tracker.
+ */
+int getImageTrackableIndex(const ImageTrackerInstance &instance, std::shared_ptr<KudanImageTrackable> trackable) {
+
+    for (size_t i = 0; i < instance.catalog.size(); i++) {
+
+        if (instance.catalog[i] == trackable) {
+            return (int) i;
+        }
+    }
+
+    return -1;
+}
+
+/**
+ * Writes the packed projected tracking data and pose of every trackable tracked by the image
+ * tracker into a caller-owned array after a frame has been processed, projecting with the
+ * intrinsics K of the full camera frame.
+ *
+ * Returns the number of entries written.
+ */
+jint getImageTrackerResult(JNIEnv *env, const ImageTrackerInstance &instance, jfloatArray result, KudanMatrix3 K) {
+
+    std::vector<std::shared_ptr<KudanImageTrackable>> trackedList = instance.tracker->getDetectedTrackables();
+
+    int capacity = env->GetArrayLength(result) / RESULT_ENTRY_LENGTH;
+
+    if (capacity > RESULT_MAX_ENTRIES) {
+        capacity = RESULT_MAX_ENTRIES;
+    }
+
+    int count = trackedList.size() < (size_t) capacity ? (int) trackedList.size() : capacity;
+
+    if (count == 0) {
+        return 0;
+    }
+
+    float packedData[RESULT_MAX_ENTRIES * RESULT_ENTRY_LENGTH];
+
+    for (int n = 0; n < count; n++) {
+
+        std::shared_ptr<KudanImageTrackable> tracked = trackedList[n];
+
+        float *trackedData = packedData + n * RESULT_ENTRY_LENGTH;
+
+        trackedData[RESULT_INDEX] = getImageTrackableIndex(instance, tracked);
+
+        /** Get the pose of the tracked object to draw it
+             This is expressed as a 3D position and a unit quaternion for orientation
+             This is: the position of the trackable centre with respect to the camera, and the orientation of the trackable about this centre
+             This is equivalent to having the rotation (R) and translation (T) of a camera with respect to the trackable, with which the marker position (in its own coordinate frame) can be projected to the image
+             */
+        KudanVector3 position = tracked->getPosition();
+        KudanQuaternion orientation = tracked->getOrientation();
+
+        PointProjector projector = createPointProjector(K, position, orientation);
+
+        // The marker centre is the origin of its own coordinate frame. Because the trackable is
+        // defined as having size width x height in the world, the bounds of the marker are at
+        // (+/- width/2, +/- height/2), and projecting them gets the outline of the marker in the image.
+        storeOutline(trackedData, projector, tracked->getWidth() / 2.f, tracked->getHeight() / 2.f);
+
+        storePose(trackedData, position, orientation);
+    }
+
+    // Hand every entry back in a single copy.
+    env->SetFloatArrayRegion(result, 0, count * RESULT_ENTRY_LENGTH, packedData);
+
+    return count;
+}
+
+/**
+ * Writes the projected tracking data and pose of the markerless tracker into the first entry of a
+ * caller-owned array after a frame has been processed.
+ */
+jint getArbiTrackerResult(JNIEnv *env, const ArbiTrackerInstance &instance, jfloatArray result) {
+
+    const std::shared_ptr<KudanArbiTracker> &arbiTracker = instance.tracker;
+
+    if (arbiTracker->isTracking()) {
+
+        float trackedData[RESULT_ENTRY_LENGTH];
+
+        // Get the camera intrinsics as a 3x3 matrix
+        KudanMatrix3 K = arbiTracker->getCameraMatrix(); // need this on arbitracker - oops! TODO
+
+
+        KudanVector3 position = arbiTracker->getPosition();
+        // make sure it's not the zero vector
+        if (position.x == 0 && position.y == 0 && position.z == 0) {
+
+            for (int i = 0;i < RESULT_ENTRY_LENGTH;i++) {
+                trackedData[i] = 0.0f;
+            }
+
+            trackedData[RESULT_INDEX] = RESULT_ARBITRACK_INDEX;
+
+            env->SetFloatArrayRegion(result, 0, RESULT_ENTRY_LENGTH, trackedData);
+
+            return STATUS_NO_POSE;
+        }
+        else {
+            KudanQuaternion orientation = arbiTracker->getOrientation();
+
+            PointProjector projector = createPointProjector(K, position, orientation);
+
+            trackedData[RESULT_INDEX] = RESULT_ARBITRACK_INDEX;
+
+            // Get the centre and four outer grid corners by projecting +/- the arbitrack scale in (x,y)
+            storeOutline(trackedData, projector, instance.scale, instance.scale);
+
+            storePose(trackedData, position, orientation);
+
+            env->SetFloatArrayRegion(result, 0, RESULT_ENTRY_LENGTH, trackedData);
+
+            return STATUS_TRACKED;
+        }
+
+    }
+
+    return STATUS_NOT_TRACKED;
+}
+
+/**
+ * Passes the sensed device orientation to the markerless tracker ahead of processing a frame.
+ */
+void setArbiTrackerOrientation(JNIEnv *env, ArbiTrackerInstance &instance, jfloatArray gyroOrentation) {
+
+    // Copy the four values out rather than pinning or copying the whole array.
+    jfloat orientation[4];
+    env->GetFloatArrayRegion(gyroOrentation, 0, 4, orientation);
+
+    // Important: before calling processFrame on Arbitrack, it is necessary to provide an orientation estimate from some other sensor, e.g. Android IMU
+    // If this is not done, then Arbitrack will not output an orientation
+
+    // Use this function to set the orientation:
+    // KudanQuaternion constructor takes values in (x,y,z,w) order, so we compensate.
+    KudanQuaternion gyroQuaternion = KudanQuaternion(orientation[1], orientation[2], orientation[3], orientation[0]);
+
+    instance.tracker->setSensedOrientation( gyroQuaternion );
+}
+
+/**
+ * Checks that a direct buffer of a given capacity can hold a frame of a given layout, logging if
+ * it cannot. Rows are rowStride bytes apart, and the final row may end at its last pixel.
+ */
+bool checkFrameLayout(jlong capacity, jint width, jint height, jint channels, jint rowStride, const char *trackerName) {
+
+    if (width <= 0 || height <= 0 || channels <= 0) {
+        __android_log_print(ANDROID_LOG_ERROR, "JNI", "%s frame has no pixels.", trackerName);
+        return false;
+    }
 
-static std::shared_ptr<KudanImageTracker> imageTracker;
-static std::shared_ptr<KudanArbiTracker> arbiTracker;
-static int arbitrackScale;
+    // A row stride shorter than a row would make the padding passed to the tracker negative.
+    if ((jlong) rowStride < (jlong) width * channels) {
+        __android_log_print(ANDROID_LOG_ERROR, "JNI", "%s frame row stride is shorter than a row.", trackerName);
+        return false;
+    }
+
+    if (capacity < (jlong) (height - 1) * rowStride + (jlong) width * channels) {
+        __android_log_print(ANDROID_LOG_ERROR, "JNI", "%s frame buffer is too small for its dimensions.", trackerName);
+        return false;
+    }
+
+    return true;
+}
 
-void Java_eu_kudan_ar_CameraFragment_initialiseImageTracker(
+extern "C" {
+
+jlong Java_eu_kudan_ar_CameraFragment_initialiseImageTracker(
         JNIEnv *env,
         jobject /* this */,
         jstring key,
         jint width,
-        jint height) {
+        jint height,
+        jint maximumSimultaneousTracking) {
 
-    imageTracker = std::make_shared<KudanImageTracker>();
+    std::shared_ptr<ImageTrackerInstance> instance = std::make_shared<ImageTrackerInstance>();
 
-    // only track one at a time for now
-    imageTracker->setMaximumSimultaneousTracking(1);
+    // Results are packed into a fixed number of entries, so never track more than fit.
+    instance->maximumSimultaneous = maximumSimultaneousTracking < RESULT_MAX_ENTRIES ? maximumSimultaneousTracking : RESULT_MAX_ENTRIES;
 
 
     // Setup the camera parameters
@@ -56,26 +483,42 @@ void Java_eu_kudan_ar_CameraFragment_initialiseImageTracker(
     // Don't know the intrinsics so tell it to figure them out
     parameters.guessIntrinsics();
 
-    // Important: set the intrinsic parameters on the tracker
-    imageTracker->setCameraParameters(parameters);
+    // Important: the intrinsic parameters are set on the tracker when it is created
+    instance->parameters = parameters;
 
     // Set API key
     const char *keyStr = env->GetStringUTFChars(key, 0);
-    std::string apiKey = std::string(keyStr);
-
-    imageTracker->setApiKey(apiKey);
+    instance->apiKey = std::string(keyStr);
 
     env->ReleaseStringUTFChars(key, keyStr);
+
+    instance->tracker = createImageTracker(*instance);
+
+    // The instance is only published once it is complete, so needs no lock here.
+    return imageTrackers.add(instance);
+}
+
+void Java_eu_kudan_ar_CameraFragment_releaseImageTracker(
+        JNIEnv *env,
+        jobject /* this */,
+        jlong handle) {
+
+    // The tracker is destroyed once any call still running on it returns.
+    if (!imageTrackers.remove(handle)) {
+        __android_log_print(ANDROID_LOG_ERROR, "JNI", "No image tracker has handle %lld.", (long long) handle);
+    }
 }
 
-void Java_eu_kudan_ar_CameraFragment_initialiseArbiTracker(
+jlong Java_eu_kudan_ar_CameraFragment_initialiseArbiTracker(
         JNIEnv *env,
         jobject /* this */,
         jstring key,
         jint width,
         jint height) {
 
-    arbiTracker = std::make_shared<KudanArbiTracker>();
+    std::shared_ptr<ArbiTrackerInstance> instance = std::make_shared<ArbiTrackerInstance>();
+
+    std::shared_ptr<KudanArbiTracker> arbiTracker = std::make_shared<KudanArbiTracker>();
 
     // Setup the camera parameters
     KudanCameraParameters parameters;
@@ -96,19 +539,104 @@ void Java_eu_kudan_ar_CameraFragment_initialiseArbiTracker(
     arbiTracker->setApiKey(apiKey);
 
     env->ReleaseStringUTFChars(key, keyStr);
+
+    instance->tracker = arbiTracker;
+
+    return arbiTrackers.add(instance);
+}
+
+void Java_eu_kudan_ar_CameraFragment_releaseArbiTracker(
+        JNIEnv *env,
+        jobject /* this */,
+        jlong handle) {
+
+    if (!arbiTrackers.remove(handle)) {
+        __android_log_print(ANDROID_LOG_ERROR, "JNI", "No markerless tracker has handle %lld.", (long long) handle);
+    }
+}
+
+void Java_eu_kudan_ar_CameraFragment_setImageTrackerFrameSize(
+        JNIEnv *env,
+        jobject /* this */,
+        jlong handle,
+        jint width,
+        jint height) {
+
+    std::shared_ptr<ImageTrackerInstance> instance = getImageTracker(handle);
+
+    if (!instance) {
+        return;
+    }
+
+    std::lock_guard<std::mutex> guard(instance->lock);
+
+    // Frames from a different camera stream cover the same field of view at another resolution,
+    // so the guessed intrinsics scale with the frame and poses stay consistent between streams.
+    KudanCameraParameters parameters;
+
+    parameters.setSize(width, height);
+    parameters.guessIntrinsics();
+
+    instance->tracker->setCameraParameters(parameters);
+
+    instance->parameters = parameters;
+    instance->regionActive = false;
+}
+
+void Java_eu_kudan_ar_CameraFragment_setArbiTrackerFrameSize(
+        JNIEnv *env,
+        jobject /* this */,
+        jlong handle,
+        jint width,
+        jint height) {
+
+    std::shared_ptr<ArbiTrackerInstance> instance = getArbiTracker(handle);
+
+    if (!instance) {
+        return;
+    }
+
+    std::lock_guard<std::mutex> guard(instance->lock);
+
+    // As for the image tracker, guessed intrinsics scale with the frame, so poses stay consistent
+    // when the capture resolution changes.
+    KudanCameraParameters parameters;
+
+    parameters.setSize(width, height);
+    parameters.guessIntrinsics();
+
+    instance->tracker->setCameraParameters(parameters);
 }
 
 void Java_eu_kudan_ar_CameraFragment_startArbiTracker(
         JNIEnv *env,
         jobject /* this */,
+        jlong handle,
+        jlong imageTrackerHandle,
         jboolean startFromImageTrackable) {
 
+    std::shared_ptr<ArbiTrackerInstance> instance = getArbiTracker(handle);
+
+    if (!instance) {
+        return;
+    }
+
     KudanVector3 startPosition;
     KudanQuaternion startOrientation;
+    int scale;
 
     if (startFromImageTrackable) {
 
-        std::vector<std::shared_ptr<KudanImageTrackable>> detectedTrackables = imageTracker->getDetectedTrackables();
+        std::shared_ptr<ImageTrackerInstance> imageInstance = getImageTracker(imageTrackerHandle);
+
+        if (!imageInstance) {
+            return;
+        }
+
+        // Only one tracker is locked at a time, so trackers can never wait on each other.
+        std::lock_guard<std::mutex> imageGuard(imageInstance->lock);
+
+        std::vector<std::shared_ptr<KudanImageTrackable>> detectedTrackables = imageInstance->tracker->getDetectedTrackables();
 
         if (detectedTrackables.size() == 0) {
             throw std::runtime_error("Image trackable not detected");
@@ -119,32 +647,51 @@ void Java_eu_kudan_ar_CameraFragment_startArbiTracker(
         startPosition = trackable->getPosition();
         startOrientation = trackable->getOrientation();
 
-        arbitrackScale = trackable->getHeight() / 2;
+        scale = trackable->getHeight() / 2;
     }
     else {
 
         startPosition = KudanVector3(0,0,600); // in front of the camera
         startOrientation = KudanQuaternion(1,0,0,0); // without rotation
 
-        arbitrackScale = 100;
+        scale = 100;
     }
 
-    arbiTracker->start(startPosition, startOrientation);
+    std::lock_guard<std::mutex> guard(instance->lock);
+
+    instance->scale = scale;
+    instance->tracker->start(startPosition, startOrientation);
 }
 
 void Java_eu_kudan_ar_CameraFragment_stopArbiTracker(
         JNIEnv *env,
-        jobject /* this */) {
+        jobject /* this */,
+        jlong handle) {
+
+    std::shared_ptr<ArbiTrackerInstance> instance = getArbiTracker(handle);
 
-    arbiTracker->stop();
+    if (!instance) {
+        return;
+    }
+
+    std::lock_guard<std::mutex> guard(instance->lock);
+
+    instance->tracker->stop();
 }
 
-jboolean Java_eu_kudan_ar_CameraFragment_addTrackableToImageTracker(
+jint Java_eu_kudan_ar_CameraFragment_addTrackableToImageTracker(
         JNIEnv *env,
         jobject /* this */,
+        jlong handle,
         jobject bitmap,
         jstring name) {
 
+    std::shared_ptr<ImageTrackerInstance> instance = getImageTracker(handle);
+
+    if (!instance) {
+        return -1;
+    }
+
     // Get the trackable image pixel data and info.
     AndroidBitmapInfo bitmapInfo;
     void *data;
@@ -154,14 +701,14 @@ jboolean Java_eu_kudan_ar_CameraFragment_addTrackableToImageTracker(
 
     if (result != ANDROID_BITMAP_RESULT_SUCCESS) {
         __android_log_print(ANDROID_LOG_ERROR, "JNI", "Could not get trackable image info.");
-        return false;
+        return -1;
     }
 
     result = AndroidBitmap_lockPixels(env, bitmap, &data);
 
     if (result != ANDROID_BITMAP_RESULT_SUCCESS) {
         __android_log_print(ANDROID_LOG_ERROR, "JNI", "Could not lock trackable image pixels.");
-        return false;
+        return -1;
     }
 
     const char *nameStr = env->GetStringUTFChars(name, 0);
@@ -186,203 +733,359 @@ jboolean Java_eu_kudan_ar_CameraFragment_addTrackableToImageTracker(
     }
 
     // createFromImageData returns a null pointer if unsuccessful.
-    if (kudanImageTrackable) {
-
-        // Once the trackable is created, it needs to be added to the tracker!
-        return imageTracker->addTrackable(kudanImageTrackable);
-    }
-    else {
-        return false;
+    if (!kudanImageTrackable) {
+        return -1;
     }
+
+    // The trackable is created without the lock, so the tracker keeps processing frames meanwhile.
+    std::lock_guard<std::mutex> guard(instance->lock);
+
+    // Once the trackable is created, it needs to be catalogued and then activated on the tracker!
+    instance->catalog.push_back(kudanImageTrackable);
+
+    return (jint) instance->catalog.size() - 1;
 }
 
-jfloatArray Java_eu_kudan_ar_CameraFragment_processImageTrackerFrame(
+jint Java_eu_kudan_ar_CameraFragment_addTrackableToImageTrackerFromBuffer(
         JNIEnv *env,
         jobject /* this */,
-        jbyteArray image,
+        jlong handle,
+        jobject pixels,
         jint width,
         jint height,
         jint channels,
-        jint padding,
-        jboolean requireFlip) {
+        jstring name) {
 
-    jbyte *data = env->GetByteArrayElements(image, 0);
+    std::shared_ptr<ImageTrackerInstance> instance = getImageTracker(handle);
 
-    unsigned char *base = (unsigned char *) data;
+    if (!instance) {
+        return -1;
+    }
 
-    imageTracker->processFrame(base, width, height, channels, padding, requireFlip);
+    // Read the pixels in place, such as straight from a memory-mapped cache file.
+    unsigned char *data = (unsigned char *) env->GetDirectBufferAddress(pixels);
 
-    env->ReleaseByteArrayElements(image, data, JNI_ABORT);
+    if (data == NULL) {
+        __android_log_print(ANDROID_LOG_ERROR, "JNI", "Trackable pixels are not held in a direct buffer.");
+        return -1;
+    }
 
+    if (env->GetDirectBufferCapacity(pixels) < (jlong) width * height * channels) {
+        __android_log_print(ANDROID_LOG_ERROR, "JNI", "Trackable pixel buffer is too small for its dimensions.");
+        return -1;
+    }
 
-    std::vector<std::shared_ptr<KudanImageTrackable>> trackedList = imageTracker->getDetectedTrackables();
+    const char *nameStr = env->GetStringUTFChars(name, 0);
 
-    if (trackedList.size() == 1) {
+    std::shared_ptr<KudanImageTrackable> kudanImageTrackable = KudanImageTrackable::createFromImageData(
+            data,
+            nameStr,
+            width,
+            height,
+            channels,
+            0
+    );
 
-        std::shared_ptr<KudanImageTrackable> tracked = trackedList[0];
+    env->ReleaseStringUTFChars(name, nameStr);
 
-        float trackedData[10];
+    // createFromImageData returns a null pointer if unsuccessful.
+    if (!kudanImageTrackable) {
+        return -1;
+    }
 
-        /** Get the pose of the tracked object to draw it
-             This is expressed as a 3D position and a unit quaternion for orientation
-             This is: the position of the trackable centre with respect to the camera, and the orientation of the trackable about this centre
-             This is equivalent to having the rotation (R) and translation (T) of a camera with respect to the trackable, with which the marker position (in its own coordinate frame) can be projected to the image
-             */
+    std::lock_guard<std::mutex> guard(instance->lock);
 
+    // The trackable is only catalogued here. It is detected once activated.
+    instance->catalog.push_back(kudanImageTrackable);
 
-        // To project the tracked marker centre into the image, use the marker centre in its own coodinate frame (obviously the origin) and project that using the tracked pose expressed as a camera */
-        KudanVector3 origin(0,0,0);
+    return (jint) instance->catalog.size() - 1;
+}
 
-        // Get the camera intrinsics as a 3x3 matrix
-        KudanMatrix3 K = imageTracker->getCameraMatrix();
+jboolean Java_eu_kudan_ar_CameraFragment_activateImageTrackable(
+        JNIEnv *env,
+        jobject /* this */,
+        jlong handle,
+        jint index) {
 
-        // Project the point (0,0,0) using the camera intrinsics and extrinsics. Also need to pass in the image with (see function)
-        KudanVector3 position = tracked->getPosition();
-        KudanQuaternion orientation = tracked->getOrientation();
-        KudanVector2 projection = project(origin, K, position, orientation);
+    std::shared_ptr<ImageTrackerInstance> instance = getImageTracker(handle);
 
+    if (!instance) {
+        return false;
+    }
+
+    std::lock_guard<std::mutex> guard(instance->lock);
 
+    if (index < 0 || index >= (jint) instance->catalog.size()) {
+        return false;
+    }
 
-        // Store the details of this trackable
-        trackedData[0] = projection.x;
-        trackedData[1] = projection.y;
+    return instance->tracker->addTrackable(instance->catalog[index]);
+}
 
+void Java_eu_kudan_ar_CameraFragment_removeImageTrackables(
+        JNIEnv *env,
+        jobject /* this */,
+        jlong handle,
+        jintArray indices,
+        jint count) {
 
-        // As well as the centre, it's useful to draw the four corners of the tracked object
-        // Because the trackable is defined as having size width x height in the world, and is at the origin (of its own coordinate frame), the bounds of the marker are at (+/- width/2, +/- height/2). Projecting these four points into the current image using the camera pose gets the outline of the tracked marker in the image:
+    std::shared_ptr<ImageTrackerInstance> instance = getImageTracker(handle);
 
-        float w = tracked->getWidth();
-        float h = tracked->getHeight();
+    if (!instance || count <= 0) {
+        return;
+    }
 
+    std::vector<jint> removed(count);
+    env->GetIntArrayRegion(indices, 0, count, removed.data());
 
+    std::lock_guard<std::mutex> guard(instance->lock);
 
-        KudanVector3 corner00(-w/2.f, -h/2.f, 0);
-        KudanVector2 projection00 = project(corner00, K, position, orientation);
+    std::vector<std::shared_ptr<KudanImageTrackable>> removedTrackables;
 
-        KudanVector3 corner01(-w/2.f, h/2.f, 0);
-        KudanVector2 projection01 = project(corner01, K, position, orientation);
+    for (jint i = 0; i < count; i++) {
 
-        KudanVector3 corner11(w/2.f, h/2.f, 0);
-        KudanVector2 projection11 = project(corner11, K, position, orientation);
+        if (removed[i] >= 0 && removed[i] < (jint) instance->catalog.size()) {
+            removedTrackables.push_back(instance->catalog[removed[i]]);
+        }
+    }
 
-        KudanVector3 corner10(w/2.f, -h/2.f, 0);
-        KudanVector2 projection10 = project(corner10, K, position, orientation);
+    if (removedTrackables.empty()) {
+        return;
+    }
 
-        trackedData[2] = projection00.x;
-        trackedData[3] = projection00.y;
-        trackedData[4] = projection01.x;
-        trackedData[5] = projection01.y;
-        trackedData[6] = projection11.x;
-        trackedData[7] = projection11.y;
-        trackedData[8] = projection10.x;
-        trackedData[9] = projection10.y;
+    // The tracker cannot remove a trackable, so replace it with one holding every other trackable.
+    // Trackables keep their prepared features, so re-adding them is cheap, but creating the tracker
+    // is not, so every trackable removed at once shares one rebuild. Any tracking state is lost and
+    // this should only be called while detecting.
+    std::shared_ptr<KudanImageTracker> tracker = createImageTracker(*instance);
 
-        jfloatArray result = env->NewFloatArray(10);
+    std::vector<std::shared_ptr<KudanImageTrackable>> trackables = instance->tracker->getTrackables();
 
-        env->SetFloatArrayRegion(result, 0, 10, trackedData);
+    for (size_t i = 0; i < trackables.size(); i++) {
 
-        return result;
+        if (std::find(removedTrackables.begin(), removedTrackables.end(), trackables[i]) == removedTrackables.end()) {
+            tracker->addTrackable(trackables[i]);
+        }
     }
 
-    return NULL;
+    instance->tracker = tracker;
+    instance->regionActive = false;
 }
 
-jfloatArray Java_eu_kudan_ar_CameraFragment_processArbiTrackerFrame(
+jint Java_eu_kudan_ar_CameraFragment_processImageTrackerDirectFrame(
         JNIEnv *env,
         jobject /* this */,
-        jbyteArray image,
-        jfloatArray gyroOrentation,
+        jlong handle,
+        jobject image,
         jint width,
         jint height,
         jint channels,
-        jint padding,
-        jboolean requireFlip) {
+        jint rowStride,
+        jboolean requireFlip,
+        jfloatArray result) {
 
-    jbyte *data = env->GetByteArrayElements(image, 0);
-    jfloat *orientation = env->GetFloatArrayElements(gyroOrentation, 0);
-    
-    // Important: before calling processFrame on Arbitrack, it is necessary to provide an orientation estimate from some other sensor, e.g. Android IMU
-    // If this is not done, then Arbitrack will not output an orientation
-    
-    // Use this function to set the orientation:
-    // KudanQuaternion constructor takes values in (x,y,z,w) order, so we compensate.
-    KudanQuaternion gyroQuaternion = KudanQuaternion(orientation[1], orientation[2], orientation[3], orientation[0]);
+    std::shared_ptr<ImageTrackerInstance> instance = getImageTracker(handle);
 
-    arbiTracker->setSensedOrientation( gyroQuaternion );
-    
-    unsigned char *base = (unsigned char *) data;
+    if (!instance) {
+        return STATUS_NOT_TRACKED;
+    }
 
-    arbiTracker->processFrame(base, width, height, 1 /* assume one channel*/, padding, false /* don't need to flip the image*/);
+    // Read the ring frame through its buffer address, without copying it into a Java array.
+    unsigned char *base = (unsigned char *) env->GetDirectBufferAddress(image);
 
-    env->ReleaseByteArrayElements(image, data, JNI_ABORT);
+    if (base == NULL) {
+        __android_log_print(ANDROID_LOG_ERROR, "JNI", "Image tracker frame is not held in a direct buffer.");
+        return STATUS_NOT_TRACKED;
+    }
 
-    if (arbiTracker->isTracking()) {
+    if (!checkFrameLayout(env->GetDirectBufferCapacity(image), width, height, channels, rowStride, "Image tracker")) {
+        return STATUS_NOT_TRACKED;
+    }
 
-        float trackedData[10];
+    std::lock_guard<std::mutex> guard(instance->lock);
 
-        // Get the camera intrinsics as a 3x3 matrix
-        KudanMatrix3 K = arbiTracker->getCameraMatrix(); // need this on arbitracker - oops! TODO
+    useImageTrackerFullFrame(*instance);
 
+    // Any bytes left at the end of each row by the camera are skipped as padding.
+    instance->tracker->processFrame(base, width, height, channels, rowStride - width * channels, requireFlip);
 
-        KudanVector3 position = arbiTracker->getPosition();
-        // make sure it's not the zero vector
-        if (position.x == 0 && position.y == 0 && position.z == 0) {
+    return getImageTrackerResult(env, *instance, result, instance->tracker->getCameraMatrix());
+}
 
-            for (int i = 0;i < 10;i++) {
-                trackedData[i] = 0.0f;
-            }
+jint Java_eu_kudan_ar_CameraFragment_processImageTrackerDirectRegion(
+        JNIEnv *env,
+        jobject /* this */,
+        jlong handle,
+        jobject image,
+        jint width,
+        jint height,
+        jint channels,
+        jint rowStride,
+        jint regionX,
+        jint regionY,
+        jint regionWidth,
+        jint regionHeight,
+        jboolean requireFlip,
+        jfloatArray result) {
+
+    std::shared_ptr<ImageTrackerInstance> instance = getImageTracker(handle);
+
+    if (!instance) {
+        return STATUS_NOT_TRACKED;
+    }
 
-            jfloatArray result = env->NewFloatArray(10);
+    unsigned char *base = (unsigned char *) env->GetDirectBufferAddress(image);
 
-            env->SetFloatArrayRegion(result, 0, 10, trackedData);
+    if (base == NULL) {
+        __android_log_print(ANDROID_LOG_ERROR, "JNI", "Image tracker frame is not held in a direct buffer.");
+        return STATUS_NOT_TRACKED;
+    }
 
-            return result;
-        }
-        else {
-            KudanQuaternion orientation = arbiTracker->getOrientation();
+    if (!checkFrameLayout(env->GetDirectBufferCapacity(image), width, height, channels, rowStride, "Image tracker")) {
+        return STATUS_NOT_TRACKED;
+    }
 
+    if (regionX < 0 || regionY < 0 || regionWidth <= 0 || regionHeight <= 0 || regionX + regionWidth > width || regionY + regionHeight > height) {
+        __android_log_print(ANDROID_LOG_ERROR, "JNI", "Image tracker region lies outside the frame.");
+        return STATUS_NOT_TRACKED;
+    }
 
-            KudanVector3 origin(0,0,0);
+    std::lock_guard<std::mutex> guard(instance->lock);
 
-            KudanVector2 projection = project(origin, K, position, orientation);
+    // The region is seen by the same camera, so only the principal point moves with the crop and
+    // the tracked pose stays in full-frame camera coordinates.
+    KudanCameraParameters regionParameters;
 
-            trackedData[0] = projection.x;
-            trackedData[1] = projection.y;
+    regionParameters.setSize(regionWidth, regionHeight);
+    regionParameters.setIntrinsics(
+            instance->parameters.getFocalX(),
+            instance->parameters.getFocalY(),
+            instance->parameters.getPrincipalX() - regionX,
+            instance->parameters.getPrincipalY() - regionY
+    );
 
-            // Get the four outer grid corners by projecting  +/- the arbitrack scale in (x,y)
-            KudanVector3 corner00(-arbitrackScale, -arbitrackScale, 0);
-            KudanVector2 projection00 = project(corner00, K, position, orientation);
+    instance->tracker->setCameraParameters(regionParameters);
+    instance->regionActive = true;
 
-            KudanVector3 corner01(-arbitrackScale, arbitrackScale, 0);
-            KudanVector2 projection01 = project(corner01, K, position, orientation);
+    // Start at the region's first pixel and skip the rest of each frame row as padding, so the
+    // region is tracked in place.
+    unsigned char *regionBase = base + regionY * rowStride + regionX * channels;
 
-            KudanVector3 corner11(arbitrackScale, arbitrackScale, 0);
-            KudanVector2 projection11 = project(corner11, K, position, orientation);
+    instance->tracker->processFrame(regionBase, regionWidth, regionHeight, channels, rowStride - regionWidth * channels, requireFlip);
 
-            KudanVector3 corner10(arbitrackScale, -arbitrackScale, 0);
-            KudanVector2 projection10 = project(corner10, K, position, orientation);
+    // Project with the full-frame intrinsics so results are in full-frame pixels.
+    return getImageTrackerResult(env, *instance, result, instance->parameters.getMatrix());
+}
 
+jint Java_eu_kudan_ar_CameraFragment_processArbiTrackerDirectFrame(
+        JNIEnv *env,
+        jobject /* this */,
+        jlong handle,
+        jobject image,
+        jfloatArray gyroOrentation,
+        jint width,
+        jint height,
+        jint channels,
+        jint rowStride,
+        jboolean requireFlip,
+        jfloatArray result) {
+
+    std::shared_ptr<ArbiTrackerInstance> instance = getArbiTracker(handle);
+
+    if (!instance) {
+        return STATUS_NOT_TRACKED;
+    }
+
+    // Read the ring frame through its buffer address, without copying it into a Java array.
+    unsigned char *base = (unsigned char *) env->GetDirectBufferAddress(image);
 
-            // Save as four separate points as properties on the MarkerTracker:
-            trackedData[2] = projection00.x;
-            trackedData[3] = projection00.y;
-            trackedData[4] = projection01.x;
-            trackedData[5] = projection01.y;
-            trackedData[6] = projection11.x;
-            trackedData[7] = projection11.y;
-            trackedData[8] = projection10.x;
-            trackedData[9] = projection10.y;
+    if (base == NULL) {
+        __android_log_print(ANDROID_LOG_ERROR, "JNI", "Arbitrack frame is not held in a direct buffer.");
+        return STATUS_NOT_TRACKED;
+    }
+
+    // Arbitrack reads a single channel whatever the frame holds.
+    if (!checkFrameLayout(env->GetDirectBufferCapacity(image), width, height, 1, rowStride, "Arbitrack")) {
+        return STATUS_NOT_TRACKED;
+    }
 
-            jfloatArray result = env->NewFloatArray(10);
+    std::lock_guard<std::mutex> guard(instance->lock);
 
-            env->SetFloatArrayRegion(result, 0, 10, trackedData);
+    setArbiTrackerOrientation(env, *instance, gyroOrentation);
+
+    instance->tracker->processFrame(base, width, height, 1 /* assume one channel*/, rowStride - width, false /* don't need to flip the image*/);
+
+    return getArbiTrackerResult(env, *instance, result);
+}
 
-            return result;
+jint Java_eu_kudan_ar_CameraFragment_projectTrackedPoints(
+        JNIEnv *env,
+        jobject /* this */,
+        jfloatArray pose,
+        jint poseOffset,
+        jint width,
+        jint height,
+        jfloatArray points,
+        jfloatArray projected,
+        jint count) {
+
+    // Validate here rather than relying on the caller, as a bad count would overrun the arrays
+    // while they are held critically.
+    if (count <= 0 || count > env->GetArrayLength(points) / 3 || count > env->GetArrayLength(projected) / 2) {
+        __android_log_print(ANDROID_LOG_ERROR, "JNI", "Point arrays are too short to project %d points.", (int) count);
+        return 0;
+    }
+
+    if (poseOffset < 0 || poseOffset > env->GetArrayLength(pose) - 7) {
+        __android_log_print(ANDROID_LOG_ERROR, "JNI", "Pose array has no pose at offset %d.", (int) poseOffset);
+        return 0;
+    }
+
+    // Read the pose in the (x,y,z) position and (w,x,y,z) orientation layout of a result entry.
+    jfloat poseData[7];
+    env->GetFloatArrayRegion(pose, poseOffset, 7, poseData);
+
+    // No critical section may be entered with an exception pending.
+    if (env->ExceptionCheck()) {
+        return 0;
+    }
+
+    KudanVector3 position(poseData[0], poseData[1], poseData[2]);
+    KudanQuaternion orientation(poseData[4], poseData[5], poseData[6], poseData[3]);
+
+    // Both trackers guess their intrinsics from the frame size, so the intrinsics of any tracked
+    // frame can be recreated here without reading tracker state from another thread.
+    KudanCameraParameters parameters;
+
+    parameters.setSize(width, height);
+    parameters.guessIntrinsics();
+
+    PointProjector projector = createPointProjector(parameters.getMatrix(), position, orientation);
+
+    // Project in place rather than copying the point arrays in and out.
+    float *pointData = (float *) env->GetPrimitiveArrayCritical(points, 0);
+    float *projectedData = (float *) env->GetPrimitiveArrayCritical(projected, 0);
+
+    if (pointData == NULL || projectedData == NULL) {
+
+        if (projectedData != NULL) {
+            env->ReleasePrimitiveArrayCritical(projected, projectedData, JNI_ABORT);
+        }
+
+        if (pointData != NULL) {
+            env->ReleasePrimitiveArrayCritical(points, pointData, JNI_ABORT);
         }
 
+        __android_log_print(ANDROID_LOG_ERROR, "JNI", "Point arrays could not be accessed for projection.");
+        return 0;
     }
 
-    return NULL;
+    projectPoints(projector, pointData, projectedData, count);
+
+    env->ReleasePrimitiveArrayCritical(projected, projectedData, 0);
+    env->ReleasePrimitiveArrayCritical(points, pointData, JNI_ABORT);
+
+    return count;
 }
 
 } // extern "C"
@@ -12,6 +12,7 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.ImageFormat;
 import android.graphics.Matrix;
+import android.graphics.PixelFormat;
 import android.graphics.Point;
 import android.graphics.Rect;
 import android.graphics.RectF;
@@ -24,28 +25,40 @@ import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
 import android.hardware.camera2.CaptureRequest;
-import android.media.Image;
-import android.media.ImageReader;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.v4.app.ActivityCompat;
 import android.util.Log;
+import android.util.Range;
 import android.util.Size;
 import android.view.LayoutInflater;
+import android.view.Surface;
 import android.view.SurfaceHolder;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.TextView;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static android.hardware.camera2.CameraMetadata.LENS_FACING_BACK;
 
@@ -73,17 +86,10 @@ public class CameraFragment extends Fragment implements SensorEventListener {
 
             mCameraDevice = cameraDevice;
 
-            // Get the KudanCV API key from the Android Manifest.
-            String apiKey = getAPIKey();
+            initialiseTracking(mCameraPreviewSize.getWidth(), mCameraPreviewSize.getHeight());
 
-            // Initialise the native tracking objects.
-            initialiseImageTracker(apiKey, mCameraPreviewSize.getWidth(), mCameraPreviewSize.getHeight());
-            initialiseArbiTracker(apiKey, mCameraPreviewSize.getWidth(), mCameraPreviewSize.getHeight());
-
-            // Add the image trackable to the native image tracker.
-            addTrackable(R.mipmap.lego, "lego");
-
-            // Create the camera preview.
+            // Create the camera preview straight away so detection starts with whichever
+            // trackables have loaded.
             createCameraPreviewSession();
         }
 
@@ -125,9 +131,39 @@ public class CameraFragment extends Fragment implements SensorEventListener {
     private CameraCaptureSession mCaptureSession;
 
     /**
-     * A reference to the ImageReader that receives new camera preview frames and processes tracking and detection.
+     * Latency histograms of every pipeline stage, recorded per frame and logged periodically.
+     */
+    private final FrameLatencyStats mLatencyStats = new FrameLatencyStats();
+
+    /**
+     * The source of camera frames, which owns the ImageReaders that receive the full-resolution
+     * stream and the optional low-resolution stream, scaled by the camera hardware, on which
+     * image detection runs while nothing is tracked.
+     */
+    private final CameraFrameSource mCameraFrameSource;
+
+    /**
+     * The source currently feeding the capture stage: the camera, or a recording being replayed.
+     */
+    private volatile FrameSource mFrameSource;
+
+    /**
+     * A recording replayed instead of the camera and its playback speed, or null to use the
+     * camera. Takes effect the next time the fragment is resumed.
+     */
+    private File mReplayRecording;
+    private float mReplaySpeed = 1.0f;
+
+    /**
+     * Records the frames and orientations of the live session while set.
+     */
+    private volatile FrameRecorder mFrameRecorder;
+
+    /**
+     * The longest time the capture stage waits for a free ring frame for a replayed frame before
+     * checking whether the replay has stopped.
      */
-    private ImageReader mImageReader;
+    private static final long REPLAY_CAPTURE_WAIT_MILLIS = 100;
 
     /**
      * A CaptureRequest.Builder for the camera preview.
@@ -140,9 +176,190 @@ public class CameraFragment extends Fragment implements SensorEventListener {
     private CaptureRequest mPreviewRequest;
 
     /**
-     * Dimensions of the camera preview.
+     * Dimensions of the camera preview. Chosen from the sizes the camera supports when it is
+     * opened, and changed while it runs if adaptive resolution is enabled.
+     */
+    private volatile Size mCameraPreviewSize = new Size(1920, 1080);
+
+    /**
+     * The largest camera preview size that will be chosen. Also sets the aspect ratio of the
+     * preview.
+     */
+    private Size mMaxCameraPreviewSize = new Size(1920, 1080);
+
+    /**
+     * The time available to track each frame, against which the preview size is chosen.
+     */
+    private long mFrameTimeBudgetNs = CaptureResolutionPolicy.DEFAULT_FRAME_BUDGET_NS;
+
+    /**
+     * Chooses the preview size when the camera is opened and steps it up or down as tracking time
+     * is measured. Reported to by the tracking stage.
+     */
+    private volatile CaptureResolutionPolicy mResolutionPolicy;
+
+    /**
+     * Whether the preview size is changed while the camera runs to keep tracking within the frame
+     * time budget.
+     */
+    private volatile boolean mAdaptiveResolutionEnabled = true;
+
+    /**
+     * Chooses the camera's target frame rate range from the tracking rate and the tracking state,
+     * and the rotation sensor rate from the tracking state. Null if the camera reports no ranges
+     * or the governor is disabled. Reported to by the tracking stage.
+     */
+    private volatile FrameRateGovernor mFrameRateGovernor;
+
+    /**
+     * Whether the frame rate governor is used. Takes effect when the camera is next opened.
+     */
+    private volatile boolean mFrameRateGovernorEnabled = true;
+
+    /**
+     * The governor's range index that the repeating request was last built with. Owned by the
+     * background thread.
+     */
+    private int mAppliedFrameRateRange = -1;
+
+    /**
+     * Handler for the UI thread, on which the rotation sensor is registered and unregistered.
+     */
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Applies the governor's frame rate range to the repeating request of the capture session.
+     * Posted to the background thread when the range changes.
+     */
+    private final Runnable mApplyFrameRateRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+
+            FrameRateGovernor governor = mFrameRateGovernor;
+
+            if (governor == null || governor.getRangeIndex() == mAppliedFrameRateRange) {
+                return;
+            }
+
+            // The session is being created or closed. A new session is built with the current
+            // range, so try again shortly in case this one is not.
+            if (!mCameraOpenCloseLock.tryAcquire()) {
+
+                Handler backgroundHandler = mBackgroundHandler;
+
+                if (backgroundHandler != null) {
+                    backgroundHandler.postDelayed(this, FRAME_RATE_RETRY_MILLIS);
+                }
+
+                return;
+            }
+
+            try {
+
+                if (mCaptureSession == null) {
+                    return;
+                }
+
+                setTargetFrameRate(governor);
+
+                mPreviewRequest = mPreviewRequestBuilder.build();
+                mCaptureSession.setRepeatingRequest(mPreviewRequest, null, mBackgroundHandler);
+            }
+            catch (CameraAccessException e) {
+                Log.w("CameraDevice", "Cannot change the camera frame rate.");
+            }
+            finally {
+                mCameraOpenCloseLock.release();
+            }
+        }
+    };
+
+    private static final long FRAME_RATE_RETRY_MILLIS = 100;
+
+    /**
+     * Registers the rotation sensor again at the governor's period. Posted to the UI thread when
+     * the period changes.
+     */
+    private final Runnable mApplySensorPeriodRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+
+            FrameRateGovernor governor = mFrameRateGovernor;
+
+            // The sensor has been stopped, or is not used for replays.
+            if (governor == null || mSensorManager == null) {
+                return;
+            }
+
+            int periodUs = governor.getSensorPeriodUs();
+
+            if (periodUs == mSensorPeriodUs) {
+                return;
+            }
+
+            mSensorManager.unregisterListener(CameraFragment.this);
+            mSensorManager.registerListener(CameraFragment.this, mSensor, periodUs);
+
+            mSensorPeriodUs = periodUs;
+        }
+    };
+
+    /**
+     * Dimensions of the low-resolution detection stream. Must share the aspect ratio of the camera
+     * preview so that both streams cover the same field of view.
+     */
+    private Size mDetectionStreamSize = new Size(640, 360);
+
+    /**
+     * Whether image detection runs on a separate low-resolution stream, with the full-resolution
+     * stream used only once a trackable is being tracked. Takes effect when the camera is next
+     * opened.
+     */
+    private volatile boolean mDualStreamEnabled = true;
+
+    /**
+     * Handles of the native trackers, or 0 before they are initialised and after they are released.
+     *
+     * Each handle names its own tracker instance, whose calls are serialised by a lock of its own.
+     */
+    private volatile long mImageTrackerHandle;
+    private volatile long mArbiTrackerHandle;
+
+    /**
+     * The frame size the native image tracker's camera parameters currently describe.
+     *
+     * Owned by the tracking stage.
+     */
+    private int mImageTrackerFrameWidth;
+    private int mImageTrackerFrameHeight;
+
+    /**
+     * The frame size the native markerless tracker's camera parameters currently describe.
+     *
+     * Owned by the tracking stage.
+     */
+    private int mArbiTrackerFrameWidth;
+    private int mArbiTrackerFrameHeight;
+
+    /**
+     * Whether only the region around the trackable is passed to the image tracker while tracking.
+     */
+    private volatile boolean mRegionTrackingEnabled = true;
+
+    /**
+     * Chooses the region of each frame tracked and records the pixels processed per frame.
+     */
+    private final TrackingRegion mTrackingRegion = new TrackingRegion();
+
+    /**
+     * The size of the frame that the corners held in mTrackingResult were projected into.
+     *
+     * Owned by the tracking stage.
      */
-    private Size mCameraPreviewSize = new Size(1920, 1080);
+    private int mTrackingResultWidth;
+    private int mTrackingResultHeight;
 
     /**
      * A Semaphore to prevent the camera simultaneously opening and closing.
@@ -154,6 +371,82 @@ public class CameraFragment extends Fragment implements SensorEventListener {
      */
     private CameraSurfaceView mSurfaceView;
 
+    /**
+     * A transparent CameraSurfaceView laid out over mSurfaceView, on which the tracking overlay is
+     * drawn while the camera preview is routed straight to mSurfaceView.
+     */
+    private CameraSurfaceView mOverlayView;
+
+    /**
+     * Whether the camera preview is sent straight to mSurfaceView as a capture output, with only
+     * the tracking overlay drawn in software. Takes effect when the frame source is next started.
+     */
+    private volatile boolean mDirectPreviewEnabled = true;
+
+    /**
+     * Whether the current frame source routes the camera preview to mSurfaceView. Recorded frames
+     * are always drawn in software.
+     */
+    private volatile boolean mDirectPreview;
+
+    /**
+     * Whether a Canvas has been locked on the current Surface of mSurfaceView. Such a Surface stays
+     * connected to the CPU and cannot also be a camera output until it is recreated.
+     */
+    private volatile boolean mPreviewSurfaceDrawn;
+
+    /**
+     * Whether the camera is guaranteed to stream to the display alongside both ImageReader streams.
+     */
+    private volatile boolean mThreeStreamsSupported;
+
+    /**
+     * The area of mOverlayView drawn on for the previous frame, and pre-allocated objects for the
+     * area redrawn for the current frame.
+     *
+     * Owned by the render stage.
+     */
+    private final Rect mOverlayBounds = new Rect();
+    private final Rect mOverlayDirty = new Rect();
+    private final RectF mOverlayPrimitiveBounds = new RectF();
+
+    /**
+     * The tracked primitives drawn over each frame, rebuilt only when they change.
+     *
+     * Owned by the render stage.
+     */
+    private final Drawing.DisplayList mDisplayList = new Drawing.DisplayList(TrackingResult.MAX_ENTRIES);
+
+    /**
+     * Whether mOverlayView shows the current contents of mDisplayList. Owned by the render stage.
+     */
+    private boolean mOverlayCurrent;
+
+    /**
+     * Set when a new Surface is created for mOverlayView, which must then be drawn again.
+     */
+    private volatile boolean mOverlaySurfaceCreated;
+
+    /**
+     * Callback listener for mOverlayView, to redraw the overlay on each new Surface.
+     */
+    private SurfaceHolder.Callback mOverlaySurfaceCallback = new SurfaceHolder.Callback() {
+
+        @Override
+        public void surfaceCreated(SurfaceHolder holder) {
+            mOverlaySurfaceCreated = true;
+        }
+
+        @Override
+        public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+            mOverlaySurfaceCreated = true;
+        }
+
+        @Override
+        public void surfaceDestroyed(SurfaceHolder holder) {
+        }
+    };
+
     /**
      * Callback listener for mSurfaceView to manage Surface lifecycle events.
      */
@@ -167,9 +460,9 @@ public class CameraFragment extends Fragment implements SensorEventListener {
                 return;
             }
 
-            // Setup the camera only when the Surface has been created to ensure a valid output
-            // surface exists when the CameraCaptureSession is created.
-            setupCameraDevice();
+            // Start frames only when the Surface has been created to ensure a valid output
+            // surface exists when the CameraCaptureSession is created and frames are rendered.
+            setupFrameSource();
         }
 
         @Override
@@ -178,6 +471,9 @@ public class CameraFragment extends Fragment implements SensorEventListener {
 
         @Override
         public void surfaceDestroyed(SurfaceHolder holder) {
+
+            // The next Surface can be a camera output again.
+            mPreviewSurfaceDrawn = false;
         }
     };
 
@@ -186,7 +482,37 @@ public class CameraFragment extends Fragment implements SensorEventListener {
      */
     private SensorManager mSensorManager;
     private Sensor mSensor;
-    private final float[] mRotationQuaternion = new float[4];
+
+    /**
+     * The period the rotation sensor is currently registered with. Owned by the UI thread.
+     */
+    private int mSensorPeriodUs = FrameRateGovernor.DEFAULT_ACTIVE_SENSOR_PERIOD_US;
+    private final OrientationCell mRotationQuaternion = new OrientationCell();
+
+    /**
+     * Recent timestamped device rotations, used to estimate the rotation at the moment each camera
+     * frame was captured.
+     */
+    private final OrientationHistory mOrientationHistory = new OrientationHistory();
+
+    /**
+     * Whether camera frame timestamps share the sensor event clock, allowing the device rotation
+     * to be aligned with each frame.
+     */
+    private volatile boolean mCameraTimestampsAligned;
+
+    /**
+     * Pre-allocated scratch objects used by the sensor thread to convert rotation vector events
+     * into a quaternion.
+     */
+    private final float[] mSensorRotationMatrix = new float[16];
+    private final float[] mRemappedRotationMatrix = new float[16];
+    private final float[] mSensorQuaternion = new float[4];
+
+    /**
+     * Pre-allocated snapshot of the device rotation taken by the tracking stage for each frame.
+     */
+    private final float[] mTrackingQuaternion = new float[4];
 
     /**
      * Pre-allocated objects for transforming primitive drawing coordinates from camera frame space
@@ -207,143 +533,548 @@ public class CameraFragment extends Fragment implements SensorEventListener {
     private Button mButton;
 
     /**
-     * Pre-allocated Point objects that retain the projected, screen-space corner coordinates of the tracked object.
+     * Publishes the tracker state of rendered frames to the button and status label, only when it
+     * changes and with at most one update pending on the UI thread.
      */
-    private ArrayList<Point> trackedCorners = new ArrayList<>(4);
+    private final UiStatePublisher mUiStatePublisher = new UiStatePublisher(new Executor() {
+
+        @Override
+        public void execute(Runnable runnable) {
+            mMainHandler.post(runnable);
+        }
+    });
 
     /**
-     * Describes the current state of tracking in the most recently processed camera frame.
+     * Applies published tracker states to the button and status label while the fragment is resumed.
      */
-    TrackerState mTrackerState = TrackerState.IMAGE_DETECTION;
+    private final UiStatePublisher.Listener mUiStateListener = new UiStatePublisher.Listener() {
+
+        @Override
+        public void onUiState(TrackerState state) {
+            updateUiState(state);
+        }
+    };
 
     /**
-     * Possible states of tracking available during camera frame processing.
+     * Pre-allocated buffer that the native trackers write projected tracking data and the pose of
+     * the tracked object into. Retains the last result when a frame is not tracked.
+     *
+     * Owned by the tracking stage.
      */
-    enum TrackerState {
-        IMAGE_DETECTION,
-        IMAGE_TRACKING,
-        ARBITRACK
-    }
+    private final TrackingResult mTrackingResult = new TrackingResult();
 
     /**
-     * Background thread that is responsible for receiving camera frames and rendering GUI elements.
+     * The maximum number of image trackables tracked at once, up to TrackingResult.MAX_ENTRIES.
+     * Takes effect the next time the camera is opened.
      */
-    private HandlerThread mBackgroundThread;
+    private volatile int mMaxSimultaneousTrackables = 1;
 
     /**
-     * Background handler for running tasks on the background thread.
+     * Names of the trackables added to the native image tracker, in the order they were added, so
+     * that the trackable index of each result entry can be labelled.
      */
-    private Handler mBackgroundHandler;
+    private final List<String> mTrackableNames = new CopyOnWriteArrayList<>();
 
     /**
-     * Callback listener for ImageReader that handles new camera preview frames received from the CameraDevice.
+     * Priorities of trackables by name. Trackables without a priority have priority 0.
      */
-    private ImageReader.OnImageAvailableListener mImageAvailListener = new ImageReader.OnImageAvailableListener() {
+    private final Map<String, Integer> mTrackablePriorities = new ConcurrentHashMap<>();
 
-        /**
-         * Pre-allocated Bitmap object for holding luma data from the most recent camera frame.
-         */
-        Bitmap cameraFrame = Bitmap.createBitmap(mCameraPreviewSize.getWidth(), mCameraPreviewSize.getHeight(), Bitmap.Config.ALPHA_8);
+    /**
+     * The largest number of trackables active in the native image tracker at once. Takes effect
+     * the next time the camera is opened.
+     */
+    private volatile int mTrackableWorkingSetCapacity = TrackableWorkingSet.DEFAULT_CAPACITY;
 
-        /**
-         * Pre-allocated Rect object for holding the dimensions of the camera frame.
-         */
-        Rect cameraFrameRect = new Rect();
+    /**
+     * Keeps the highest-priority and most recently detected trackables active in the native image
+     * tracker and rotates the rest in while nothing is detected.
+     *
+     * Owned by the tracking stage.
+     */
+    private final TrackableWorkingSet mTrackableWorkingSet = new TrackableWorkingSet(new TrackableWorkingSet.Backend() {
 
-        /**
-         * Pre-allocated byte array for holding the raw luma data of the  most recent camera frame.
-         */
-        byte[] cameraFrameData = new byte[mCameraPreviewSize.getWidth() * mCameraPreviewSize.getHeight()];
+        @Override
+        public boolean activate(int index) {
+            return activateImageTrackable(mImageTrackerHandle, index);
+        }
 
-        /**
-         * Callback method for handling new camera preview frames sent from the CameraDevice.
-         *
-         * @param reader The ImageReader receiving the new camera frame.
-         */
         @Override
-        public void onImageAvailable(ImageReader reader) {
+        public void deactivate(int[] indices, int count) {
+            removeImageTrackables(mImageTrackerHandle, indices, count);
+        }
+    });
 
-            // Synchronize with the tracker state to prevent changes to state mid-processing.
-            synchronized (mTrackerState) {
+    /**
+     * On-disk cache of decoded trackable images, created on first use.
+     */
+    private TrackableCache mTrackableCache;
 
-                Image currentCameraImage = reader.acquireLatestImage();
+    /**
+     * The image trackables loaded whenever the camera is opened, and their names.
+     */
+    private static final int[] TRACKABLE_RESOURCES = { R.mipmap.lego };
+    private static final String[] TRACKABLE_NAMES = { "Lego" };
 
-                // Return if no new camera image is available.
-                if (currentCameraImage == null) {
-                    return;
-                }
+    /**
+     * Loads trackable images in parallel, created on first use.
+     */
+    private volatile TrackableLoader mTrackableLoader;
 
-                int width = currentCameraImage.getWidth();
-                int height = currentCameraImage.getHeight();
+    /**
+     * Registers trackables with the native image tracker on the tracking stage as they finish
+     * loading.
+     */
+    private final TrackableLoader.Registrar mTrackableRegistrar = new TrackableLoader.Registrar() {
 
-                // Get the buffer holding the luma data from the YUV-format image.
-                ByteBuffer buffer = currentCameraImage.getPlanes()[0].getBuffer();
+        @Override
+        public boolean register(TrackableCache.Entry entry, String name) {
 
-                // Push the luma data into a byte array.
-                buffer.get(cameraFrameData);
+            // Pass the decoded pixels to JNI for addition to the image tracker without copying them.
+            int index = addTrackableToImageTrackerFromBuffer(mImageTrackerHandle, entry.pixels, entry.width, entry.height, entry.channels, name);
 
-                // Update the cameraFrame bitmap with the new image data.
-                buffer.rewind();
-                cameraFrame.copyPixelsFromBuffer(buffer);
+            if (index < 0) {
+                return false;
+            }
 
-                // Process tracking based on the new camera frame data.
-                mTrackerState = processTracking(cameraFrameData, width, height, mTrackerState, trackedCorners);
+            mTrackableNames.add(name);
+            mTrackableWorkingSet.add(index, getTrackablePriority(name));
 
-                // Render the new frame and tracking results to screen.
-                renderFrameToScreen(cameraFrame, cameraFrameRect, mTrackerState, trackedCorners);
+            // Search eagerly for the new trackable.
+            mDetectionScheduler.restart();
 
-                // Clean up frame data.
-                buffer.clear();
-                currentCameraImage.close();
-            }
+            return true;
         }
     };
 
-    //endregion
-
-    //region Constructors and Factories
+    /**
+     * Pre-allocated Point objects holding four corner coordinates for each tracked primitive of
+     * the frame being rendered, and the labels of the primitives.
+     *
+     * Owned by the render stage.
+     */
+    private final Point[] renderedCorners = new Point[TrackingResult.MAX_ENTRIES * 4];
+    private final String[] renderedLabels = new String[TrackingResult.MAX_ENTRIES];
 
     /**
-     * Loads the required JNI native library on creation of CameraFragment.
+     * The default time between posting a frame and it reaching the display, added to the measured
+     * pipeline latency when predicting poses.
      */
-    static {
-        System.loadLibrary("native-lib");
-    }
+    private static final long DEFAULT_DISPLAY_LATENCY_NS = 16000000L;
 
     /**
-     * Factory method to create a new CameraFragment.
+     * Smooths tracked poses and predicts them to the time they are displayed, so that drawn
+     * primitives neither jitter nor trail the tracked objects. The filtered result, and the
+     * outline points projected through its poses, are pre-allocated.
      *
-     * @return a new CameraFragment object.
+     * Owned by the render stage.
      */
-    public static CameraFragment newInstance() {
-        return new CameraFragment();
-    }
+    private final PoseFilter mPoseFilter = new PoseFilter();
+    private final TrackingResult mFilteredResult = new TrackingResult();
+    private final float[] mOutlinePoints = new float[5 * 3];
+    private final float[] mOutlineProjection = new float[5 * 2];
 
-    public CameraFragment() {
+    private volatile boolean mPoseFilterEnabled = true;
+    private volatile long mDisplayLatencyNs = DEFAULT_DISPLAY_LATENCY_NS;
 
-        super();
+    /**
+     * Describes the current state of tracking in the most recently processed camera frame and
+     * queues user requests to change it.
+     */
+    private final TrackerStateMachine mTrackerStateMachine = new TrackerStateMachine();
 
-        // Pre-allocate point objects to store tracked corner data.
-        for (int i = 0;i < 4;i++) {
-            trackedCorners.add(new Point());
-        }
-    }
+    /**
+     * Decides which frames run image detection while no trackable is being tracked.
+     */
+    private final DetectionScheduler mDetectionScheduler = new DetectionScheduler();
 
-    //endregion
+    /**
+     * Actions run on the tracking stage when queued tracker state commands are drained.
+     */
+    private final TrackerStateMachine.Actions mTrackerActions = new TrackerStateMachine.Actions() {
 
-    //region Lifecycle Methods
+        @Override
+        public void startArbiTracker(boolean startFromImageTrackable) {
+            CameraFragment.this.startArbiTracker(mArbiTrackerHandle, mImageTrackerHandle, startFromImageTrackable);
+        }
 
-    @Override
-    public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
-        return inflater.inflate(R.layout.camera_fragment, container, false);
-    }
+        @Override
+        public void stopArbiTracker() {
+            CameraFragment.this.stopArbiTracker(mArbiTrackerHandle);
 
-    @Override
+            // Search eagerly again now that image detection resumes.
+            mDetectionScheduler.restart();
+        }
+    };
+
+    /**
+     * Counter of the frames read by the native trackers straight from a ring frame's direct
+     * buffer.
+     *
+     * Each camera frame is copied once by LumaIngestor into its ring frame, which is shared by the
+     * tracking and render stages. The native trackers read that copy through its buffer address, so
+     * no Java array is made or pinned for them.
+     */
+    private final AtomicLong mDirectNativeReads = new AtomicLong();
+
+    /**
+     * Background thread that is responsible for receiving camera frames and capturing them into
+     * the frame ring.
+     */
+    private HandlerThread mBackgroundThread;
+
+    /**
+     * Background handler for running tasks on the background thread.
+     */
+    private Handler mBackgroundHandler;
+
+    /**
+     * Background thread and handler that run image detection and tracking on captured frames.
+     */
+    private HandlerThread mTrackingThread;
+    private Handler mTrackingHandler;
+
+    /**
+     * Background thread and handler that render tracked frames and GUI elements to screen.
+     */
+    private HandlerThread mRenderThread;
+    private Handler mRenderHandler;
+
+    /**
+     * The number of frames and the drop policy used for the frame ring when the pipeline is next
+     * started.
+     */
+    private int mFrameRingCapacity = FrameRing.DEFAULT_CAPACITY;
+    private FrameRing.DropPolicy mFrameDropPolicy = FrameRing.DropPolicy.DROP_OLDEST;
+
+    /**
+     * Ring of pre-allocated luma frames connecting the capture, tracking and render stages.
+     */
+    private FrameRing mFrameRing;
+
+    /**
+     * Ingestion stage that captures the luma plane of each camera frame into the frame ring,
+     * keeping its row stride where the trackers can consume it.
+     */
+    private final LumaIngestor mLumaIngestor = new LumaIngestor();
+
+    /**
+     * Sink that captures the frames delivered by the current FrameSource into the frame ring. This
+     * is the capture stage of the pipeline.
+     */
+    private final FrameSource.Sink mFrameSink = new FrameSource.Sink() {
+
+        @Override
+        public boolean onFrame(ByteBuffer plane, int width, int height, int rowStride, int pixelStride, long timestamp) {
+
+            FrameRing frameRing = mFrameRing;
+            Handler trackingHandler = mTrackingHandler;
+
+            FrameSource frameSource = mFrameSource;
+
+            // The source has been stopped.
+            if (frameSource == null) {
+                return false;
+            }
+
+            LumaFrame frame;
+
+            if (frameSource.isLive()) {
+
+                // Drop the camera frame if the later stages are still holding every ring frame.
+                frame = frameRing.acquireForCapture();
+            }
+            else {
+
+                // Hold recorded frames back until a ring frame is free, so none are dropped.
+                try {
+                    frame = frameRing.awaitForCapture(REPLAY_CAPTURE_WAIT_MILLIS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+
+            if (frame == null) {
+                return false;
+            }
+
+            long captureStart = System.nanoTime();
+
+            // Capture the luma rows with their real stride, repacking only if required.
+            mLumaIngestor.ingest(plane, width, height, rowStride, pixelStride, frame);
+
+            mLatencyStats.record(FrameLatencyStats.Stage.CAPTURE, mTrackerStateMachine.getState(), System.nanoTime() - captureStart);
+
+            frame.timestamp = timestamp;
+
+            FrameRecorder frameRecorder = mFrameRecorder;
+
+            if (frameRecorder != null) {
+
+                try {
+                    frameRecorder.writeFrame(frame.getData(), frame.width, frame.height, frame.rowStride, timestamp);
+                }
+                catch (IOException e) {
+                    Log.e("FrameRecorder", "Frame could not be recorded. Recording stopped.", e);
+                    stopRecording();
+                }
+            }
+
+            // Hand the frame to the tracking stage.
+            frameRing.publishForTracking(frame);
+            trackingHandler.post(mTrackFrameRunnable);
+
+            return true;
+        }
+
+        @Override
+        public void onOrientation(long timestamp, float w, float x, float y, float z) {
+
+            // Publish the rotation to the tracking stage.
+            mRotationQuaternion.write(w, x, y, z);
+            mOrientationHistory.add(timestamp, w, x, y, z);
+
+            FrameRecorder frameRecorder = mFrameRecorder;
+
+            if (frameRecorder != null) {
+
+                try {
+                    frameRecorder.writeOrientation(timestamp, w, x, y, z);
+                }
+                catch (IOException e) {
+                    Log.e("FrameRecorder", "Orientation could not be recorded. Recording stopped.", e);
+                    stopRecording();
+                }
+            }
+        }
+    };
+
+    /**
+     * Tracking stage of the pipeline. Processes the most recently captured frame and hands it on
+     * to the render stage.
+     */
+    private final Runnable mTrackFrameRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+
+            // Apply any tracker state changes requested since the previous frame.
+            mTrackerStateMachine.drainCommands(mTrackerActions);
+
+            LumaFrame frame = mFrameRing.takeForTracking();
+
+            // The frame may already have been superseded and handled by an earlier run.
+            if (frame == null) {
+                return;
+            }
+
+            TrackerState currentState = mTrackerStateMachine.getState();
+
+            // Process tracking based on the new camera frame data. The trackers read the ring
+            // frame's direct buffer, which holds the copy LumaIngestor made of the camera plane.
+            TrackerState newState = processTracking(frame.getData(), frame.rowStride, frame.width, frame.height, frame.timestamp, currentState, mTrackingResult);
+
+            mTrackerStateMachine.transition(currentState, newState);
+
+            frame.trackerState = mTrackerStateMachine.getState();
+
+            // Match the camera and sensor rates to the tracking rate and state.
+            updateFrameRate(frame.timestamp, frame.trackerState);
+
+            frame.trackingResult.set(mTrackingResult);
+
+            // Hand the frame to the render stage.
+            mFrameRing.publishForRender(frame);
+            mRenderHandler.post(mRenderFrameRunnable);
+        }
+    };
+
+    /**
+     * Render stage of the pipeline. Draws the most recently tracked frame and its tracking results
+     * to screen and returns the frame to the ring.
+     */
+    private final Runnable mRenderFrameRunnable = new Runnable() {
+
+        /**
+         * Pre-allocated Bitmap objects for holding luma data from the most recent camera frame,
+         * one for each size of frame the camera streams deliver.
+         */
+        Bitmap cameraFrame = Bitmap.createBitmap(mCameraPreviewSize.getWidth(), mCameraPreviewSize.getHeight(), Bitmap.Config.ALPHA_8);
+        Bitmap detectionFrame;
+
+        /**
+         * Pre-allocated Rect object for holding the dimensions of the camera frame.
+         */
+        Rect cameraFrameRect = new Rect();
+
+        @Override
+        public void run() {
+
+            LumaFrame frame = mFrameRing.takeForRender();
+
+            // The frame may already have been superseded and handled by an earlier run.
+            if (frame == null) {
+                return;
+            }
+
+            cameraFrameRect.set(0, 0, frame.width, frame.height);
+
+            TrackerState trackerState = frame.trackerState;
+
+            Bitmap frameBitmap = null;
+
+            // The camera draws the preview straight to the display, so the frame only needs
+            // uploading when it is drawn in software.
+            if (!mDirectPreview) {
+
+                frameBitmap = getFrameBitmap(frame.width, frame.height);
+
+                long uploadStart = System.nanoTime();
+
+                // Update the bitmap with the new image data, laid out to its row length.
+                ByteBuffer bitmapData = frame.getDataWithRowStride(frameBitmap.getRowBytes());
+                frameBitmap.copyPixelsFromBuffer(bitmapData);
+                bitmapData.rewind();
+
+                mLatencyStats.record(FrameLatencyStats.Stage.UPLOAD, trackerState, System.nanoTime() - uploadStart);
+            }
+
+            TrackingResult trackingResult = frame.trackingResult;
+
+            if (mPoseFilterEnabled) {
+                trackingResult = filterTrackingResult(trackingResult, trackerState, frame.timestamp, frame.width, frame.height);
+            }
+            else {
+                mPoseFilter.reset();
+            }
+
+            // The markerless tracker only ever has one primitive.
+            int entryCount = trackerState == TrackerState.ARBITRACK ? Math.min(trackingResult.count, 1) : trackingResult.count;
+            int primitiveCount = 0;
+
+            for (int entry = 0; entry < entryCount; entry++) {
+
+                // Skip primitives partly on or behind the camera plane, such as the markerless
+                // anchor when the camera turns away from it, rather than drawing them at the origin.
+                if (!trackingResult.hasProjectedOutline(entry)) {
+                    continue;
+                }
+
+                for (int i = 0; i < 4; i++) {
+                    renderedCorners[primitiveCount * 4 + i].set(
+                            Math.round(trackingResult.getCornerX(entry, i)),
+                            Math.round(trackingResult.getCornerY(entry, i))
+                    );
+                }
+
+                renderedLabels[primitiveCount] = getTrackableLabel(trackingResult.getTrackableIndex(entry));
+
+                primitiveCount++;
+            }
+
+            long timestamp = frame.timestamp;
+
+            // The frame data is no longer needed once it has been uploaded.
+            mFrameRing.release(frame);
+
+            // Render the new frame and tracking results to screen.
+            renderFrameToScreen(frameBitmap, cameraFrameRect, trackerState, renderedCorners, renderedLabels, primitiveCount);
+
+            // Recorded frames were captured long before they are replayed, so only measure the
+            // full pipeline for frames straight from the camera.
+            FrameSource frameSource = mFrameSource;
+
+            if (frameSource != null && frameSource.isLive()) {
+                mLatencyStats.record(FrameLatencyStats.Stage.END_TO_END, trackerState, FrameLatencyStats.sinceSensorTimestamp(timestamp, mCameraTimestampsAligned));
+            }
+
+            mLatencyStats.logIfDue(System.nanoTime());
+        }
+
+        /**
+         * Gets the pre-allocated bitmap matching the size of a frame, replacing the detection
+         * stream bitmap if the size has not been seen before.
+         */
+        private Bitmap getFrameBitmap(int width, int height) {
+
+            if (cameraFrame.getWidth() == width && cameraFrame.getHeight() == height) {
+                return cameraFrame;
+            }
+
+            Size previewSize = mCameraPreviewSize;
+
+            // The preview size changes when the capture resolution adapts to the tracking time.
+            if (previewSize.getWidth() == width && previewSize.getHeight() == height) {
+
+                cameraFrame = Bitmap.createBitmap(width, height, Bitmap.Config.ALPHA_8);
+
+                return cameraFrame;
+            }
+
+            if (detectionFrame == null || detectionFrame.getWidth() != width || detectionFrame.getHeight() != height) {
+                detectionFrame = Bitmap.createBitmap(width, height, Bitmap.Config.ALPHA_8);
+            }
+
+            return detectionFrame;
+        }
+    };
+
+    //endregion
+
+    //region Constructors and Factories
+
+    /**
+     * Loads the required JNI native library on creation of CameraFragment.
+     */
+    static {
+        System.loadLibrary("native-lib");
+    }
+
+    /**
+     * Factory method to create a new CameraFragment.
+     *
+     * @return a new CameraFragment object.
+     */
+    public static CameraFragment newInstance() {
+        return new CameraFragment();
+    }
+
+    public CameraFragment() {
+
+        super();
+
+        mCameraFrameSource = new CameraFrameSource(mTrackerStateMachine, mLatencyStats);
+
+        // Pre-allocate point objects to store tracked corner data.
+        for (int i = 0;i < renderedCorners.length;i++) {
+            renderedCorners[i] = new Point();
+        }
+    }
+
+    //endregion
+
+    //region Lifecycle Methods
+
+    @Override
+    public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
+        return inflater.inflate(R.layout.camera_fragment, container, false);
+    }
+
+    @Override
     public void onViewCreated(final View view, Bundle savedInstanceState) {
 
         mSurfaceView = (CameraSurfaceView) view.findViewById(R.id.surface_view);
         mSurfaceView.setAspectRatio(mCameraPreviewSize.getWidth(), mCameraPreviewSize.getHeight());
 
+        // The overlay is composited over the camera preview and under the rest of the UI.
+        mOverlayView = (CameraSurfaceView) view.findViewById(R.id.overlay_view);
+        mOverlayView.setAspectRatio(mCameraPreviewSize.getWidth(), mCameraPreviewSize.getHeight());
+        mOverlayView.setZOrderMediaOverlay(true);
+        mOverlayView.getHolder().setFormat(PixelFormat.TRANSPARENT);
+        mOverlayView.getHolder().addCallback(mOverlaySurfaceCallback);
+
         mStatusLabel = (TextView) view.findViewById(R.id.status_label);
 
         mButton = (Button) view.findViewById(R.id.button);
@@ -358,6 +1089,22 @@ public class CameraFragment extends Fragment implements SensorEventListener {
     @Override
     public void onPause() {
 
+        // Rendered frames no longer update the UI.
+        mUiStatePublisher.setListener(null);
+
+        // Trackables still loading belong to the tracker that is about to be closed.
+        if (mTrackableLoader != null) {
+            mTrackableLoader.cancel();
+        }
+
+        // Stop delivering frames before the pipeline threads are stopped.
+        if (mFrameSource != null) {
+            mFrameSource.stop();
+            mFrameSource = null;
+        }
+
+        stopRecording();
+
         teardownCamera();
         teardownBackgroundThread();
         teardownRotationSensor();
@@ -365,16 +1112,36 @@ public class CameraFragment extends Fragment implements SensorEventListener {
         super.onPause();
     }
 
+    @Override
+    public void onDestroy() {
+
+        if (mTrackableLoader != null) {
+            mTrackableLoader.shutdown();
+            mTrackableLoader = null;
+        }
+
+        releaseTrackers();
+
+        super.onDestroy();
+    }
+
     @Override
     public void onResume() {
 
         super.onResume();
 
+        // Show the state of the next rendered frame, even if it has not changed while paused.
+        mUiStatePublisher.setListener(mUiStateListener);
+
         setupBackgroundThread();
-        setupRotationSensor();
+
+        // Replayed recordings carry their own orientations.
+        if (mReplayRecording == null) {
+            setupRotationSensor();
+        }
 
         if (mSurfaceView.getHolder().getSurface().isValid()) {
-            setupCameraDevice();
+            setupFrameSource();
         }
         else {
             mSurfaceView.getHolder().addCallback(mSurfaceCallback);
@@ -432,51 +1199,222 @@ public class CameraFragment extends Fragment implements SensorEventListener {
     }
 
     /**
-     * Sets up a new background thread and it's Handler.
+     * Sets up the capture, tracking and render background threads, their Handlers and the frame
+     * ring connecting them.
      */
     private void setupBackgroundThread() {
 
+        // Replays must track every frame, so frames wait for the later stages instead of being dropped.
+        FrameRing.DropPolicy dropPolicy = mReplayRecording != null ? FrameRing.DropPolicy.DROP_NEWEST : mFrameDropPolicy;
+
+        // Reallocate the ring only if its configuration has changed since it was last used.
+        if (mFrameRing == null || mFrameRing.getCapacity() != mFrameRingCapacity || mFrameRing.getDropPolicy() != dropPolicy) {
+            mFrameRing = new FrameRing(mFrameRingCapacity, mCameraPreviewSize.getWidth() * mCameraPreviewSize.getHeight(), dropPolicy);
+        }
+        else {
+            mFrameRing.reset();
+        }
+
         mBackgroundThread = new HandlerThread("BackgroundCameraThread");
         mBackgroundThread.start();
         mBackgroundHandler = new Handler(mBackgroundThread.getLooper());
-    }
 
-    /**
-     * Setup the rotation sensor for receiving data on the device orientation status.
-     */
-    private void setupRotationSensor() {
-        mSensorManager = (SensorManager) getActivity().getSystemService(Context.SENSOR_SERVICE);
-        mSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR);
-        mSensorManager.registerListener(this, mSensor, 30000);
+        mTrackingThread = new HandlerThread("TrackingThread");
+        mTrackingThread.start();
+        mTrackingHandler = new Handler(mTrackingThread.getLooper());
+
+        mRenderThread = new HandlerThread("RenderThread");
+        mRenderThread.start();
+        mRenderHandler = new Handler(mRenderThread.getLooper());
     }
 
     /**
-     * Sets up a new CameraDevice if camera permissions have been granted by the user.
+     * Starts the source of frames: the recording set for replay, or otherwise the camera.
      */
-    private void setupCameraDevice() {
+    private void setupFrameSource() {
 
-        // Check for camera permissions.
-        if (ActivityCompat.checkSelfPermission(getActivity(), Manifest.permission.CAMERA)
-                != PackageManager.PERMISSION_GRANTED) {
-            throw new RuntimeException("Camera permissions must be granted to function.");
+        // The camera can only draw to a Surface that has not been drawn on in software.
+        mDirectPreview = mDirectPreviewEnabled && mReplayRecording == null && !mPreviewSurfaceDrawn;
+
+        if (mReplayRecording == null) {
+
+            mFrameSource = mCameraFrameSource;
+            mDetectionScheduler.setDurationsMeasured(true);
+            mCameraFrameSource.start(mFrameSink);
+
+            setupCameraDevice();
+
+            return;
         }
 
-        CameraManager manager = (CameraManager) getActivity().getSystemService(Context.CAMERA_SERVICE);
+        final ReplayFrameSource replayFrameSource;
 
         try {
-            String[] cameras = manager.getCameraIdList();
+            replayFrameSource = new ReplayFrameSource(mReplayRecording, mReplaySpeed);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Cannot open frame recording \"" + mReplayRecording + "\" for replay.");
+        }
 
-            // Find back-facing camera.
-            for (String camera : cameras) {
+        mCameraTimestampsAligned = replayFrameSource.isTimestampsAligned();
 
-                CameraCharacteristics cameraCharacteristics = manager.getCameraCharacteristics(camera);
+        mFrameSource = replayFrameSource;
 
-                // Reject all cameras but the back-facing camera.
-                if (cameraCharacteristics.get(CameraCharacteristics.LENS_FACING) != LENS_FACING_BACK) {
-                    continue;
-                }
+        // Detection times vary between runs, so schedule replayed frames by their timestamps alone.
+        mDetectionScheduler.setDurationsMeasured(false);
 
-                try {
+        // Initialise the trackers on the background thread, as when the camera opens, then start
+        // delivering recorded frames.
+        mBackgroundHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+
+                initialiseTracking(replayFrameSource.getFrameWidth(), replayFrameSource.getFrameHeight());
+
+                replayFrameSource.start(mFrameSink);
+            }
+        });
+    }
+
+    /**
+     * Initialises the native trackers for frames of a given size on the tracking stage and starts
+     * loading the image trackables.
+     *
+     * The trackers and the state describing them are owned by the tracking stage, so they are
+     * replaced there. Frames and trackables are only posted to the tracking stage once this has
+     * been called, so the trackers are always initialised before any of them are processed.
+     *
+     * @param width The width of the frames that will be processed.
+     * @param height The height of the frames that will be processed.
+     */
+    private void initialiseTracking(final int width, final int height) {
+
+        // Get the KudanCV API key from the Android Manifest.
+        final String apiKey = getAPIKey();
+
+        final Handler trackingHandler = mTrackingHandler;
+
+        trackingHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+
+                // Release the trackers of any previous session before initialising new native
+                // tracking objects.
+                releaseTrackers();
+
+                mImageTrackerHandle = initialiseImageTracker(apiKey, width, height, mMaxSimultaneousTrackables);
+                mArbiTrackerHandle = initialiseArbiTracker(apiKey, width, height);
+
+                mImageTrackerFrameWidth = width;
+                mImageTrackerFrameHeight = height;
+
+                mArbiTrackerFrameWidth = width;
+                mArbiTrackerFrameHeight = height;
+
+                // The new image tracker holds no trackables yet.
+                mTrackableNames.clear();
+                mTrackableWorkingSet.reset(mTrackableWorkingSetCapacity);
+
+                // Load the image trackables in the background. Each is registered with the native
+                // image tracker on the tracking stage as soon as it is ready.
+                getTrackableLoader().load(TRACKABLE_RESOURCES, TRACKABLE_NAMES, trackingHandler, mTrackableRegistrar);
+            }
+        });
+    }
+
+    /**
+     * Releases the native trackers, if initialised. Calls still running on them finish first, and
+     * later calls with their handles track nothing.
+     */
+    private void releaseTrackers() {
+
+        long imageTrackerHandle = mImageTrackerHandle;
+        long arbiTrackerHandle = mArbiTrackerHandle;
+
+        mImageTrackerHandle = 0;
+        mArbiTrackerHandle = 0;
+
+        if (imageTrackerHandle != 0) {
+            releaseImageTracker(imageTrackerHandle);
+        }
+
+        if (arbiTrackerHandle != 0) {
+            releaseArbiTracker(arbiTrackerHandle);
+        }
+    }
+
+    /**
+     * Setup the rotation sensor for receiving data on the device orientation status.
+     */
+    private void setupRotationSensor() {
+        mSensorManager = (SensorManager) getActivity().getSystemService(Context.SENSOR_SERVICE);
+        mSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR);
+        mSensorPeriodUs = FrameRateGovernor.DEFAULT_ACTIVE_SENSOR_PERIOD_US;
+
+        mSensorManager.registerListener(this, mSensor, mSensorPeriodUs);
+    }
+
+    /**
+     * Sets up a new CameraDevice if camera permissions have been granted by the user.
+     */
+    private void setupCameraDevice() {
+
+        // Check for camera permissions.
+        if (ActivityCompat.checkSelfPermission(getActivity(), Manifest.permission.CAMERA)
+                != PackageManager.PERMISSION_GRANTED) {
+            throw new RuntimeException("Camera permissions must be granted to function.");
+        }
+
+        CameraManager manager = (CameraManager) getActivity().getSystemService(Context.CAMERA_SERVICE);
+
+        try {
+            String[] cameras = manager.getCameraIdList();
+
+            // Find back-facing camera.
+            for (String camera : cameras) {
+
+                CameraCharacteristics cameraCharacteristics = manager.getCameraCharacteristics(camera);
+
+                // Reject all cameras but the back-facing camera.
+                if (cameraCharacteristics.get(CameraCharacteristics.LENS_FACING) != LENS_FACING_BACK) {
+                    continue;
+                }
+
+                // Frame timestamps can only be compared with sensor timestamps if the camera
+                // reports them on the elapsed realtime clock.
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+
+                    Integer timestampSource = cameraCharacteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+
+                    mCameraTimestampsAligned = timestampSource != null && timestampSource == CameraMetadata.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+                }
+                else {
+                    mCameraTimestampsAligned = false;
+                }
+
+                mCameraFrameSource.setRealtimeTimestamps(mCameraTimestampsAligned);
+
+                choosePreviewSize(cameraCharacteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP));
+
+                // Every level but legacy guarantees a preview stream alongside two YUV streams.
+                Integer hardwareLevel = cameraCharacteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+
+                mThreeStreamsSupported = hardwareLevel != null && hardwareLevel != CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY;
+
+                // The display stream keeps the size first chosen if the capture resolution adapts,
+                // as the camera scales each output separately.
+                if (mDirectPreview) {
+                    mSurfaceView.getHolder().setFixedSize(mCameraPreviewSize.getWidth(), mCameraPreviewSize.getHeight());
+                }
+                else {
+                    mSurfaceView.getHolder().setSizeFromLayout();
+                }
+
+                setupFrameRateGovernor(cameraCharacteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES));
+
+                try {
                     if (!mCameraOpenCloseLock.tryAcquire(3000, TimeUnit.MILLISECONDS)) {
                         throw new RuntimeException(("Camera lock cannot be acquired during opening."));
                     }
@@ -505,18 +1443,32 @@ public class CameraFragment extends Fragment implements SensorEventListener {
 
         try {
 
-            // Create an ImageReader instance that buffers two camera images so there is always room for most recent camera frame.
-            mImageReader = ImageReader.newInstance(mCameraPreviewSize.getWidth(), mCameraPreviewSize.getHeight(), ImageFormat.YUV_420_888, 2);
+            // Create the ImageReaders, optionally with a second stream scaled by the camera
+            // hardware for image detection. Frames are captured on the background thread.
+            Size previewSize = mCameraPreviewSize;
 
-            // Handle all new camera frames received on the background thread.
-            mImageReader.setOnImageAvailableListener(mImageAvailListener, mBackgroundHandler);
+            boolean directPreview = mDirectPreview;
 
-            // Set up a CaptureRequest.Builder with the output Surface of the ImageReader.
+            // A detection stream is only worth running while it is smaller than the preview, and
+            // is only run alongside the display stream where the camera guarantees three outputs.
+            boolean dualStream = mDualStreamEnabled && mDetectionStreamSize.getWidth() < previewSize.getWidth() && (!directPreview || mThreeStreamsSupported);
+
+            List<Surface> outputs = mCameraFrameSource.open(previewSize, dualStream ? mDetectionStreamSize : null, mBackgroundHandler);
+
+            // Send the preview straight to the display, without passing through the pipeline.
+            if (directPreview) {
+                outputs.add(mSurfaceView.getHolder().getSurface());
+            }
+
+            // Set up a CaptureRequest.Builder with the output Surfaces.
             mPreviewRequestBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-            mPreviewRequestBuilder.addTarget(mImageReader.getSurface());
+
+            for (Surface output : outputs) {
+                mPreviewRequestBuilder.addTarget(output);
+            }
 
             // Create the camera preview CameraCaptureSession.
-            mCameraDevice.createCaptureSession(Arrays.asList(mImageReader.getSurface()),
+            mCameraDevice.createCaptureSession(outputs,
                     new CameraCaptureSession.StateCallback() {
 
                         @Override
@@ -533,6 +1485,13 @@ public class CameraFragment extends Fragment implements SensorEventListener {
                                 mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE,
                                         CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
 
+                                // Deliver frames no faster than they can be tracked.
+                                FrameRateGovernor governor = mFrameRateGovernor;
+
+                                if (governor != null) {
+                                    setTargetFrameRate(governor);
+                                }
+
                                 // Finally, start displaying the camera preview.
                                 mPreviewRequest = mPreviewRequestBuilder.build();
                                 mCaptureSession.setRepeatingRequest(mPreviewRequest,
@@ -559,6 +1518,203 @@ public class CameraFragment extends Fragment implements SensorEventListener {
         }
     }
 
+    /**
+     * Chooses the preview size from the sizes the camera can stream within the frame time budget,
+     * keeping the size used before the camera was last closed if it is still suitable.
+     *
+     * @param map The stream configurations of the camera, or null if unavailable.
+     */
+    private void choosePreviewSize(StreamConfigurationMap map) {
+
+        CaptureResolutionPolicy policy = new CaptureResolutionPolicy(mMaxCameraPreviewSize.getWidth(), mMaxCameraPreviewSize.getHeight(), mFrameTimeBudgetNs);
+
+        Size[] sizes = map != null ? map.getOutputSizes(ImageFormat.YUV_420_888) : null;
+
+        if (sizes != null) {
+
+            int[] widths = new int[sizes.length];
+            int[] heights = new int[sizes.length];
+            long[] minFrameDurations = new long[sizes.length];
+
+            for (int i = 0; i < sizes.length; i++) {
+                widths[i] = sizes[i].getWidth();
+                heights[i] = sizes[i].getHeight();
+                minFrameDurations[i] = map.getOutputMinFrameDuration(ImageFormat.YUV_420_888, sizes[i]);
+            }
+
+            policy.setCandidates(widths, heights, minFrameDurations);
+            policy.select(mCameraPreviewSize.getWidth(), mCameraPreviewSize.getHeight());
+        }
+
+        mCameraPreviewSize = new Size(policy.getWidth(), policy.getHeight());
+        mResolutionPolicy = policy;
+
+        Log.i("CameraDevice", "Preview size " + mCameraPreviewSize + " chosen from " + policy.getCandidateCount() + " candidates.");
+    }
+
+    /**
+     * Creates the frame rate governor for a newly opened camera.
+     *
+     * @param ranges The target frame rate ranges the camera supports, or null if unavailable.
+     */
+    private void setupFrameRateGovernor(Range<Integer>[] ranges) {
+
+        mAppliedFrameRateRange = -1;
+
+        if (!mFrameRateGovernorEnabled || ranges == null || ranges.length == 0) {
+            mFrameRateGovernor = null;
+            return;
+        }
+
+        int[] lowers = new int[ranges.length];
+        int[] uppers = new int[ranges.length];
+
+        for (int i = 0; i < ranges.length; i++) {
+            lowers[i] = ranges[i].getLower();
+            uppers[i] = ranges[i].getUpper();
+        }
+
+        mFrameRateGovernor = new FrameRateGovernor(lowers, uppers);
+    }
+
+    /**
+     * Sets the governor's frame rate range on the preview request builder.
+     *
+     * Called on the background thread.
+     *
+     * @param governor The frame rate governor.
+     */
+    private void setTargetFrameRate(FrameRateGovernor governor) {
+
+        int rangeIndex = governor.getRangeIndex();
+
+        mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, Range.create(governor.getRangeLower(), governor.getRangeUpper()));
+
+        mAppliedFrameRateRange = rangeIndex;
+    }
+
+    /**
+     * Reports a tracked frame to the frame rate governor, and applies any change it makes to the
+     * camera frame rate or the rotation sensor period.
+     *
+     * Called on the tracking stage.
+     *
+     * @param timestamp The capture timestamp of the frame.
+     * @param state The tracker state after the frame was processed.
+     */
+    private void updateFrameRate(long timestamp, TrackerState state) {
+
+        FrameRateGovernor governor = mFrameRateGovernor;
+
+        if (governor == null || mFrameSource != mCameraFrameSource || !governor.onFrame(timestamp, state)) {
+            return;
+        }
+
+        Handler backgroundHandler = mBackgroundHandler;
+
+        if (backgroundHandler != null) {
+            backgroundHandler.post(mApplyFrameRateRunnable);
+        }
+
+        mMainHandler.post(mApplySensorPeriodRunnable);
+    }
+
+    /**
+     * Records the time taken to track a frame, and changes the preview size if tracking no longer
+     * fits the frame time budget or comfortably fits a larger size.
+     *
+     * Called on the tracking stage.
+     *
+     * @param state The tracker state the frame was processed in.
+     * @param timestamp The capture timestamp of the frame.
+     * @param width The width of the frame.
+     * @param height The height of the frame.
+     * @param durationNs The time taken by the native tracker.
+     */
+    private void recordTrackingTime(TrackerState state, long timestamp, int width, int height, long durationNs) {
+
+        mLatencyStats.record(FrameLatencyStats.Stage.TRACK, state, durationNs);
+
+        // Only the camera can change resolution and rate. Recorded frames keep the size and rate
+        // they were captured at.
+        if (mFrameSource != mCameraFrameSource) {
+            return;
+        }
+
+        FrameRateGovernor governor = mFrameRateGovernor;
+
+        if (governor != null) {
+            governor.onTrackingTime(durationNs);
+        }
+
+        CaptureResolutionPolicy policy = mResolutionPolicy;
+
+        if (policy == null || !mAdaptiveResolutionEnabled) {
+            return;
+        }
+
+        if (!policy.onFrameTracked(timestamp, width, height, durationNs)) {
+            return;
+        }
+
+        final Size size = new Size(policy.getWidth(), policy.getHeight());
+
+        Handler backgroundHandler = mBackgroundHandler;
+
+        if (backgroundHandler != null) {
+
+            backgroundHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    changePreviewSize(size);
+                }
+            });
+        }
+    }
+
+    /**
+     * Restarts the capture session at a new preview size while the camera stays open.
+     *
+     * Frames of the old size already in the pipeline are tracked and drawn as normal. The tracking
+     * stage updates the trackers' camera parameters, and the ring frames and render bitmaps are
+     * resized, when the first frame of the new size reaches them.
+     *
+     * Called on the background thread.
+     *
+     * @param size The new preview size.
+     */
+    private void changePreviewSize(Size size) {
+
+        try {
+            // Prevent the camera from being closed while the session is recreated. The lock is
+            // released once the new session is configured.
+            if (!mCameraOpenCloseLock.tryAcquire(3000, TimeUnit.MILLISECONDS)) {
+                Log.w("CameraDevice", "Camera lock cannot be acquired to change the preview size.");
+                return;
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        // The camera has been closed, or the session has not started yet.
+        if (mCameraDevice == null || mCaptureSession == null) {
+            mCameraOpenCloseLock.release();
+            return;
+        }
+
+        Log.i("CameraDevice", "Changing preview size from " + mCameraPreviewSize + " to " + size + ".");
+
+        mCaptureSession.close();
+        mCaptureSession = null;
+
+        mCameraPreviewSize = size;
+
+        createCameraPreviewSession();
+    }
+
     /**
      * Tears down and closes the camera device and session.
      */
@@ -576,10 +1732,8 @@ public class CameraFragment extends Fragment implements SensorEventListener {
                 mCameraDevice.close();
                 mCameraDevice = null;
             }
-            if (mImageReader != null) {
-                mImageReader.close();
-                mImageReader = null;
-            }
+
+            mCameraFrameSource.close();
 
         }
         catch (InterruptedException e) {
@@ -591,7 +1745,10 @@ public class CameraFragment extends Fragment implements SensorEventListener {
     }
 
     /**
-     * Stops the background thread and handler.
+     * Stops the capture, tracking and render background threads and handlers.
+     *
+     * Threads are stopped in pipeline order so that each stage finishes the frames handed to it
+     * before the next stage stops.
      */
     private void teardownBackgroundThread() {
 
@@ -600,6 +1757,16 @@ public class CameraFragment extends Fragment implements SensorEventListener {
             mBackgroundThread.join();
             mBackgroundThread = null;
             mBackgroundHandler = null;
+
+            mTrackingThread.quitSafely();
+            mTrackingThread.join();
+            mTrackingThread = null;
+            mTrackingHandler = null;
+
+            mRenderThread.quitSafely();
+            mRenderThread.join();
+            mRenderThread = null;
+            mRenderHandler = null;
         }
         catch (InterruptedException e) {
             e.printStackTrace();
@@ -607,254 +1774,1083 @@ public class CameraFragment extends Fragment implements SensorEventListener {
     }
 
     /**
-     * Stops the rotation sensor.
+     * Stops the rotation sensor.
+     */
+    private void teardownRotationSensor() {
+
+        if (mSensorManager != null) {
+
+            mSensorManager.unregisterListener(this);
+
+            mSensorManager = null;
+            mSensor = null;
+        }
+
+        // Samples from before the pause cannot be interpolated with those after it.
+        mOrientationHistory.clear();
+    }
+
+    //endregion
+
+    //region Frame Processing Methods
+
+    /**
+     * Callback method for receiving new changes to the device rotation.
+     *
+     * @param event Object containing the device rotation data.
+     */
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+
+        if (event.sensor.getType() == Sensor.TYPE_ROTATION_VECTOR) {
+
+            // Get the current device rotation.
+            SensorManager.getRotationMatrixFromVector(
+                    mSensorRotationMatrix, event.values);
+
+            // Remap the device rotation to the arbitracker coordinate system.
+            SensorManager.remapCoordinateSystem(mSensorRotationMatrix, SensorManager.AXIS_MINUS_Y, SensorManager.AXIS_MINUS_X, mRemappedRotationMatrix);
+
+            // Convert the rotation matrix into a quaternion.
+            Quaternions.fromRotationMatrix(mRemappedRotationMatrix, mSensorQuaternion);
+
+            // Publish the rotation to the tracking stage, and record it if a recording is running.
+            mFrameSink.onOrientation(event.timestamp, mSensorQuaternion[0], mSensorQuaternion[1], mSensorQuaternion[2], mSensorQuaternion[3]);
+        }
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+
+    /**
+     * Processes tracking on a camera frame's data.
+     *
+     * The native trackers read the ring frame's direct buffer without copying it again. Rows may
+     * be padded, in which case the padding is passed on to the native trackers.
+     *
+     * @param directData Direct ByteBuffer containing the camera frame luma data to be processed.
+     * @param rowStride Distance in bytes between the starts of consecutive rows of the frame.
+     * @param width Width of the camera frame.
+     * @param height Height of the camera frame.
+     * @param timestamp Capture timestamp of the camera frame in nanoseconds.
+     * @param currentState The current tracking state of the system.
+     * @param result Pre-allocated TrackingResult into which the projected, screen-space coordinates and pose of the tracked primitive are written if tracking completes successfully.
+     * @return The new tracking state of the system.
+     */
+    private TrackerState processTracking(ByteBuffer directData, int rowStride, int width, int height, long timestamp, TrackerState currentState, TrackingResult result) {
+
+        int status = TrackingResult.STATUS_NOT_TRACKED;
+        TrackerState newState = currentState;
+
+        // While nothing is tracked, skip detection on the frames the scheduler rules out. Once a
+        // trackable has been detected it is tracked on every frame.
+        if (currentState == TrackerState.IMAGE_DETECTION && !mDetectionScheduler.shouldDetect(timestamp)) {
+
+            newState = TrackerState.IMAGE_DETECTION;
+        }
+
+        // Perform image detection and tracking.
+        else if (currentState != TrackerState.ARBITRACK) {
+
+            long detectionStart = System.nanoTime();
+
+            // Detection and tracking frames may come from camera streams of different sizes.
+            if (width != mImageTrackerFrameWidth || height != mImageTrackerFrameHeight) {
+
+                setImageTrackerFrameSize(mImageTrackerHandle, width, height);
+
+                mImageTrackerFrameWidth = width;
+                mImageTrackerFrameHeight = height;
+            }
+
+            // While tracking, pass only the region around the previously tracked corners.
+            // Regions are only used once as many trackables are tracked as can be, as none outside
+            // the region could otherwise be found.
+            boolean cropped = currentState == TrackerState.IMAGE_TRACKING
+                    && mRegionTrackingEnabled
+                    && result.count >= mMaxSimultaneousTrackables
+                    && mTrackingRegion.update(result, mTrackingResultWidth, mTrackingResultHeight, width, height);
+
+            int previousCount = result.count;
+            int trackedCount;
+            long pixelsProcessed;
+
+            long trackStart = System.nanoTime();
+
+            if (cropped) {
+
+                trackedCount = processImageTrackerDirectRegion(
+                        mImageTrackerHandle,
+                        directData,
+                        width,
+                        height,
+                        1, /*One channel as we are processing luma data only*/
+                        rowStride,
+                        mTrackingRegion.left,
+                        mTrackingRegion.top,
+                        mTrackingRegion.width,
+                        mTrackingRegion.height,
+                        false,
+                        result.data
+                );
+
+                pixelsProcessed = (long) mTrackingRegion.width * mTrackingRegion.height;
+
+                // A trackable may only have moved out of the region, so retry on the full frame
+                // before treating it as lost.
+                if (trackedCount < previousCount) {
+
+                    trackedCount = processImageTrackerFullFrame(directData, rowStride, width, height, result);
+
+                    pixelsProcessed += (long) width * height;
+                }
+            }
+            else {
+
+                trackedCount = processImageTrackerFullFrame(directData, rowStride, width, height, result);
+
+                pixelsProcessed = (long) width * height;
+            }
+
+            recordTrackingTime(currentState, timestamp, width, height, System.nanoTime() - trackStart);
+
+            mDirectNativeReads.incrementAndGet();
+
+            if (trackedCount > 0) {
+                status = TrackingResult.STATUS_TRACKED;
+                result.count = trackedCount;
+            }
+
+            if (currentState == TrackerState.IMAGE_TRACKING) {
+                mTrackingRegion.recordFrame(pixelsProcessed, width, height, cropped);
+            }
+
+            boolean found = status != TrackingResult.STATUS_NOT_TRACKED;
+
+            if (currentState == TrackerState.IMAGE_DETECTION) {
+
+                mDetectionScheduler.onDetectionFinished(timestamp, System.nanoTime() - detectionStart, found);
+
+                // Rotate another part of a large catalog in for the next detection run.
+                mTrackableWorkingSet.onDetection(result, found, timestamp);
+            }
+            else if (!found) {
+                mDetectionScheduler.onTrackingLost(timestamp);
+            }
+            else {
+                mTrackableWorkingSet.touch(result, timestamp);
+            }
+
+            if (found) {
+
+                mTrackingResultWidth = width;
+                mTrackingResultHeight = height;
+
+                newState = TrackerState.IMAGE_TRACKING;
+            }
+            else {
+                newState = TrackerState.IMAGE_DETECTION;
+            }
+        }
+
+        // Else perform markerless tracking.
+        else if (currentState == TrackerState.ARBITRACK) {
+
+            // Estimate the device rotation at the time the frame was captured, falling back to a
+            // consistent snapshot of the latest rotation if the clocks cannot be compared.
+            if (!mCameraTimestampsAligned || !mOrientationHistory.sample(timestamp, mTrackingQuaternion)) {
+                mRotationQuaternion.read(mTrackingQuaternion);
+            }
+
+            // Inverse the device rotation quaternion to counteract it's rotation in the tracker.
+            Quaternions.invert(mTrackingQuaternion, mTrackingQuaternion);
+
+            // The capture resolution may have changed since the markerless tracker was initialised.
+            if (width != mArbiTrackerFrameWidth || height != mArbiTrackerFrameHeight) {
+
+                setArbiTrackerFrameSize(mArbiTrackerHandle, width, height);
+
+                mArbiTrackerFrameWidth = width;
+                mArbiTrackerFrameHeight = height;
+            }
+
+            long trackStart = System.nanoTime();
+
+            // Native call to the markerless tracking object.
+            status = processArbiTrackerDirectFrame(mArbiTrackerHandle, directData, mTrackingQuaternion, width, height, 1, rowStride, false, result.data);
+
+            recordTrackingTime(currentState, timestamp, width, height, System.nanoTime() - trackStart);
+
+            mDirectNativeReads.incrementAndGet();
+
+            if (status != TrackingResult.STATUS_NOT_TRACKED) {
+                result.count = 1;
+            }
+        }
+
+        // The native trackers only overwrite the result data when they return tracking data, so
+        // the last projected coordinates are retained otherwise.
+        result.status = status;
+
+        return newState;
+    }
+
+    /**
+     * Processes a full camera frame through the native image tracker.
+     *
+     * @param directData Direct ByteBuffer containing the camera frame luma data.
+     * @param rowStride Distance in bytes between the starts of consecutive rows of the frame.
+     * @param width Width of the camera frame.
+     * @param height Height of the camera frame.
+     * @param result Pre-allocated TrackingResult into which tracking data is written.
+     * @return The number of tracked trackables whose entries were written.
+     */
+    private int processImageTrackerFullFrame(ByteBuffer directData, int rowStride, int width, int height, TrackingResult result) {
+
+        // Native call to the image tracking and detection object.
+        return processImageTrackerDirectFrame(
+                mImageTrackerHandle,
+                directData,
+                width,
+                height,
+                1, /*One channel as we are processing luma data only*/
+                rowStride,
+                false,
+                result.data
+        );
+    }
+
+    /**
+     * Renders a camera frame and tracking data to screen.
+     *
+     * @param cameraFrame Bitmap of Bitmap.Config.ALPHA_8 containing camera frame luma data, or null
+     *                    if the camera preview is routed straight to the display, in which case
+     *                    only the tracking overlay is drawn.
+     * @param cameraFrameRect Dimensions of the camera frame of format (0, 0, width, height).
+     * @param currentState The current tracking state of the system.
+     * @param primitiveCorners Array containing four Points for each tracked primitive in which its projected, camera frame coordinates reside.
+     * @param primitiveLabels Array containing the label of each tracked primitive.
+     * @param primitiveCount The number of tracked primitives.
+     */
+    private void renderFrameToScreen(Bitmap cameraFrame, Rect cameraFrameRect, TrackerState currentState, Point[] primitiveCorners, String[] primitiveLabels, int primitiveCount) {
+
+        final Drawing.DrawingPrimitive primitive;
+
+        if (currentState == TrackerState.IMAGE_TRACKING) {
+            primitive = Drawing.DrawingPrimitive.DRAWING_RECTANGLE;
+        }
+        else if (currentState == TrackerState.ARBITRACK) {
+            primitive = Drawing.DrawingPrimitive.DRAWING_GRID;
+        }
+        else {
+            primitive = Drawing.DrawingPrimitive.DRAWING_NOTHING;
+        }
+
+        // Update Android GUI if the state has changed.
+        mUiStatePublisher.publish(currentState);
+
+        // Draw everything to screen. Drawing is achieved with Android's Canvas classes, if high
+        // performance is required, consider using OpenGL to draw instead.
+
+        // Calculate scaling that needs to be applied to the canvas to fit drawing to screen. Corners
+        // are projected into the frame they were tracked on, whichever stream it came from.
+        mSrcRect.set(cameraFrameRect);
+        mDstRect.set(0, 0, mSurfaceView.getWidth(), mSurfaceView.getHeight());
+        mCanvasTransform.setRectToRect(mSrcRect, mDstRect, Matrix.ScaleToFit.END);
+
+        long drawStart = System.nanoTime();
+
+        // Rebuild the drawn primitives only if they or their placement have changed.
+        boolean primitivesChanged = mDisplayList.update(
+                mCanvasTransform,
+                primitive,
+                primitiveCorners,
+                primitiveLabels,
+                primitiveCount
+        );
+
+        if (cameraFrame == null) {
+
+            // The overlay view is laid out exactly over the preview, so shares its transform.
+            drawOverlay(primitivesChanged);
+        }
+        else {
+
+            // Lock the CameraSurfaceView Surface for drawing.
+            Canvas canvas = mSurfaceView.getHolder().getSurface().lockCanvas(mSurfaceView.getClipBounds());
+
+            mPreviewSurfaceDrawn = true;
+
+            // Draw the background camera image.
+            Drawing.drawBackground(
+                    canvas,
+                    cameraFrame
+            );
+
+            // Draw every tracked primitive.
+            mDisplayList.draw(canvas);
+
+            // Unlock the CameraSurfaceView Surface to render to screen.
+            mSurfaceView.getHolder().getSurface().unlockCanvasAndPost(canvas);
+
+            // Clear anything left on the overlay by an earlier direct preview.
+            if (!mOverlayBounds.isEmpty()) {
+                clearOverlay();
+            }
+        }
+
+        mLatencyStats.record(FrameLatencyStats.Stage.DRAW, currentState, System.nanoTime() - drawStart);
+    }
+
+    /**
+     * Updates the button and status label to show a tracker state.
+     *
+     * Called on the UI thread.
+     *
+     * @param currentState The tracker state of the most recently rendered frame.
+     */
+    private void updateUiState(TrackerState currentState) {
+
+        // Define UI element values.
+        int buttonColor;
+        String buttonText;
+        String statusLabel;
+
+        if (currentState == TrackerState.IMAGE_DETECTION) {
+
+            buttonColor = Color.rgb(255, 162, 0);
+            buttonText = "Start Arbitrack";
+            statusLabel = "Looking for image...";
+
+        }
+        else if (currentState == TrackerState.IMAGE_TRACKING) {
+
+            buttonColor = Color.BLUE;
+            buttonText = "Start Arbitrack from marker";
+            statusLabel = "Tracking image";
+
+        } else if (currentState == TrackerState.ARBITRACK) {
+
+            buttonColor = Color.GREEN;
+            buttonText = "Stop Arbitrack";
+            statusLabel = "Running arbitrack";
+
+        } else {
+
+            buttonColor = Color.TRANSPARENT;
+            buttonText = "";
+            statusLabel = "";
+        }
+
+        mButton.setBackgroundColor(buttonColor);
+        mButton.setText(buttonText);
+
+        mStatusLabel.setText(statusLabel);
+        mStatusLabel.setTextColor(buttonColor);
+    }
+
+    /**
+     * Draws the tracked primitives over the camera preview. The overlay is only redrawn when the
+     * primitives have changed, and then only within the area covered by the previous and current
+     * primitives.
+     *
+     * Called on the render stage.
+     *
+     * @param primitivesChanged Whether mDisplayList has changed since the previous frame.
+     */
+    private void drawOverlay(boolean primitivesChanged) {
+
+        Surface surface = mOverlayView.getHolder().getSurface();
+
+        // A new overlay Surface starts out blank.
+        if (mOverlaySurfaceCreated) {
+            mOverlaySurfaceCreated = false;
+            mOverlayBounds.setEmpty();
+            mOverlayCurrent = false;
+        }
+
+        if (!surface.isValid()) {
+            mOverlayBounds.setEmpty();
+            mOverlayCurrent = false;
+            return;
+        }
+
+        // The overlay already shows these primitives.
+        if (!primitivesChanged && mOverlayCurrent) {
+            return;
+        }
+
+        mDisplayList.getBounds(mOverlayPrimitiveBounds);
+
+        mOverlayDirty.set(mOverlayBounds);
+
+        mOverlayPrimitiveBounds.roundOut(mOverlayBounds);
+        mOverlayDirty.union(mOverlayBounds);
+
+        mOverlayCurrent = true;
+
+        if (mOverlayDirty.isEmpty()) {
+            return;
+        }
+
+        Canvas canvas = lockOverlayCanvas(surface, mOverlayDirty);
+
+        Drawing.clearOverlay(canvas);
+
+        mDisplayList.draw(canvas);
+
+        surface.unlockCanvasAndPost(canvas);
+    }
+
+    /**
+     * Clears everything drawn on the overlay.
+     *
+     * Called on the render stage.
+     */
+    private void clearOverlay() {
+
+        Surface surface = mOverlayView.getHolder().getSurface();
+
+        if (surface.isValid()) {
+
+            Canvas canvas = lockOverlayCanvas(surface, mOverlayBounds);
+
+            Drawing.clearOverlay(canvas);
+
+            surface.unlockCanvasAndPost(canvas);
+        }
+
+        mOverlayBounds.setEmpty();
+        mOverlayCurrent = false;
+    }
+
+    /**
+     * Locks a Canvas on the overlay Surface, hardware-accelerated where the API level allows.
+     *
+     * A hardware Canvas covers the whole Surface, which is redrawn in full on the GPU, while a
+     * software Canvas keeps the previous buffer outside the dirty area. A Surface stays connected
+     * to the first kind of Canvas locked on it, so the choice must not change while it exists.
+     *
+     * @param surface The overlay Surface.
+     * @param dirty The area that will be redrawn, which a software Canvas may widen.
+     * @return The locked Canvas.
+     */
+    private Canvas lockOverlayCanvas(Surface surface, Rect dirty) {
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            return surface.lockHardwareCanvas();
+        }
+
+        return surface.lockCanvas(dirty);
+    }
+
+    /**
+     * Smooths the poses of a tracking result, predicts them to the time the frame will be
+     * displayed and projects the outlines of its primitives through the predicted poses.
+     *
+     * Called on the render stage.
+     *
+     * @param trackingResult The result of the frame being rendered.
+     * @param trackerState The tracker state the frame was processed in.
+     * @param timestamp The capture timestamp of the frame.
+     * @param frameWidth The width of the frame.
+     * @param frameHeight The height of the frame.
+     * @return The filtered result, valid until the next frame is rendered.
+     */
+    private TrackingResult filterTrackingResult(TrackingResult trackingResult, TrackerState trackerState, long timestamp, int frameWidth, int frameHeight) {
+
+        TrackingResult filteredResult = mFilteredResult;
+
+        filteredResult.set(trackingResult);
+
+        // Predict across the typical latency from capture to posting, measured for frames tracked
+        // in the same state, plus the time to reach the display. Without a measured latency, as
+        // for replayed frames, poses are only smoothed.
+        long latencyNs = mLatencyStats.getPercentileNs(FrameLatencyStats.Stage.END_TO_END, trackerState, 0.5);
+        long predictionNs = latencyNs > 0 ? latencyNs + mDisplayLatencyNs : 0;
+
+        mPoseFilter.filter(filteredResult, timestamp, predictionNs);
+
+        if (filteredResult.status != TrackingResult.STATUS_TRACKED) {
+            return filteredResult;
+        }
+
+        float[] outline = mOutlinePoints;
+
+        for (int entry = 0; entry < filteredResult.count; entry++) {
+
+            float halfWidth = filteredResult.getHalfWidth(entry);
+            float halfHeight = filteredResult.getHalfHeight(entry);
+
+            // The centre followed by the corners, in the order the native trackers project them.
+            outline[3] = -halfWidth;
+            outline[4] = -halfHeight;
+            outline[6] = -halfWidth;
+            outline[7] = halfHeight;
+            outline[9] = halfWidth;
+            outline[10] = halfHeight;
+            outline[12] = halfWidth;
+            outline[13] = -halfHeight;
+
+            projectTrackedPoints(filteredResult, entry, frameWidth, frameHeight, outline, mOutlineProjection, 5);
+
+            System.arraycopy(mOutlineProjection, 0, filteredResult.data, entry * TrackingResult.ENTRY_LENGTH + TrackingResult.CENTRE, 5 * 2);
+        }
+
+        return filteredResult;
+    }
+
+    /**
+     * Projects points anchored to a tracked primitive into the frame it was tracked on, in a
+     * single native call however many points there are.
+     *
+     * @param result The tracking result holding the pose of the primitive.
+     * @param entry The entry of the primitive in the result.
+     * @param frameWidth The width of the frame the result was tracked on.
+     * @param frameHeight The height of the frame the result was tracked on.
+     * @param points Points packed as (x, y, z), in the coordinate frame of the trackable, or of the
+     *               markerless tracker for its entry.
+     * @param projected Receives the projected points packed as (x, y) in frame pixels. Points on or
+     *                  behind the camera plane are written as NaN.
+     * @param count The number of points to project.
+     * @return The number of points projected.
+     */
+    int projectTrackedPoints(TrackingResult result, int entry, int frameWidth, int frameHeight, float[] points, float[] projected, int count) {
+
+        if (entry < 0 || entry >= result.count) {
+            throw new IllegalArgumentException("Tracking result has no entry " + entry + ".");
+        }
+
+        if (count < 0 || points.length < count * 3 || projected.length < count * 2) {
+            throw new IllegalArgumentException("Point arrays are too short to project " + count + " points.");
+        }
+
+        if (count == 0) {
+            return 0;
+        }
+
+        return projectTrackedPoints(result.data, entry * TrackingResult.ENTRY_LENGTH + TrackingResult.POSITION, frameWidth, frameHeight, points, projected, count);
+    }
+
+    //endregion
+
+    //region Utility Methods
+
+    /**
+     * Adds an image trackable image to the native image tracker object.
+     *
+     * The decoded image is taken from the on-disk trackable cache where possible, so the resource
+     * is only decoded the first time it is used or after it changes.
+     *
+     * Must be called from the tracking stage, which owns the trackable working set.
+     *
+     * @param resourceID A reference to the image asset that should be used as a trackable.
+     * @param name The name of the trackable that should be used internally for ID.
+     */
+    public void addTrackable(int resourceID, String name) {
+
+        int index;
+
+        try {
+            TrackableCache.Entry entry = getTrackableCache().get(resourceID);
+
+            // Pass the decoded pixels to JNI for addition to the image tracker without copying them.
+            index = addTrackableToImageTrackerFromBuffer(mImageTrackerHandle, entry.pixels, entry.width, entry.height, entry.channels, name);
+        }
+        catch (IOException e) {
+
+            Log.w("TrackableCache", "Trackable cache unavailable, decoding trackable directly.", e);
+
+            // Create a bitmap from the resource file.
+            Bitmap image = BitmapFactory.decodeResource(getResources(), resourceID);
+
+            // Pass the bitmap to JNI for addition to the image tracker.
+            index = addTrackableToImageTracker(mImageTrackerHandle, image, name);
+        }
+
+        if (index < 0) {
+            throw new RuntimeException("Trackable could not be added to image tracker.");
+        }
+
+        mTrackableNames.add(name);
+        mTrackableWorkingSet.add(index, getTrackablePriority(name));
+    }
+
+    /**
+     * Sets the priority of a trackable in the working set of active trackables. Trackables with
+     * higher priorities are kept active in preference to others. Takes effect for trackables
+     * added afterwards.
+     *
+     * @param name The name of the trackable.
+     * @param priority The priority of the trackable. Trackables without a priority have priority 0.
+     */
+    public void setTrackablePriority(String name, int priority) {
+        mTrackablePriorities.put(name, priority);
+    }
+
+    /**
+     * Gets the priority of a trackable in the working set of active trackables.
+     */
+    private int getTrackablePriority(String name) {
+
+        Integer priority = mTrackablePriorities.get(name);
+
+        return priority != null ? priority : 0;
+    }
+
+    /**
+     * Sets the largest number of trackables active in the native image tracker at once. Takes
+     * effect the next time the camera is opened.
+     *
+     * Detection time grows with the number of active trackables. When more trackables are added,
+     * the remainder are rotated in, several at a time, after runs of detection that find nothing.
+     *
+     * @param capacity The number of active trackables. Must be at least 1.
+     */
+    void setTrackableWorkingSetCapacity(int capacity) {
+
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Trackable working set must hold at least one trackable.");
+        }
+
+        mTrackableWorkingSetCapacity = capacity;
+    }
+
+    /**
+     * Gets the working set of trackables active in the native image tracker, for its hit, miss
+     * and eviction counters.
+     *
+     * @return The trackable working set.
+     */
+    TrackableWorkingSet getTrackableWorkingSet() {
+        return mTrackableWorkingSet;
+    }
+
+    /**
+     * Gets the on-disk cache of decoded trackable images, creating it on first use.
+     *
+     * @return The trackable cache of the fragment.
+     */
+    TrackableCache getTrackableCache() {
+
+        if (mTrackableCache == null) {
+            mTrackableCache = new TrackableCache(getActivity().getCacheDir(), getResources());
+        }
+
+        return mTrackableCache;
+    }
+
+    /**
+     * Gets the loader that loads trackable images in parallel, creating it on first use.
+     *
+     * @return The trackable loader of the fragment.
+     */
+    TrackableLoader getTrackableLoader() {
+
+        if (mTrackableLoader == null) {
+            mTrackableLoader = new TrackableLoader(getTrackableCache());
+        }
+
+        return mTrackableLoader;
+    }
+
+    /**
+     * Gets the fraction of the trackables requested when the camera was last opened that have
+     * finished loading.
+     *
+     * @return The load progress in [0, 1].
+     */
+    public float getTrackableLoadProgress() {
+
+        TrackableLoader trackableLoader = mTrackableLoader;
+
+        return trackableLoader != null ? trackableLoader.getProgress() : 0.0f;
+    }
+
+    /**
+     * Gets the load and registration times of each trackable that has finished loading since the
+     * camera was last opened.
+     *
+     * @return The load records in the order the trackables finished.
+     */
+    List<TrackableLoader.LoadRecord> getTrackableLoadRecords() {
+
+        TrackableLoader trackableLoader = mTrackableLoader;
+
+        return trackableLoader != null ? trackableLoader.getLoadRecords() : Collections.<TrackableLoader.LoadRecord>emptyList();
+    }
+
+    /**
+     * Gets the label drawn for a tracked primitive.
+     *
+     * @param trackableIndex The trackable index of a TrackingResult entry.
+     * @return The name of the image trackable, or a markerless tracking label.
+     */
+    private String getTrackableLabel(int trackableIndex) {
+
+        if (trackableIndex == TrackingResult.ARBITRACK_INDEX) {
+            return "Arbitrack";
+        }
+
+        if (trackableIndex >= 0 && trackableIndex < mTrackableNames.size()) {
+            return mTrackableNames.get(trackableIndex);
+        }
+
+        return "";
+    }
+
+    /**
+     * Sets the maximum number of image trackables that are tracked at once. Takes effect the next
+     * time the camera is opened.
+     *
+     * Every tracked trackable is returned by a single native call and drawn in one pass, so the
+     * cost of handling results stays flat up to TrackingResult.MAX_ENTRIES trackables. Region of
+     * interest tracking only applies while this many trackables are tracked.
+     *
+     * @param maximum The number of trackables, from 1 to TrackingResult.MAX_ENTRIES.
+     */
+    void setMaximumSimultaneousTracking(int maximum) {
+
+        if (maximum < 1 || maximum > TrackingResult.MAX_ENTRIES) {
+            throw new IllegalArgumentException("Maximum simultaneous trackables must be between 1 and " + TrackingResult.MAX_ENTRIES + ".");
+        }
+
+        mMaxSimultaneousTrackables = maximum;
+    }
+
+    /**
+     * Sets the number of pre-allocated frames in the ring connecting the capture, tracking and
+     * render stages. Takes effect the next time the fragment is resumed.
+     *
+     * @param capacity The number of frames in the ring. Must be at least 3.
      */
-    private void teardownRotationSensor() {
+    void setFrameRingCapacity(int capacity) {
 
-        mSensorManager.unregisterListener(this);
+        if (capacity < 3) {
+            throw new IllegalArgumentException("Frame ring capacity must be at least 3.");
+        }
 
-        mSensorManager = null;
-        mSensor = null;
+        mFrameRingCapacity = capacity;
     }
 
-    //endregion
-
-    //region Frame Processing Methods
-
     /**
-     * Callback method for receiving new changes to the device rotation.
+     * Sets the policy used to drop frames when a pipeline stage cannot keep up. Takes effect the
+     * next time the fragment is resumed.
      *
-     * @param event Object containing the device rotation data.
+     * @param dropPolicy The drop policy of the frame ring.
      */
-    @Override
-    public void onSensorChanged(SensorEvent event) {
-
-        if (event.sensor.getType() == Sensor.TYPE_ROTATION_VECTOR) {
-
-            // Get the current device rotation.
-            float temp1[] = new float[16];
-            float temp2[] = new float[16];
+    void setFrameDropPolicy(FrameRing.DropPolicy dropPolicy) {
 
-            SensorManager.getRotationMatrixFromVector(
-                    temp1 , event.values);
+        if (dropPolicy == null) {
+            throw new IllegalArgumentException("Frame drop policy cannot be null.");
+        }
 
-            // Remap the device rotation to the arbitracker coordinate system.
-            SensorManager.remapCoordinateSystem(temp1, SensorManager.AXIS_MINUS_Y, SensorManager.AXIS_MINUS_X, temp2);
+        mFrameDropPolicy = dropPolicy;
+    }
 
-            // Convert the rotation matrix into a quaternion.
-            double w = Math.sqrt(1.0 + temp2[0] + temp2[5] + temp2[10]) / 2.0;
-            double w4 = (4.0 * w);
-            double x = (temp2[9] - temp2[6]) / w4 ;
-            double y = (temp2[2] - temp2[8]) / w4 ;
-            double z = (temp2[4] - temp2[1]) / w4 ;
+    /**
+     * Sets whether image detection runs on a separate low-resolution camera stream, with the
+     * full-resolution stream used only once a trackable is being tracked. Takes effect the next
+     * time the camera is opened.
+     *
+     * @param enabled Whether the low-resolution detection stream should be used.
+     */
+    void setDualStreamEnabled(boolean enabled) {
+        mDualStreamEnabled = enabled;
+    }
 
-            mRotationQuaternion[0] = (float)w;
-            mRotationQuaternion[1] = (float)x;
-            mRotationQuaternion[2] = (float)y;
-            mRotationQuaternion[3] = (float)z;
-        }
+    /**
+     * Sets whether the camera preview is sent straight to the display, with only the tracking
+     * overlay drawn in software, rather than each frame being drawn to the display from its luma.
+     * Takes effect the next time frames are started, and only once the display Surface has been
+     * recreated if frames have already been drawn on it in software.
+     *
+     * @param enabled Whether the camera preview should be routed straight to the display.
+     */
+    void setDirectPreviewEnabled(boolean enabled) {
+        mDirectPreviewEnabled = enabled;
     }
 
-    @Override
-    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    /**
+     * Gets whether the camera preview is currently routed straight to the display.
+     *
+     * @return True if only the tracking overlay is drawn in software.
+     */
+    boolean isDirectPreviewActive() {
+        return mDirectPreview;
     }
 
     /**
-     * Processes tracking on a camera frame's data.
+     * Sets a recording to replay through the pipeline instead of the camera. Takes effect the next
+     * time the fragment is resumed.
      *
-     * @param data Array containing the camera frame luma data to be processed.
-     * @param width Width of the camera frame.
-     * @param height Height of the camera frame.
-     * @param currentState The current tracking state of the system.
-     * @param projectedTrackingCorners ArrayList containing a set of four Points into which projected, screen-space coordinates of the tracked primitive is copied if tracking completes successfully.
-     * @return The new tracking state of the system.
+     * Every recorded frame is tracked, in order and with its recorded timestamp and orientations,
+     * so a replay reproduces the recorded session. At a speed of ReplayFrameSource.UNPACED frames
+     * are delivered as fast as the pipeline takes them, to measure its throughput.
+     *
+     * @param recording A recording written by startRecording(), or null to use the camera.
+     * @param speed The playback speed relative to the recorded timestamps, such as 1 for real time.
      */
-    private TrackerState processTracking(byte[] data, int width, int height, TrackerState currentState, ArrayList<Point> projectedTrackingCorners) {
+    void setReplayRecording(File recording, float speed) {
 
-        float[] trackedData = null;
-        TrackerState newState = currentState;
+        if (speed < 0.0f || Float.isNaN(speed) || Float.isInfinite(speed)) {
+            throw new IllegalArgumentException("Replay speed must be finite and non-negative.");
+        }
 
-        // Perform image detection and tracking.
-        if (currentState != TrackerState.ARBITRACK) {
-
-            // Native call to the image tracking and detection object.
-            trackedData = processImageTrackerFrame(
-                    data,
-                    width,
-                    height,
-                    1, /*One channel as we are processing luma data only*/
-                    0,
-                    false
-            );
+        mReplayRecording = recording;
+        mReplaySpeed = speed;
+    }
 
-            if (trackedData != null) {
-                newState = TrackerState.IMAGE_TRACKING;
-            }
-            else {
-                newState = TrackerState.IMAGE_DETECTION;
-            }
-        }
+    /**
+     * Gets the source currently feeding the pipeline, such as a ReplayFrameSource reporting the
+     * throughput of a replay.
+     *
+     * @return The current frame source, or null while the fragment is paused.
+     */
+    FrameSource getFrameSource() {
+        return mFrameSource;
+    }
 
-        // Else perform markerless tracking.
-        else if (currentState == TrackerState.ARBITRACK) {
+    /**
+     * Starts recording the frames and orientations of the session to a file that can be replayed
+     * with setReplayRecording(). Any recording already running is stopped first.
+     *
+     * @param file The file to record to. Any existing file is replaced.
+     * @throws IOException If the file cannot be written.
+     */
+    void startRecording(File file) throws IOException {
 
-            // Inverse the device rotation quaternion to counteract it's rotation in the tracker.
-            float w = mRotationQuaternion[0];
-            float x = mRotationQuaternion[1];
-            float y = mRotationQuaternion[2];
-            float z = mRotationQuaternion[3];
+        stopRecording();
 
-            float norm = w * w + x * x + y * y + z * z;
+        mFrameRecorder = new FrameRecorder(file, mCameraTimestampsAligned);
+    }
 
-            if (norm > 0.0) {
-                float invNorm = 1.0f / norm;
-                x *= -invNorm;
-                y *= -invNorm;
-                z *= -invNorm;
-                w *= invNorm;
-            }
+    /**
+     * Stops the running recording, if any, and closes its file.
+     */
+    void stopRecording() {
 
-            mRotationQuaternion[0] = w;
-            mRotationQuaternion[1] = x;
-            mRotationQuaternion[2] = y;
-            mRotationQuaternion[3] = z;
+        FrameRecorder frameRecorder = mFrameRecorder;
 
-            // Native call to the markerless tracking object.
-            trackedData = processArbiTrackerFrame(data, mRotationQuaternion, width, height, 1, 0, false);
+        if (frameRecorder == null) {
+            return;
         }
 
-        if (trackedData != null) {
+        mFrameRecorder = null;
 
-            // Set the supplied point ArrayList values to the returned projected tracking coordinates.
-            projectedTrackingCorners.get(0).set(Math.round(trackedData[2]), Math.round(trackedData[3]));
-            projectedTrackingCorners.get(1).set(Math.round(trackedData[4]), Math.round(trackedData[5]));
-            projectedTrackingCorners.get(2).set(Math.round(trackedData[6]), Math.round(trackedData[7]));
-            projectedTrackingCorners.get(3).set(Math.round(trackedData[8]), Math.round(trackedData[9]));
+        try {
+            frameRecorder.close();
         }
+        catch (IOException e) {
+            Log.e("FrameRecorder", "Frame recording could not be completed.", e);
+        }
+    }
 
-        return newState;
+    /**
+     * Sets whether only the region around a tracked trackable is passed to the image tracker,
+     * falling back to the full frame when the trackable is lost.
+     *
+     * @param enabled Whether region-of-interest tracking should be used.
+     */
+    void setRegionTrackingEnabled(boolean enabled) {
+        mRegionTrackingEnabled = enabled;
     }
 
     /**
-     * Renders a camera frame and tracking data to screen.
+     * Gets the region chooser of the image tracker, which also reports the pixels processed per
+     * tracked frame.
      *
-     * @param cameraFrame Bitmap of Bitmap.Config.ALPHA_8 containing camera frame luma data.
-     * @param cameraFrameRect Dimensions of the camera frame of format (0, 0, width, height).
-     * @param currentState The current tracking state of the system.
-     * @param primitiveCorners ArrayList containing the set of four Points in which projected, screen-space coordinates of the tracked primitive resides.
+     * @return The tracking region of the fragment.
      */
-    private void renderFrameToScreen(Bitmap cameraFrame, Rect cameraFrameRect, TrackerState currentState, ArrayList<Point> primitiveCorners) {
+    TrackingRegion getTrackingRegion() {
+        return mTrackingRegion;
+    }
 
-        // Define UI element values.
-        final int buttonColor;
-        final String buttonText;
-        final String primitiveLabel;
-        final String statusLabel;
-        final Drawing.DrawingPrimitive primitive;
+    /**
+     * Gets the latency histograms of the pipeline stages, for their percentiles per tracker state.
+     *
+     * @return The latency statistics of the fragment.
+     */
+    FrameLatencyStats getLatencyStats() {
+        return mLatencyStats;
+    }
 
-        if (currentState == TrackerState.IMAGE_DETECTION) {
+    /**
+     * Sets whether tracked poses are smoothed and predicted to display time before they are drawn.
+     *
+     * @param enabled Whether the pose filter should be used.
+     */
+    void setPoseFilterEnabled(boolean enabled) {
+        mPoseFilterEnabled = enabled;
+    }
 
-            buttonColor = Color.rgb(255, 162, 0);
-            buttonText = "Start Arbitrack";
-            primitiveLabel = "";
-            statusLabel = "Looking for image...";
+    /**
+     * Gets the pose filter, so that its smoothing and prediction can be tuned.
+     *
+     * @return The pose filter of the fragment.
+     */
+    PoseFilter getPoseFilter() {
+        return mPoseFilter;
+    }
 
-            primitive = Drawing.DrawingPrimitive.DRAWING_NOTHING;
+    /**
+     * Sets the time between posting a frame and it reaching the display, which is added to the
+     * measured pipeline latency when predicting poses.
+     *
+     * @param displayLatencyNs The display latency in nanoseconds.
+     */
+    void setDisplayLatency(long displayLatencyNs) {
 
+        if (displayLatencyNs < 0) {
+            throw new IllegalArgumentException("Display latency cannot be negative.");
         }
-        else if (currentState == TrackerState.IMAGE_TRACKING) {
-
-            buttonColor = Color.BLUE;
-            buttonText = "Start Arbitrack from marker";
-            primitiveLabel = "Lego";
-            statusLabel = "Tracking image";
-
-            primitive = Drawing.DrawingPrimitive.DRAWING_RECTANGLE;
 
-        } else if (currentState == TrackerState.ARBITRACK) {
+        mDisplayLatencyNs = displayLatencyNs;
+    }
 
-            buttonColor = Color.GREEN;
-            buttonText = "Stop Arbitrack";
-            primitiveLabel = "Arbitrack";
-            statusLabel = "Running arbitrack";
+    /**
+     * Sets whether the preview size is changed while the camera runs to keep tracking within the
+     * frame time budget.
+     *
+     * @param enabled Whether adaptive resolution should be used.
+     */
+    void setAdaptiveResolutionEnabled(boolean enabled) {
+        mAdaptiveResolutionEnabled = enabled;
+    }
 
-            primitive = Drawing.DrawingPrimitive.DRAWING_GRID;
-        } else {
+    /**
+     * Sets the largest preview size and the time available to track each frame, against which the
+     * preview size is chosen. Takes effect the next time the camera is opened.
+     *
+     * @param maxSize The largest preview size, which also sets the aspect ratio of the preview.
+     * @param frameTimeBudgetNs The time available to track each frame in nanoseconds.
+     */
+    void setPreviewSizeLimits(Size maxSize, long frameTimeBudgetNs) {
 
-            buttonColor = Color.TRANSPARENT;
-            buttonText = "";
-            primitiveLabel = "";
-            statusLabel = "";
-            primitive = Drawing.DrawingPrimitive.DRAWING_NOTHING;
+        if (frameTimeBudgetNs <= 0) {
+            throw new IllegalArgumentException("Frame time budget must be positive.");
         }
 
-        // Update Android GUI.
-        getActivity().runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
+        mMaxCameraPreviewSize = maxSize;
+        mFrameTimeBudgetNs = frameTimeBudgetNs;
+    }
 
-                mButton.setBackgroundColor(buttonColor);
-                mButton.setText(buttonText);
+    /**
+     * Gets the current camera preview size.
+     *
+     * @return The preview size.
+     */
+    Size getCameraPreviewSize() {
+        return mCameraPreviewSize;
+    }
 
-                mStatusLabel.setText(statusLabel);
-                mStatusLabel.setTextColor(buttonColor);
-            }
-        });
+    /**
+     * Sets whether the camera frame rate and rotation sensor rate follow the tracking rate and
+     * state. Takes effect the next time the camera is opened.
+     *
+     * @param enabled Whether the frame rate governor should be used.
+     */
+    void setFrameRateGovernorEnabled(boolean enabled) {
+        mFrameRateGovernorEnabled = enabled;
+    }
 
-        // Draw everything to screen. Drawing is achieved with Android's Canvas classes, if high
-        // performance is required, consider using OpenGL to draw instead.
+    /**
+     * Gets the publisher of tracker states to the UI, for its posted and suppressed update counters.
+     *
+     * @return The UI state publisher.
+     */
+    UiStatePublisher getUiStatePublisher() {
+        return mUiStatePublisher;
+    }
 
-        // Calculate scaling that needs to be applied to the canvas to fit drawing to screen.
-        mSrcRect.set(0, 0, mCameraPreviewSize.getWidth(), mCameraPreviewSize.getHeight());
-        mDstRect.set(0, 0, mSurfaceView.getWidth(), mSurfaceView.getHeight());
-        mCanvasTransform.setRectToRect(mSrcRect, mDstRect, Matrix.ScaleToFit.END);
+    /**
+     * Gets the frame rate governor, for its chosen range and change count.
+     *
+     * @return The frame rate governor, or null if it is not in use.
+     */
+    FrameRateGovernor getFrameRateGovernor() {
+        return mFrameRateGovernor;
+    }
 
-        // Lock the CameraSurfaceView Surface for drawing.
-        Canvas canvas = mSurfaceView.getHolder().getSurface().lockCanvas(mSurfaceView.getClipBounds());
+    /**
+     * Gets the policy choosing the preview size, for its step up and step down counters.
+     *
+     * @return The resolution policy, or null if the camera has not been opened.
+     */
+    CaptureResolutionPolicy getResolutionPolicy() {
+        return mResolutionPolicy;
+    }
 
-        // Draw the background camera image.
-        Drawing.drawBackground(
-                canvas,
-                cameraFrame
-        );
+    /**
+     * Gets the number of frames that have been dropped at a stage of the pipeline.
+     *
+     * @param stage The stage to get the drop count of.
+     * @return The number of frames dropped at the stage, or 0 if the pipeline has not started.
+     */
+    long getDroppedFrameCount(FrameRing.Stage stage) {
 
-        // Draw the tracking primitive.
-        Drawing.drawPrimitive(
-                canvas,
-                mCanvasTransform,
-                primitive,
-                primitiveCorners.get(0),
-                primitiveCorners.get(1),
-                primitiveCorners.get(2),
-                primitiveCorners.get(3),
-                primitiveLabel
-        );
+        FrameRing frameRing = mFrameRing;
 
-        // Unlock the CameraSurfaceView Surface to render to screen.
-        mSurfaceView.getHolder().getSurface().unlockCanvasAndPost(canvas);
+        return frameRing != null ? frameRing.getDroppedFrames(stage) : 0;
     }
 
-    //endregion
+    /**
+     * Sets the policy that decides which frames run image detection while no trackable is being
+     * tracked.
+     *
+     * @param policy The detection policy, such as a DetectionScheduler.BackoffPolicy.
+     */
+    void setDetectionPolicy(DetectionScheduler.Policy policy) {
+        mDetectionScheduler.setPolicy(policy);
+    }
 
-    //region Utility Methods
+    /**
+     * Gets the fraction of frames on which image detection was skipped while no trackable was
+     * being tracked.
+     *
+     * @return The skipped fraction in [0, 1].
+     */
+    public float getDetectionSkippedFraction() {
+        return mDetectionScheduler.getSkippedFraction();
+    }
 
     /**
-     * Adds an image trackable image to the native image tracker object.
+     * Gets the history used to align the device rotation with camera frames, which also reports
+     * the sensor-to-frame skew it has corrected.
      *
-     * @param resourceID A reference to the image asset that should be used as a trackable.
-     * @param name The name of the trackable that should be used internally for ID.
+     * @return The orientation history of the fragment.
      */
-    public void addTrackable(int resourceID, String name) {
+    OrientationHistory getOrientationHistory() {
+        return mOrientationHistory;
+    }
 
-        // Create a bitmap from the resource file.
-        Bitmap image = BitmapFactory.decodeResource(getResources(), resourceID);
+    /**
+     * Gets the number of frames the native trackers have read straight from a direct buffer.
+     *
+     * @return The number of direct native reads since the fragment was created.
+     */
+    public long getDirectNativeReadCount() {
+        return mDirectNativeReads.get();
+    }
 
-        // Pass the bitmap to JNI for addition to the image tracker.
-        boolean success = addTrackableToImageTracker(image, name);
+    /**
+     * Gets the number of camera frames that were tracked with their original row layout.
+     *
+     * @return The number of frames tracked without repacking.
+     */
+    public long getDirectFrameCount() {
+        return mLumaIngestor.getPassedThroughCount();
+    }
 
-        if (!success) {
-            throw new RuntimeException("Trackable could not be added to image tracker.");
-        }
+    /**
+     * Gets the number of camera frames whose layout could not be copied row for row and had to be
+     * repacked before tracking.
+     *
+     * @return The number of frames repacked before tracking.
+     */
+    public long getRepackedFrameCount() {
+        return mLumaIngestor.getRepackedCount();
     }
 
     //endregion
@@ -864,31 +2860,20 @@ public class CameraFragment extends Fragment implements SensorEventListener {
     /**
      * Listener method for changing the tracking state of the system based on user input.
      *
+     * The change is queued for the tracking stage, which applies it between frames, so the UI
+     * thread never waits for frame processing.
+     *
      * @param view The view that triggered the listener callback method.
      */
     public void buttonPressed(View view) {
 
-        // Synchronize with the tracker state to prevent changes to state mid-processing.
-        synchronized (mTrackerState) {
+        mTrackerStateMachine.submitToggle();
 
-            if (mTrackerState == TrackerState.IMAGE_DETECTION) {
+        // Wake the tracking stage so the command is applied even if no new frame arrives.
+        Handler trackingHandler = mTrackingHandler;
 
-                startArbiTracker(false);
-
-                mTrackerState = TrackerState.ARBITRACK;
-
-            } else if (mTrackerState == TrackerState.IMAGE_TRACKING) {
-
-                startArbiTracker(true);
-
-                mTrackerState = TrackerState.ARBITRACK;
-
-            } else if (mTrackerState == TrackerState.ARBITRACK) {
-
-                stopArbiTracker();
-
-                mTrackerState = TrackerState.IMAGE_DETECTION;
-            }
+        if (trackingHandler != null) {
+            trackingHandler.post(mTrackFrameRunnable);
         }
     }
 
@@ -902,8 +2887,10 @@ public class CameraFragment extends Fragment implements SensorEventListener {
      * @param key The KudanCV API key.
      * @param width The width of camera frames that will be processed.
      * @param height The height of camera frames that will be processed.
+     * @param maximumSimultaneousTracking The maximum number of trackables tracked at once, up to TrackingResult.MAX_ENTRIES.
+     * @return The handle of the image tracker, to be released with releaseImageTracker.
      */
-    private native void initialiseImageTracker(String key, int width, int height);
+    private native long initialiseImageTracker(String key, int width, int height, int maximumSimultaneousTracking);
 
     /**
      * Initialise the native markerless tracker object.
@@ -911,71 +2898,216 @@ public class CameraFragment extends Fragment implements SensorEventListener {
      * @param key The KudanCV API key.
      * @param width The width of camera frames that will be processed.
      * @param height The height of camera frames that will be processed.
+     * @return The handle of the markerless tracker, to be released with releaseArbiTracker.
+     */
+    private native long initialiseArbiTracker(String key, int width, int height);
+
+    /**
+     * Releases a native image tracker object once any call running on it returns.
+     *
+     * @param handle The handle of the image tracker.
+     */
+    private native void releaseImageTracker(long handle);
+
+    /**
+     * Releases a native markerless tracker object once any call running on it returns.
+     *
+     * @param handle The handle of the markerless tracker.
+     */
+    private native void releaseArbiTracker(long handle);
+
+    /**
+     * Updates the native image tracker's camera parameters for frames of a different size.
+     *
+     * @param handle The handle of the native image tracker.
+     * @param width The width of camera frames that will be processed.
+     * @param height The height of camera frames that will be processed.
+     */
+    private native void setImageTrackerFrameSize(long handle, int width, int height);
+
+    /**
+     * Updates the native markerless tracker's camera parameters for frames of a different size.
+     *
+     * @param handle The handle of the native markerless tracker.
+     * @param width The width of camera frames that will be processed.
+     * @param height The height of camera frames that will be processed.
      */
-    private native void initialiseArbiTracker(String key, int width, int height);
+    private native void setArbiTrackerFrameSize(long handle, int width, int height);
 
     /**
      * Starts the native markerless tracker ready for tracking.
      *
+     * @param handle The handle of the native markerless tracker.
+     * @param imageTrackerHandle The handle of the native image tracker whose tracked trackable the primitive may start from.
      * @param startFromImageTrackable Should the initial markerless primitive be started at the position of the currently tracked image trackable.
      */
-    private native void startArbiTracker(boolean startFromImageTrackable);
+    private native void startArbiTracker(long handle, long imageTrackerHandle, boolean startFromImageTrackable);
 
     /**
      * Stops the native markerless tracker.
+     *
+     * @param handle The handle of the native markerless tracker.
      */
-    private native void stopArbiTracker();
+    private native void stopArbiTracker(long handle);
 
     /**
      * Adds an image as a trackable to the native image tracker object.
      *
+     * @param handle The handle of the native image tracker.
      * @param image Bitmap containing a Bitmap.Config.ARGB_8888 image to be used as a trackable.
      * @param name The name of the trackable to be used for internal ID.
-     * @return Whether the trackable was added to the image tracker object successfully.
+     * @return The index of the trackable in the catalog of the image tracker object, or -1 if it
+     *         could not be created. The trackable is detected once activated.
      */
-    private native boolean addTrackableToImageTracker(
+    private native int addTrackableToImageTracker(
+            long handle,
             Bitmap image,
             String name);
 
     /**
-     * Processes an image through the native image tracker object and returns tracking data.
+     * Adds an image held in a direct buffer, such as a memory-mapped cache file, as a trackable to
+     * the native image tracker object without copying it.
+     *
+     * @param handle The handle of the native image tracker.
+     * @param pixels Direct ByteBuffer containing tightly packed image pixels.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @param channels The number of channels contained in the image.
+     * @param name The name of the trackable to be used for internal ID.
+     * @return The index of the trackable in the catalog of the image tracker object, or -1 if it
+     *         could not be created. The trackable is detected once activated.
+     */
+    private native int addTrackableToImageTrackerFromBuffer(
+            long handle,
+            ByteBuffer pixels,
+            int width,
+            int height,
+            int channels,
+            String name);
+
+    /**
+     * Adds a catalogued trackable to the native image tracker object so that it can be detected.
+     *
+     * @param handle The handle of the native image tracker.
+     * @param index The index of the trackable in the catalog.
+     * @return Whether the trackable was added to the image tracker object successfully.
+     */
+    private native boolean activateImageTrackable(long handle, int index);
+
+    /**
+     * Removes catalogued trackables from the native image tracker object by rebuilding it once
+     * with the remaining trackables. Tracking state is lost, so this is only called while detecting.
+     *
+     * @param handle The handle of the native image tracker.
+     * @param indices Array holding the indices of the trackables in the catalog.
+     * @param count The number of indices held in the array.
+     */
+    private native void removeImageTrackables(long handle, int[] indices, int count);
+
+    /**
+     * Processes an image held in a direct buffer through the native image tracker object without
+     * copying it and writes out tracking data.
      *
-     * @param image Array containing the camera frame data.
+     * @param handle The handle of the native image tracker.
+     * @param image Direct ByteBuffer containing the camera frame data, such as an Image.Plane buffer.
      * @param width The width of the camera image.
      * @param height The height of the camera image.
      * @param channels The number of channels contained in the camera frame.
-     * @param padding Padding in the camera frame data.
+     * @param rowStride Distance in bytes between the starts of consecutive rows of the camera frame.
      * @param requiresFlip Whether the camera frame should be flipped before tracking.
-     * @return Array containing the screen-space projected corner coordinates of the tracking primitive.
+     * @param result Pre-allocated array of length TrackingResult.LENGTH into which a packed entry holding the index, projected corner coordinates and pose of each tracked trackable is written.
+     * @return The number of entries written, which is 0 if nothing was tracked.
      */
-    private native float[] processImageTrackerFrame(
-            byte[] image,
+    private native int processImageTrackerDirectFrame(
+            long handle,
+            ByteBuffer image,
             int width,
             int height,
             int channels,
-            int padding,
-            boolean requiresFlip);
+            int rowStride,
+            boolean requiresFlip,
+            float[] result);
 
     /**
-     * Processes an image through the native markerless tracker object and returns tracking data.
+     * Processes a region of an image held in a direct buffer through the native image tracker
+     * object without copying it and writes out tracking data in full-frame coordinates.
      *
-     * @param image Array containing the camera frame data.
+     * @param handle The handle of the native image tracker.
+     * @param image Direct ByteBuffer containing the camera frame data.
+     * @param width The width of the camera image.
+     * @param height The height of the camera image.
+     * @param channels The number of channels contained in the camera frame.
+     * @param rowStride Distance in bytes between the starts of consecutive rows of the camera frame.
+     * @param regionX The left edge of the region in pixels.
+     * @param regionY The top edge of the region in pixels.
+     * @param regionWidth The width of the region in pixels.
+     * @param regionHeight The height of the region in pixels.
+     * @param requiresFlip Whether the region should be flipped before tracking.
+     * @param result Pre-allocated array of length TrackingResult.LENGTH into which a packed entry holding the index, projected corner coordinates and pose of each tracked trackable is written.
+     * @return The number of entries written, which is 0 if nothing was tracked.
+     */
+    private native int processImageTrackerDirectRegion(
+            long handle,
+            ByteBuffer image,
+            int width,
+            int height,
+            int channels,
+            int rowStride,
+            int regionX,
+            int regionY,
+            int regionWidth,
+            int regionHeight,
+            boolean requiresFlip,
+            float[] result);
+
+    /**
+     * Processes an image held in a direct buffer through the native markerless tracker object
+     * without copying it and writes out tracking data.
+     *
+     * @param handle The handle of the native markerless tracker.
+     * @param image Direct ByteBuffer containing the camera frame data, such as an Image.Plane buffer.
      * @param gyroOrientation Array containing the device rotation quaternion values in the order w, x, y, z.
      * @param width The width of the camera image.
      * @param height The height of the camera image.
      * @param channels The number of channels contained in the camera frame.
-     * @param padding Padding in the camera frame data.
+     * @param rowStride Distance in bytes between the starts of consecutive rows of the camera frame.
      * @param requiresFlip Whether the camera frame should be flipped before tracking.
-     * @return Array containing the screen-space projected corner coordinates of the tracking primitive.
+     * @param result Pre-allocated array of length TrackingResult.LENGTH into whose first entry the projected corner coordinates and pose of the tracking primitive are written.
+     * @return A TrackingResult status code describing whether the result was written.
      */
-    private native float[] processArbiTrackerFrame(
-            byte[] image,
+    private native int processArbiTrackerDirectFrame(
+            long handle,
+            ByteBuffer image,
             float[] gyroOrientation,
             int width,
             int height,
             int channels,
-            int padding,
-            boolean requiresFlip);
+            int rowStride,
+            boolean requiresFlip,
+            float[] result);
+
+    /**
+     * Projects points through a pose with the intrinsics of the native trackers for frames of a
+     * given size. The rotation and intrinsics are combined once per call.
+     *
+     * @param pose Array holding a position (x, y, z) followed by an orientation (w, x, y, z), laid out as in a TrackingResult entry.
+     * @param poseOffset The index of the position in the pose array.
+     * @param width The width of the frame to project into.
+     * @param height The height of the frame to project into.
+     * @param points Points packed as (x, y, z) in the coordinate frame of the pose.
+     * @param projected Pre-allocated array that the projected points are written to, packed as (x, y).
+     * @param count The number of points to project.
+     * @return The number of points projected, or 0 if the arrays are too short for the count or
+     *         the pose offset.
+     */
+    private native int projectTrackedPoints(
+            float[] pose,
+            int poseOffset,
+            int width,
+            int height,
+            float[] points,
+            float[] projected,
+            int count);
 
     //endregion
 }
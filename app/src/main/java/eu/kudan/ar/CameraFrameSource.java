@@ -0,0 +1,210 @@
+package eu.kudan.ar;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.util.Size;
+import android.view.Surface;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A FrameSource that delivers the luma planes of frames from the ImageReaders of a Camera2
+ * capture session.
+ *
+ * The camera device and its capture session are managed by the owner, which adds the surfaces
+ * returned by open() to the session. Optionally a second, low-resolution stream scaled by the
+ * camera hardware is used for image detection, in which case only the stream matching the current
+ * tracker state is delivered.
+ */
+class CameraFrameSource implements FrameSource, ImageReader.OnImageAvailableListener {
+
+    /**
+     * The state machine whose state selects the stream delivered while both streams are running.
+     */
+    private final TrackerStateMachine mTrackerStateMachine;
+
+    /**
+     * Receives the delivery latency of each frame and the time taken to acquire it.
+     */
+    private final FrameLatencyStats mLatencyStats;
+
+    /**
+     * Whether frame timestamps are on the elapsed realtime clock rather than the monotonic clock.
+     */
+    private volatile boolean mRealtimeTimestamps;
+
+    /**
+     * The reader of the full-resolution stream and the optional reader of the detection stream.
+     */
+    private ImageReader mImageReader;
+    private volatile ImageReader mDetectionImageReader;
+
+    private volatile Sink mSink;
+
+    /**
+     * Constructs a CameraFrameSource.
+     *
+     * @param trackerStateMachine The state machine that selects the stream delivered while both
+     *                            streams are running.
+     * @param latencyStats Receives the delivery latency of each frame and the time taken to acquire it.
+     */
+    CameraFrameSource(TrackerStateMachine trackerStateMachine, FrameLatencyStats latencyStats) {
+        mTrackerStateMachine = trackerStateMachine;
+        mLatencyStats = latencyStats;
+    }
+
+    /**
+     * Sets the clock that the camera reports frame timestamps on, so that the delivery latency of
+     * each frame can be measured.
+     *
+     * @param realtimeTimestamps Whether frame timestamps are on the elapsed realtime clock rather
+     *                           than the monotonic clock.
+     */
+    void setRealtimeTimestamps(boolean realtimeTimestamps) {
+        mRealtimeTimestamps = realtimeTimestamps;
+    }
+
+    /**
+     * Creates the ImageReaders for a new capture session.
+     *
+     * @param previewSize The size of the full-resolution stream.
+     * @param detectionSize The size of the low-resolution detection stream, or null to detect on
+     *                      the full-resolution stream.
+     * @param handler Handler for the thread that frames are captured on.
+     * @return The surfaces to add to the capture session, full-resolution stream first.
+     */
+    List<Surface> open(Size previewSize, Size detectionSize, Handler handler) {
+
+        close();
+
+        List<Surface> surfaces = new ArrayList<>(2);
+
+        // Create an ImageReader instance that buffers two camera images so there is always room for most recent camera frame.
+        mImageReader = ImageReader.newInstance(previewSize.getWidth(), previewSize.getHeight(), ImageFormat.YUV_420_888, 2);
+
+        // Handle all new camera frames received on the capture thread.
+        mImageReader.setOnImageAvailableListener(this, handler);
+
+        surfaces.add(mImageReader.getSurface());
+
+        // Optionally have the camera hardware scale a second stream for image detection.
+        if (detectionSize != null) {
+
+            ImageReader detectionImageReader = ImageReader.newInstance(detectionSize.getWidth(), detectionSize.getHeight(), ImageFormat.YUV_420_888, 2);
+            detectionImageReader.setOnImageAvailableListener(this, handler);
+
+            surfaces.add(detectionImageReader.getSurface());
+
+            mDetectionImageReader = detectionImageReader;
+        }
+
+        return surfaces;
+    }
+
+    /**
+     * Closes the ImageReaders of the current capture session.
+     */
+    void close() {
+
+        if (mImageReader != null) {
+            mImageReader.close();
+            mImageReader = null;
+        }
+
+        ImageReader detectionImageReader = mDetectionImageReader;
+
+        if (detectionImageReader != null) {
+            mDetectionImageReader = null;
+            detectionImageReader.close();
+        }
+    }
+
+    /**
+     * Gets whether the current capture session includes the detection stream.
+     *
+     * @return True if both streams are running.
+     */
+    boolean isDualStreamActive() {
+        return mDetectionImageReader != null;
+    }
+
+    @Override
+    public void start(Sink sink) {
+        mSink = sink;
+    }
+
+    @Override
+    public void stop() {
+        mSink = null;
+    }
+
+    @Override
+    public boolean isLive() {
+        return true;
+    }
+
+    /**
+     * Callback method for handling new camera preview frames sent from the CameraDevice.
+     *
+     * @param reader The ImageReader receiving the new camera frame.
+     */
+    @Override
+    public void onImageAvailable(ImageReader reader) {
+
+        long acquireStart = System.nanoTime();
+
+        Image currentCameraImage = reader.acquireLatestImage();
+
+        // Return if no new camera image is available.
+        if (currentCameraImage == null) {
+            return;
+        }
+
+        TrackerState state = mTrackerStateMachine.getState();
+
+        mLatencyStats.record(FrameLatencyStats.Stage.ACQUIRE, state, System.nanoTime() - acquireStart);
+
+        Sink sink = mSink;
+
+        if (sink == null) {
+            currentCameraImage.close();
+            return;
+        }
+
+        // With both streams running, detect on the low-resolution stream and track on the
+        // full-resolution stream. Frames of the other stream are returned unused.
+        ImageReader detectionImageReader = mDetectionImageReader;
+
+        if (detectionImageReader != null) {
+
+            boolean detecting = state == TrackerState.IMAGE_DETECTION;
+
+            if (detecting != (reader == detectionImageReader)) {
+                currentCameraImage.close();
+                return;
+            }
+        }
+
+        long timestamp = currentCameraImage.getTimestamp();
+
+        mLatencyStats.record(FrameLatencyStats.Stage.DELIVERY, state, FrameLatencyStats.sinceSensorTimestamp(timestamp, mRealtimeTimestamps));
+
+        // Get the plane holding the luma data from the YUV-format image.
+        Image.Plane lumaPlane = currentCameraImage.getPlanes()[0];
+
+        sink.onFrame(
+                lumaPlane.getBuffer(),
+                currentCameraImage.getWidth(),
+                currentCameraImage.getHeight(),
+                lumaPlane.getRowStride(),
+                lumaPlane.getPixelStride(),
+                timestamp
+        );
+
+        // The camera image can be returned as soon as its luma data has been captured.
+        currentCameraImage.close();
+    }
+}
@@ -0,0 +1,353 @@
+package eu.kudan.ar;
+
+import java.util.Arrays;
+
+/**
+ * Chooses the camera capture resolution against a frame-time budget and steps it up or down as
+ * tracking time is measured.
+ *
+ * The candidate sizes are the camera's output sizes that share the aspect ratio of the largest
+ * allowed size, fit within it, and can be streamed within the budget. The session starts at the
+ * largest candidate. Tracking times of frames at the current size are then averaged over windows
+ * of frames: a window slower than the step-down fraction of the budget moves to the next smaller
+ * size, and several consecutive windows whose time, scaled by pixel count, would fit the larger
+ * size within the step-up fraction of the budget move back up. The gap between the fractions and
+ * a minimum time between changes stop the resolution from oscillating.
+ *
+ * Sizes are plain widths and heights so the policy does not depend on the Android framework.
+ * Frames are reported by the tracking stage only, and no method but setCandidates allocates.
+ */
+class CaptureResolutionPolicy {
+
+    /**
+     * Default parameters: a 30 fps frame budget, stepping down when tracking takes 90% of it and
+     * back up when the larger size is expected to take at most 60% of it, over one-second windows
+     * of frames, at most once every three seconds.
+     */
+    static final long DEFAULT_FRAME_BUDGET_NS = 33333333L;
+    static final float DEFAULT_STEP_DOWN_FRACTION = 0.9f;
+    static final float DEFAULT_STEP_UP_FRACTION = 0.6f;
+    static final int DEFAULT_WINDOW_FRAMES = 30;
+    static final int DEFAULT_STEP_UP_WINDOWS = 3;
+    static final long DEFAULT_MIN_CHANGE_INTERVAL_NS = 3000000000L;
+
+    /**
+     * The number of low bits of a candidate's sort key that hold its index.
+     */
+    private static final int CANDIDATE_INDEX_BITS = 20;
+
+    private final int mMaxWidth;
+    private final int mMaxHeight;
+    private final long mFrameBudgetNs;
+    private final float mStepDownFraction;
+    private final float mStepUpFraction;
+    private final int mWindowFrames;
+    private final int mStepUpWindows;
+    private final long mMinChangeIntervalNs;
+
+    /**
+     * Candidate sizes, largest first.
+     */
+    private int[] mWidths;
+    private int[] mHeights;
+    private int mIndex;
+
+    /**
+     * The tracking times of the current window, and the number of consecutive windows that would
+     * have fit the next larger size.
+     */
+    private long mWindowTotalNs;
+    private int mWindowCount;
+    private int mStepUpCount;
+
+    /**
+     * The timestamp of the last change, or of the first frame reported if there has been none.
+     */
+    private long mLastChangeTimestamp;
+    private boolean mStarted;
+
+    private long mStepUps;
+    private long mStepDowns;
+
+    /**
+     * Constructs a CaptureResolutionPolicy with the default parameters.
+     *
+     * @param maxWidth The width of the largest allowed capture size.
+     * @param maxHeight The height of the largest allowed capture size.
+     * @param frameBudgetNs The time available to track each frame in nanoseconds.
+     */
+    CaptureResolutionPolicy(int maxWidth, int maxHeight, long frameBudgetNs) {
+        this(maxWidth, maxHeight, frameBudgetNs, DEFAULT_STEP_DOWN_FRACTION, DEFAULT_STEP_UP_FRACTION, DEFAULT_WINDOW_FRAMES, DEFAULT_STEP_UP_WINDOWS, DEFAULT_MIN_CHANGE_INTERVAL_NS);
+    }
+
+    /**
+     * Constructs a CaptureResolutionPolicy.
+     *
+     * @param maxWidth The width of the largest allowed capture size.
+     * @param maxHeight The height of the largest allowed capture size.
+     * @param frameBudgetNs The time available to track each frame in nanoseconds.
+     * @param stepDownFraction The fraction of the budget above which a window of frames steps down.
+     * @param stepUpFraction The fraction of the budget that the larger size must be expected to
+     *                       fit within for a window of frames to count towards stepping up. Must be
+     *                       below stepDownFraction.
+     * @param windowFrames The number of frames averaged in each window.
+     * @param stepUpWindows The number of consecutive windows needed to step up.
+     * @param minChangeIntervalNs The minimum time between changes in nanoseconds.
+     */
+    CaptureResolutionPolicy(int maxWidth, int maxHeight, long frameBudgetNs, float stepDownFraction, float stepUpFraction, int windowFrames, int stepUpWindows, long minChangeIntervalNs) {
+
+        if (maxWidth <= 0 || maxHeight <= 0) {
+            throw new IllegalArgumentException("Maximum capture size must be positive.");
+        }
+
+        if (frameBudgetNs <= 0) {
+            throw new IllegalArgumentException("Frame budget must be positive.");
+        }
+
+        if (!(stepUpFraction > 0) || !(stepUpFraction < stepDownFraction)) {
+            throw new IllegalArgumentException("Step up fraction must be positive and below the step down fraction.");
+        }
+
+        if (windowFrames < 1 || stepUpWindows < 1) {
+            throw new IllegalArgumentException("Windows must hold at least one frame and be counted at least once.");
+        }
+
+        if (minChangeIntervalNs < 0) {
+            throw new IllegalArgumentException("Minimum change interval cannot be negative.");
+        }
+
+        mMaxWidth = maxWidth;
+        mMaxHeight = maxHeight;
+        mFrameBudgetNs = frameBudgetNs;
+        mStepDownFraction = stepDownFraction;
+        mStepUpFraction = stepUpFraction;
+        mWindowFrames = windowFrames;
+        mStepUpWindows = stepUpWindows;
+        mMinChangeIntervalNs = minChangeIntervalNs;
+
+        mWidths = new int[] { maxWidth };
+        mHeights = new int[] { maxHeight };
+    }
+
+    /**
+     * Sets the sizes the camera can capture, and starts from the largest that suits the budget.
+     *
+     * @param widths The widths of the camera's output sizes.
+     * @param heights The heights of the camera's output sizes.
+     * @param minFrameDurationsNs The minimum frame duration of each size in nanoseconds, or 0 if
+     *                            unknown.
+     */
+    void setCandidates(int[] widths, int[] heights, long[] minFrameDurationsNs) {
+
+        if (widths.length != heights.length || widths.length != minFrameDurationsNs.length) {
+            throw new IllegalArgumentException("Candidate widths, heights and frame durations must be the same length.");
+        }
+
+        // The index of each candidate is packed into the low bits of its sort key.
+        if (widths.length >= 1 << CANDIDATE_INDEX_BITS) {
+            throw new IllegalArgumentException("At most " + ((1 << CANDIDATE_INDEX_BITS) - 1) + " candidate sizes are supported.");
+        }
+
+        // Pack the area above the index so that sorting orders the candidates by area.
+        long[] candidates = new long[widths.length];
+        int count = 0;
+
+        for (int i = 0; i < widths.length; i++) {
+
+            boolean sameAspect = (long) widths[i] * mMaxHeight == (long) heights[i] * mMaxWidth;
+            boolean fits = widths[i] <= mMaxWidth && heights[i] <= mMaxHeight;
+            boolean fast = minFrameDurationsNs[i] <= mFrameBudgetNs;
+
+            if (sameAspect && fits && fast && widths[i] > 0) {
+                candidates[count++] = ((long) widths[i] * heights[i] << CANDIDATE_INDEX_BITS) | i;
+            }
+        }
+
+        if (count == 0) {
+
+            // Nothing matched, so capture at the largest allowed size as before.
+            mWidths = new int[] { mMaxWidth };
+            mHeights = new int[] { mMaxHeight };
+        }
+        else {
+
+            Arrays.sort(candidates, 0, count);
+
+            mWidths = new int[count];
+            mHeights = new int[count];
+
+            for (int i = 0; i < count; i++) {
+
+                int candidate = (int) (candidates[count - 1 - i] & ((1 << CANDIDATE_INDEX_BITS) - 1));
+
+                mWidths[i] = widths[candidate];
+                mHeights[i] = heights[candidate];
+            }
+        }
+
+        mIndex = 0;
+        mStarted = false;
+
+        resetWindow();
+    }
+
+    /**
+     * Starts from a given size if it is a candidate, such as the size used before the camera was
+     * last closed.
+     *
+     * @param width The width of the size.
+     * @param height The height of the size.
+     * @return True if the size is a candidate.
+     */
+    boolean select(int width, int height) {
+
+        for (int i = 0; i < mWidths.length; i++) {
+
+            if (mWidths[i] == width && mHeights[i] == height) {
+
+                mIndex = i;
+
+                resetWindow();
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Reports the time taken to track a frame.
+     *
+     * @param timestamp The capture timestamp of the frame in nanoseconds.
+     * @param width The width of the frame.
+     * @param height The height of the frame.
+     * @param trackingNs The time taken to track the frame in nanoseconds.
+     * @return True if the capture size should change to the current size.
+     */
+    boolean onFrameTracked(long timestamp, int width, int height, long trackingNs) {
+
+        // Frames of other streams, or captured before the last change, say nothing about the
+        // current size.
+        if (width != mWidths[mIndex] || height != mHeights[mIndex]) {
+            return false;
+        }
+
+        if (!mStarted) {
+            mStarted = true;
+            mLastChangeTimestamp = timestamp;
+        }
+
+        mWindowTotalNs += trackingNs;
+        mWindowCount++;
+
+        if (mWindowCount < mWindowFrames) {
+            return false;
+        }
+
+        long meanNs = mWindowTotalNs / mWindowCount;
+
+        mWindowTotalNs = 0;
+        mWindowCount = 0;
+
+        if (meanNs > mFrameBudgetNs * mStepDownFraction) {
+
+            mStepUpCount = 0;
+
+            if (mIndex + 1 < mWidths.length && timestamp - mLastChangeTimestamp >= mMinChangeIntervalNs) {
+
+                mIndex++;
+                mStepDowns++;
+
+                return changed(timestamp);
+            }
+
+            return false;
+        }
+
+        if (mIndex == 0) {
+            return false;
+        }
+
+        // Tracking time grows roughly with the number of pixels tracked.
+        double scale = (double) mWidths[mIndex - 1] * mHeights[mIndex - 1] / ((double) mWidths[mIndex] * mHeights[mIndex]);
+
+        if (meanNs * scale > mFrameBudgetNs * mStepUpFraction) {
+            mStepUpCount = 0;
+            return false;
+        }
+
+        mStepUpCount++;
+
+        if (mStepUpCount >= mStepUpWindows && timestamp - mLastChangeTimestamp >= mMinChangeIntervalNs) {
+
+            mIndex--;
+            mStepUps++;
+
+            return changed(timestamp);
+        }
+
+        return false;
+    }
+
+    /**
+     * Gets the width of the current capture size.
+     *
+     * @return The width in pixels.
+     */
+    int getWidth() {
+        return mWidths[mIndex];
+    }
+
+    /**
+     * Gets the height of the current capture size.
+     *
+     * @return The height in pixels.
+     */
+    int getHeight() {
+        return mHeights[mIndex];
+    }
+
+    /**
+     * Gets the number of candidate sizes.
+     *
+     * @return The number of candidates.
+     */
+    int getCandidateCount() {
+        return mWidths.length;
+    }
+
+    /**
+     * Gets the number of times the capture size has been stepped up.
+     *
+     * @return The step up count.
+     */
+    long getStepUps() {
+        return mStepUps;
+    }
+
+    /**
+     * Gets the number of times the capture size has been stepped down.
+     *
+     * @return The step down count.
+     */
+    long getStepDowns() {
+        return mStepDowns;
+    }
+
+    private boolean changed(long timestamp) {
+
+        mLastChangeTimestamp = timestamp;
+
+        resetWindow();
+
+        return true;
+    }
+
+    private void resetWindow() {
+
+        mWindowTotalNs = 0;
+        mWindowCount = 0;
+        mStepUpCount = 0;
+    }
+}
@@ -0,0 +1,301 @@
+package eu.kudan.ar;
+
+/**
+ * Decides which camera frames run full image detection while no trackable has been found.
+ *
+ * Image detection on a full camera frame is the most expensive operation the tracking stage
+ * performs. Once a trackable is detected it is tracked on every frame and the scheduler is not
+ * consulted, but while nothing is in view the scheduler skips frames according to a pluggable
+ * Policy. It reports how many of the frames it was asked about were skipped.
+ *
+ * Detection durations are wall-clock times that vary from run to run, so they can be withheld from
+ * the policy for frames that are not live. The schedule then depends only on frame timestamps and
+ * outcomes, and replaying a recording detects on the same frames every time.
+ *
+ * All methods are called from the tracking stage except setPolicy() and the statistics getters.
+ */
+class DetectionScheduler {
+
+    /**
+     * A strategy for spacing out image detection while nothing is being tracked.
+     *
+     * Timestamps are camera frame timestamps in nanoseconds, so schedules are reproducible when
+     * frames are replayed faster than real time, as long as durations are not measured.
+     */
+    interface Policy {
+
+        /**
+         * Called when tracking is lost, or detection starts afresh, at the given frame.
+         *
+         * @param timestamp The timestamp of the first frame without a tracked trackable.
+         */
+        void onTrackingLost(long timestamp);
+
+        /**
+         * Decides whether detection should run on a frame.
+         *
+         * @param timestamp The timestamp of the frame.
+         * @return True if detection should run on the frame.
+         */
+        boolean shouldDetect(long timestamp);
+
+        /**
+         * Called after detection has run on a frame.
+         *
+         * @param timestamp The timestamp of the frame.
+         * @param durationNs How long the detection took in nanoseconds, or 0 if durations are not
+         *                   measured.
+         * @param found Whether a trackable was detected.
+         */
+        void onDetectionFinished(long timestamp, long durationNs, boolean found);
+    }
+
+    /**
+     * The default Policy. Detects on every frame for a short period after tracking is lost, when
+     * the trackable is most likely to still be in view, then backs off geometrically.
+     *
+     * Outside of the initial period detection is also held to a time budget, so that it never
+     * takes more than a fixed fraction of wall-clock time however slow each detection is. The
+     * budget has no effect while durations are not measured.
+     */
+    static class BackoffPolicy implements Policy {
+
+        /**
+         * Default parameters: detect every frame for 1 s, then grow the gap between detections by
+         * 1.5 times per miss up to 500 ms, spending no more than half of wall-clock time detecting.
+         */
+        static final long DEFAULT_EAGER_PERIOD_NS = 1000000000L;
+        static final long DEFAULT_MIN_INTERVAL_NS = 33000000L;
+        static final long DEFAULT_MAX_INTERVAL_NS = 500000000L;
+        static final float DEFAULT_BACKOFF_FACTOR = 1.5f;
+        static final float DEFAULT_TIME_BUDGET = 0.5f;
+
+        private final long mEagerPeriodNs;
+        private final long mMinIntervalNs;
+        private final long mMaxIntervalNs;
+        private final float mBackoffFactor;
+        private final float mTimeBudget;
+
+        private long mLostTimestamp;
+        private long mIntervalNs;
+        private long mNextDetection;
+
+        /**
+         * Constructs a BackoffPolicy with the default parameters.
+         */
+        BackoffPolicy() {
+            this(DEFAULT_EAGER_PERIOD_NS, DEFAULT_MIN_INTERVAL_NS, DEFAULT_MAX_INTERVAL_NS, DEFAULT_BACKOFF_FACTOR, DEFAULT_TIME_BUDGET);
+        }
+
+        /**
+         * Constructs a BackoffPolicy.
+         *
+         * @param eagerPeriodNs How long after a loss detection runs on every frame.
+         * @param minIntervalNs The gap between detections when backing off begins.
+         * @param maxIntervalNs The largest gap between detections.
+         * @param backoffFactor How much the gap grows after each detection that finds nothing.
+         * @param timeBudget The largest fraction of wall-clock time detection may take once backing off, in (0, 1].
+         */
+        BackoffPolicy(long eagerPeriodNs, long minIntervalNs, long maxIntervalNs, float backoffFactor, float timeBudget) {
+
+            if (eagerPeriodNs < 0 || minIntervalNs < 0 || maxIntervalNs < minIntervalNs) {
+                throw new IllegalArgumentException("Detection intervals must be non-negative and ordered.");
+            }
+
+            if (backoffFactor < 1.0f) {
+                throw new IllegalArgumentException("Backoff factor must be at least 1.");
+            }
+
+            if (timeBudget <= 0.0f || timeBudget > 1.0f) {
+                throw new IllegalArgumentException("Detection time budget must be in (0, 1].");
+            }
+
+            mEagerPeriodNs = eagerPeriodNs;
+            mMinIntervalNs = minIntervalNs;
+            mMaxIntervalNs = maxIntervalNs;
+            mBackoffFactor = backoffFactor;
+            mTimeBudget = timeBudget;
+        }
+
+        @Override
+        public void onTrackingLost(long timestamp) {
+            mLostTimestamp = timestamp;
+            mIntervalNs = mMinIntervalNs;
+            mNextDetection = timestamp;
+        }
+
+        @Override
+        public boolean shouldDetect(long timestamp) {
+            return timestamp - mLostTimestamp < mEagerPeriodNs || timestamp >= mNextDetection;
+        }
+
+        @Override
+        public void onDetectionFinished(long timestamp, long durationNs, boolean found) {
+
+            if (found) {
+                return;
+            }
+
+            long interval = mIntervalNs;
+
+            // Keep the share of time spent detecting within the budget.
+            long budgetInterval = (long) (durationNs / mTimeBudget) - durationNs;
+
+            if (budgetInterval > interval) {
+                interval = budgetInterval;
+            }
+
+            mNextDetection = timestamp + interval;
+
+            // Only start backing off once the eager period has passed.
+            if (timestamp - mLostTimestamp >= mEagerPeriodNs) {
+                mIntervalNs = Math.min((long) (mIntervalNs * mBackoffFactor), mMaxIntervalNs);
+            }
+        }
+    }
+
+    private volatile Policy mPolicy;
+
+    /**
+     * Whether the policy must be told detection is starting afresh at the next frame.
+     */
+    private volatile boolean mRestartPending = true;
+
+    /**
+     * Whether detection durations are passed on to the policy.
+     */
+    private volatile boolean mDurationsMeasured = true;
+
+    /**
+     * Counters of frames the scheduler was asked about and frames it skipped.
+     */
+    private volatile long mConsideredFrames;
+    private volatile long mSkippedFrames;
+
+    /**
+     * Constructs a DetectionScheduler using the default BackoffPolicy.
+     */
+    DetectionScheduler() {
+        this(new BackoffPolicy());
+    }
+
+    /**
+     * Constructs a DetectionScheduler.
+     *
+     * @param policy The policy that decides which frames run detection.
+     */
+    DetectionScheduler(Policy policy) {
+        setPolicy(policy);
+    }
+
+    /**
+     * Replaces the policy that decides which frames run detection. Safe to call from any thread.
+     *
+     * @param policy The new policy.
+     */
+    void setPolicy(Policy policy) {
+
+        if (policy == null) {
+            throw new IllegalArgumentException("Detection policy cannot be null.");
+        }
+
+        mPolicy = policy;
+        mRestartPending = true;
+    }
+
+    /**
+     * Sets whether detection durations are passed on to the policy. Durations should not be
+     * measured for frames that are not live, so that replaying them is deterministic. Safe to call
+     * from any thread.
+     *
+     * @param measured True to pass on measured durations, or false to report every duration as 0.
+     */
+    void setDurationsMeasured(boolean measured) {
+        mDurationsMeasured = measured;
+    }
+
+    /**
+     * Makes detection start afresh at the next frame, such as after markerless tracking stops.
+     * Safe to call from any thread.
+     */
+    void restart() {
+        mRestartPending = true;
+    }
+
+    /**
+     * Tells the scheduler that tracking of a previously detected trackable was lost.
+     *
+     * @param timestamp The timestamp of the frame on which tracking was lost.
+     */
+    void onTrackingLost(long timestamp) {
+        mRestartPending = false;
+        mPolicy.onTrackingLost(timestamp);
+    }
+
+    /**
+     * Decides whether detection should run on a frame while nothing is being tracked.
+     *
+     * @param timestamp The timestamp of the frame.
+     * @return True if detection should run on the frame.
+     */
+    boolean shouldDetect(long timestamp) {
+
+        Policy policy = mPolicy;
+
+        if (mRestartPending) {
+            mRestartPending = false;
+            policy.onTrackingLost(timestamp);
+        }
+
+        mConsideredFrames++;
+
+        if (policy.shouldDetect(timestamp)) {
+            return true;
+        }
+
+        mSkippedFrames++;
+
+        return false;
+    }
+
+    /**
+     * Reports the outcome of a detection run on a frame.
+     *
+     * @param timestamp The timestamp of the frame.
+     * @param durationNs How long the detection took in nanoseconds.
+     * @param found Whether a trackable was detected.
+     */
+    void onDetectionFinished(long timestamp, long durationNs, boolean found) {
+        mPolicy.onDetectionFinished(timestamp, mDurationsMeasured ? durationNs : 0, found);
+    }
+
+    /**
+     * Gets the number of frames the scheduler was asked about while nothing was tracked.
+     *
+     * @return The number of frames considered for detection.
+     */
+    long getConsideredFrames() {
+        return mConsideredFrames;
+    }
+
+    /**
+     * Gets the number of frames on which detection was skipped.
+     *
+     * @return The number of skipped frames.
+     */
+    long getSkippedFrames() {
+        return mSkippedFrames;
+    }
+
+    /**
+     * Gets the fraction of frames considered for detection that were skipped.
+     *
+     * @return The skipped fraction in [0, 1], or 0 if no frames have been considered.
+     */
+    float getSkippedFraction() {
+
+        long considered = mConsideredFrames;
+
+        return considered > 0 ? (float) mSkippedFrames / considered : 0.0f;
+    }
+}
@@ -5,7 +5,6 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
-import android.graphics.Path;
 import android.graphics.Point;
 import android.graphics.PointF;
 import android.graphics.PorterDuff;
@@ -15,115 +14,261 @@ import android.graphics.RectF;
 import android.graphics.Typeface;
 
 /**
- * Class containing static methods used to perform the drawing of primitive UI objects on a canvas.
+ * Class containing the methods and display lists used to perform the drawing of primitive UI
+ * objects on a canvas.
  */
 class Drawing {
 
     /**
-     * Member class that draws an arbitrary quadrilateral shape with a centred text label on a
-     * Canvas given four corner coordinates in screen-space.
+     * A retained list of the primitives drawn over a camera frame.
+     *
+     * The borders of every primitive, and the interior lines of grids, are held as PrimitiveLines in
+     * camera frame coordinates and drawn in one drawLines batch under a single transform, followed
+     * by the labels at their cached positions. The list is only rebuilt when the primitive type, a
+     * corner, a label or the transform changes, so an overlay showing a still pose need not be
+     * redrawn at all. Each list owns its paints, so lists may be used on different threads, each by
+     * one thread at a time. No method but the constructor allocates.
      */
-    private static class Quadrilateral {
+    static class DisplayList {
+
+        private static final float STROKE_WIDTH = 10;
+        private static final float TEXT_SIZE = 48;
 
-        static Path mPath = new Path();
+        private final int mCapacity;
 
-        static Paint mPathPaint = new Paint();
-        static Paint mTextPaint = new Paint();
+        private final Paint mLinePaint = new Paint();
+        private final Paint mTextPaint = new Paint();
 
         /**
-         * Constructs the Quadrilateral object and sets the appearance of the path and text.
+         * The inputs the list was last built from: the primitive type and count, the labels and
+         * the transform values. The corners are recorded by mLines.
          */
-        static {
+        private DrawingPrimitive mPrimitive = DrawingPrimitive.DRAWING_NOTHING;
+        private int mCount;
+        private final String[] mLabels;
+        private final float[] mTransformValues = new float[9];
+
+        /**
+         * Pre-allocated corners and transform values of the update being checked for changes.
+         */
+        private final int[] mNewCorners;
+        private final float[] mNewTransformValues = new float[9];
+
+        /**
+         * The built list: the transform, the line segments, the label positions and widths, and
+         * the area covered by everything drawn in Canvas coordinates.
+         */
+        private final Matrix mTransform = new Matrix();
+        private final PrimitiveLines mLines;
+        private final float[] mLabelX;
+        private final float[] mLabelY;
+        private final float[] mLabelWidths;
+        private final RectF mBounds = new RectF();
+        private final RectF mPrimitiveBounds = new RectF();
+
+        /**
+         * Constructs an empty DisplayList and sets the appearance of the lines and text.
+         *
+         * @param capacity The maximum number of primitives the list holds.
+         */
+        DisplayList(int capacity) {
+
+            if (capacity < 1) {
+                throw new IllegalArgumentException("Display list capacity must be at least 1.");
+            }
+
+            mCapacity = capacity;
+
+            mLabels = new String[capacity];
+            mNewCorners = new int[capacity * PrimitiveLines.CORNER_VALUES_PER_PRIMITIVE];
+            mLines = new PrimitiveLines(capacity);
+            mLabelX = new float[capacity];
+            mLabelY = new float[capacity];
+            mLabelWidths = new float[capacity];
+
+            mLinePaint.setStrokeWidth(STROKE_WIDTH);
+            mLinePaint.setStyle(Paint.Style.STROKE);
 
-            mPathPaint.setStrokeWidth(10);
-            mPathPaint.setPathEffect(null);
-            mPathPaint.setStyle(Paint.Style.STROKE);
+            // Square caps fill in the corners where separate border segments meet.
+            mLinePaint.setStrokeCap(Paint.Cap.SQUARE);
 
             mTextPaint.setColor(Color.CYAN);
             mTextPaint.setStyle(Paint.Style.FILL);
             mTextPaint.setTypeface(Typeface.SANS_SERIF);
             mTextPaint.setTextAlign(Paint.Align.CENTER);
-            mTextPaint.setTextSize(48);
+            mTextPaint.setTextSize(TEXT_SIZE);
+
+            mTransformValues[Matrix.MSCALE_X] = 1;
+            mTransformValues[Matrix.MSCALE_Y] = 1;
+            mTransformValues[Matrix.MPERSP_2] = 1;
         }
 
         /**
-         * Draws a Quadrilateral on a Canvas.
+         * Updates the list to hold a set of primitives, rebuilding it only if they have changed.
          *
-         * @param canvas The Canvas object the Quadrilateral will be drawn on.
-         * @param transform The matrix transform applied to the Canvas before drawing.
-         * @param p0 The top-left corner of the Quadrilateral.
-         * @param p1 The top-right corner of the Quadrilateral.
-         * @param p2 The bottom-right corner of the Quadrilateral.
-         * @param p3 The bottom-left corner of the Quadrilateral.
-         * @param label The text that should be displayed in the centre of the Quadrilateral.
-         * @param color The color of the Quadrilateral outline.
+         * @param transform The matrix transform from camera frame coordinates to Canvas coordinates.
+         * @param primitive The primitive of type DrawingPrimitive to be drawn.
+         * @param corners Array holding four corners for each Primitive, in the order top-left,
+         *                top-right, bottom-right, bottom-left.
+         * @param labels Array holding the text that should be displayed in the centre of each Primitive.
+         * @param count The number of Primitives to draw.
+         * @return True if the list changed and any Canvas showing it should be redrawn.
          */
-        private static void draw(Canvas canvas, Matrix transform, Point p0, Point p1, Point p2, Point p3, String label, int color) {
+        boolean update(Matrix transform, DrawingPrimitive primitive, Point[] corners, String[] labels, int count) {
+
+            if (count < 0 || count > mCapacity) {
+                throw new IllegalArgumentException("Primitive count must be from 0 to the display list capacity.");
+            }
+
+            if (primitive != DrawingPrimitive.DRAWING_RECTANGLE && primitive != DrawingPrimitive.DRAWING_GRID) {
+                primitive = DrawingPrimitive.DRAWING_NOTHING;
+                count = 0;
+            }
+
+            transform.getValues(mNewTransformValues);
 
-            canvas.setMatrix(transform);
+            for (int i = 0; i < count * 4; i++) {
+                mNewCorners[i * 2] = corners[i].x;
+                mNewCorners[i * 2 + 1] = corners[i].y;
+            }
 
-            // Reset path to prevent overdraw.
-            mPath.reset();
+            if (!hasChanged(primitive, labels, count)) {
+                return false;
+            }
 
-            // Draw border path.
-            mPath.moveTo(p0.x, p0.y);
-            mPath.lineTo(p1.x, p1.y);
-            mPath.lineTo(p2.x, p2.y);
-            mPath.lineTo(p3.x, p3.y);
+            mPrimitive = primitive;
+            mCount = count;
 
-            mPath.close();
+            System.arraycopy(mNewTransformValues, 0, mTransformValues, 0, 9);
+            mTransform.set(transform);
 
-            mPathPaint.setColor(color);
+            mLines.set(mNewCorners, count, primitive == DrawingPrimitive.DRAWING_GRID);
 
-            canvas.drawPath(mPath, mPathPaint);
+            for (int i = 0; i < count; i++) {
 
-            // Draw label text.
-            canvas.drawText(
-                    label,
-                    (p2.x + p0.x) / 2,
-                    (p2.y + p0.y - (mTextPaint.descent() + mTextPaint.ascent())) / 2,
-                    mTextPaint
-            );
+                // Only measure labels that have changed.
+                if (!labels[i].equals(mLabels[i])) {
+                    mLabels[i] = labels[i];
+                    mLabelWidths[i] = mTextPaint.measureText(labels[i]);
+                }
+            }
+
+            rebuild();
+
+            return true;
         }
-    }
 
-    /**
-     * Member class that draws an arbitrary quadrilateral shape with a centred text label and an
-     * interior grid on a Canvas given four corner coordinates in screen-space.
-     */
-    private static class Grid extends Quadrilateral {
+        /**
+         * Gets the area of a Canvas covered by the list, including its stroked lines and labels.
+         *
+         * @param bounds RectF set to the covered area in Canvas coordinates, or emptied if the list
+         *               is empty.
+         */
+        void getBounds(RectF bounds) {
+            bounds.set(mBounds);
+        }
 
         /**
-         * Draws a Grid on a Canvas.
+         * Draws the list on a Canvas.
          *
-         * @param canvas The Canvas object the Grid will be drawn on.
-         * @param transform The matrix transform applied to the Canvas before drawing.
-         * @param p0 The top-left corner of the Grid.
-         * @param p1 The top-right corner of the Grid.
-         * @param p2 The bottom-right corner of the Grid.
-         * @param p3 The bottom-left corner of the Grid.
-         * @param label The text that should be displayed in the centre of the Grid.
-         * @param color The color of the Quadrilateral Grid.
+         * @param canvas The Canvas on which the list should be drawn.
+         */
+        void draw(Canvas canvas) {
+
+            if (mCount == 0) {
+                return;
+            }
+
+            // Concatenate rather than set the transform, as a hardware Canvas may already hold one.
+            int saveCount = canvas.save();
+
+            canvas.concat(mTransform);
+
+            canvas.drawLines(mLines.getLines(), 0, mLines.getLineFloats(), mLinePaint);
+
+            for (int i = 0; i < mCount; i++) {
+                canvas.drawText(mLabels[i], mLabelX[i], mLabelY[i], mTextPaint);
+            }
+
+            canvas.restoreToCount(saveCount);
+        }
+
+        /**
+         * Gets whether a set of primitives differs from the one the list was last built from.
          */
-        private static void draw(Canvas canvas, Matrix transform, Point p0, Point p1, Point p2, Point p3, String label, int color) {
+        private boolean hasChanged(DrawingPrimitive primitive, String[] labels, int count) {
+
+            if (primitive != mPrimitive || count != mCount) {
+                return true;
+            }
+
+            // Nothing is drawn, so the transform does not matter.
+            if (count == 0) {
+                return false;
+            }
 
-            canvas.setMatrix(transform);
+            for (int i = 0; i < 9; i++) {
 
-            // Reset path to prevent overdraw.
-            mPath.reset();
+                if (mNewTransformValues[i] != mTransformValues[i]) {
+                    return true;
+                }
+            }
 
-            // Draw grid path.
-            mPath.moveTo((p1.x + p0.x) / 2, (p1.y + p0.y) / 2);
-            mPath.lineTo((p3.x + p2.x) / 2, (p3.y + p2.y) / 2);
-            mPath.moveTo((p3.x + p0.x) / 2, (p3.y + p0.y) / 2);
-            mPath.lineTo((p1.x + p2.x) / 2, (p1.y + p2.y) / 2);
+            if (mLines.cornersDiffer(mNewCorners, count)) {
+                return true;
+            }
 
-            mPathPaint.setColor(color);
+            for (int i = 0; i < count; i++) {
 
-            canvas.drawPath(mPath, mPathPaint);
+                if (!labels[i].equals(mLabels[i])) {
+                    return true;
+                }
+            }
 
-            // Draw the quadrilateral border over the interior grid.
-            Quadrilateral.draw(canvas, transform, p0, p1, p2, p3, label, color);
+            return false;
+        }
+
+        /**
+         * Rebuilds the label positions and bounds from the recorded inputs.
+         */
+        private void rebuild() {
+
+            mBounds.setEmpty();
+
+            mLinePaint.setColor(mPrimitive == DrawingPrimitive.DRAWING_GRID ? Color.GREEN : Color.BLUE);
+
+            // Square caps reach furthest outside a segment at its corners.
+            float outset = STROKE_WIDTH / 2 * (float) Math.sqrt(2) + 1;
+            float textHalfHeight = (mTextPaint.descent() - mTextPaint.ascent()) / 2 + 1;
+
+            for (int i = 0; i < mCount; i++) {
+
+                // Centre the label between the top-left and bottom-right corners.
+                float centreX = (mLines.getCornerX(i, 0) + mLines.getCornerX(i, 2)) / 2f;
+                float centreY = (mLines.getCornerY(i, 0) + mLines.getCornerY(i, 2)) / 2f;
+
+                mLabelX[i] = centreX;
+                mLabelY[i] = centreY - (mTextPaint.descent() + mTextPaint.ascent()) / 2;
+
+                mPrimitiveBounds.set(mLines.getCornerX(i, 0), mLines.getCornerY(i, 0), mLines.getCornerX(i, 0), mLines.getCornerY(i, 0));
+
+                for (int j = 1; j < 4; j++) {
+                    mPrimitiveBounds.union(mLines.getCornerX(i, j), mLines.getCornerY(i, j));
+                }
+
+                mPrimitiveBounds.inset(-outset, -outset);
+
+                float textHalfWidth = mLabelWidths[i] / 2 + 1;
+
+                mPrimitiveBounds.union(centreX - textHalfWidth, centreY - textHalfHeight, centreX + textHalfWidth, centreY + textHalfHeight);
+
+                mBounds.union(mPrimitiveBounds);
+            }
+
+            // Lines and text are scaled with the Canvas, so map the frame space bounds.
+            if (mCount > 0) {
+                mTransform.mapRect(mBounds);
+            }
         }
     }
 
@@ -194,28 +339,13 @@ class Drawing {
     }
 
     /**
-     * Draws a Primitive on a Canvas.
-     * @param canvas The Canvas on which the Primitive should be drawn.
-     * @param transform The matrix transform applied to primitive drawing.
-     * @param primitive The primitive of type DrawingPrimitive to be drawn.
-     * @param p0 The top-left corner of the Primitive.
-     * @param p1 The top-right corner of the Primitive.
-     * @param p2 The bottom-right corner of the Primitive.
-     * @param p3 The bottom-left corner of the Primitive.
-     * @param label The text that should be displayed in the centre of the Primitive.
+     * Clears the clip area of a transparent Canvas, such as an overlay drawn over the camera preview.
+     *
+     * @param canvas The Canvas that should be cleared.
      */
-    static void drawPrimitive(Canvas canvas, Matrix transform, DrawingPrimitive primitive, Point p0, Point p1, Point p2, Point p3, String label) {
-
-        if (primitive == DrawingPrimitive.DRAWING_RECTANGLE) {
-
-            Quadrilateral.draw(canvas, transform, p0, p1, p2, p3, label, Color.BLUE);
+    static void clearOverlay(Canvas canvas) {
 
-        }
-        else if (primitive == DrawingPrimitive.DRAWING_GRID) {
-
-            Grid.draw(canvas, transform, p0, p1, p2, p3, label, Color.GREEN);
-
-        }
+        canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
     }
 
     /**
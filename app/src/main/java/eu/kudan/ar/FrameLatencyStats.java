@@ -0,0 +1,270 @@
+package eu.kudan.ar;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Latency histograms for each stage of the frame pipeline and each TrackerState, so that a slow
+ * frame can be attributed to camera delivery, luma capture, the native trackers or rendering.
+ *
+ * Recording costs a bucket increment and the two clock reads around each measured step, and never
+ * allocates, so the statistics are always collected. A summary of every stage is logged
+ * periodically from the render stage.
+ */
+class FrameLatencyStats {
+
+    /**
+     * Measured steps of the frame pipeline.
+     */
+    enum Stage {
+
+        /**
+         * From the sensor timestamp of a camera frame until it is acquired from the ImageReader.
+         */
+        DELIVERY,
+
+        /**
+         * The call to ImageReader.acquireLatestImage().
+         */
+        ACQUIRE,
+
+        /**
+         * The capture of the luma plane into a ring frame.
+         */
+        CAPTURE,
+
+        /**
+         * The native tracker call for a frame.
+         */
+        TRACK,
+
+        /**
+         * The upload of a tracked frame into the render bitmap.
+         */
+        UPLOAD,
+
+        /**
+         * Drawing a frame, from locking the canvas until it is posted.
+         */
+        DRAW,
+
+        /**
+         * From the sensor timestamp of a camera frame until it is posted to the display.
+         */
+        END_TO_END
+    }
+
+    /**
+     * The default interval between logged summaries.
+     */
+    static final long DEFAULT_LOG_INTERVAL_NS = 10000000000L;
+
+    private static final Stage[] STAGES = Stage.values();
+    private static final TrackerState[] STATES = TrackerState.values();
+
+    /**
+     * Histograms indexed by stage ordinal and then state ordinal.
+     */
+    private final LatencyHistogram[][] mHistograms = new LatencyHistogram[STAGES.length][STATES.length];
+
+    private volatile long mLogIntervalNs = DEFAULT_LOG_INTERVAL_NS;
+    private long mLastLogNs;
+
+    /**
+     * Constructs a FrameLatencyStats with empty histograms.
+     */
+    FrameLatencyStats() {
+
+        for (int stage = 0; stage < STAGES.length; stage++) {
+
+            for (int state = 0; state < STATES.length; state++) {
+                mHistograms[stage][state] = new LatencyHistogram();
+            }
+        }
+    }
+
+    /**
+     * Records the duration of a stage for a frame.
+     *
+     * Each stage must only be recorded by one thread at a time.
+     *
+     * @param stage The measured stage.
+     * @param state The tracker state the frame was processed in.
+     * @param durationNs The duration in nanoseconds.
+     */
+    void record(Stage stage, TrackerState state, long durationNs) {
+        mHistograms[stage.ordinal()][state.ordinal()].record(durationNs);
+    }
+
+    /**
+     * Gets the time elapsed since a camera sensor timestamp.
+     *
+     * @param timestamp The sensor timestamp of a frame in nanoseconds.
+     * @param realtimeClock Whether the timestamp is on the elapsed realtime clock rather than the
+     *                      monotonic clock.
+     * @return The elapsed time in nanoseconds.
+     */
+    static long sinceSensorTimestamp(long timestamp, boolean realtimeClock) {
+        return (realtimeClock ? SystemClock.elapsedRealtimeNanos() : System.nanoTime()) - timestamp;
+    }
+
+    /**
+     * Gets a percentile of the duration of a stage.
+     *
+     * @param stage The measured stage.
+     * @param state The tracker state, or null to combine every state.
+     * @param fraction The percentile as a fraction, such as 0.99 for p99.
+     * @return The percentile in nanoseconds, or 0 if nothing has been recorded.
+     */
+    long getPercentileNs(Stage stage, TrackerState state, double fraction) {
+
+        if (state != null) {
+            return mHistograms[stage.ordinal()][state.ordinal()].getPercentileNs(fraction);
+        }
+
+        // Queries are rare, so combining states may allocate.
+        LatencyHistogram combined = new LatencyHistogram();
+
+        for (int i = 0; i < STATES.length; i++) {
+            combined.add(mHistograms[stage.ordinal()][i]);
+        }
+
+        return combined.getPercentileNs(fraction);
+    }
+
+    /**
+     * Gets the number of durations recorded for a stage.
+     *
+     * @param stage The measured stage.
+     * @param state The tracker state, or null to combine every state.
+     * @return The number of recorded durations.
+     */
+    long getCount(Stage stage, TrackerState state) {
+
+        if (state != null) {
+            return mHistograms[stage.ordinal()][state.ordinal()].getCount();
+        }
+
+        long count = 0;
+
+        for (int i = 0; i < STATES.length; i++) {
+            count += mHistograms[stage.ordinal()][i].getCount();
+        }
+
+        return count;
+    }
+
+    /**
+     * Gets the longest duration recorded for a stage.
+     *
+     * @param stage The measured stage.
+     * @param state The tracker state, or null to combine every state.
+     * @return The maximum in nanoseconds, or 0 if nothing has been recorded.
+     */
+    long getMaxNs(Stage stage, TrackerState state) {
+
+        if (state != null) {
+            return mHistograms[stage.ordinal()][state.ordinal()].getMaxNs();
+        }
+
+        long max = 0;
+
+        for (int i = 0; i < STATES.length; i++) {
+            max = Math.max(max, mHistograms[stage.ordinal()][i].getMaxNs());
+        }
+
+        return max;
+    }
+
+    /**
+     * Clears every histogram. Must not be called while frames are being recorded.
+     */
+    void reset() {
+
+        for (int stage = 0; stage < STAGES.length; stage++) {
+
+            for (int state = 0; state < STATES.length; state++) {
+                mHistograms[stage][state].reset();
+            }
+        }
+    }
+
+    /**
+     * Sets the interval between logged summaries.
+     *
+     * @param intervalNs The interval in nanoseconds, or 0 to stop logging.
+     */
+    void setLogInterval(long intervalNs) {
+
+        if (intervalNs < 0) {
+            throw new IllegalArgumentException("Latency log interval cannot be negative.");
+        }
+
+        mLogIntervalNs = intervalNs;
+    }
+
+    /**
+     * Logs a summary of every stage if the log interval has passed since the last summary.
+     *
+     * Called from the render stage only.
+     *
+     * @param nowNs The current System.nanoTime().
+     */
+    void logIfDue(long nowNs) {
+
+        long intervalNs = mLogIntervalNs;
+
+        if (intervalNs == 0) {
+            return;
+        }
+
+        if (mLastLogNs == 0) {
+            mLastLogNs = nowNs;
+            return;
+        }
+
+        if (nowNs - mLastLogNs < intervalNs) {
+            return;
+        }
+
+        mLastLogNs = nowNs;
+
+        Log.i("FrameLatency", toString());
+    }
+
+    /**
+     * Gets a summary of the p50, p95 and p99 of every stage and state with recorded durations.
+     *
+     * @return One line per stage and state, with durations in milliseconds.
+     */
+    @Override
+    public String toString() {
+
+        StringBuilder summary = new StringBuilder(1024);
+
+        for (Stage stage : STAGES) {
+
+            for (TrackerState state : STATES) {
+
+                LatencyHistogram histogram = mHistograms[stage.ordinal()][state.ordinal()];
+
+                long count = histogram.getCount();
+
+                if (count == 0) {
+                    continue;
+                }
+
+                summary.append('\n')
+                        .append(stage).append(' ').append(state)
+                        .append(" n=").append(count)
+                        .append(" p50=").append(histogram.getPercentileNs(0.50) / 1e6f)
+                        .append(" p95=").append(histogram.getPercentileNs(0.95) / 1e6f)
+                        .append(" p99=").append(histogram.getPercentileNs(0.99) / 1e6f)
+                        .append(" max=").append(histogram.getMaxNs() / 1e6f)
+                        .append(" ms");
+            }
+        }
+
+        return summary.toString();
+    }
+}
@@ -0,0 +1,280 @@
+package eu.kudan.ar;
+
+/**
+ * Chooses the camera's auto-exposure target frame rate range and the rotation sensor rate from
+ * the measured tracking throughput and the tracking state.
+ *
+ * Frames captured faster than the tracker can process them are only dropped, so the camera is
+ * asked for no more than the tracking rate, with some headroom. After a period of image detection
+ * without a hit the rate is lowered further to an idle rate, and it is restored as soon as a
+ * trackable is detected. The rotation sensor is only needed at full rate by the markerless
+ * tracker, so it is slowed in every other state.
+ *
+ * The available ranges are plain lower and upper bounds so the governor does not depend on the
+ * Android framework. Tracking times and frames are reported by the tracking stage only, the chosen
+ * range and sensor period may be read from any thread, and no method allocates.
+ */
+class FrameRateGovernor {
+
+    /**
+     * Default parameters: ask for 10% more frames than the tracker can process, drop to 10 fps
+     * after 5 s of detection without a hit, change the range for throughput at most once every
+     * 2 s, and sample the rotation sensor every 30 ms while markerless tracking and every 200 ms
+     * otherwise.
+     */
+    static final float DEFAULT_HEADROOM = 1.1f;
+    static final int DEFAULT_IDLE_FPS = 10;
+    static final long DEFAULT_IDLE_DELAY_NS = 5000000000L;
+    static final long DEFAULT_MIN_CHANGE_INTERVAL_NS = 2000000000L;
+    static final int DEFAULT_ACTIVE_SENSOR_PERIOD_US = 30000;
+    static final int DEFAULT_IDLE_SENSOR_PERIOD_US = 200000;
+
+    /**
+     * The weight of each new tracking time in the running average.
+     */
+    private static final float TRACKING_TIME_WEIGHT = 0.05f;
+
+    private final int[] mRangeLowers;
+    private final int[] mRangeUppers;
+
+    private final float mHeadroom;
+    private final int mIdleFps;
+    private final long mIdleDelayNs;
+    private final long mMinChangeIntervalNs;
+    private final int mActiveSensorPeriodUs;
+    private final int mIdleSensorPeriodUs;
+
+    /**
+     * A running average of the time taken to track a frame, or 0 before the first is reported.
+     */
+    private float mTrackingTimeNs;
+
+    /**
+     * The timestamp of the frame that started the current run of detection without a hit, or -1
+     * while a trackable is tracked.
+     */
+    private long mDetectionStart = -1;
+
+    private long mLastChangeTimestamp;
+    private boolean mIdle;
+
+    private volatile int mRangeIndex;
+    private volatile int mSensorPeriodUs;
+
+    private long mRangeChanges;
+
+    /**
+     * Constructs a FrameRateGovernor with the default parameters.
+     *
+     * @param rangeLowers The lower bounds of the camera's available target frame rate ranges.
+     * @param rangeUppers The upper bounds of the ranges.
+     */
+    FrameRateGovernor(int[] rangeLowers, int[] rangeUppers) {
+        this(rangeLowers, rangeUppers, DEFAULT_HEADROOM, DEFAULT_IDLE_FPS, DEFAULT_IDLE_DELAY_NS, DEFAULT_MIN_CHANGE_INTERVAL_NS, DEFAULT_ACTIVE_SENSOR_PERIOD_US, DEFAULT_IDLE_SENSOR_PERIOD_US);
+    }
+
+    /**
+     * Constructs a FrameRateGovernor.
+     *
+     * @param rangeLowers The lower bounds of the camera's available target frame rate ranges.
+     * @param rangeUppers The upper bounds of the ranges.
+     * @param headroom The factor by which the requested rate exceeds the tracking rate.
+     * @param idleFps The rate requested after detecting without a hit for the idle delay.
+     * @param idleDelayNs How long detection runs without a hit before the idle rate is used.
+     * @param minChangeIntervalNs The minimum time between changes that follow the tracking rate.
+     *                            Changes of state are applied at once.
+     * @param activeSensorPeriodUs The rotation sensor period while markerless tracking.
+     * @param idleSensorPeriodUs The rotation sensor period in every other state.
+     */
+    FrameRateGovernor(int[] rangeLowers, int[] rangeUppers, float headroom, int idleFps, long idleDelayNs, long minChangeIntervalNs, int activeSensorPeriodUs, int idleSensorPeriodUs) {
+
+        if (rangeLowers.length != rangeUppers.length || rangeLowers.length == 0) {
+            throw new IllegalArgumentException("Frame rate ranges must have matching, non-empty bounds.");
+        }
+
+        if (!(headroom >= 1)) {
+            throw new IllegalArgumentException("Frame rate headroom must be at least 1.");
+        }
+
+        if (idleFps <= 0 || idleDelayNs < 0 || minChangeIntervalNs < 0) {
+            throw new IllegalArgumentException("Idle rate must be positive and delays cannot be negative.");
+        }
+
+        if (activeSensorPeriodUs <= 0 || idleSensorPeriodUs <= 0) {
+            throw new IllegalArgumentException("Sensor periods must be positive.");
+        }
+
+        mRangeLowers = rangeLowers.clone();
+        mRangeUppers = rangeUppers.clone();
+        mHeadroom = headroom;
+        mIdleFps = idleFps;
+        mIdleDelayNs = idleDelayNs;
+        mMinChangeIntervalNs = minChangeIntervalNs;
+        mActiveSensorPeriodUs = activeSensorPeriodUs;
+        mIdleSensorPeriodUs = idleSensorPeriodUs;
+
+        // Start at full rate until the tracking rate and state are known.
+        mRangeIndex = chooseRange(Integer.MAX_VALUE);
+        mSensorPeriodUs = activeSensorPeriodUs;
+    }
+
+    /**
+     * Reports the time taken by the native tracker on a frame.
+     *
+     * @param durationNs The tracking time in nanoseconds.
+     */
+    void onTrackingTime(long durationNs) {
+
+        if (mTrackingTimeNs == 0) {
+            mTrackingTimeNs = durationNs;
+        }
+        else {
+            mTrackingTimeNs += TRACKING_TIME_WEIGHT * (durationNs - mTrackingTimeNs);
+        }
+    }
+
+    /**
+     * Reports a frame that has been processed, and updates the range and sensor period.
+     *
+     * @param timestamp The capture timestamp of the frame in nanoseconds.
+     * @param state The tracker state after the frame was processed.
+     * @return True if the range or the sensor period changed.
+     */
+    boolean onFrame(long timestamp, TrackerState state) {
+
+        boolean changed = false;
+
+        int sensorPeriodUs = state == TrackerState.ARBITRACK ? mActiveSensorPeriodUs : mIdleSensorPeriodUs;
+
+        if (sensorPeriodUs != mSensorPeriodUs) {
+            mSensorPeriodUs = sensorPeriodUs;
+            changed = true;
+        }
+
+        if (state != TrackerState.IMAGE_DETECTION) {
+            mDetectionStart = -1;
+        }
+        else if (mDetectionStart < 0) {
+            mDetectionStart = timestamp;
+        }
+
+        boolean idle = mDetectionStart >= 0 && timestamp - mDetectionStart >= mIdleDelayNs;
+
+        // Entering or leaving idle is applied at once. Otherwise the range only follows the
+        // tracking rate at intervals, so that noise in the tracking time cannot keep changing it.
+        boolean stateChanged = idle != mIdle;
+
+        if (!stateChanged && timestamp - mLastChangeTimestamp < mMinChangeIntervalNs) {
+            return changed;
+        }
+
+        mIdle = idle;
+
+        int targetFps = Integer.MAX_VALUE;
+
+        if (mTrackingTimeNs > 0) {
+            targetFps = (int) Math.ceil(1e9f / mTrackingTimeNs * mHeadroom);
+        }
+
+        if (idle) {
+            targetFps = Math.min(targetFps, mIdleFps);
+        }
+
+        int rangeIndex = chooseRange(targetFps);
+
+        if (rangeIndex != mRangeIndex) {
+
+            mRangeIndex = rangeIndex;
+            mLastChangeTimestamp = timestamp;
+            mRangeChanges++;
+
+            changed = true;
+        }
+        else if (stateChanged) {
+            mLastChangeTimestamp = timestamp;
+        }
+
+        return changed;
+    }
+
+    /**
+     * Gets the lower bound of the chosen target frame rate range.
+     *
+     * @return The lower bound in frames per second.
+     */
+    int getRangeLower() {
+        return mRangeLowers[mRangeIndex];
+    }
+
+    /**
+     * Gets the upper bound of the chosen target frame rate range.
+     *
+     * @return The upper bound in frames per second.
+     */
+    int getRangeUpper() {
+        return mRangeUppers[mRangeIndex];
+    }
+
+    /**
+     * Gets the index of the chosen range in the available ranges.
+     *
+     * @return The index of the range.
+     */
+    int getRangeIndex() {
+        return mRangeIndex;
+    }
+
+    /**
+     * Gets the chosen rotation sensor period.
+     *
+     * @return The period in microseconds.
+     */
+    int getSensorPeriodUs() {
+        return mSensorPeriodUs;
+    }
+
+    /**
+     * Gets whether the idle rate is in use.
+     *
+     * @return True after detecting without a hit for the idle delay.
+     */
+    boolean isIdle() {
+        return mIdle;
+    }
+
+    /**
+     * Gets the number of times the chosen range has changed.
+     *
+     * @return The range change count.
+     */
+    long getRangeChanges() {
+        return mRangeChanges;
+    }
+
+    /**
+     * Gets the range with the lowest upper bound that reaches a target rate, preferring the
+     * highest lower bound for a steady rate, or the fastest range if none reaches it.
+     */
+    private int chooseRange(int targetFps) {
+
+        int best = -1;
+        int fastest = 0;
+
+        for (int i = 0; i < mRangeUppers.length; i++) {
+
+            if (mRangeUppers[i] > mRangeUppers[fastest] || (mRangeUppers[i] == mRangeUppers[fastest] && mRangeLowers[i] > mRangeLowers[fastest])) {
+                fastest = i;
+            }
+
+            if (mRangeUppers[i] < targetFps) {
+                continue;
+            }
+
+            if (best < 0 || mRangeUppers[i] < mRangeUppers[best] || (mRangeUppers[i] == mRangeUppers[best] && mRangeLowers[i] > mRangeLowers[best])) {
+                best = i;
+            }
+        }
+
+        return best >= 0 ? best : fastest;
+    }
+}
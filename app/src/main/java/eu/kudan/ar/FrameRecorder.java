@@ -0,0 +1,241 @@
+package eu.kudan.ar;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records the luma frames and device orientations of a live session to a file that a
+ * ReplayFrameSource can play back.
+ *
+ * A recording starts with a header followed by records in the order they were captured. Each
+ * frame record holds the frame's tightly packed luma rows, so a replayed frame can be read in place
+ * from a memory-mapped file. All values are big-endian.
+ *
+ * <pre>
+ * Header:      int MAGIC, int VERSION, int flags, int reserved
+ * Frame:       int RECORD_FRAME, long timestamp, int width, int height, byte[width * height] luma
+ * Orientation: int RECORD_ORIENTATION, long timestamp, float w, float x, float y, float z
+ * </pre>
+ *
+ * Frames and orientations may be written from different threads.
+ */
+class FrameRecorder {
+
+    /**
+     * Layout of the recording header.
+     */
+    static final int MAGIC = 0x4B465251;
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 16;
+
+    /**
+     * Header flag set when frame timestamps share the clock of orientation timestamps.
+     */
+    static final int FLAG_TIMESTAMPS_ALIGNED = 1;
+
+    /**
+     * Record types and the length of each record before any pixel data.
+     */
+    static final int RECORD_FRAME = 1;
+    static final int RECORD_ORIENTATION = 2;
+    static final int FRAME_HEADER_BYTES = 20;
+    static final int ORIENTATION_BYTES = 28;
+
+    /**
+     * Orientation records are gathered in a buffer of this size and written with the next frame.
+     */
+    private static final int STAGING_BYTES = 4096;
+
+    private final FileOutputStream mOutput;
+    private final FileChannel mChannel;
+
+    /**
+     * Buffer holding records that have not been written yet.
+     */
+    private final ByteBuffer mStaging = ByteBuffer.allocateDirect(STAGING_BYTES);
+
+    private volatile long mFrameCount;
+    private volatile long mBytesWritten;
+
+    private boolean mClosed;
+
+    /**
+     * Constructs a FrameRecorder and writes the header of a new recording.
+     *
+     * @param file The file to record to. Any existing file is replaced.
+     * @param timestampsAligned Whether frame timestamps share the clock of orientation timestamps.
+     * @throws IOException If the file cannot be written.
+     */
+    FrameRecorder(File file, boolean timestampsAligned) throws IOException {
+
+        mOutput = new FileOutputStream(file);
+        mChannel = mOutput.getChannel();
+
+        mStaging.putInt(MAGIC);
+        mStaging.putInt(VERSION);
+        mStaging.putInt(timestampsAligned ? FLAG_TIMESTAMPS_ALIGNED : 0);
+        mStaging.putInt(0);
+
+        try {
+            flush();
+        }
+        catch (IOException e) {
+            mOutput.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Records a luma frame.
+     *
+     * The position and limit of the supplied data are left unchanged.
+     *
+     * @param data Buffer containing the luma plane with a pixel stride of one, starting at its first pixel.
+     * @param width The width of the frame in pixels.
+     * @param height The height of the frame in pixels.
+     * @param rowStride Distance in bytes between the starts of consecutive rows of the data.
+     * @param timestamp The capture timestamp of the frame in nanoseconds.
+     * @throws IOException If the frame cannot be written.
+     */
+    synchronized void writeFrame(ByteBuffer data, int width, int height, int rowStride, long timestamp) throws IOException {
+
+        checkOpen();
+
+        if (mStaging.remaining() < FRAME_HEADER_BYTES) {
+            flush();
+        }
+
+        mStaging.putInt(RECORD_FRAME);
+        mStaging.putLong(timestamp);
+        mStaging.putInt(width);
+        mStaging.putInt(height);
+
+        flush();
+
+        int start = data.position();
+        int limit = data.limit();
+
+        try {
+            if (rowStride == width) {
+
+                // Tightly packed frames are written in one pass.
+                data.limit(start + width * height);
+                write(data);
+            }
+            else {
+
+                // Padded rows are written one at a time without their padding.
+                for (int row = 0; row < height; row++) {
+
+                    int rowStart = start + row * rowStride;
+
+                    data.limit(rowStart + width);
+                    data.position(rowStart);
+
+                    write(data);
+                }
+            }
+        }
+        finally {
+            data.limit(limit);
+            data.position(start);
+        }
+
+        mFrameCount++;
+    }
+
+    /**
+     * Records a device orientation sample.
+     *
+     * @param timestamp The timestamp of the sample in nanoseconds.
+     * @param w The w component of the orientation quaternion.
+     * @param x The x component of the orientation quaternion.
+     * @param y The y component of the orientation quaternion.
+     * @param z The z component of the orientation quaternion.
+     * @throws IOException If the sample cannot be written.
+     */
+    synchronized void writeOrientation(long timestamp, float w, float x, float y, float z) throws IOException {
+
+        checkOpen();
+
+        if (mStaging.remaining() < ORIENTATION_BYTES) {
+            flush();
+        }
+
+        mStaging.putInt(RECORD_ORIENTATION);
+        mStaging.putLong(timestamp);
+        mStaging.putFloat(w);
+        mStaging.putFloat(x);
+        mStaging.putFloat(y);
+        mStaging.putFloat(z);
+    }
+
+    /**
+     * Writes any pending records and closes the recording.
+     *
+     * @throws IOException If the pending records cannot be written.
+     */
+    synchronized void close() throws IOException {
+
+        if (mClosed) {
+            return;
+        }
+
+        mClosed = true;
+
+        try {
+            flush();
+        }
+        finally {
+            mOutput.close();
+        }
+    }
+
+    /**
+     * Gets the number of frames recorded.
+     *
+     * @return The number of frames written.
+     */
+    long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Gets the size of the recording so far.
+     *
+     * @return The number of bytes written.
+     */
+    long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    private void checkOpen() throws IOException {
+
+        if (mClosed) {
+            throw new IOException("Frame recording has been closed.");
+        }
+    }
+
+    /**
+     * Writes the staged records.
+     */
+    private void flush() throws IOException {
+
+        mStaging.flip();
+        write(mStaging);
+        mStaging.clear();
+    }
+
+    /**
+     * Writes the remaining bytes of a buffer.
+     */
+    private void write(ByteBuffer buffer) throws IOException {
+
+        while (buffer.hasRemaining()) {
+            mBytesWritten += mChannel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package eu.kudan.ar;
+
+import java.util.ArrayDeque;
+
+/**
+ * A bounded ring of pre-allocated LumaFrames connecting the capture, tracking and render stages of
+ * the camera frame pipeline.
+ *
+ * Frames move from the free pool to the capture stage, are handed off to the tracking stage and
+ * then to the render stage before being released back to the free pool. Each hand-off is guarded
+ * by the ring's monitor only for as long as it takes to move a reference, so the stages run on
+ * their own threads and tracking of one frame overlaps rendering of the previous one.
+ *
+ * When a stage falls behind, frames are dropped according to the ring's DropPolicy and counted
+ * against the stage that lost them.
+ */
+class FrameRing {
+
+    /**
+     * The default number of frames in the ring: one being captured, one waiting for tracking,
+     * one being tracked and one being rendered.
+     */
+    static final int DEFAULT_CAPACITY = 4;
+
+    /**
+     * Policies for choosing which frame to drop when a stage cannot keep up.
+     */
+    enum DropPolicy {
+
+        /**
+         * Latest wins. A frame waiting for a stage is replaced by a newer frame, and capture takes
+         * over the oldest frame waiting for tracking if no frame is free.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Frames waiting for a stage are queued in order, and new camera frames are dropped while
+         * no frame is free.
+         */
+        DROP_NEWEST
+    }
+
+    /**
+     * Pipeline stages that frames can be dropped at.
+     */
+    enum Stage {
+
+        /**
+         * A camera frame was dropped because no ring frame was available to capture it into.
+         */
+        CAPTURE,
+
+        /**
+         * A captured frame was dropped before it was tracked.
+         */
+        TRACKING,
+
+        /**
+         * A tracked frame was dropped before it was rendered.
+         */
+        RENDER
+    }
+
+    private final int mCapacity;
+
+    private final DropPolicy mDropPolicy;
+
+    /**
+     * Frames that are available for capture, and frames waiting to be tracked and rendered.
+     */
+    private final ArrayDeque<LumaFrame> mFreeFrames;
+    private final ArrayDeque<LumaFrame> mTrackingQueue;
+    private final ArrayDeque<LumaFrame> mRenderQueue;
+
+    /**
+     * Number of frames dropped at each Stage, indexed by ordinal.
+     */
+    private final long[] mDroppedFrames = new long[Stage.values().length];
+
+    /**
+     * Constructs a FrameRing and pre-allocates all of its frames.
+     *
+     * @param capacity The number of frames in the ring. Must be at least 3 so that every stage can
+     *                 hold a frame at the same time.
+     * @param frameBytes The initial capacity in bytes of the luma buffer of each frame.
+     * @param dropPolicy The policy used to drop frames when a stage cannot keep up.
+     */
+    FrameRing(int capacity, int frameBytes, DropPolicy dropPolicy) {
+
+        if (capacity < 3) {
+            throw new IllegalArgumentException("Frame ring capacity must be at least 3.");
+        }
+
+        if (dropPolicy == null) {
+            throw new IllegalArgumentException("Frame ring drop policy cannot be null.");
+        }
+
+        mCapacity = capacity;
+        mDropPolicy = dropPolicy;
+
+        mFreeFrames = new ArrayDeque<>(capacity);
+        mTrackingQueue = new ArrayDeque<>(capacity);
+        mRenderQueue = new ArrayDeque<>(capacity);
+
+        for (int i = 0; i < capacity; i++) {
+            mFreeFrames.add(new LumaFrame(frameBytes));
+        }
+    }
+
+    /**
+     * Gets the number of frames in the ring.
+     *
+     * @return The ring capacity.
+     */
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Gets the policy used to drop frames when a stage cannot keep up.
+     *
+     * @return The drop policy of the ring.
+     */
+    DropPolicy getDropPolicy() {
+        return mDropPolicy;
+    }
+
+    /**
+     * Takes a frame for the capture stage to write a new camera frame into.
+     *
+     * @return A frame owned by the caller until it is published, or null if the camera frame
+     * should be dropped.
+     */
+    synchronized LumaFrame acquireForCapture() {
+
+        LumaFrame frame = mFreeFrames.poll();
+
+        if (frame == null && mDropPolicy == DropPolicy.DROP_OLDEST) {
+
+            // Reuse the stalest frame that has not been tracked yet.
+            frame = mTrackingQueue.poll();
+
+            if (frame != null) {
+                mDroppedFrames[Stage.TRACKING.ordinal()]++;
+            }
+        }
+
+        if (frame == null) {
+            mDroppedFrames[Stage.CAPTURE.ordinal()]++;
+        }
+
+        return frame;
+    }
+
+    /**
+     * Takes a frame for the capture stage to write a new frame into, waiting for one to be
+     * released if none is free. No frame is dropped, so every frame reaches the later stages.
+     *
+     * This is used by frame sources that are not real time, such as replayed recordings, to hold
+     * back delivery until the pipeline catches up.
+     *
+     * @param timeoutMillis The longest time to wait for a free frame in milliseconds.
+     * @return A frame owned by the caller until it is published, or null if none became free in time.
+     * @throws InterruptedException If the calling thread is interrupted while waiting.
+     */
+    synchronized LumaFrame awaitForCapture(long timeoutMillis) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        while (mFreeFrames.isEmpty()) {
+
+            long remaining = deadline - System.currentTimeMillis();
+
+            if (remaining <= 0) {
+                return null;
+            }
+
+            wait(remaining);
+        }
+
+        return mFreeFrames.poll();
+    }
+
+    /**
+     * Hands a captured frame off to the tracking stage.
+     *
+     * @param frame A frame previously returned by acquireForCapture().
+     */
+    synchronized void publishForTracking(LumaFrame frame) {
+        publish(frame, mTrackingQueue, Stage.TRACKING);
+    }
+
+    /**
+     * Takes the next frame waiting to be tracked.
+     *
+     * @return A frame owned by the caller until it is published or released, or null if none is
+     * waiting.
+     */
+    synchronized LumaFrame takeForTracking() {
+        return mTrackingQueue.poll();
+    }
+
+    /**
+     * Hands a tracked frame off to the render stage.
+     *
+     * @param frame A frame previously returned by takeForTracking().
+     */
+    synchronized void publishForRender(LumaFrame frame) {
+        publish(frame, mRenderQueue, Stage.RENDER);
+    }
+
+    /**
+     * Takes the next frame waiting to be rendered.
+     *
+     * @return A frame owned by the caller until it is released, or null if none is waiting.
+     */
+    synchronized LumaFrame takeForRender() {
+        return mRenderQueue.poll();
+    }
+
+    /**
+     * Returns a frame to the free pool once a stage has finished with it.
+     *
+     * @param frame A frame owned by the caller.
+     */
+    synchronized void release(LumaFrame frame) {
+
+        mFreeFrames.add(frame);
+
+        // Wake a capture stage waiting for a free frame.
+        notifyAll();
+    }
+
+    /**
+     * Returns every queued frame to the free pool.
+     *
+     * Must only be called while no stage holds a frame, such as when the stage threads are stopped.
+     */
+    synchronized void reset() {
+
+        while (!mTrackingQueue.isEmpty()) {
+            mFreeFrames.add(mTrackingQueue.poll());
+        }
+
+        while (!mRenderQueue.isEmpty()) {
+            mFreeFrames.add(mRenderQueue.poll());
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * Gets the number of frames that have been dropped at a stage.
+     *
+     * @param stage The stage to get the drop count of.
+     * @return The number of frames dropped at the stage.
+     */
+    synchronized long getDroppedFrames(Stage stage) {
+        return mDroppedFrames[stage.ordinal()];
+    }
+
+    /**
+     * Queues a frame for a stage, superseding any waiting frames if frames are dropped oldest first.
+     */
+    private void publish(LumaFrame frame, ArrayDeque<LumaFrame> queue, Stage stage) {
+
+        if (mDropPolicy == DropPolicy.DROP_OLDEST) {
+
+            while (!queue.isEmpty()) {
+                mFreeFrames.add(queue.poll());
+                mDroppedFrames[stage.ordinal()]++;
+            }
+        }
+
+        queue.add(frame);
+    }
+}
@@ -0,0 +1,66 @@
+package eu.kudan.ar;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A source of luma frames and device orientations that feeds the capture stage of the frame
+ * pipeline.
+ *
+ * Frames may come from the live camera or from a recorded sequence, so that a session can be
+ * reproduced exactly and its tracking throughput measured away from the device it was recorded on.
+ */
+interface FrameSource {
+
+    /**
+     * Receives the frames and orientations delivered by a FrameSource.
+     */
+    interface Sink {
+
+        /**
+         * Called on the source's delivery thread for each frame, in timestamp order.
+         *
+         * The plane is only valid for the duration of the call.
+         *
+         * @param plane Buffer containing the luma plane, starting at its first pixel.
+         * @param width The width of the frame in pixels.
+         * @param height The height of the frame in pixels.
+         * @param rowStride Distance in bytes between the starts of consecutive rows of the plane.
+         * @param pixelStride Distance in bytes between consecutive pixels of a row of the plane.
+         * @param timestamp The capture timestamp of the frame in nanoseconds.
+         * @return Whether the frame was captured. Frames that are not captured are dropped by live
+         *         sources and delivered again by sources that are not live.
+         */
+        boolean onFrame(ByteBuffer plane, int width, int height, int rowStride, int pixelStride, long timestamp);
+
+        /**
+         * Called for each device orientation sample, in timestamp order.
+         *
+         * @param timestamp The timestamp of the sample in nanoseconds.
+         * @param w The w component of the orientation quaternion.
+         * @param x The x component of the orientation quaternion.
+         * @param y The y component of the orientation quaternion.
+         * @param z The z component of the orientation quaternion.
+         */
+        void onOrientation(long timestamp, float w, float x, float y, float z);
+    }
+
+    /**
+     * Starts delivering frames to a sink.
+     *
+     * @param sink The sink that receives frames until the source is stopped.
+     */
+    void start(Sink sink);
+
+    /**
+     * Stops delivering frames. A frame already being delivered may still reach the sink.
+     */
+    void stop();
+
+    /**
+     * Gets whether frames arrive in real time, in which case frames the pipeline cannot take are
+     * dropped. Frames of sources that are not live are held back until the pipeline can take them.
+     *
+     * @return True for live sources such as the camera.
+     */
+    boolean isLive();
+}
@@ -0,0 +1,177 @@
+package eu.kudan.ar;
+
+/**
+ * A fixed-bucket histogram of durations that records without allocating and answers percentile
+ * queries with a bounded relative error.
+ *
+ * Durations are recorded in microseconds into log-linear buckets: each power of two is split into
+ * SUB_BUCKETS linear buckets, so every bucket is at most 1/SUB_BUCKETS of its value wide, and the
+ * histogram covers one microsecond to over an hour in a few hundred counters. Longer durations
+ * are counted in the last bucket.
+ *
+ * Values are recorded by one thread at a time. Queries may run on any thread and see a recent,
+ * though not necessarily consistent, view of the counts.
+ */
+class LatencyHistogram {
+
+    /**
+     * Linear buckets per power of two. Must be a power of two.
+     */
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The largest power of two of microseconds covered before values are clamped.
+     */
+    private static final int MAX_EXPONENT = 32;
+
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final long[] mCounts = new long[BUCKET_COUNT];
+
+    private volatile long mTotalCount;
+    private volatile long mMaxNs;
+
+    /**
+     * Records a duration.
+     *
+     * @param durationNs The duration in nanoseconds. Negative durations are ignored.
+     */
+    void record(long durationNs) {
+
+        if (durationNs < 0) {
+            return;
+        }
+
+        mCounts[bucketOf(durationNs / 1000)]++;
+
+        if (durationNs > mMaxNs) {
+            mMaxNs = durationNs;
+        }
+
+        mTotalCount++;
+    }
+
+    /**
+     * Clears every recorded duration.
+     */
+    void reset() {
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts[i] = 0;
+        }
+
+        mMaxNs = 0;
+        mTotalCount = 0;
+    }
+
+    /**
+     * Gets the number of recorded durations.
+     *
+     * @return The total count.
+     */
+    long getCount() {
+        return mTotalCount;
+    }
+
+    /**
+     * Gets the longest recorded duration.
+     *
+     * @return The maximum in nanoseconds, or 0 if nothing has been recorded.
+     */
+    long getMaxNs() {
+        return mMaxNs;
+    }
+
+    /**
+     * Gets the duration below which a given fraction of recorded durations fall.
+     *
+     * @param fraction The percentile as a fraction, such as 0.99 for p99.
+     * @return The upper bound of the bucket holding the percentile, or the maximum if lower, in
+     *         nanoseconds, or 0 if nothing has been recorded.
+     */
+    long getPercentileNs(double fraction) {
+
+        if (fraction < 0.0 || fraction > 1.0) {
+            throw new IllegalArgumentException("Percentile fraction must be in [0, 1].");
+        }
+
+        long total = 0;
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            total += mCounts[i];
+        }
+
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+
+            seen += mCounts[i];
+
+            if (seen >= rank) {
+
+                // No recorded duration exceeds the maximum, which also bounds the clamped last bucket.
+                return Math.min(upperBoundOf(i) * 1000, mMaxNs);
+            }
+        }
+
+        return mMaxNs;
+    }
+
+    /**
+     * Adds the counts of another histogram to this one.
+     *
+     * @param other The histogram to add.
+     */
+    void add(LatencyHistogram other) {
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts[i] += other.mCounts[i];
+        }
+
+        mMaxNs = Math.max(mMaxNs, other.mMaxNs);
+        mTotalCount += other.mTotalCount;
+    }
+
+    /**
+     * Gets the bucket a duration in microseconds is counted in.
+     */
+    private static int bucketOf(long micros) {
+
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Gets the exclusive upper bound in microseconds of the durations counted in a bucket.
+     */
+    private static long upperBoundOf(int bucket) {
+
+        if (bucket < SUB_BUCKETS) {
+            return bucket + 1;
+        }
+
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = bucket % SUB_BUCKETS;
+
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+
+        return (1L << exponent) + (subBucket + 1) * width;
+    }
+}
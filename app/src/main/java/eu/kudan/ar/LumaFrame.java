@@ -0,0 +1,109 @@
+package eu.kudan.ar;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A pre-allocated slot of a FrameRing holding the luma data of one camera frame and the tracking
+ * results computed for it as the frame moves through the capture, tracking and render stages.
+ */
+class LumaFrame {
+
+    /**
+     * Direct buffer holding the luma data of the frame. Rows are rowStride bytes apart.
+     */
+    private ByteBuffer mData;
+
+    /**
+     * Buffer that the frame is copied into when a consumer requires a different row stride.
+     *
+     * Only allocated the first time it is needed.
+     */
+    private ByteBuffer mRestrideData;
+
+    /**
+     * Layout of the luma data held in the frame.
+     */
+    int width;
+    int height;
+    int rowStride;
+
+    /**
+     * Capture timestamp of the frame in nanoseconds, as reported by Image.getTimestamp().
+     */
+    long timestamp;
+
+    /**
+     * The tracking state after the frame has been processed by the tracking stage.
+     */
+    TrackerState trackerState;
+
+    /**
+     * Projected corner coordinates and pose of the tracked primitive for the frame.
+     */
+    final TrackingResult trackingResult = new TrackingResult();
+
+    /**
+     * Constructs a LumaFrame with a buffer of the given initial capacity.
+     *
+     * @param capacity The initial capacity of the luma buffer in bytes.
+     */
+    LumaFrame(int capacity) {
+        mData = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Gets the buffer holding the luma data of the frame, positioned at its first pixel.
+     *
+     * @return Direct buffer containing the luma data.
+     */
+    ByteBuffer getData() {
+        return mData;
+    }
+
+    /**
+     * Ensures that the luma buffer can hold at least the given number of bytes, reallocating it
+     * only if it is too small. Existing contents are not preserved.
+     *
+     * @param capacity The required capacity in bytes.
+     * @return Buffer with at least the required capacity, cleared ready for writing.
+     */
+    ByteBuffer ensureCapacity(int capacity) {
+
+        if (mData.capacity() < capacity) {
+            mData = ByteBuffer.allocateDirect(capacity);
+        }
+
+        mData.clear();
+
+        return mData;
+    }
+
+    /**
+     * Gets the luma data of the frame laid out with a specific row stride, copying it only if the
+     * row stride of the frame differs.
+     *
+     * This is used to upload frames into bitmaps, which have their own fixed row length.
+     *
+     * @param requiredRowStride The row stride required by the consumer.
+     * @return Buffer holding the luma data of the frame with the requested row stride.
+     */
+    ByteBuffer getDataWithRowStride(int requiredRowStride) {
+
+        if (requiredRowStride < width) {
+            throw new IllegalArgumentException("Row stride " + requiredRowStride + " is smaller than the frame width " + width + ".");
+        }
+
+        // Reuse the frame as-is unless its final row omits the padding the consumer expects.
+        if (requiredRowStride == rowStride && mData.remaining() >= requiredRowStride * height) {
+            return mData;
+        }
+
+        if (mRestrideData == null || mRestrideData.capacity() < requiredRowStride * height) {
+            mRestrideData = ByteBuffer.allocateDirect(requiredRowStride * height);
+        }
+
+        LumaIngestor.copyRows(mData, rowStride, 1, mRestrideData, requiredRowStride, width, height);
+
+        return mRestrideData;
+    }
+}
@@ -0,0 +1,180 @@
+package eu.kudan.ar;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Prepares the luma plane of a camera frame for the native trackers.
+ *
+ * Camera planes are frequently padded so that each row starts on an aligned address, meaning the
+ * row stride is larger than the frame width. The trackers accept a padding value for each row, so
+ * a plane with a pixel stride of one is moved into its LumaFrame with a single bulk copy that keeps
+ * its real row stride. Only layouts the trackers cannot read, such as interleaved pixels, are
+ * repacked pixel by pixel into a tightly packed frame.
+ */
+class LumaIngestor {
+
+    /**
+     * Counters of frames whose layout was passed through and frames that had to be repacked.
+     */
+    private volatile long mPassedThroughCount;
+    private volatile long mRepackedCount;
+
+    /**
+     * Ingests a luma plane into a frame, keeping its row stride when the trackers can consume its
+     * layout and repacking it otherwise.
+     *
+     * The position and limit of the supplied plane are left unchanged.
+     *
+     * @param plane Buffer containing the luma plane, starting at its first pixel.
+     * @param width The width of the frame in pixels.
+     * @param height The height of the frame in pixels.
+     * @param rowStride Distance in bytes between the starts of consecutive rows of the plane.
+     * @param pixelStride Distance in bytes between consecutive pixels of a row of the plane.
+     * @param frame The frame that receives the luma data and its layout.
+     * @return Whether the plane had to be repacked.
+     */
+    boolean ingest(ByteBuffer plane, int width, int height, int rowStride, int pixelStride, LumaFrame frame) {
+
+        int required = checkLayout(plane, width, height, rowStride, pixelStride);
+
+        frame.width = width;
+        frame.height = height;
+
+        if (pixelStride == 1) {
+
+            // Copy the rows and their padding in one pass. The trackers skip the padding.
+            ByteBuffer data = frame.ensureCapacity(required);
+
+            int start = plane.position();
+            int limit = plane.limit();
+
+            plane.limit(start + required);
+            data.put(plane);
+            data.flip();
+
+            plane.limit(limit);
+            plane.position(start);
+
+            frame.rowStride = rowStride;
+
+            mPassedThroughCount++;
+
+            return false;
+        }
+        else {
+
+            ByteBuffer data = frame.ensureCapacity(width * height);
+
+            copyRows(plane, rowStride, pixelStride, data, width, width, height);
+
+            frame.rowStride = width;
+
+            mRepackedCount++;
+
+            return true;
+        }
+    }
+
+    /**
+     * Gets the number of frames whose layout was passed to the trackers unchanged.
+     *
+     * @return The number of frames that were not repacked.
+     */
+    long getPassedThroughCount() {
+        return mPassedThroughCount;
+    }
+
+    /**
+     * Gets the number of frames that had to be repacked before tracking.
+     *
+     * @return The number of repacked frames.
+     */
+    long getRepackedCount() {
+        return mRepackedCount;
+    }
+
+    /**
+     * Validates that a plane holds enough data for its declared layout.
+     *
+     * @return The number of bytes spanned by the plane's pixels.
+     */
+    private static int checkLayout(ByteBuffer plane, int width, int height, int rowStride, int pixelStride) {
+
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Frame dimensions must be positive.");
+        }
+
+        if (pixelStride < 1) {
+            throw new IllegalArgumentException("Pixel stride must be at least 1.");
+        }
+
+        if (rowStride < (width - 1) * pixelStride + 1) {
+            throw new IllegalArgumentException("Row stride " + rowStride + " is too small for " + width + " pixels with pixel stride " + pixelStride + ".");
+        }
+
+        // The final row of a plane is not required to include its padding.
+        int required = rowStride * (height - 1) + (width - 1) * pixelStride + 1;
+
+        if (plane.remaining() < required) {
+            throw new IllegalArgumentException("Plane holds " + plane.remaining() + " bytes but its layout requires " + required + ".");
+        }
+
+        return required;
+    }
+
+    /**
+     * Copies the pixels of a plane into a destination buffer with a given row stride.
+     *
+     * The position and limit of the source are restored and the destination is rewound to the
+     * first pixel with its limit set to cover every destination row in full.
+     *
+     * @param src The source plane, positioned at its first pixel.
+     * @param srcRowStride Distance in bytes between the starts of consecutive source rows.
+     * @param srcPixelStride Distance in bytes between consecutive source pixels.
+     * @param dst The destination buffer.
+     * @param dstRowStride Distance in bytes between the starts of consecutive destination rows.
+     * @param width The width of the frame in pixels.
+     * @param height The height of the frame in pixels.
+     */
+    static void copyRows(ByteBuffer src, int srcRowStride, int srcPixelStride, ByteBuffer dst, int dstRowStride, int width, int height) {
+
+        int srcStart = src.position();
+        int srcLimit = src.limit();
+
+        dst.clear();
+
+        if (srcPixelStride == 1) {
+
+            // Bulk copy each row, skipping the source padding.
+            for (int row = 0; row < height; row++) {
+
+                int rowStart = srcStart + row * srcRowStride;
+
+                src.limit(rowStart + width);
+                src.position(rowStart);
+
+                dst.position(row * dstRowStride);
+                dst.put(src);
+            }
+
+            src.limit(srcLimit);
+            src.position(srcStart);
+        }
+        else {
+
+            // Interleaved pixels have to be gathered one at a time.
+            for (int row = 0; row < height; row++) {
+
+                int rowStart = srcStart + row * srcRowStride;
+                int dstStart = row * dstRowStride;
+
+                for (int column = 0; column < width; column++) {
+                    dst.put(dstStart + column, src.get(rowStart + column * srcPixelStride));
+                }
+            }
+        }
+
+        dst.position(0);
+        dst.limit(dstRowStride * height);
+    }
+}
@@ -0,0 +1,87 @@
+package eu.kudan.ar;
+
+/**
+ * Hands the most recent device orientation from the sensor thread to the tracking stage without
+ * locks, allocations or torn reads.
+ *
+ * Implemented as a sequence lock. The single writer makes the sequence odd while it updates the
+ * quaternion and even again once it has finished. A reader retries until it sees the same even
+ * sequence before and after copying the quaternion, so it always gets all four components of one
+ * write. Every field is volatile so the sequence checks order the component reads correctly.
+ */
+class OrientationCell {
+
+    private volatile int mSequence;
+
+    /**
+     * The orientation quaternion. Starts as the identity rotation.
+     */
+    private volatile float mW = 1;
+    private volatile float mX;
+    private volatile float mY;
+    private volatile float mZ;
+
+    /**
+     * The number of times a reader had to retry because a write was in progress.
+     */
+    private volatile long mReadRetries;
+
+    /**
+     * Publishes a new orientation. Must only be called from a single writer thread.
+     *
+     * @param w The w component of the orientation quaternion.
+     * @param x The x component of the orientation quaternion.
+     * @param y The y component of the orientation quaternion.
+     * @param z The z component of the orientation quaternion.
+     */
+    void write(float w, float x, float y, float z) {
+
+        int sequence = mSequence;
+
+        // An odd sequence tells readers a write is in progress.
+        mSequence = sequence + 1;
+
+        mW = w;
+        mX = x;
+        mY = y;
+        mZ = z;
+
+        mSequence = sequence + 2;
+    }
+
+    /**
+     * Copies a consistent snapshot of the orientation. Safe to call from any thread.
+     *
+     * @param out Array of at least length 4 that receives the quaternion in the order w, x, y, z.
+     */
+    void read(float[] out) {
+
+        while (true) {
+
+            int before = mSequence;
+
+            if ((before & 1) == 0) {
+
+                out[0] = mW;
+                out[1] = mX;
+                out[2] = mY;
+                out[3] = mZ;
+
+                if (mSequence == before) {
+                    return;
+                }
+            }
+
+            mReadRetries++;
+        }
+    }
+
+    /**
+     * Gets the number of times a read had to be retried because it overlapped a write.
+     *
+     * @return The number of read retries.
+     */
+    long getReadRetries() {
+        return mReadRetries;
+    }
+}
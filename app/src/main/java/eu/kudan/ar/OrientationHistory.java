@@ -0,0 +1,268 @@
+package eu.kudan.ar;
+
+/**
+ * A fixed-capacity ring of timestamped device orientations that estimates the orientation at the
+ * moment a camera frame was captured.
+ *
+ * The rotation sensor and the camera run on unrelated clocks, so the most recent sensor sample is
+ * up to a full sensor period away from a frame's capture time. Sampling the history at the frame
+ * timestamp spherically interpolates between the two sensor samples either side of it. Frames
+ * newer than the latest sample are extrapolated from the last two samples, for no more than a
+ * bounded time so that a stalled sensor cannot produce a runaway rotation.
+ *
+ * Samples are added by the sensor thread and read by the tracking stage. The ring's monitor is
+ * only held to copy a handful of values, and no method allocates.
+ */
+class OrientationHistory {
+
+    /**
+     * The default number of samples kept, covering roughly one second at the sensor rate.
+     */
+    static final int DEFAULT_CAPACITY = 32;
+
+    /**
+     * The default limit on how far past the latest sample the orientation is extrapolated.
+     */
+    static final long DEFAULT_MAX_EXTRAPOLATION_NS = 33000000L;
+
+    private final long mMaxExtrapolationNs;
+
+    /**
+     * Sample timestamps in nanoseconds and quaternions stored four floats per sample in the order
+     * w, x, y, z. mHead is the index of the newest sample.
+     */
+    private final long[] mTimestamps;
+    private final float[] mQuaternions;
+    private int mHead = -1;
+    private int mCount;
+
+    /**
+     * Metrics describing how frame timestamps related to the sensor samples.
+     */
+    private long mSampleCount;
+    private long mInterpolatedCount;
+    private long mExtrapolatedCount;
+    private long mClampedCount;
+    private long mTotalSkewNs;
+    private long mMaxSkewNs;
+    private long mLastSkewNs;
+
+    /**
+     * Constructs an OrientationHistory with the default capacity and extrapolation limit.
+     */
+    OrientationHistory() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_EXTRAPOLATION_NS);
+    }
+
+    /**
+     * Constructs an OrientationHistory.
+     *
+     * @param capacity The number of samples kept. Must be at least 2.
+     * @param maxExtrapolationNs How far past the latest sample the orientation may be extrapolated.
+     */
+    OrientationHistory(int capacity, long maxExtrapolationNs) {
+
+        if (capacity < 2) {
+            throw new IllegalArgumentException("Orientation history capacity must be at least 2.");
+        }
+
+        if (maxExtrapolationNs < 0) {
+            throw new IllegalArgumentException("Maximum extrapolation cannot be negative.");
+        }
+
+        mTimestamps = new long[capacity];
+        mQuaternions = new float[capacity * 4];
+        mMaxExtrapolationNs = maxExtrapolationNs;
+    }
+
+    /**
+     * Records a sensor orientation. Samples must be added in timestamp order.
+     *
+     * @param timestamp The sensor event timestamp in nanoseconds.
+     * @param w The w component of the orientation quaternion.
+     * @param x The x component of the orientation quaternion.
+     * @param y The y component of the orientation quaternion.
+     * @param z The z component of the orientation quaternion.
+     */
+    synchronized void add(long timestamp, float w, float x, float y, float z) {
+
+        // Discard samples that arrive out of order rather than corrupting the ring.
+        if (mCount > 0 && timestamp <= mTimestamps[mHead]) {
+            return;
+        }
+
+        mHead = (mHead + 1) % mTimestamps.length;
+
+        mTimestamps[mHead] = timestamp;
+        mQuaternions[mHead * 4] = w;
+        mQuaternions[mHead * 4 + 1] = x;
+        mQuaternions[mHead * 4 + 2] = y;
+        mQuaternions[mHead * 4 + 3] = z;
+
+        if (mCount < mTimestamps.length) {
+            mCount++;
+        }
+    }
+
+    /**
+     * Removes all samples, such as when the sensor is restarted.
+     */
+    synchronized void clear() {
+        mHead = -1;
+        mCount = 0;
+    }
+
+    /**
+     * Estimates the orientation at a given time.
+     *
+     * @param timestamp The time to estimate the orientation at, on the same clock as the samples.
+     * @param out Array of at least length 4 that receives the quaternion in the order w, x, y, z.
+     * @return False if no samples have been recorded, in which case out is unchanged.
+     */
+    synchronized boolean sample(long timestamp, float[] out) {
+
+        if (mCount == 0) {
+            return false;
+        }
+
+        int capacity = mTimestamps.length;
+        int newest = mHead;
+        long newestTimestamp = mTimestamps[newest];
+
+        recordSkew(timestamp - newestTimestamp);
+
+        if (timestamp >= newestTimestamp) {
+
+            if (mCount == 1) {
+                copy(newest, out);
+                return true;
+            }
+
+            // Extrapolate along the rotation between the last two samples, for a bounded time.
+            int previous = (newest - 1 + capacity) % capacity;
+            long interval = newestTimestamp - mTimestamps[previous];
+            long ahead = timestamp - newestTimestamp;
+
+            if (ahead > mMaxExtrapolationNs) {
+                ahead = mMaxExtrapolationNs;
+                mClampedCount++;
+            }
+
+            Quaternions.slerp(mQuaternions, previous * 4, mQuaternions, newest * 4, 1.0f + (float) ahead / interval, out);
+
+            mExtrapolatedCount++;
+
+            return true;
+        }
+
+        // Walk back from the newest sample to find the pair that brackets the timestamp.
+        int later = newest;
+
+        for (int i = 1; i < mCount; i++) {
+
+            int earlier = (newest - i + capacity) % capacity;
+            long earlierTimestamp = mTimestamps[earlier];
+
+            if (earlierTimestamp <= timestamp) {
+
+                long interval = mTimestamps[later] - earlierTimestamp;
+
+                Quaternions.slerp(mQuaternions, earlier * 4, mQuaternions, later * 4, (float) (timestamp - earlierTimestamp) / interval, out);
+
+                mInterpolatedCount++;
+
+                return true;
+            }
+
+            later = earlier;
+        }
+
+        // The frame is older than every sample, so use the oldest available.
+        copy(later, out);
+
+        mClampedCount++;
+
+        return true;
+    }
+
+    /**
+     * Gets the number of orientations estimated for frames.
+     *
+     * @return The number of successful calls to sample().
+     */
+    synchronized long getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * Gets the number of estimates that interpolated between two sensor samples.
+     *
+     * @return The number of interpolated estimates.
+     */
+    synchronized long getInterpolatedCount() {
+        return mInterpolatedCount;
+    }
+
+    /**
+     * Gets the number of estimates that extrapolated past the latest sensor sample.
+     *
+     * @return The number of extrapolated estimates.
+     */
+    synchronized long getExtrapolatedCount() {
+        return mExtrapolatedCount;
+    }
+
+    /**
+     * Gets the number of estimates limited by the extrapolation bound or the age of the history.
+     *
+     * @return The number of clamped estimates.
+     */
+    synchronized long getClampedCount() {
+        return mClampedCount;
+    }
+
+    /**
+     * Gets the skew between the most recent frame and the latest sensor sample, which is the error
+     * that would have been made by using the latest sample directly.
+     *
+     * @return The frame timestamp minus the latest sample timestamp, in nanoseconds.
+     */
+    synchronized long getLastSkewNs() {
+        return mLastSkewNs;
+    }
+
+    /**
+     * Gets the mean absolute skew corrected between frames and the latest sensor sample.
+     *
+     * @return The mean absolute skew in nanoseconds, or 0 if nothing has been sampled.
+     */
+    synchronized long getMeanSkewNs() {
+        return mSampleCount > 0 ? mTotalSkewNs / mSampleCount : 0;
+    }
+
+    /**
+     * Gets the largest absolute skew corrected between a frame and the latest sensor sample.
+     *
+     * @return The maximum absolute skew in nanoseconds.
+     */
+    synchronized long getMaxSkewNs() {
+        return mMaxSkewNs;
+    }
+
+    private void recordSkew(long skew) {
+
+        long absoluteSkew = Math.abs(skew);
+
+        mSampleCount++;
+        mLastSkewNs = skew;
+        mTotalSkewNs += absoluteSkew;
+
+        if (absoluteSkew > mMaxSkewNs) {
+            mMaxSkewNs = absoluteSkew;
+        }
+    }
+
+    private void copy(int index, float[] out) {
+        System.arraycopy(mQuaternions, index * 4, out, 0, 4);
+    }
+}
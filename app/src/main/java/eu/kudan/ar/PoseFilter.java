@@ -0,0 +1,335 @@
+package eu.kudan.ar;
+
+/**
+ * Smooths the poses in tracking results and predicts them forward to the time they are displayed.
+ *
+ * Each pose is filtered with a One-Euro filter: a low-pass filter whose cutoff rises with the
+ * filtered speed, so a still marker is held steady while fast motion is followed with little lag.
+ * Position and orientation are filtered as two vectors with their own cutoff parameters, the
+ * orientation quaternion being kept in the hemisphere of the previous estimate and renormalised.
+ * The filtered velocity then extrapolates the pose by the prediction horizon, for no more than a
+ * bounded time, to make up for the latency between capturing a frame and displaying it.
+ *
+ * Entries are matched between frames by trackable index, so the image tracker and the markerless
+ * tracker share one filter. A trackable that is missing from a result starts again from its next
+ * measurement. Results are filtered by one thread at a time, and no method allocates.
+ */
+class PoseFilter {
+
+    /**
+     * The default cutoff frequencies in Hz applied to a still pose.
+     */
+    static final float DEFAULT_POSITION_MIN_CUTOFF = 1.0f;
+    static final float DEFAULT_ORIENTATION_MIN_CUTOFF = 1.0f;
+
+    /**
+     * The default increase in cutoff frequency per unit of filtered speed, with positions in
+     * millimetres per second and orientations in quaternion units per second.
+     */
+    static final float DEFAULT_POSITION_BETA = 0.01f;
+    static final float DEFAULT_ORIENTATION_BETA = 2.0f;
+
+    /**
+     * The default cutoff frequency in Hz of the speed estimate.
+     */
+    static final float DEFAULT_DERIVATIVE_CUTOFF = 1.0f;
+
+    /**
+     * The default limit on how far ahead of the measurement a pose is predicted.
+     */
+    static final long DEFAULT_MAX_PREDICTION_NS = 100000000L;
+
+    /**
+     * Position x, y, z followed by orientation w, x, y, z, as laid out in a result entry.
+     */
+    private static final int POSE_LENGTH = 7;
+    private static final int POSITION_LENGTH = 3;
+
+    private volatile float mPositionMinCutoff = DEFAULT_POSITION_MIN_CUTOFF;
+    private volatile float mPositionBeta = DEFAULT_POSITION_BETA;
+    private volatile float mOrientationMinCutoff = DEFAULT_ORIENTATION_MIN_CUTOFF;
+    private volatile float mOrientationBeta = DEFAULT_ORIENTATION_BETA;
+    private volatile float mDerivativeCutoff = DEFAULT_DERIVATIVE_CUTOFF;
+    private volatile long mMaxPredictionNs = DEFAULT_MAX_PREDICTION_NS;
+
+    /**
+     * Filter state of each slot: the trackable index it follows, the timestamp of its last
+     * measurement, its filtered pose, the velocity of the measurements that sets its cutoff, and
+     * the velocity of the filtered pose that predicts it, POSE_LENGTH floats per slot.
+     */
+    private final int[] mKeys = new int[TrackingResult.MAX_ENTRIES];
+    private final long[] mTimestamps = new long[TrackingResult.MAX_ENTRIES];
+    private final boolean[] mActive = new boolean[TrackingResult.MAX_ENTRIES];
+    private final float[] mPoses = new float[TrackingResult.MAX_ENTRIES * POSE_LENGTH];
+    private final float[] mVelocities = new float[TrackingResult.MAX_ENTRIES * POSE_LENGTH];
+    private final float[] mTrends = new float[TrackingResult.MAX_ENTRIES * POSE_LENGTH];
+
+    /**
+     * Sets the smoothing of positions.
+     *
+     * @param minCutoff The cutoff frequency in Hz of a still position. Lower values remove more
+     *                  jitter.
+     * @param beta The increase in cutoff frequency per millimetre per second of speed. Higher
+     *             values reduce lag on fast motion.
+     */
+    void setPositionSmoothing(float minCutoff, float beta) {
+
+        checkSmoothing(minCutoff, beta);
+
+        mPositionMinCutoff = minCutoff;
+        mPositionBeta = beta;
+    }
+
+    /**
+     * Sets the smoothing of orientations.
+     *
+     * @param minCutoff The cutoff frequency in Hz of a still orientation.
+     * @param beta The increase in cutoff frequency per quaternion unit per second of speed.
+     */
+    void setOrientationSmoothing(float minCutoff, float beta) {
+
+        checkSmoothing(minCutoff, beta);
+
+        mOrientationMinCutoff = minCutoff;
+        mOrientationBeta = beta;
+    }
+
+    /**
+     * Sets the cutoff frequency of the speed estimate, which both drives the adaptive cutoff and
+     * extrapolates predicted poses.
+     *
+     * @param cutoff The cutoff frequency in Hz.
+     */
+    void setDerivativeCutoff(float cutoff) {
+
+        if (!(cutoff > 0)) {
+            throw new IllegalArgumentException("Derivative cutoff must be positive.");
+        }
+
+        mDerivativeCutoff = cutoff;
+    }
+
+    /**
+     * Sets the limit on how far ahead of the measurement a pose is predicted.
+     *
+     * @param maxPredictionNs The limit in nanoseconds, or 0 to only smooth poses.
+     */
+    void setMaxPrediction(long maxPredictionNs) {
+
+        if (maxPredictionNs < 0) {
+            throw new IllegalArgumentException("Maximum prediction cannot be negative.");
+        }
+
+        mMaxPredictionNs = maxPredictionNs;
+    }
+
+    /**
+     * Forgets every filtered pose, so the next measurement of each trackable is used as it is.
+     */
+    void reset() {
+
+        for (int slot = 0; slot < TrackingResult.MAX_ENTRIES; slot++) {
+            mActive[slot] = false;
+        }
+    }
+
+    /**
+     * Replaces the poses in a tracking result with filtered poses predicted ahead in time. The
+     * projected points of the result are left unchanged.
+     *
+     * @param result The result to filter in place.
+     * @param timestamp The capture timestamp of the frame the result was tracked on, in nanoseconds.
+     * @param predictionNs How far after the capture timestamp the poses should be predicted for.
+     */
+    void filter(TrackingResult result, long timestamp, long predictionNs) {
+
+        // Results without a pose break the continuity of every pose.
+        if (result.status != TrackingResult.STATUS_TRACKED) {
+            reset();
+            return;
+        }
+
+        float predictionSeconds = Math.min(Math.max(predictionNs, 0), mMaxPredictionNs) / 1e9f;
+
+        // Trackables that were lost start again when they are next found, which also frees their
+        // slots for the trackables found in their place.
+        for (int slot = 0; slot < TrackingResult.MAX_ENTRIES; slot++) {
+
+            if (mActive[slot] && !contains(result, mKeys[slot])) {
+                mActive[slot] = false;
+            }
+        }
+
+        for (int entry = 0; entry < result.count; entry++) {
+
+            int slot = findSlot(result.getTrackableIndex(entry));
+
+            filterEntry(slot, result.data, entry * TrackingResult.ENTRY_LENGTH + TrackingResult.POSITION, timestamp, predictionSeconds);
+        }
+    }
+
+    /**
+     * Gets whether a result holds an entry for a trackable.
+     */
+    private static boolean contains(TrackingResult result, int key) {
+
+        for (int entry = 0; entry < result.count; entry++) {
+
+            if (result.getTrackableIndex(entry) == key) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Gets the slot that follows a trackable, claiming a free slot if there is none.
+     */
+    private int findSlot(int key) {
+
+        int free = -1;
+
+        for (int slot = 0; slot < TrackingResult.MAX_ENTRIES; slot++) {
+
+            if (mActive[slot] && mKeys[slot] == key) {
+                return slot;
+            }
+
+            if (free < 0 && !mActive[slot]) {
+                free = slot;
+            }
+        }
+
+        // Slots of lost trackables have been freed and a result never holds more than MAX_ENTRIES
+        // entries, so a slot is always free.
+        mKeys[free] = key;
+
+        return free;
+    }
+
+    /**
+     * Filters the pose held at an offset of a data array into a slot and writes the predicted pose
+     * back in its place.
+     */
+    private void filterEntry(int slot, float[] data, int offset, long timestamp, float predictionSeconds) {
+
+        int base = slot * POSE_LENGTH;
+
+        long elapsedNs = timestamp - mTimestamps[slot];
+
+        if (!mActive[slot] || elapsedNs <= 0) {
+
+            // Start from the measurement at rest. A repeated timestamp is a repeated measurement.
+            if (!mActive[slot]) {
+
+                System.arraycopy(data, offset, mPoses, base, POSE_LENGTH);
+
+                for (int i = 0; i < POSE_LENGTH; i++) {
+                    mVelocities[base + i] = 0;
+                    mTrends[base + i] = 0;
+                }
+
+                mTimestamps[slot] = timestamp;
+                mActive[slot] = true;
+            }
+        }
+        else {
+
+            float dt = elapsedNs / 1e9f;
+
+            // q and -q are the same rotation, so measure against the hemisphere of the estimate.
+            int orientation = offset + POSITION_LENGTH;
+            int estimate = base + POSITION_LENGTH;
+
+            float dot = 0;
+
+            for (int i = 0; i < 4; i++) {
+                dot += data[orientation + i] * mPoses[estimate + i];
+            }
+
+            float sign = dot < 0 ? -1 : 1;
+
+            filterVector(data, offset, 1, base, POSITION_LENGTH, dt, mPositionMinCutoff, mPositionBeta);
+            filterVector(data, orientation, sign, estimate, 4, dt, mOrientationMinCutoff, mOrientationBeta);
+
+            normalize(mPoses, estimate);
+
+            mTimestamps[slot] = timestamp;
+        }
+
+        // Write the estimate extrapolated to the prediction horizon. The velocity of the filtered
+        // pose is used rather than that of the measurements, so that jitter is not extrapolated.
+        for (int i = 0; i < POSE_LENGTH; i++) {
+            data[offset + i] = mPoses[base + i] + mTrends[base + i] * predictionSeconds;
+        }
+
+        normalize(data, offset + POSITION_LENGTH);
+    }
+
+    /**
+     * Applies one step of the One-Euro filter to a vector.
+     */
+    private void filterVector(float[] data, int offset, float sign, int base, int length, float dt, float minCutoff, float beta) {
+
+        float derivativeAlpha = alpha(mDerivativeCutoff, dt);
+
+        // Smooth the velocity first, as its magnitude sets the cutoff of the value.
+        float speedSquared = 0;
+
+        for (int i = 0; i < length; i++) {
+
+            float velocity = (sign * data[offset + i] - mPoses[base + i]) / dt;
+
+            mVelocities[base + i] += derivativeAlpha * (velocity - mVelocities[base + i]);
+
+            speedSquared += mVelocities[base + i] * mVelocities[base + i];
+        }
+
+        float alpha = alpha(minCutoff + beta * (float) Math.sqrt(speedSquared), dt);
+
+        for (int i = 0; i < length; i++) {
+
+            float change = alpha * (sign * data[offset + i] - mPoses[base + i]);
+
+            mPoses[base + i] += change;
+            mTrends[base + i] += derivativeAlpha * (change / dt - mTrends[base + i]);
+        }
+    }
+
+    /**
+     * Gets the smoothing factor of a first-order low-pass filter with a given cutoff and step.
+     */
+    private static float alpha(float cutoff, float dt) {
+
+        float tau = 1.0f / (2.0f * (float) Math.PI * cutoff);
+
+        return 1.0f / (1.0f + tau / dt);
+    }
+
+    /**
+     * Normalises the quaternion held at an offset of an array in place.
+     */
+    private static void normalize(float[] q, int offset) {
+
+        float length = (float) Math.sqrt(q[offset] * q[offset] + q[offset + 1] * q[offset + 1] + q[offset + 2] * q[offset + 2] + q[offset + 3] * q[offset + 3]);
+
+        if (length > 0) {
+
+            for (int i = 0; i < 4; i++) {
+                q[offset + i] /= length;
+            }
+        }
+    }
+
+    private static void checkSmoothing(float minCutoff, float beta) {
+
+        if (!(minCutoff > 0)) {
+            throw new IllegalArgumentException("Minimum cutoff must be positive.");
+        }
+
+        if (!(beta >= 0)) {
+            throw new IllegalArgumentException("Speed coefficient cannot be negative.");
+        }
+    }
+}
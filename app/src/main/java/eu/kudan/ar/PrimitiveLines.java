@@ -0,0 +1,197 @@
+package eu.kudan.ar;
+
+/**
+ * The line segments that draw the borders and grids of a set of tracked primitives in one batch.
+ *
+ * The corners the segments were built from are recorded, so that callers can check a new set of
+ * corners against them and only rebuild the segments when one has moved. This is the geometry of
+ * Drawing.DisplayList, kept free of the Android graphics classes so that it can be benchmarked on
+ * the JVM. Used by one thread at a time, and no method but the constructor allocates.
+ */
+class PrimitiveLines {
+
+    /**
+     * Four border segments and two grid segments of four floats for each primitive.
+     */
+    static final int LINE_FLOATS_PER_PRIMITIVE = 24;
+
+    /**
+     * The number of values in the corners of each primitive: four corners as x and y pairs.
+     */
+    static final int CORNER_VALUES_PER_PRIMITIVE = 8;
+
+    private final int mCapacity;
+
+    /**
+     * The inputs the segments were last built from.
+     */
+    private final int[] mCorners;
+    private int mCount;
+    private boolean mGrid;
+
+    /**
+     * The segment end points as x0, y0, x1, y1 for each segment.
+     */
+    private final float[] mLines;
+    private int mLineFloats;
+
+    /**
+     * Constructs an empty PrimitiveLines.
+     *
+     * @param capacity The maximum number of primitives held.
+     */
+    PrimitiveLines(int capacity) {
+
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Primitive capacity must be at least 1.");
+        }
+
+        mCapacity = capacity;
+
+        mCorners = new int[capacity * CORNER_VALUES_PER_PRIMITIVE];
+        mLines = new float[capacity * LINE_FLOATS_PER_PRIMITIVE];
+    }
+
+    /**
+     * Gets whether the corners of a set of primitives differ from those the segments were last
+     * built from. The primitive count and type are not compared.
+     *
+     * @param corners Array holding the x and y of four corners for each primitive, in the order
+     *                top-left, top-right, bottom-right, bottom-left.
+     * @param count The number of primitives to compare.
+     * @return True if any corner differs.
+     */
+    boolean cornersDiffer(int[] corners, int count) {
+
+        checkCount(count);
+
+        for (int i = 0; i < count * CORNER_VALUES_PER_PRIMITIVE; i++) {
+
+            if (corners[i] != mCorners[i]) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Records a set of primitives and rebuilds the segments that draw them.
+     *
+     * @param corners Array holding the x and y of four corners for each primitive, in the order
+     *                top-left, top-right, bottom-right, bottom-left.
+     * @param count The number of primitives.
+     * @param grid True to draw grids, with lines joining the midpoints of opposite edges, or false
+     *             to draw only the borders.
+     */
+    void set(int[] corners, int count, boolean grid) {
+
+        checkCount(count);
+
+        System.arraycopy(corners, 0, mCorners, 0, count * CORNER_VALUES_PER_PRIMITIVE);
+
+        mCount = count;
+        mGrid = grid;
+
+        mLineFloats = 0;
+
+        for (int i = 0; i < count; i++) {
+
+            int c = i * CORNER_VALUES_PER_PRIMITIVE;
+
+            // Border, from the top-left corner clockwise.
+            for (int j = 0; j < 4; j++) {
+
+                int next = (j + 1) % 4;
+
+                addLine(mCorners[c + j * 2], mCorners[c + j * 2 + 1], mCorners[c + next * 2], mCorners[c + next * 2 + 1]);
+            }
+
+            // Interior grid joining the midpoints of opposite edges.
+            if (grid) {
+
+                addLine(
+                        (mCorners[c] + mCorners[c + 2]) / 2f, (mCorners[c + 1] + mCorners[c + 3]) / 2f,
+                        (mCorners[c + 6] + mCorners[c + 4]) / 2f, (mCorners[c + 7] + mCorners[c + 5]) / 2f
+                );
+                addLine(
+                        (mCorners[c + 6] + mCorners[c]) / 2f, (mCorners[c + 7] + mCorners[c + 1]) / 2f,
+                        (mCorners[c + 2] + mCorners[c + 4]) / 2f, (mCorners[c + 3] + mCorners[c + 5]) / 2f
+                );
+            }
+        }
+    }
+
+    /**
+     * Gets the number of primitives recorded.
+     *
+     * @return The primitive count.
+     */
+    int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Gets whether the recorded primitives are drawn as grids.
+     *
+     * @return True for grids, false for borders only.
+     */
+    boolean isGrid() {
+        return mGrid;
+    }
+
+    /**
+     * Gets the x of a recorded corner.
+     *
+     * @param primitive The index of the primitive.
+     * @param corner The index of the corner, from 0 for top-left clockwise.
+     * @return The x of the corner.
+     */
+    int getCornerX(int primitive, int corner) {
+        return mCorners[primitive * CORNER_VALUES_PER_PRIMITIVE + corner * 2];
+    }
+
+    /**
+     * Gets the y of a recorded corner.
+     *
+     * @param primitive The index of the primitive.
+     * @param corner The index of the corner, from 0 for top-left clockwise.
+     * @return The y of the corner.
+     */
+    int getCornerY(int primitive, int corner) {
+        return mCorners[primitive * CORNER_VALUES_PER_PRIMITIVE + corner * 2 + 1];
+    }
+
+    /**
+     * Gets the segment end points, to be drawn in one batch such as by Canvas.drawLines().
+     *
+     * @return The array of end points, of which the first getLineFloats() are in use.
+     */
+    float[] getLines() {
+        return mLines;
+    }
+
+    /**
+     * Gets the number of floats of the segments in use.
+     *
+     * @return Four times the number of segments.
+     */
+    int getLineFloats() {
+        return mLineFloats;
+    }
+
+    private void checkCount(int count) {
+
+        if (count < 0 || count > mCapacity) {
+            throw new IllegalArgumentException("Primitive count must be from 0 to the capacity.");
+        }
+    }
+
+    private void addLine(float x0, float y0, float x1, float y1) {
+
+        mLines[mLineFloats++] = x0;
+        mLines[mLineFloats++] = y0;
+        mLines[mLineFloats++] = x1;
+        mLines[mLineFloats++] = y1;
+    }
+}
@@ -0,0 +1,189 @@
+package eu.kudan.ar;
+
+/**
+ * Class containing static methods for quaternion math on pre-allocated arrays.
+ *
+ * Quaternions are stored as four floats in the order w, x, y, z. No method allocates, so they can
+ * be used on the sensor and frame processing paths.
+ */
+class Quaternions {
+
+    /**
+     * Converts a rotation matrix into a unit quaternion.
+     *
+     * Uses the largest of the four possible divisors so the conversion stays accurate for rotations
+     * close to 180 degrees, where the trace of the matrix approaches -1.
+     *
+     * @param m A row-major 4x4 rotation matrix, as produced by SensorManager.getRotationMatrixFromVector.
+     * @param out Array of at least length 4 that receives the quaternion in the order w, x, y, z.
+     */
+    static void fromRotationMatrix(float[] m, float[] out) {
+
+        float m00 = m[0], m01 = m[1], m02 = m[2];
+        float m10 = m[4], m11 = m[5], m12 = m[6];
+        float m20 = m[8], m21 = m[9], m22 = m[10];
+
+        float trace = m00 + m11 + m22;
+
+        double w, x, y, z;
+
+        if (trace > 0) {
+
+            double s = Math.sqrt(1.0 + trace) * 2.0;
+            w = 0.25 * s;
+            x = (m21 - m12) / s;
+            y = (m02 - m20) / s;
+            z = (m10 - m01) / s;
+        }
+        else if (m00 > m11 && m00 > m22) {
+
+            double s = Math.sqrt(1.0 + m00 - m11 - m22) * 2.0;
+            w = (m21 - m12) / s;
+            x = 0.25 * s;
+            y = (m01 + m10) / s;
+            z = (m02 + m20) / s;
+        }
+        else if (m11 > m22) {
+
+            double s = Math.sqrt(1.0 + m11 - m00 - m22) * 2.0;
+            w = (m02 - m20) / s;
+            x = (m01 + m10) / s;
+            y = 0.25 * s;
+            z = (m12 + m21) / s;
+        }
+        else {
+
+            double s = Math.sqrt(1.0 + m22 - m00 - m11) * 2.0;
+            w = (m10 - m01) / s;
+            x = (m02 + m20) / s;
+            y = (m12 + m21) / s;
+            z = 0.25 * s;
+        }
+
+        // Keep the scalar part positive so consecutive samples stay in the same hemisphere.
+        if (w < 0) {
+            w = -w;
+            x = -x;
+            y = -y;
+            z = -z;
+        }
+
+        out[0] = (float) w;
+        out[1] = (float) x;
+        out[2] = (float) y;
+        out[3] = (float) z;
+    }
+
+    /**
+     * Inverts a quaternion. The input and output arrays may be the same.
+     *
+     * A zero quaternion is copied unchanged.
+     *
+     * @param q The quaternion to invert, in the order w, x, y, z.
+     * @param out Array of at least length 4 that receives the inverse.
+     */
+    static void invert(float[] q, float[] out) {
+
+        float w = q[0];
+        float x = q[1];
+        float y = q[2];
+        float z = q[3];
+
+        float norm = w * w + x * x + y * y + z * z;
+
+        if (norm > 0.0) {
+            float invNorm = 1.0f / norm;
+            x *= -invNorm;
+            y *= -invNorm;
+            z *= -invNorm;
+            w *= invNorm;
+        }
+
+        out[0] = w;
+        out[1] = x;
+        out[2] = y;
+        out[3] = z;
+    }
+
+    /**
+     * Spherically interpolates between two unit quaternions stored in arrays at given offsets.
+     *
+     * Fractions outside of [0, 1] extrapolate along the same great arc, continuing the rotation
+     * from a towards b at a constant rate. The output is normalised and may alias either input.
+     *
+     * @param a Array holding the first quaternion in the order w, x, y, z.
+     * @param aOffset The index of the first quaternion's w component in a.
+     * @param b Array holding the second quaternion in the order w, x, y, z.
+     * @param bOffset The index of the second quaternion's w component in b.
+     * @param fraction The interpolation fraction, where 0 gives a and 1 gives b.
+     * @param out Array of at least length 4 that receives the interpolated quaternion.
+     */
+    static void slerp(float[] a, int aOffset, float[] b, int bOffset, float fraction, float[] out) {
+
+        float aw = a[aOffset], ax = a[aOffset + 1], ay = a[aOffset + 2], az = a[aOffset + 3];
+        float bw = b[bOffset], bx = b[bOffset + 1], by = b[bOffset + 2], bz = b[bOffset + 3];
+
+        float dot = aw * bw + ax * bx + ay * by + az * bz;
+
+        // Take the shorter arc between the two rotations.
+        if (dot < 0) {
+            dot = -dot;
+            bw = -bw;
+            bx = -bx;
+            by = -by;
+            bz = -bz;
+        }
+
+        float scaleA;
+        float scaleB;
+
+        if (dot > 0.9995f) {
+
+            // The rotations are almost identical, so linear interpolation is accurate and stable.
+            scaleA = 1.0f - fraction;
+            scaleB = fraction;
+        }
+        else {
+
+            double theta = Math.acos(dot);
+            double invSinTheta = 1.0 / Math.sin(theta);
+
+            scaleA = (float) (Math.sin((1.0 - fraction) * theta) * invSinTheta);
+            scaleB = (float) (Math.sin(fraction * theta) * invSinTheta);
+        }
+
+        out[0] = scaleA * aw + scaleB * bw;
+        out[1] = scaleA * ax + scaleB * bx;
+        out[2] = scaleA * ay + scaleB * by;
+        out[3] = scaleA * az + scaleB * bz;
+
+        normalize(out, out);
+    }
+
+    /**
+     * Scales a quaternion to unit length. The input and output arrays may be the same.
+     *
+     * A zero quaternion is replaced by the identity rotation.
+     *
+     * @param q The quaternion to normalise, in the order w, x, y, z.
+     * @param out Array of at least length 4 that receives the unit quaternion.
+     */
+    static void normalize(float[] q, float[] out) {
+
+        float norm = (float) Math.sqrt(q[0] * q[0] + q[1] * q[1] + q[2] * q[2] + q[3] * q[3]);
+
+        if (norm > 0.0f) {
+            float invNorm = 1.0f / norm;
+            out[0] = q[0] * invNorm;
+            out[1] = q[1] * invNorm;
+            out[2] = q[2] * invNorm;
+            out[3] = q[3] * invNorm;
+        }
+        else {
+            out[0] = 1;
+            out[1] = 0;
+            out[2] = 0;
+            out[3] = 0;
+        }
+    }
+}
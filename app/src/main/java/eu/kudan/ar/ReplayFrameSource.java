@@ -0,0 +1,398 @@
+package eu.kudan.ar;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A FrameSource that plays back a recording written by FrameRecorder.
+ *
+ * The recording is read through memory-mapped windows, so frames are passed to the pipeline in
+ * place without being copied onto the heap. Frames and orientations are delivered on a dedicated
+ * thread in the order they were recorded, with their recorded timestamps.
+ *
+ * Replay is not live: a frame is held back until the pipeline can take it, so every recorded frame
+ * is tracked and a replay is deterministic. Delivery can be paced to the recorded timestamps at any
+ * speed, or left unpaced to measure the throughput of the pipeline.
+ */
+class ReplayFrameSource implements FrameSource {
+
+    /**
+     * Replay speed that delivers frames as fast as the pipeline takes them.
+     */
+    static final float UNPACED = 0.0f;
+
+    /**
+     * Size of the windows of the recording that are mapped at a time.
+     */
+    private static final long WINDOW_BYTES = 64L * 1024 * 1024;
+
+    private final File mFile;
+    private final float mSpeed;
+
+    private final RandomAccessFile mInput;
+    private final FileChannel mChannel;
+    private final long mFileSize;
+
+    private final boolean mTimestampsAligned;
+
+    /**
+     * The size of the first frame of the recording.
+     */
+    private final int mFrameWidth;
+    private final int mFrameHeight;
+
+    /**
+     * The mapped window of the recording and its offset in the file.
+     *
+     * Owned by the replay thread.
+     */
+    private MappedByteBuffer mWindow;
+    private long mWindowStart;
+
+    private Thread mThread;
+    private volatile boolean mStopped;
+
+    /**
+     * Progress of the replay.
+     */
+    private volatile long mDeliveredFrameCount;
+    private volatile long mElapsedNs;
+    private volatile boolean mFinished;
+
+    /**
+     * Constructs a ReplayFrameSource and validates the header of the recording.
+     *
+     * @param file The recording to play back.
+     * @param speed The playback speed relative to the recorded timestamps, such as 1 for real time
+     *              or 4 for four times faster, or UNPACED.
+     * @throws IOException If the recording cannot be read or is not a valid recording.
+     */
+    ReplayFrameSource(File file, float speed) throws IOException {
+
+        if (speed < 0.0f || Float.isNaN(speed) || Float.isInfinite(speed)) {
+            throw new IllegalArgumentException("Replay speed must be finite and non-negative.");
+        }
+
+        mFile = file;
+        mSpeed = speed;
+
+        mInput = new RandomAccessFile(file, "r");
+
+        try {
+            mChannel = mInput.getChannel();
+            mFileSize = mChannel.size();
+
+            ByteBuffer header = window(0, FrameRecorder.HEADER_BYTES);
+
+            if (header == null || header.getInt() != FrameRecorder.MAGIC || header.getInt() != FrameRecorder.VERSION) {
+                throw new IOException("\"" + file + "\" is not a frame recording.");
+            }
+
+            mTimestampsAligned = (header.getInt() & FrameRecorder.FLAG_TIMESTAMPS_ALIGNED) != 0;
+
+            // Find the size of the first frame, which the trackers are initialised with.
+            long offset = FrameRecorder.HEADER_BYTES;
+            int frameWidth = 0;
+            int frameHeight = 0;
+
+            while (offset < mFileSize) {
+
+                ByteBuffer record = window(offset, 4);
+
+                if (record == null) {
+                    break;
+                }
+
+                if (record.getInt() == FrameRecorder.RECORD_ORIENTATION) {
+                    offset += FrameRecorder.ORIENTATION_BYTES;
+                    continue;
+                }
+
+                record = window(offset, FrameRecorder.FRAME_HEADER_BYTES);
+
+                if (record != null) {
+                    record.position(record.position() + 12);
+                    frameWidth = record.getInt();
+                    frameHeight = record.getInt();
+                }
+
+                break;
+            }
+
+            if (frameWidth <= 0 || frameHeight <= 0) {
+                throw new IOException("\"" + file + "\" does not contain any frames.");
+            }
+
+            mFrameWidth = frameWidth;
+            mFrameHeight = frameHeight;
+        }
+        catch (IOException | RuntimeException e) {
+            mInput.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets whether frame timestamps of the recording share the clock of its orientation timestamps.
+     *
+     * @return True if frames can be aligned with orientation samples.
+     */
+    boolean isTimestampsAligned() {
+        return mTimestampsAligned;
+    }
+
+    /**
+     * Gets the width of the first frame of the recording.
+     *
+     * @return The frame width in pixels.
+     */
+    int getFrameWidth() {
+        return mFrameWidth;
+    }
+
+    /**
+     * Gets the height of the first frame of the recording.
+     *
+     * @return The frame height in pixels.
+     */
+    int getFrameHeight() {
+        return mFrameHeight;
+    }
+
+    @Override
+    public synchronized void start(final Sink sink) {
+
+        if (mThread != null) {
+            throw new IllegalStateException("Replay has already been started.");
+        }
+
+        mThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+
+                try {
+                    replay(sink);
+                }
+                catch (IOException e) {
+
+                    // Stopping interrupts any read in progress.
+                    if (!mStopped) {
+                        Log.e("ReplayFrameSource", "Frame recording \"" + mFile + "\" could not be replayed.", e);
+                    }
+                }
+                finally {
+                    mFinished = true;
+                    close();
+                }
+            }
+        }, "ReplayThread");
+
+        mThread.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+
+        mStopped = true;
+
+        if (mThread == null) {
+            close();
+            return;
+        }
+
+        mThread.interrupt();
+
+        try {
+            mThread.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public boolean isLive() {
+        return false;
+    }
+
+    /**
+     * Gets the number of frames taken by the pipeline so far.
+     *
+     * @return The number of frames delivered.
+     */
+    long getDeliveredFrameCount() {
+        return mDeliveredFrameCount;
+    }
+
+    /**
+     * Gets whether every record has been delivered or the replay has stopped.
+     *
+     * @return True once the replay has finished.
+     */
+    boolean isFinished() {
+        return mFinished;
+    }
+
+    /**
+     * Gets the rate at which the pipeline has taken frames since the replay started.
+     *
+     * @return The delivered frames per second, or 0 if no frame has been delivered.
+     */
+    float getFramesPerSecond() {
+
+        long elapsedNs = mElapsedNs;
+
+        return elapsedNs > 0 ? mDeliveredFrameCount * 1e9f / elapsedNs : 0.0f;
+    }
+
+    /**
+     * Delivers every record of the recording to a sink.
+     */
+    private void replay(Sink sink) throws IOException {
+
+        long offset = FrameRecorder.HEADER_BYTES;
+
+        long startNs = System.nanoTime();
+        long firstTimestamp = 0;
+        boolean started = false;
+
+        while (offset < mFileSize && !mStopped) {
+
+            ByteBuffer record = window(offset, 12);
+
+            if (record == null) {
+                throw new IOException("Frame recording is truncated.");
+            }
+
+            int type = record.getInt();
+            long timestamp = record.getLong();
+
+            if (type == FrameRecorder.RECORD_ORIENTATION) {
+
+                record = window(offset + 12, FrameRecorder.ORIENTATION_BYTES - 12);
+
+                if (record == null) {
+                    throw new IOException("Frame recording is truncated.");
+                }
+
+                sink.onOrientation(timestamp, record.getFloat(), record.getFloat(), record.getFloat(), record.getFloat());
+
+                offset += FrameRecorder.ORIENTATION_BYTES;
+            }
+            else if (type == FrameRecorder.RECORD_FRAME) {
+
+                record = window(offset + 12, FrameRecorder.FRAME_HEADER_BYTES - 12);
+
+                if (record == null) {
+                    throw new IOException("Frame recording is truncated.");
+                }
+
+                int width = record.getInt();
+                int height = record.getInt();
+
+                if (width <= 0 || height <= 0) {
+                    throw new IOException("Frame recording holds a frame of invalid size " + width + "x" + height + ".");
+                }
+
+                ByteBuffer pixels = window(offset + FrameRecorder.FRAME_HEADER_BYTES, width * height);
+
+                if (pixels == null) {
+                    throw new IOException("Frame recording is truncated.");
+                }
+
+                if (!started) {
+                    firstTimestamp = timestamp;
+                    started = true;
+                }
+
+                pace(startNs, timestamp - firstTimestamp);
+
+                // Hold the frame back until the pipeline has room for it.
+                while (!sink.onFrame(pixels, width, height, width, 1, timestamp)) {
+
+                    if (mStopped) {
+                        return;
+                    }
+                }
+
+                mDeliveredFrameCount++;
+                mElapsedNs = System.nanoTime() - startNs;
+
+                offset += FrameRecorder.FRAME_HEADER_BYTES + (long) width * height;
+            }
+            else {
+                throw new IOException("Frame recording holds an unknown record type " + type + ".");
+            }
+        }
+
+        Log.i("ReplayFrameSource", "Replayed " + mDeliveredFrameCount + " frames at " + getFramesPerSecond() + " frames per second.");
+    }
+
+    /**
+     * Waits until a frame is due at the replay speed.
+     */
+    private void pace(long startNs, long recordedNs) {
+
+        if (mSpeed == UNPACED) {
+            return;
+        }
+
+        long dueNs = startNs + (long) (recordedNs / mSpeed);
+
+        long waitNs;
+
+        while ((waitNs = dueNs - System.nanoTime()) > 0 && !mStopped) {
+            LockSupport.parkNanos(waitNs);
+        }
+    }
+
+    /**
+     * Gets a range of the recording from the mapped window, mapping a new window if the range lies
+     * outside the current one.
+     *
+     * @return The window positioned at the start of the range with its limit at the end, or null
+     *         if the range extends past the end of the file.
+     */
+    private ByteBuffer window(long offset, int length) throws IOException {
+
+        if (offset + length > mFileSize) {
+            return null;
+        }
+
+        if (mWindow == null || offset < mWindowStart || offset + length > mWindowStart + mWindow.capacity()) {
+
+            long size = Math.min(Math.max(WINDOW_BYTES, length), mFileSize - offset);
+
+            mWindow = mChannel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+            mWindowStart = offset;
+        }
+
+        int position = (int) (offset - mWindowStart);
+
+        mWindow.limit(position + length);
+        mWindow.position(position);
+
+        return mWindow;
+    }
+
+    /**
+     * Closes the recording. Mapped windows remain readable.
+     */
+    private void close() {
+
+        try {
+            mInput.close();
+        }
+        catch (IOException e) {
+            Log.w("ReplayFrameSource", "Frame recording could not be closed.", e);
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package eu.kudan.ar;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * An on-disk cache of decoded trackable images, so that markers are only decoded from their
+ * compressed resources the first time they are used.
+ *
+ * Each trackable is stored in its own file under the cache directory, holding a small header
+ * followed by the decoded RGBA pixels exactly as they are passed to the native image tracker. On
+ * later starts the pixels are memory-mapped straight from the file into a direct buffer that the
+ * tracker reads in place, so neither image decoding nor a heap copy is needed.
+ *
+ * Entries are keyed by resource ID and validated against a CRC32 of the resource's raw bytes and
+ * the display density it was decoded at, so a changed marker image is decoded again automatically.
+ *
+ * Different trackables may be loaded on different threads at the same time.
+ */
+class TrackableCache {
+
+    /**
+     * Layout of the header at the start of each cache file.
+     */
+    private static final int MAGIC = 0x4B545243;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 36;
+
+    /**
+     * Decoded trackables are passed to the tracker as four-channel RGBA pixels.
+     */
+    private static final int CHANNELS = 4;
+
+    /**
+     * Pixels of a trackable image ready to be passed to the native image tracker.
+     */
+    static class Entry {
+
+        /**
+         * Direct buffer holding tightly packed RGBA pixels, positioned at the first pixel.
+         */
+        final ByteBuffer pixels;
+
+        final int width;
+        final int height;
+        final int channels;
+
+        Entry(ByteBuffer pixels, int width, int height, int channels) {
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+            this.channels = channels;
+        }
+    }
+
+    private final File mDirectory;
+    private final Resources mResources;
+    private final int mDensity;
+
+    /**
+     * Counters of trackables loaded from the cache and trackables that had to be decoded.
+     */
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+
+    /**
+     * Constructs a TrackableCache.
+     *
+     * @param cacheDir The application cache directory, under which the cache files are kept.
+     * @param resources The resources that trackable images are loaded from.
+     */
+    TrackableCache(File cacheDir, Resources resources) {
+
+        mDirectory = new File(cacheDir, "trackables");
+        mResources = resources;
+        mDensity = resources.getDisplayMetrics().densityDpi;
+    }
+
+    /**
+     * Gets the decoded pixels of a trackable image, mapping them from the cache if a valid entry
+     * exists and otherwise decoding the resource and storing the result.
+     *
+     * @param resourceID A reference to the image asset used as a trackable.
+     * @return The decoded trackable image.
+     * @throws IOException If the resource cannot be read.
+     */
+    Entry get(int resourceID) throws IOException {
+
+        long crc = checksum(resourceID);
+
+        File file = new File(mDirectory, resourceID + ".bin");
+
+        Entry entry = map(file, resourceID, crc);
+
+        if (entry != null) {
+            mHitCount.incrementAndGet();
+            return entry;
+        }
+
+        mMissCount.incrementAndGet();
+
+        entry = decode(resourceID);
+
+        try {
+            write(file, resourceID, crc, entry);
+        }
+        catch (IOException e) {
+
+            // A cache that cannot be written only costs a decode on the next start.
+            file.delete();
+        }
+
+        return entry;
+    }
+
+    /**
+     * Gets the number of trackables loaded from the cache without decoding.
+     *
+     * @return The number of cache hits.
+     */
+    long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * Gets the number of trackables that were decoded because no valid cache entry existed.
+     *
+     * @return The number of cache misses.
+     */
+    long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * Computes the CRC32 of the raw bytes of a resource.
+     */
+    private long checksum(int resourceID) throws IOException {
+
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[16384];
+
+        InputStream stream = mResources.openRawResource(resourceID);
+
+        try {
+            int read;
+
+            while ((read = stream.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        finally {
+            stream.close();
+        }
+
+        return crc.getValue();
+    }
+
+    /**
+     * Maps the pixels of a cache file if its header matches the resource.
+     *
+     * @return The mapped entry, or null if the file is missing or stale.
+     */
+    private Entry map(File file, int resourceID, long crc) throws IOException {
+
+        if (!file.isFile() || file.length() < HEADER_BYTES) {
+            return null;
+        }
+
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+
+        try {
+            FileChannel channel = input.getChannel();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+
+            while (header.hasRemaining()) {
+
+                if (channel.read(header) < 0) {
+                    return null;
+                }
+            }
+
+            header.flip();
+
+            if (header.getInt() != MAGIC
+                    || header.getInt() != VERSION
+                    || header.getInt() != resourceID
+                    || header.getLong() != crc
+                    || header.getInt() != mDensity) {
+                return null;
+            }
+
+            int width = header.getInt();
+            int height = header.getInt();
+            int channels = header.getInt();
+
+            long pixelBytes = (long) width * height * channels;
+
+            if (width <= 0 || height <= 0 || channels != CHANNELS || channel.size() != HEADER_BYTES + pixelBytes) {
+                return null;
+            }
+
+            // The mapping stays valid after the file is closed.
+            ByteBuffer pixels = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES, pixelBytes);
+
+            return new Entry(pixels, width, height, channels);
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Decodes a trackable image resource into tightly packed RGBA pixels.
+     */
+    private Entry decode(int resourceID) {
+
+        Bitmap image = BitmapFactory.decodeResource(mResources, resourceID);
+
+        if (image == null) {
+            throw new RuntimeException("Trackable image resource could not be decoded.");
+        }
+
+        if (image.getConfig() != Bitmap.Config.ARGB_8888) {
+
+            Bitmap converted = image.copy(Bitmap.Config.ARGB_8888, false);
+            image.recycle();
+            image = converted;
+        }
+
+        ByteBuffer pixels = ByteBuffer.allocateDirect(image.getWidth() * image.getHeight() * CHANNELS);
+
+        image.copyPixelsToBuffer(pixels);
+        pixels.rewind();
+
+        Entry entry = new Entry(pixels, image.getWidth(), image.getHeight(), CHANNELS);
+
+        image.recycle();
+
+        return entry;
+    }
+
+    /**
+     * Writes a decoded entry to a cache file, replacing any previous file only once it is complete.
+     */
+    private void write(File file, int resourceID, long crc, Entry entry) throws IOException {
+
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Trackable cache directory could not be created.");
+        }
+
+        File temporary = new File(mDirectory, resourceID + ".tmp");
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(resourceID);
+        header.putLong(crc);
+        header.putInt(mDensity);
+        header.putInt(entry.width);
+        header.putInt(entry.height);
+        header.putInt(entry.channels);
+        header.flip();
+
+        FileOutputStream output = new FileOutputStream(temporary);
+
+        try {
+            FileChannel channel = output.getChannel();
+
+            ByteBuffer pixels = entry.pixels.duplicate();
+
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+
+            while (pixels.hasRemaining()) {
+                channel.write(pixels);
+            }
+        }
+        finally {
+            output.close();
+        }
+
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("Trackable cache file could not be replaced.");
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package eu.kudan.ar;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads trackable images in parallel and registers each with the native image tracker as soon as
+ * it is ready.
+ *
+ * Images are taken from a TrackableCache on a pool with one thread per processor core. The native
+ * tracker is not thread-safe, so registration is handed to a Handler on the thread that runs the
+ * tracker. Camera frames can therefore be processed while markers are still loading, and each
+ * marker can be detected from the moment it is registered.
+ *
+ * Each call to load() starts a new batch and discards the results of any earlier batch that had
+ * not finished, as they belong to a tracker that has since been replaced.
+ */
+class TrackableLoader {
+
+    /**
+     * Registers a loaded trackable image with the native image tracker.
+     */
+    interface Registrar {
+
+        /**
+         * Called on the registration Handler's thread once a trackable image has been loaded.
+         *
+         * @param entry The decoded trackable image.
+         * @param name The name of the trackable.
+         * @return Whether the trackable was registered successfully.
+         */
+        boolean register(TrackableCache.Entry entry, String name);
+    }
+
+    /**
+     * Timings of a trackable that has finished loading.
+     */
+    static final class LoadRecord {
+
+        /**
+         * The name and resource of the trackable.
+         */
+        final String name;
+        final int resourceID;
+
+        /**
+         * Time taken to decode or map the trackable image in nanoseconds.
+         */
+        final long loadNs;
+
+        /**
+         * Time from the start of the batch until the trackable was registered in nanoseconds.
+         */
+        final long readyNs;
+
+        /**
+         * Whether the trackable was registered with the tracker.
+         */
+        final boolean succeeded;
+
+        LoadRecord(String name, int resourceID, long loadNs, long readyNs, boolean succeeded) {
+            this.name = name;
+            this.resourceID = resourceID;
+            this.loadNs = loadNs;
+            this.readyNs = readyNs;
+            this.succeeded = succeeded;
+        }
+    }
+
+    private final TrackableCache mCache;
+
+    private final ThreadPoolExecutor mExecutor;
+
+    /**
+     * Identifies the current batch. Results of earlier batches are discarded.
+     */
+    private volatile int mGeneration;
+
+    /**
+     * Tasks of the current batch that may still be running.
+     */
+    private final List<Future<?>> mPendingTasks = new ArrayList<>();
+
+    /**
+     * Progress of the current batch.
+     */
+    private final AtomicInteger mRequestedCount = new AtomicInteger();
+    private final AtomicInteger mLoadedCount = new AtomicInteger();
+    private final AtomicInteger mFailedCount = new AtomicInteger();
+
+    private final List<LoadRecord> mLoadRecords = new CopyOnWriteArrayList<>();
+
+    /**
+     * Constructs a TrackableLoader with one loading thread per processor core.
+     *
+     * @param cache The cache that trackable images are loaded from.
+     */
+    TrackableLoader(TrackableCache cache) {
+        this(cache, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructs a TrackableLoader.
+     *
+     * @param cache The cache that trackable images are loaded from.
+     * @param threadCount The largest number of trackables loaded at the same time.
+     */
+    TrackableLoader(TrackableCache cache, int threadCount) {
+
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("Trackable loader needs at least one thread.");
+        }
+
+        mCache = cache;
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+
+        mExecutor = new ThreadPoolExecutor(threadCount, threadCount, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+
+                Thread thread = new Thread(runnable, "TrackableLoader-" + threadNumber.incrementAndGet());
+
+                // Loading must not hold up the camera or tracking threads.
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+
+                return thread;
+            }
+        });
+
+        // Threads are only kept while a batch is loading.
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Starts loading a batch of trackables, replacing any batch that is still loading.
+     *
+     * @param resourceIDs References to the image assets used as trackables.
+     * @param names The names of the trackables, in the same order.
+     * @param registrationHandler Handler for the thread that runs the native image tracker.
+     * @param registrar Registers each loaded trackable with the native image tracker.
+     */
+    synchronized void load(int[] resourceIDs, String[] names, final Handler registrationHandler, final Registrar registrar) {
+
+        if (resourceIDs.length != names.length) {
+            throw new IllegalArgumentException("Each trackable resource needs exactly one name.");
+        }
+
+        cancel();
+
+        final int generation = mGeneration;
+        final long batchStart = System.nanoTime();
+
+        mRequestedCount.set(resourceIDs.length);
+        mLoadedCount.set(0);
+        mFailedCount.set(0);
+        mLoadRecords.clear();
+
+        for (int i = 0; i < resourceIDs.length; i++) {
+
+            final int resourceID = resourceIDs[i];
+            final String name = names[i];
+
+            mPendingTasks.add(mExecutor.submit(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    if (generation != mGeneration) {
+                        return;
+                    }
+
+                    long loadStart = System.nanoTime();
+
+                    final TrackableCache.Entry entry;
+
+                    try {
+                        entry = mCache.get(resourceID);
+                    }
+                    catch (IOException | RuntimeException e) {
+
+                        Log.e("TrackableLoader", "Trackable \"" + name + "\" could not be loaded.", e);
+
+                        finish(generation, new LoadRecord(name, resourceID, System.nanoTime() - loadStart, System.nanoTime() - batchStart, false));
+                        return;
+                    }
+
+                    final long loadNs = System.nanoTime() - loadStart;
+
+                    // Register on the tracker's own thread, between frames.
+                    boolean posted = registrationHandler.post(new Runnable() {
+
+                        @Override
+                        public void run() {
+
+                            if (generation != mGeneration) {
+                                return;
+                            }
+
+                            boolean success = registrar.register(entry, name);
+
+                            if (!success) {
+                                Log.e("TrackableLoader", "Trackable \"" + name + "\" could not be added to image tracker.");
+                            }
+
+                            finish(generation, new LoadRecord(name, resourceID, loadNs, System.nanoTime() - batchStart, success));
+                        }
+                    });
+
+                    if (!posted) {
+                        finish(generation, new LoadRecord(name, resourceID, loadNs, System.nanoTime() - batchStart, false));
+                    }
+                }
+            }));
+        }
+    }
+
+    /**
+     * Stops the current batch. Trackables that have not been registered yet are discarded.
+     */
+    synchronized void cancel() {
+
+        mGeneration++;
+
+        for (Future<?> task : mPendingTasks) {
+            task.cancel(false);
+        }
+
+        mPendingTasks.clear();
+    }
+
+    /**
+     * Stops the current batch and the loading threads. The loader cannot be used afterwards.
+     */
+    synchronized void shutdown() {
+
+        cancel();
+
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Gets the number of trackables requested by the current batch.
+     *
+     * @return The number of trackables in the batch.
+     */
+    int getRequestedCount() {
+        return mRequestedCount.get();
+    }
+
+    /**
+     * Gets the number of trackables of the current batch that have been registered.
+     *
+     * @return The number of registered trackables.
+     */
+    int getLoadedCount() {
+        return mLoadedCount.get();
+    }
+
+    /**
+     * Gets the number of trackables of the current batch that could not be loaded or registered.
+     *
+     * @return The number of failed trackables.
+     */
+    int getFailedCount() {
+        return mFailedCount.get();
+    }
+
+    /**
+     * Gets the fraction of the current batch that has finished loading, successfully or not.
+     *
+     * @return The progress in [0, 1], or 1 if the batch is empty.
+     */
+    float getProgress() {
+
+        int requested = mRequestedCount.get();
+
+        return requested > 0 ? (float) (mLoadedCount.get() + mFailedCount.get()) / requested : 1.0f;
+    }
+
+    /**
+     * Gets the timings of every trackable of the current batch that has finished loading, in the
+     * order they finished.
+     *
+     * @return An unmodifiable snapshot of the load records.
+     */
+    List<LoadRecord> getLoadRecords() {
+        return Collections.unmodifiableList(new ArrayList<>(mLoadRecords));
+    }
+
+    /**
+     * Records a trackable of a batch as finished, unless the batch has been replaced.
+     */
+    private void finish(int generation, LoadRecord record) {
+
+        if (generation != mGeneration) {
+            return;
+        }
+
+        mLoadRecords.add(record);
+
+        if (record.succeeded) {
+            mLoadedCount.incrementAndGet();
+        }
+        else {
+            mFailedCount.incrementAndGet();
+        }
+    }
+}
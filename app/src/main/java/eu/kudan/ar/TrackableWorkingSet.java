@@ -0,0 +1,431 @@
+package eu.kudan.ar;
+
+/**
+ * Keeps a bounded working set of trackables active in the native image tracker, so that large
+ * marker catalogs can be used without detection time growing with the size of the catalog.
+ *
+ * Every registered trackable is catalogued, but at most a fixed number are active at once. While
+ * the whole catalog fits the working set every trackable is active. Otherwise, every run of a
+ * rotation interval of detection runs that find nothing rotates up to that many inactive
+ * trackables in, each evicting the active trackable with the lowest priority and, among equal
+ * priorities, the one least recently detected. A trackable is never evicted in favour of one with
+ * a lower priority, so the highest-priority trackables stay active and the remainder take turns
+ * over successive frames.
+ *
+ * Evicting trackables is expensive, as the native image tracker is rebuilt to remove them, so the
+ * trackables evicted by a rotation are removed together. The tracker is then rebuilt at most once
+ * per rotation interval of misses, however large the catalog is.
+ *
+ * Trackables are identified by their index in the catalog, which is also the trackable index
+ * reported in tracking results.
+ *
+ * All methods are called from the tracking stage except the counter getters.
+ */
+class TrackableWorkingSet {
+
+    /**
+     * Activates and deactivates catalogued trackables in the native image tracker.
+     */
+    interface Backend {
+
+        /**
+         * Adds a catalogued trackable to the tracker.
+         *
+         * @param index The index of the trackable in the catalog.
+         * @return Whether the trackable was added.
+         */
+        boolean activate(int index);
+
+        /**
+         * Removes catalogued trackables from the tracker.
+         *
+         * Each call may rebuild the tracker with the remaining active trackables, which costs time
+         * in proportion to the size of the working set whatever the number of trackables removed,
+         * so it is called at most once per rotation.
+         *
+         * @param indices Array holding the indices of the trackables in the catalog.
+         * @param count The number of indices held in the array.
+         */
+        void deactivate(int[] indices, int count);
+    }
+
+    /**
+     * The default largest number of trackables active at once.
+     */
+    static final int DEFAULT_CAPACITY = 16;
+
+    /**
+     * The default number of consecutive detection runs that find nothing between rotations, which
+     * is also the largest number of trackables rotated in at once.
+     */
+    static final int DEFAULT_ROTATION_INTERVAL = 8;
+
+    private final Backend mBackend;
+
+    private final int mRotationInterval;
+
+    private int mCapacity;
+
+    /**
+     * Per-trackable state, indexed by catalog index.
+     */
+    private int[] mPriorities = new int[DEFAULT_CAPACITY];
+    private long[] mLastDetected = new long[DEFAULT_CAPACITY];
+    private boolean[] mActive = new boolean[DEFAULT_CAPACITY];
+
+    private int mCatalogSize;
+    private int mActiveCount;
+
+    /**
+     * The catalog index from which the next inactive trackable to rotate in is searched.
+     */
+    private int mRotationCursor;
+
+    /**
+     * The number of detection runs that have found nothing since the last rotation.
+     */
+    private int mMissesSinceRotation;
+
+    /**
+     * The trackables rotated in and evicted by the current rotation, pre-allocated to the
+     * rotation interval.
+     */
+    private final int[] mRotatedIn;
+    private final int[] mEvicted;
+
+    /**
+     * Counters of detection runs that found a trackable, runs that found nothing and trackables
+     * evicted from the working set.
+     */
+    private volatile long mHitCount;
+    private volatile long mMissCount;
+    private volatile long mEvictionCount;
+    private volatile long mRotationCount;
+
+    /**
+     * Constructs a TrackableWorkingSet with the default capacity.
+     *
+     * @param backend Activates and deactivates trackables in the native image tracker.
+     */
+    TrackableWorkingSet(Backend backend) {
+        this(backend, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructs a TrackableWorkingSet.
+     *
+     * @param backend Activates and deactivates trackables in the native image tracker.
+     * @param capacity The largest number of trackables active at once.
+     */
+    TrackableWorkingSet(Backend backend, int capacity) {
+        this(backend, capacity, DEFAULT_ROTATION_INTERVAL);
+    }
+
+    /**
+     * Constructs a TrackableWorkingSet.
+     *
+     * @param backend Activates and deactivates trackables in the native image tracker.
+     * @param capacity The largest number of trackables active at once.
+     * @param rotationInterval The number of consecutive detection runs that find nothing between
+     *                         rotations, and the largest number of trackables rotated in at once.
+     */
+    TrackableWorkingSet(Backend backend, int capacity, int rotationInterval) {
+
+        if (rotationInterval < 1) {
+            throw new IllegalArgumentException("Trackable rotation interval must be at least 1.");
+        }
+
+        mBackend = backend;
+        mRotationInterval = rotationInterval;
+
+        mRotatedIn = new int[rotationInterval];
+        mEvicted = new int[rotationInterval];
+
+        reset(capacity);
+    }
+
+    /**
+     * Empties the catalog, for use when the native image tracker has been replaced.
+     *
+     * @param capacity The largest number of trackables active at once.
+     */
+    void reset(int capacity) {
+
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Trackable working set must hold at least one trackable.");
+        }
+
+        mCapacity = capacity;
+        mCatalogSize = 0;
+        mActiveCount = 0;
+        mRotationCursor = 0;
+        mMissesSinceRotation = 0;
+    }
+
+    /**
+     * Adds a trackable that has been catalogued by the native image tracker, activating it if the
+     * working set has room.
+     *
+     * @param index The index of the trackable in the catalog.
+     * @param priority The priority of the trackable. Higher priorities are evicted last.
+     */
+    void add(int index, int priority) {
+
+        if (index != mCatalogSize) {
+            throw new IllegalArgumentException("Trackables must be added to the working set in catalog order.");
+        }
+
+        if (index == mPriorities.length) {
+            grow();
+        }
+
+        mPriorities[index] = priority;
+        mLastDetected[index] = Long.MIN_VALUE;
+        mActive[index] = false;
+
+        mCatalogSize++;
+
+        if (mActiveCount < mCapacity && mBackend.activate(index)) {
+            mActive[index] = true;
+            mActiveCount++;
+        }
+    }
+
+    /**
+     * Records the outcome of a detection run and, once a rotation interval of runs in a row have
+     * found nothing, rotates the next inactive trackables into the working set.
+     *
+     * @param result The result of the detection run.
+     * @param found Whether any trackable was detected.
+     * @param timestamp The timestamp of the frame in nanoseconds.
+     */
+    void onDetection(TrackingResult result, boolean found, long timestamp) {
+
+        if (found) {
+
+            mHitCount++;
+            mMissesSinceRotation = 0;
+
+            touch(result, timestamp);
+        }
+        else {
+
+            mMissCount++;
+
+            if (++mMissesSinceRotation >= mRotationInterval) {
+                mMissesSinceRotation = 0;
+                rotate();
+            }
+        }
+    }
+
+    /**
+     * Records the trackables tracked in a frame as recently detected.
+     *
+     * @param result The result of tracking the frame.
+     * @param timestamp The timestamp of the frame in nanoseconds.
+     */
+    void touch(TrackingResult result, long timestamp) {
+
+        for (int entry = 0; entry < result.count; entry++) {
+
+            int index = result.getTrackableIndex(entry);
+
+            if (index >= 0 && index < mCatalogSize) {
+                mLastDetected[index] = timestamp;
+            }
+        }
+    }
+
+    /**
+     * Gets whether a trackable is in the working set.
+     *
+     * @param index The index of the trackable in the catalog.
+     * @return True if the trackable is active in the native image tracker.
+     */
+    boolean isActive(int index) {
+        return index >= 0 && index < mCatalogSize && mActive[index];
+    }
+
+    /**
+     * Gets the number of catalogued trackables.
+     *
+     * @return The size of the catalog.
+     */
+    int getCatalogSize() {
+        return mCatalogSize;
+    }
+
+    /**
+     * Gets the number of trackables in the working set.
+     *
+     * @return The number of active trackables.
+     */
+    int getActiveCount() {
+        return mActiveCount;
+    }
+
+    /**
+     * Gets the number of detection runs that found a trackable.
+     *
+     * @return The number of hits.
+     */
+    long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * Gets the number of detection runs that found nothing.
+     *
+     * @return The number of misses.
+     */
+    long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Gets the number of trackables evicted from the working set.
+     *
+     * @return The number of evictions.
+     */
+    long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * Gets the number of rotations that changed the working set.
+     *
+     * @return The number of rotations.
+     */
+    long getRotationCount() {
+        return mRotationCount;
+    }
+
+    /**
+     * Swaps up to a rotation interval of the next inactive trackables that may replace active ones
+     * into the working set, evicting their replacements together.
+     */
+    private void rotate() {
+
+        int free = mCapacity - mActiveCount;
+        int rotatedCount = 0;
+        int evictedCount = 0;
+
+        // Choose every trackable first. Evicted trackables stay marked active until they are
+        // removed, so they are not chosen to rotate in, and are excluded as victims of later
+        // choices. Trackables chosen to rotate in stay inactive, so are never chosen as victims.
+        for (int visited = 0; visited < mCatalogSize && rotatedCount < mRotationInterval; visited++) {
+
+            int candidate = mRotationCursor;
+
+            mRotationCursor = (mRotationCursor + 1) % mCatalogSize;
+
+            if (mActive[candidate]) {
+                continue;
+            }
+
+            if (free > 0) {
+                free--;
+            }
+            else {
+
+                int victim = findVictim(mPriorities[candidate], evictedCount);
+
+                if (victim < 0) {
+                    continue;
+                }
+
+                mEvicted[evictedCount++] = victim;
+            }
+
+            mRotatedIn[rotatedCount++] = candidate;
+        }
+
+        if (evictedCount > 0) {
+
+            mBackend.deactivate(mEvicted, evictedCount);
+
+            for (int i = 0; i < evictedCount; i++) {
+                mActive[mEvicted[i]] = false;
+            }
+
+            mActiveCount -= evictedCount;
+            mEvictionCount += evictedCount;
+        }
+
+        for (int i = 0; i < rotatedCount; i++) {
+
+            if (mBackend.activate(mRotatedIn[i])) {
+                mActive[mRotatedIn[i]] = true;
+                mActiveCount++;
+            }
+        }
+
+        if (rotatedCount > 0) {
+            mRotationCount++;
+        }
+    }
+
+    /**
+     * Finds the active trackable with the lowest priority, and among those the least recently
+     * detected, that a trackable of a given priority may replace.
+     *
+     * @param priority The priority of the replacing trackable.
+     * @param evictedCount The number of trackables already chosen for eviction, which are skipped.
+     * @return The catalog index of the trackable to evict, or -1 if none may be evicted.
+     */
+    private int findVictim(int priority, int evictedCount) {
+
+        int victim = -1;
+
+        for (int i = 0; i < mCatalogSize; i++) {
+
+            if (!mActive[i] || mPriorities[i] > priority || isEvicted(i, evictedCount)) {
+                continue;
+            }
+
+            if (victim < 0
+                    || mPriorities[i] < mPriorities[victim]
+                    || (mPriorities[i] == mPriorities[victim] && mLastDetected[i] < mLastDetected[victim])) {
+                victim = i;
+            }
+        }
+
+        return victim;
+    }
+
+    /**
+     * Gets whether a trackable has been chosen for eviction by the current rotation.
+     */
+    private boolean isEvicted(int index, int evictedCount) {
+
+        for (int i = 0; i < evictedCount; i++) {
+
+            if (mEvicted[i] == index) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Doubles the capacity of the per-trackable arrays.
+     */
+    private void grow() {
+
+        int length = mPriorities.length * 2;
+
+        int[] priorities = new int[length];
+        long[] lastDetected = new long[length];
+        boolean[] active = new boolean[length];
+
+        System.arraycopy(mPriorities, 0, priorities, 0, mCatalogSize);
+        System.arraycopy(mLastDetected, 0, lastDetected, 0, mCatalogSize);
+        System.arraycopy(mActive, 0, active, 0, mCatalogSize);
+
+        mPriorities = priorities;
+        mLastDetected = lastDetected;
+        mActive = active;
+    }
+}
@@ -0,0 +1,10 @@
+package eu.kudan.ar;
+
+/**
+ * Possible states of tracking available during camera frame processing.
+ */
+enum TrackerState {
+    IMAGE_DETECTION,
+    IMAGE_TRACKING,
+    ARBITRACK
+}
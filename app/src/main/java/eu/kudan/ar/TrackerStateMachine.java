@@ -0,0 +1,154 @@
+package eu.kudan.ar;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the current TrackerState and the commands that change it without any locking.
+ *
+ * The tracking stage is the only thread that starts or stops the native trackers. Other threads,
+ * such as the UI thread, submit Commands to a lock-free queue which the tracking stage drains
+ * between frames, so a request to change tracking never blocks on frame processing and frame
+ * processing never blocks on a request. All state changes are made by atomic compare-and-set, so
+ * any thread can read a consistent state at any time.
+ */
+class TrackerStateMachine {
+
+    /**
+     * Requests that can be submitted to change the tracking state.
+     */
+    enum Command {
+
+        /**
+         * Starts markerless tracking, from the pose of the tracked image if one is being tracked
+         * when the command is run or in front of the camera otherwise.
+         */
+        START_ARBITRACK,
+
+        /**
+         * Stops markerless tracking and returns to image detection.
+         */
+        STOP_ARBITRACK
+    }
+
+    /**
+     * Actions performed by the tracking stage when commands are run.
+     */
+    interface Actions {
+
+        /**
+         * Starts the markerless tracker.
+         *
+         * @param startFromImageTrackable Whether tracking should start from the pose of the tracked image.
+         */
+        void startArbiTracker(boolean startFromImageTrackable);
+
+        /**
+         * Stops the markerless tracker.
+         */
+        void stopArbiTracker();
+    }
+
+    private final AtomicReference<TrackerState> mState = new AtomicReference<>(TrackerState.IMAGE_DETECTION);
+
+    private final ConcurrentLinkedQueue<Command> mCommands = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Gets the current tracking state.
+     *
+     * @return The current state. Safe to call from any thread.
+     */
+    TrackerState getState() {
+        return mState.get();
+    }
+
+    /**
+     * Atomically changes the state if it is still the expected state.
+     *
+     * @param expected The state the caller based its decision on.
+     * @param next The new state.
+     * @return Whether the state was changed. False if another transition happened first.
+     */
+    boolean transition(TrackerState expected, TrackerState next) {
+        return mState.compareAndSet(expected, next);
+    }
+
+    /**
+     * Queues a command to be run by the tracking stage before it processes its next frame.
+     *
+     * Never blocks. Safe to call from any thread.
+     *
+     * @param command The command to queue.
+     */
+    void submit(Command command) {
+
+        if (command == null) {
+            throw new IllegalArgumentException("Command cannot be null.");
+        }
+
+        mCommands.offer(command);
+    }
+
+    /**
+     * Queues the command a user expects from the button that toggles markerless tracking in the
+     * current state.
+     *
+     * @return The command that was queued.
+     */
+    Command submitToggle() {
+
+        Command command = mState.get() == TrackerState.ARBITRACK ? Command.STOP_ARBITRACK : Command.START_ARBITRACK;
+
+        submit(command);
+
+        return command;
+    }
+
+    /**
+     * Gets whether any commands are waiting to be run.
+     *
+     * @return True if the command queue is not empty.
+     */
+    boolean hasPendingCommands() {
+        return !mCommands.isEmpty();
+    }
+
+    /**
+     * Runs every queued command in submission order. Must only be called from the tracking stage.
+     *
+     * Commands that no longer apply to the current state, such as starting markerless tracking
+     * twice, are skipped.
+     *
+     * @param actions The actions that start and stop the trackers.
+     * @return The number of commands that changed the state.
+     */
+    int drainCommands(Actions actions) {
+
+        int applied = 0;
+        Command command;
+
+        while ((command = mCommands.poll()) != null) {
+
+            TrackerState state = mState.get();
+
+            if (command == Command.START_ARBITRACK && state != TrackerState.ARBITRACK) {
+
+                actions.startArbiTracker(state == TrackerState.IMAGE_TRACKING);
+
+                if (mState.compareAndSet(state, TrackerState.ARBITRACK)) {
+                    applied++;
+                }
+            }
+            else if (command == Command.STOP_ARBITRACK && state == TrackerState.ARBITRACK) {
+
+                actions.stopArbiTracker();
+
+                if (mState.compareAndSet(state, TrackerState.IMAGE_DETECTION)) {
+                    applied++;
+                }
+            }
+        }
+
+        return applied;
+    }
+}
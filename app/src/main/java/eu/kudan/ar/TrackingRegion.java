@@ -0,0 +1,232 @@
+package eu.kudan.ar;
+
+/**
+ * Chooses the region of a camera frame passed to the image tracker while a trackable is tracked.
+ *
+ * Tracking time grows with the number of pixels the tracker examines, but tracked markers rarely
+ * cover more than a small part of the frame. The region is the bounding box of the corners of
+ * every trackable projected on the previous frame, padded to allow for motion between frames and
+ * clamped to the frame. When the padded box would cover most of the frame the full frame is used
+ * instead.
+ *
+ * The region also records how many pixels were passed to the tracker for each frame.
+ *
+ * All methods are called from the tracking stage except the statistics getters.
+ */
+class TrackingRegion {
+
+    /**
+     * Default parameters: pad the box by half its size on each side and by at least 48 pixels,
+     * and only crop when the region covers no more than 60% of the frame.
+     */
+    static final float DEFAULT_PADDING = 0.5f;
+    static final int DEFAULT_MIN_MARGIN = 48;
+    static final float DEFAULT_MAX_AREA_FRACTION = 0.6f;
+
+    private final float mPadding;
+    private final int mMinMargin;
+    private final float mMaxAreaFraction;
+
+    /**
+     * The region chosen by the last call to update(), in frame pixels.
+     */
+    int left;
+    int top;
+    int width;
+    int height;
+
+    /**
+     * Counters of the frames and pixels passed to the tracker and the pixels of the full frames
+     * they were taken from.
+     */
+    private volatile long mFrameCount;
+    private volatile long mCroppedFrameCount;
+    private volatile long mPixelsProcessed;
+    private volatile long mFramePixels;
+    private volatile long mLastPixelsProcessed;
+
+    /**
+     * Constructs a TrackingRegion with the default parameters.
+     */
+    TrackingRegion() {
+        this(DEFAULT_PADDING, DEFAULT_MIN_MARGIN, DEFAULT_MAX_AREA_FRACTION);
+    }
+
+    /**
+     * Constructs a TrackingRegion.
+     *
+     * @param padding The padding added to each side of the bounding box, as a fraction of its size.
+     * @param minMargin The smallest padding added to each side of the bounding box in pixels.
+     * @param maxAreaFraction The largest fraction of the frame a region may cover, in (0, 1].
+     */
+    TrackingRegion(float padding, int minMargin, float maxAreaFraction) {
+
+        if (padding < 0.0f || minMargin < 0) {
+            throw new IllegalArgumentException("Tracking region padding must be non-negative.");
+        }
+
+        if (maxAreaFraction <= 0.0f || maxAreaFraction > 1.0f) {
+            throw new IllegalArgumentException("Tracking region area fraction must be in (0, 1].");
+        }
+
+        mPadding = padding;
+        mMinMargin = minMargin;
+        mMaxAreaFraction = maxAreaFraction;
+    }
+
+    /**
+     * Chooses the region of the next frame to track from the corners projected on a previous frame.
+     *
+     * @param result The result holding the previously projected corners.
+     * @param resultWidth The width of the frame the corners were projected into.
+     * @param resultHeight The height of the frame the corners were projected into.
+     * @param frameWidth The width of the frame about to be tracked.
+     * @param frameHeight The height of the frame about to be tracked.
+     * @return True if only the chosen region should be tracked, or false if the full frame should be.
+     */
+    boolean update(TrackingResult result, int resultWidth, int resultHeight, int frameWidth, int frameHeight) {
+
+        setFullFrame(frameWidth, frameHeight);
+
+        if (!result.hasData() || result.count == 0 || resultWidth <= 0 || resultHeight <= 0) {
+            return false;
+        }
+
+        // Corners may have been projected into a frame of another size, such as the detection stream.
+        float scaleX = (float) frameWidth / resultWidth;
+        float scaleY = (float) frameHeight / resultHeight;
+
+        float minX = Float.POSITIVE_INFINITY;
+        float minY = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY;
+        float maxY = Float.NEGATIVE_INFINITY;
+
+        // Bound every tracked trackable.
+        for (int entry = 0; entry < result.count; entry++) {
+
+            for (int i = 0; i < 4; i++) {
+
+                float x = result.getCornerX(entry, i) * scaleX;
+                float y = result.getCornerY(entry, i) * scaleY;
+
+                minX = Math.min(minX, x);
+                minY = Math.min(minY, y);
+                maxX = Math.max(maxX, x);
+                maxY = Math.max(maxY, y);
+            }
+        }
+
+        // A degenerate projection, such as a corner behind the camera, cannot bound the trackable.
+        if (Float.isNaN(minX) || Float.isNaN(minY) || Float.isInfinite(maxX - minX) || Float.isInfinite(maxY - minY)) {
+            return false;
+        }
+
+        float marginX = Math.max((maxX - minX) * mPadding, mMinMargin);
+        float marginY = Math.max((maxY - minY) * mPadding, mMinMargin);
+
+        int regionLeft = Math.max((int) Math.floor(minX - marginX), 0);
+        int regionTop = Math.max((int) Math.floor(minY - marginY), 0);
+        int regionRight = Math.min((int) Math.ceil(maxX + marginX), frameWidth);
+        int regionBottom = Math.min((int) Math.ceil(maxY + marginY), frameHeight);
+
+        // The trackable has left the frame.
+        if (regionRight <= regionLeft || regionBottom <= regionTop) {
+            return false;
+        }
+
+        long regionArea = (long) (regionRight - regionLeft) * (regionBottom - regionTop);
+
+        if (regionArea > mMaxAreaFraction * frameWidth * frameHeight) {
+            return false;
+        }
+
+        left = regionLeft;
+        top = regionTop;
+        width = regionRight - regionLeft;
+        height = regionBottom - regionTop;
+
+        return true;
+    }
+
+    /**
+     * Sets the region to cover a full frame.
+     *
+     * @param frameWidth The width of the frame.
+     * @param frameHeight The height of the frame.
+     */
+    void setFullFrame(int frameWidth, int frameHeight) {
+
+        left = 0;
+        top = 0;
+        width = frameWidth;
+        height = frameHeight;
+    }
+
+    /**
+     * Records the pixels passed to the tracker for a frame.
+     *
+     * @param pixels The number of pixels the tracker examined, including any retries.
+     * @param frameWidth The width of the full frame.
+     * @param frameHeight The height of the full frame.
+     * @param cropped Whether only a region of the frame was tracked.
+     */
+    void recordFrame(long pixels, int frameWidth, int frameHeight, boolean cropped) {
+
+        mFrameCount++;
+        mPixelsProcessed += pixels;
+        mFramePixels += (long) frameWidth * frameHeight;
+        mLastPixelsProcessed = pixels;
+
+        if (cropped) {
+            mCroppedFrameCount++;
+        }
+    }
+
+    /**
+     * Gets the number of pixels passed to the tracker for the most recently tracked frame.
+     *
+     * @return The pixels processed for the last frame.
+     */
+    long getLastPixelsProcessed() {
+        return mLastPixelsProcessed;
+    }
+
+    /**
+     * Gets the total number of pixels passed to the tracker.
+     *
+     * @return The pixels processed for all tracked frames.
+     */
+    long getPixelsProcessed() {
+        return mPixelsProcessed;
+    }
+
+    /**
+     * Gets the number of frames recorded while a trackable was tracked.
+     *
+     * @return The number of frames recorded.
+     */
+    long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Gets the number of frames of which only a region was tracked.
+     *
+     * @return The number of cropped frames.
+     */
+    long getCroppedFrameCount() {
+        return mCroppedFrameCount;
+    }
+
+    /**
+     * Gets the pixels passed to the tracker as a fraction of the pixels in the frames tracked.
+     *
+     * @return The processed fraction, or 1 if no frames have been recorded.
+     */
+    float getProcessedFraction() {
+
+        long framePixels = mFramePixels;
+
+        return framePixels > 0 ? (float) mPixelsProcessed / framePixels : 1.0f;
+    }
+}
@@ -0,0 +1,196 @@
+package eu.kudan.ar;
+
+/**
+ * Caller-owned buffer that the native trackers write the result of processing a frame into.
+ *
+ * Holds one packed entry for each trackable tracked in the frame, each with the index of the
+ * trackable, the projected centre and corners of its primitive and its full 3D pose, so a single
+ * native call returns everything needed to draw or anchor content without allocating on the Java
+ * heap. Entries are ENTRY_LENGTH floats apart and each is laid out as follows:
+ *
+ * <pre>
+ *  0       index of the trackable in the order it was added, or ARBITRACK_INDEX
+ *  1 - 2   projected centre x, y
+ *  3 - 10  projected corners x0, y0, x1, y1, x2, y2, x3, y3
+ * 11 - 13  position x, y, z in the camera coordinate frame
+ * 14 - 17  orientation quaternion w, x, y, z
+ * 18 - 19  half width and half height of the primitive in its own coordinate frame
+ * </pre>
+ *
+ * Projected points on or behind the camera plane are NaN, so check hasProjectedOutline() before
+ * drawing an entry.
+ */
+class TrackingResult {
+
+    /**
+     * Status codes returned by the native markerless tracker.
+     */
+    static final int STATUS_NOT_TRACKED = 0;
+    static final int STATUS_TRACKED = 1;
+
+    /**
+     * The tracker is running but has not yet estimated a pose. Projected values are all zero.
+     */
+    static final int STATUS_NO_POSE = 2;
+
+    /**
+     * The largest number of trackables tracked simultaneously.
+     *
+     * All entries are returned by one native call and drawn in one pass, so the cost of returning
+     * and drawing results stays flat up to this many trackables. The cost of tracking itself grows
+     * with the number of trackables in view.
+     */
+    static final int MAX_ENTRIES = 4;
+
+    /**
+     * The trackable index reported for the markerless tracker's single entry.
+     */
+    static final int ARBITRACK_INDEX = -1;
+
+    /**
+     * Offsets of the fields of an entry and the length of an entry and of the data array. Must
+     * match native-lib.cpp.
+     */
+    static final int INDEX = 0;
+    static final int CENTRE = 1;
+    static final int CORNERS = 3;
+    static final int POSITION = 11;
+    static final int ORIENTATION = 14;
+    static final int EXTENT = 18;
+    static final int ENTRY_LENGTH = 20;
+    static final int LENGTH = MAX_ENTRIES * ENTRY_LENGTH;
+
+    /**
+     * The packed result entries, written by the native trackers.
+     */
+    final float[] data = new float[LENGTH];
+
+    /**
+     * The status of the most recent result.
+     */
+    int status = STATUS_NOT_TRACKED;
+
+    /**
+     * The number of valid entries in the data array.
+     */
+    int count;
+
+    /**
+     * Gets whether the result contains projected tracking data.
+     *
+     * @return True if the tracker returned data for the frame.
+     */
+    boolean hasData() {
+        return status != STATUS_NOT_TRACKED;
+    }
+
+    /**
+     * Gets the index of the trackable an entry belongs to.
+     *
+     * @param entry The index of the entry, from 0 to count - 1.
+     * @return The index of the trackable in the order it was added, or ARBITRACK_INDEX.
+     */
+    int getTrackableIndex(int entry) {
+        return (int) data[entry * ENTRY_LENGTH + INDEX];
+    }
+
+    /**
+     * Gets whether the projected centre and corners of an entry are all finite. Points on or
+     * behind the camera plane have no projection, so an entry turned away from the camera has no
+     * outline to draw.
+     *
+     * @param entry The index of the entry, from 0 to count - 1.
+     * @return True if the outline of the entry can be drawn.
+     */
+    boolean hasProjectedOutline(int entry) {
+
+        int offset = entry * ENTRY_LENGTH + CENTRE;
+
+        for (int i = 0; i < 5 * 2; i++) {
+
+            float value = data[offset + i];
+
+            if (Float.isNaN(value) || Float.isInfinite(value)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Gets the projected x coordinate of a corner of the first tracked primitive.
+     *
+     * @param corner The index of the corner, from 0 to 3.
+     * @return The x coordinate in camera frame pixels.
+     */
+    float getCornerX(int corner) {
+        return getCornerX(0, corner);
+    }
+
+    /**
+     * Gets the projected y coordinate of a corner of the first tracked primitive.
+     *
+     * @param corner The index of the corner, from 0 to 3.
+     * @return The y coordinate in camera frame pixels.
+     */
+    float getCornerY(int corner) {
+        return getCornerY(0, corner);
+    }
+
+    /**
+     * Gets the projected x coordinate of a corner of a tracked primitive.
+     *
+     * @param entry The index of the entry, from 0 to count - 1.
+     * @param corner The index of the corner, from 0 to 3.
+     * @return The x coordinate in camera frame pixels.
+     */
+    float getCornerX(int entry, int corner) {
+        return data[entry * ENTRY_LENGTH + CORNERS + corner * 2];
+    }
+
+    /**
+     * Gets the projected y coordinate of a corner of a tracked primitive.
+     *
+     * @param entry The index of the entry, from 0 to count - 1.
+     * @param corner The index of the corner, from 0 to 3.
+     * @return The y coordinate in camera frame pixels.
+     */
+    float getCornerY(int entry, int corner) {
+        return data[entry * ENTRY_LENGTH + CORNERS + corner * 2 + 1];
+    }
+
+    /**
+     * Gets half the width of a tracked primitive, so that its outline can be projected again
+     * through another pose.
+     *
+     * @param entry The index of the entry, from 0 to count - 1.
+     * @return The half width in the coordinate frame of the trackable.
+     */
+    float getHalfWidth(int entry) {
+        return data[entry * ENTRY_LENGTH + EXTENT];
+    }
+
+    /**
+     * Gets half the height of a tracked primitive.
+     *
+     * @param entry The index of the entry, from 0 to count - 1.
+     * @return The half height in the coordinate frame of the trackable.
+     */
+    float getHalfHeight(int entry) {
+        return data[entry * ENTRY_LENGTH + EXTENT + 1];
+    }
+
+    /**
+     * Copies another result into this one.
+     *
+     * @param other The result to copy.
+     */
+    void set(TrackingResult other) {
+
+        System.arraycopy(other.data, 0, data, 0, other.count * ENTRY_LENGTH);
+
+        status = other.status;
+        count = other.count;
+    }
+}
@@ -0,0 +1,175 @@
+package eu.kudan.ar;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the tracker state shown by the UI from a pipeline thread to the UI thread.
+ *
+ * A state is only published when it differs from the last one published, and publishing posts a
+ * single pre-allocated Runnable to the UI thread. While that Runnable is pending, later states
+ * replace the pending one instead of being posted again, so at most one update is ever queued and
+ * the UI only applies the latest state. The executor for the UI thread is held from construction,
+ * so publishing does not depend on the fragment being attached to an activity, and updates
+ * reaching the UI thread while no listener is set are dropped and published again once one is.
+ *
+ * States are published by one thread at a time. The listener is set and called on the UI thread.
+ */
+class UiStatePublisher implements Runnable {
+
+    /**
+     * Receives the published states on the UI thread.
+     */
+    interface Listener {
+
+        /**
+         * Called on the UI thread with the latest published state.
+         *
+         * @param state The tracker state to show.
+         */
+        void onUiState(TrackerState state);
+    }
+
+    private final Executor mUiExecutor;
+
+    /**
+     * The latest published state, read by the UI thread when the posted Runnable runs.
+     */
+    private volatile TrackerState mPendingState;
+
+    /**
+     * Whether the Runnable is posted and has not yet read the pending state.
+     */
+    private final AtomicBoolean mPosted = new AtomicBoolean();
+
+    /**
+     * The last state published. Owned by the publishing thread, except that it is cleared by
+     * invalidate() to publish the next state whatever it is.
+     */
+    private volatile TrackerState mLastState;
+
+    private Listener mListener;
+
+    private final AtomicLong mPostedCount = new AtomicLong();
+    private final AtomicLong mUnchangedCount = new AtomicLong();
+    private final AtomicLong mCoalescedCount = new AtomicLong();
+
+    /**
+     * Constructs a UiStatePublisher.
+     *
+     * @param uiExecutor Executor that runs tasks on the UI thread, such as one posting to its
+     *                   Handler.
+     */
+    UiStatePublisher(Executor uiExecutor) {
+        mUiExecutor = uiExecutor;
+    }
+
+    /**
+     * Sets the listener that applies published states, and publishes the next state even if it is
+     * unchanged so that the listener's views are brought up to date.
+     *
+     * Called on the UI thread.
+     *
+     * @param listener The listener, or null to drop updates, such as while the fragment is paused.
+     */
+    void setListener(Listener listener) {
+
+        mListener = listener;
+
+        invalidate();
+    }
+
+    /**
+     * Publishes the next state even if it is unchanged.
+     */
+    void invalidate() {
+        mLastState = null;
+    }
+
+    /**
+     * Publishes a state to the UI thread if it has changed.
+     *
+     * @param state The current tracker state.
+     */
+    void publish(TrackerState state) {
+
+        if (state == mLastState) {
+            mUnchangedCount.incrementAndGet();
+            return;
+        }
+
+        mLastState = state;
+
+        // The pending state is written before the posted flag is checked, so the Runnable either
+        // reads this state or is posted again to read it.
+        mPendingState = state;
+
+        if (mPosted.compareAndSet(false, true)) {
+            mPostedCount.incrementAndGet();
+            mUiExecutor.execute(this);
+        }
+        else {
+            mCoalescedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Applies the latest published state on the UI thread.
+     */
+    @Override
+    public void run() {
+
+        // Clear the flag before reading the state, so that a state published after the read posts
+        // the Runnable again.
+        mPosted.set(false);
+
+        TrackerState state = mPendingState;
+
+        if (mListener == null) {
+
+            // Nothing shows the state, so publish it again once something does.
+            invalidate();
+
+            return;
+        }
+
+        mListener.onUiState(state);
+    }
+
+    /**
+     * Gets the number of updates posted to the UI thread.
+     *
+     * @return The posted update count.
+     */
+    long getPostedCount() {
+        return mPostedCount.get();
+    }
+
+    /**
+     * Gets the number of states not published because they were unchanged.
+     *
+     * @return The unchanged state count.
+     */
+    long getUnchangedCount() {
+        return mUnchangedCount.get();
+    }
+
+    /**
+     * Gets the number of states merged into an update that was already pending.
+     *
+     * @return The coalesced state count.
+     */
+    long getCoalescedCount() {
+        return mCoalescedCount.get();
+    }
+
+    /**
+     * Gets the total number of updates suppressed, whether unchanged or coalesced.
+     *
+     * @return The suppressed update count.
+     */
+    long getSuppressedCount() {
+        return mUnchangedCount.get() + mCoalescedCount.get();
+    }
+}
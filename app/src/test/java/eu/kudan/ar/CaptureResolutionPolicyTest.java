@@ -0,0 +1,228 @@
+package eu.kudan.ar;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the candidate sizes and the step changes chosen by CaptureResolutionPolicy.
+ */
+public class CaptureResolutionPolicyTest {
+
+    private static final long FRAME_NS = 33333333L;
+    private static final int WINDOW_FRAMES = 5;
+    private static final int STEP_UP_WINDOWS = 3;
+
+    /**
+     * Tracking times above the step-down fraction of the budget, and low enough that the next
+     * larger size is expected to fit the step-up fraction.
+     */
+    private static final long SLOW_NS = 32000000L;
+    private static final long FAST_NS = 5000000L;
+
+    /**
+     * Output sizes of a camera: three 16:9 sizes within 1920x1080, and a 4:3 size, a size larger
+     * than the maximum and a size too slow for the budget which are all excluded.
+     */
+    private static final int[] WIDTHS = { 640, 1280, 3840, 960, 1920, 1600 };
+    private static final int[] HEIGHTS = { 480, 720, 2160, 540, 1080, 900 };
+    private static final long[] DURATIONS = { 0, 0, 0, 0, FRAME_NS, 50000000L };
+
+    private long mTimestamp;
+
+    @Test
+    public void candidatesShareTheAspectFitAndMeetTheBudget() {
+
+        CaptureResolutionPolicy policy = createPolicy(0);
+
+        assertEquals(3, policy.getCandidateCount());
+        assertSize(policy, 1920, 1080);
+
+        // Stepping down visits every candidate, largest first.
+        assertTrue(feed(policy, 1920, 1080, SLOW_NS, WINDOW_FRAMES));
+        assertSize(policy, 1280, 720);
+
+        assertTrue(feed(policy, 1280, 720, SLOW_NS, WINDOW_FRAMES));
+        assertSize(policy, 960, 540);
+
+        assertFalse(feed(policy, 960, 540, SLOW_NS, WINDOW_FRAMES));
+        assertSize(policy, 960, 540);
+    }
+
+    @Test
+    public void largestAllowedSizeIsUsedWhenNothingMatches() {
+
+        CaptureResolutionPolicy policy = createPolicy(0);
+
+        policy.setCandidates(new int[] { 640, 3840 }, new int[] { 480, 2160 }, new long[] { 0, 0 });
+
+        assertEquals(1, policy.getCandidateCount());
+        assertSize(policy, 1920, 1080);
+    }
+
+    @Test
+    public void oneSlowWindowStepsDown() {
+
+        CaptureResolutionPolicy policy = createPolicy(0);
+
+        assertFalse(feed(policy, 1920, 1080, SLOW_NS, WINDOW_FRAMES - 1));
+        assertSize(policy, 1920, 1080);
+
+        assertTrue(feed(policy, 1920, 1080, SLOW_NS, 1));
+        assertSize(policy, 1280, 720);
+
+        assertEquals(1, policy.getStepDowns());
+    }
+
+    @Test
+    public void stepUpNeedsSeveralFastWindows() {
+
+        CaptureResolutionPolicy policy = createPolicy(0);
+
+        assertTrue(feed(policy, 1920, 1080, SLOW_NS, WINDOW_FRAMES));
+
+        for (int window = 1; window < STEP_UP_WINDOWS; window++) {
+            assertFalse(feed(policy, 1280, 720, FAST_NS, WINDOW_FRAMES));
+        }
+
+        assertTrue(feed(policy, 1280, 720, FAST_NS, WINDOW_FRAMES));
+        assertSize(policy, 1920, 1080);
+        assertEquals(1, policy.getStepUps());
+    }
+
+    @Test
+    public void windowTooSlowForTheLargerSizeRestartsTheStepUpCount() {
+
+        CaptureResolutionPolicy policy = createPolicy(0);
+
+        assertTrue(feed(policy, 1920, 1080, SLOW_NS, WINDOW_FRAMES));
+
+        // 12 ms scaled to the larger size exceeds the step-up fraction but not the step-down one.
+        long middleNs = 12000000L;
+
+        assertFalse(feed(policy, 1280, 720, FAST_NS, WINDOW_FRAMES * (STEP_UP_WINDOWS - 1)));
+        assertFalse(feed(policy, 1280, 720, middleNs, WINDOW_FRAMES));
+        assertFalse(feed(policy, 1280, 720, FAST_NS, WINDOW_FRAMES * (STEP_UP_WINDOWS - 1)));
+        assertSize(policy, 1280, 720);
+
+        assertTrue(feed(policy, 1280, 720, FAST_NS, WINDOW_FRAMES));
+        assertSize(policy, 1920, 1080);
+    }
+
+    @Test
+    public void changesWaitForTheMinimumInterval() {
+
+        long intervalNs = 100 * FRAME_NS;
+        CaptureResolutionPolicy policy = createPolicy(intervalNs);
+
+        long start = mTimestamp;
+
+        // Slow windows that end inside the interval from the first frame change nothing.
+        while (windowEnd() - start < intervalNs) {
+            assertFalse(feed(policy, 1920, 1080, SLOW_NS, WINDOW_FRAMES));
+        }
+
+        // The first slow window to end after the interval steps down.
+        assertTrue(feed(policy, 1920, 1080, SLOW_NS, WINDOW_FRAMES));
+        assertSize(policy, 1280, 720);
+
+        long changed = mTimestamp - FRAME_NS;
+
+        // Stepping straight back up has to wait for the interval from the change as well.
+        while (windowEnd() - changed < intervalNs) {
+            assertFalse(feed(policy, 1280, 720, FAST_NS, WINDOW_FRAMES));
+        }
+
+        assertTrue(feed(policy, 1280, 720, FAST_NS, WINDOW_FRAMES));
+        assertSize(policy, 1920, 1080);
+    }
+
+    @Test
+    public void framesOfOtherSizesAreIgnored() {
+
+        CaptureResolutionPolicy policy = createPolicy(0);
+
+        // Frames of a detection stream, or captured before a change, neither change the size nor
+        // count towards the window of the current size.
+        assertFalse(feed(policy, 640, 360, SLOW_NS, WINDOW_FRAMES * 4));
+        assertFalse(feed(policy, 1920, 1080, SLOW_NS, WINDOW_FRAMES - 1));
+        assertFalse(feed(policy, 1280, 720, SLOW_NS, WINDOW_FRAMES));
+        assertSize(policy, 1920, 1080);
+
+        assertTrue(feed(policy, 1920, 1080, SLOW_NS, 1));
+        assertSize(policy, 1280, 720);
+    }
+
+    @Test
+    public void selectStartsFromAPreviousCandidate() {
+
+        CaptureResolutionPolicy policy = createPolicy(0);
+
+        assertTrue(policy.select(960, 540));
+        assertSize(policy, 960, 540);
+
+        assertFalse(policy.select(640, 480));
+        assertSize(policy, 960, 540);
+    }
+
+    @Test
+    public void tooManyCandidatesAreRejected() {
+
+        CaptureResolutionPolicy policy = createPolicy(0);
+
+        int count = 1 << 20;
+
+        try {
+            policy.setCandidates(new int[count], new int[count], new long[count]);
+            fail("More candidates than fit the sort key were accepted.");
+        }
+        catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    private static CaptureResolutionPolicy createPolicy(long minChangeIntervalNs) {
+
+        CaptureResolutionPolicy policy = new CaptureResolutionPolicy(1920, 1080, FRAME_NS, CaptureResolutionPolicy.DEFAULT_STEP_DOWN_FRACTION, CaptureResolutionPolicy.DEFAULT_STEP_UP_FRACTION, WINDOW_FRAMES, STEP_UP_WINDOWS, minChangeIntervalNs);
+
+        policy.setCandidates(WIDTHS, HEIGHTS, DURATIONS);
+
+        return policy;
+    }
+
+    /**
+     * Gets the timestamp of the last frame of the next window.
+     */
+    private long windowEnd() {
+        return mTimestamp + (WINDOW_FRAMES - 1) * FRAME_NS;
+    }
+
+    /**
+     * Reports frames of a size one frame period apart, and gets whether the last asked for a change.
+     */
+    private boolean feed(CaptureResolutionPolicy policy, int width, int height, long trackingNs, int frames) {
+
+        boolean changed = false;
+
+        for (int i = 0; i < frames; i++) {
+
+            changed = policy.onFrameTracked(mTimestamp, width, height, trackingNs);
+
+            mTimestamp += FRAME_NS;
+
+            if (changed && i < frames - 1) {
+                fail("Changed size after " + (i + 1) + " of " + frames + " frames.");
+            }
+        }
+
+        return changed;
+    }
+
+    private static void assertSize(CaptureResolutionPolicy policy, int width, int height) {
+        assertEquals(width, policy.getWidth());
+        assertEquals(height, policy.getHeight());
+    }
+}
@@ -0,0 +1,128 @@
+package eu.kudan.ar;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that DetectionScheduler picks the same frames for detection every time a recording is
+ * replayed.
+ */
+public class DetectionSchedulerTest {
+
+    private static final int WIDTH = 8;
+    private static final int HEIGHT = 6;
+    private static final int FRAMES = 150;
+    private static final long FRAME_NS = 33333333L;
+    private static final long TIMEOUT_MS = 10000;
+
+    private File mRecording;
+
+    @Before
+    public void record() throws IOException {
+
+        mRecording = File.createTempFile("detection", ".rec");
+
+        FrameRecorder recorder = new FrameRecorder(mRecording, true);
+        ByteBuffer plane = ByteBuffer.allocateDirect(WIDTH * HEIGHT);
+
+        try {
+            for (int frame = 0; frame < FRAMES; frame++) {
+
+                long timestamp = 1000000000L + frame * FRAME_NS;
+
+                recorder.writeOrientation(timestamp - FRAME_NS / 2, 1, 0, 0, 0);
+                recorder.writeFrame(plane, WIDTH, HEIGHT, WIDTH, timestamp);
+            }
+        }
+        finally {
+            recorder.close();
+        }
+    }
+
+    @After
+    public void deleteRecording() {
+        assertTrue(mRecording.delete());
+    }
+
+    @Test
+    public void replayDetectsOnTheSameFramesEveryTime() throws Exception {
+
+        // Each replay runs with different detection times, as wall-clock times differ between runs.
+        List<Long> first = replay(false, 1);
+        List<Long> second = replay(false, 2);
+
+        assertEquals(first, second);
+
+        // Detection backs off once the eager period has passed, so the schedule is not trivial.
+        assertTrue("Detected on " + first.size() + " frames.", first.size() < FRAMES);
+    }
+
+    @Test
+    public void measuredDurationsChangeTheSchedule() throws Exception {
+
+        // Live frames are held to the time budget, so the same frames are scheduled differently
+        // when detection takes different times.
+        assertFalse(replay(true, 1).equals(replay(true, 2)));
+    }
+
+    /**
+     * Replays the recording unpaced through a scheduler that never finds a trackable, and gets
+     * the timestamps of the frames detection ran on.
+     */
+    private List<Long> replay(boolean durationsMeasured, long durationSeed) throws Exception {
+
+        final DetectionScheduler scheduler = new DetectionScheduler();
+        final List<Long> detected = new ArrayList<>();
+        final Random durations = new Random(durationSeed);
+
+        scheduler.setDurationsMeasured(durationsMeasured);
+
+        ReplayFrameSource source = new ReplayFrameSource(mRecording, ReplayFrameSource.UNPACED);
+
+        source.start(new FrameSource.Sink() {
+
+            @Override
+            public boolean onFrame(ByteBuffer plane, int width, int height, int rowStride, int pixelStride, long timestamp) {
+
+                if (scheduler.shouldDetect(timestamp)) {
+
+                    detected.add(timestamp);
+
+                    scheduler.onDetectionFinished(timestamp, 10000000L + durations.nextInt(300000000), false);
+                }
+
+                return true;
+            }
+
+            @Override
+            public void onOrientation(long timestamp, float w, float x, float y, float z) {
+            }
+        });
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+
+        while (!source.isFinished() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+
+        source.stop();
+
+        assertTrue(source.isFinished());
+        assertEquals(FRAMES, source.getDeliveredFrameCount());
+        assertEquals(FRAMES, scheduler.getConsideredFrames());
+
+        return detected;
+    }
+}
@@ -0,0 +1,193 @@
+package eu.kudan.ar;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the frame rate ranges and sensor periods chosen by FrameRateGovernor.
+ */
+public class FrameRateGovernorTest {
+
+    private static final long FRAME_NS = 33333333L;
+    private static final long SECOND_NS = 1000000000L;
+
+    /**
+     * Target frame rate ranges as reported by a camera, in no particular order.
+     */
+    private static final int[] LOWERS = { 7, 15, 30, 10, 24 };
+    private static final int[] UPPERS = { 30, 30, 30, 10, 24 };
+
+    @Test
+    public void startsAtTheFastestSteadyRange() {
+
+        FrameRateGovernor governor = new FrameRateGovernor(LOWERS, UPPERS);
+
+        assertRange(governor, 30, 30);
+        assertFalse(governor.isIdle());
+    }
+
+    @Test
+    public void idleTimeoutDropsTheRate() {
+
+        FrameRateGovernor governor = new FrameRateGovernor(LOWERS, UPPERS);
+
+        // The first frame only slows the sensor, which is not needed for detection.
+        assertTrue(governor.onFrame(0, TrackerState.IMAGE_DETECTION));
+        assertEquals(FrameRateGovernor.DEFAULT_IDLE_SENSOR_PERIOD_US, governor.getSensorPeriodUs());
+
+        long timestamp = FRAME_NS;
+
+        // Detection without a hit keeps the full rate until the idle delay has passed.
+        for (; timestamp < FrameRateGovernor.DEFAULT_IDLE_DELAY_NS; timestamp += FRAME_NS) {
+
+            assertFalse(governor.onFrame(timestamp, TrackerState.IMAGE_DETECTION));
+            assertFalse(governor.isIdle());
+            assertRange(governor, 30, 30);
+        }
+
+        assertTrue(governor.onFrame(timestamp, TrackerState.IMAGE_DETECTION));
+        assertTrue(governor.isIdle());
+        assertRange(governor, 10, 10);
+        assertEquals(1, governor.getRangeChanges());
+    }
+
+    @Test
+    public void detectionRestoresTheRateAtOnce() {
+
+        FrameRateGovernor governor = new FrameRateGovernor(LOWERS, UPPERS);
+
+        long timestamp = goIdle(governor);
+
+        // A hit well inside the minimum change interval of the drop is applied on its own frame.
+        timestamp += FRAME_NS;
+
+        assertTrue(governor.onFrame(timestamp, TrackerState.IMAGE_TRACKING));
+        assertFalse(governor.isIdle());
+        assertRange(governor, 30, 30);
+
+        // Losing the trackable restarts the idle delay rather than dropping the rate again.
+        timestamp += FRAME_NS;
+
+        assertFalse(governor.onFrame(timestamp, TrackerState.IMAGE_DETECTION));
+        assertRange(governor, 30, 30);
+
+        assertEquals(2, governor.getRangeChanges());
+    }
+
+    @Test
+    public void markerlessTrackingSamplesTheSensorAtFullRate() {
+
+        FrameRateGovernor governor = new FrameRateGovernor(LOWERS, UPPERS);
+
+        long timestamp = goIdle(governor) + FRAME_NS;
+
+        assertTrue(governor.onFrame(timestamp, TrackerState.ARBITRACK));
+        assertEquals(FrameRateGovernor.DEFAULT_ACTIVE_SENSOR_PERIOD_US, governor.getSensorPeriodUs());
+        assertRange(governor, 30, 30);
+
+        timestamp += FRAME_NS;
+
+        assertTrue(governor.onFrame(timestamp, TrackerState.IMAGE_TRACKING));
+        assertEquals(FrameRateGovernor.DEFAULT_IDLE_SENSOR_PERIOD_US, governor.getSensorPeriodUs());
+    }
+
+    @Test
+    public void trackingRateIsClampedToTheAvailableRanges() {
+
+        // Faster than every range: the fastest range with the highest lower bound.
+        assertEquals(30, rangeForTrackingTime(10000000L));
+
+        // 11 fps with headroom: the slowest range that reaches it.
+        assertEquals(24, rangeForTrackingTime(100000000L));
+
+        // 2 fps with headroom: the slowest range of all, as none is slower.
+        assertEquals(10, rangeForTrackingTime(SECOND_NS));
+    }
+
+    @Test
+    public void idleRateIsClampedToTheAvailableRanges() {
+
+        FrameRateGovernor governor = new FrameRateGovernor(LOWERS, UPPERS, FrameRateGovernor.DEFAULT_HEADROOM, 5, SECOND_NS, 0, FrameRateGovernor.DEFAULT_ACTIVE_SENSOR_PERIOD_US, FrameRateGovernor.DEFAULT_IDLE_SENSOR_PERIOD_US);
+
+        governor.onFrame(0, TrackerState.IMAGE_DETECTION);
+        governor.onFrame(SECOND_NS, TrackerState.IMAGE_DETECTION);
+
+        assertTrue(governor.isIdle());
+        assertRange(governor, 10, 10);
+    }
+
+    @Test
+    public void trackingRateChangesWaitForTheMinimumInterval() {
+
+        FrameRateGovernor governor = new FrameRateGovernor(LOWERS, UPPERS);
+
+        governor.onTrackingTime(100000000L);
+
+        long timestamp = FrameRateGovernor.DEFAULT_MIN_CHANGE_INTERVAL_NS;
+
+        assertTrue(governor.onFrame(timestamp, TrackerState.IMAGE_TRACKING));
+        assertRange(governor, 24, 24);
+
+        // A faster tracker is only followed once the interval has passed.
+        for (int i = 0; i < 200; i++) {
+            governor.onTrackingTime(10000000L);
+        }
+
+        long next = timestamp + FrameRateGovernor.DEFAULT_MIN_CHANGE_INTERVAL_NS;
+
+        for (timestamp += FRAME_NS; timestamp < next; timestamp += FRAME_NS) {
+            assertFalse(governor.onFrame(timestamp, TrackerState.IMAGE_TRACKING));
+        }
+
+        assertTrue(governor.onFrame(timestamp, TrackerState.IMAGE_TRACKING));
+        assertRange(governor, 30, 30);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mismatchedRangesAreRejected() {
+        new FrameRateGovernor(new int[] { 15, 30 }, new int[] { 30 });
+    }
+
+    /**
+     * Detects without a hit until the idle rate is used, and gets the timestamp of the frame that
+     * dropped the rate.
+     */
+    private static long goIdle(FrameRateGovernor governor) {
+
+        long timestamp = 0;
+
+        while (!governor.isIdle()) {
+            governor.onFrame(timestamp, TrackerState.IMAGE_DETECTION);
+            timestamp += FRAME_NS;
+        }
+
+        assertRange(governor, 10, 10);
+
+        return timestamp - FRAME_NS;
+    }
+
+    /**
+     * Gets the upper bound of the range chosen for a tracking time while tracking.
+     */
+    private static int rangeForTrackingTime(long trackingNs) {
+
+        FrameRateGovernor governor = new FrameRateGovernor(LOWERS, UPPERS, FrameRateGovernor.DEFAULT_HEADROOM, FrameRateGovernor.DEFAULT_IDLE_FPS, FrameRateGovernor.DEFAULT_IDLE_DELAY_NS, 0, FrameRateGovernor.DEFAULT_ACTIVE_SENSOR_PERIOD_US, FrameRateGovernor.DEFAULT_IDLE_SENSOR_PERIOD_US);
+
+        governor.onTrackingTime(trackingNs);
+        governor.onFrame(0, TrackerState.IMAGE_TRACKING);
+
+        // Every range chosen is one of those available.
+        assertEquals(LOWERS[governor.getRangeIndex()], governor.getRangeLower());
+        assertEquals(UPPERS[governor.getRangeIndex()], governor.getRangeUpper());
+
+        return governor.getRangeUpper();
+    }
+
+    private static void assertRange(FrameRateGovernor governor, int lower, int upper) {
+        assertEquals(lower, governor.getRangeLower());
+        assertEquals(upper, governor.getRangeUpper());
+    }
+}
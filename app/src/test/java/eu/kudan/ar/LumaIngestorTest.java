@@ -0,0 +1,250 @@
+package eu.kudan.ar;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests LumaIngestor and LumaFrame against synthetic strided planes.
+ */
+public class LumaIngestorTest {
+
+    private static final int WIDTH = 13;
+    private static final int HEIGHT = 7;
+
+    @Test
+    public void paddedRowsArePassedThroughWithTheirStride() {
+
+        int rowStride = 16;
+        ByteBuffer plane = createPlane(rowStride * HEIGHT, 0);
+
+        LumaIngestor ingestor = new LumaIngestor();
+        LumaFrame frame = new LumaFrame(1);
+
+        assertFalse(ingestor.ingest(plane, WIDTH, HEIGHT, rowStride, 1, frame));
+
+        assertEquals(WIDTH, frame.width);
+        assertEquals(HEIGHT, frame.height);
+        assertEquals(rowStride, frame.rowStride);
+        assertEquals(1, ingestor.getPassedThroughCount());
+        assertEquals(0, ingestor.getRepackedCount());
+
+        // The padding is copied too, so the frame holds the plane byte for byte up to its last pixel.
+        byte[] expected = toArray(plane);
+
+        assertArrayEquals(Arrays.copyOf(expected, rowStride * (HEIGHT - 1) + WIDTH), toArray(frame.getData()));
+        assertArrayEquals(reference(plane, rowStride, 1), packedRows(frame.getData(), frame.rowStride));
+    }
+
+    @Test
+    public void interleavedPixelsAreRepacked() {
+
+        int pixelStride = 2;
+        int rowStride = 32;
+        ByteBuffer plane = createPlane(rowStride * HEIGHT, 0);
+
+        LumaIngestor ingestor = new LumaIngestor();
+        LumaFrame frame = new LumaFrame(1);
+
+        assertTrue(ingestor.ingest(plane, WIDTH, HEIGHT, rowStride, pixelStride, frame));
+
+        assertEquals(WIDTH, frame.rowStride);
+        assertEquals(0, ingestor.getPassedThroughCount());
+        assertEquals(1, ingestor.getRepackedCount());
+
+        assertArrayEquals(reference(plane, rowStride, pixelStride), toArray(frame.getData()));
+    }
+
+    @Test
+    public void finalRowMayOmitItsPadding() {
+
+        int rowStride = 32;
+
+        // Both planes end at the last pixel of their final row.
+        ByteBuffer plane = createPlane(rowStride * (HEIGHT - 1) + WIDTH, 0);
+        ByteBuffer interleaved = createPlane(rowStride * (HEIGHT - 1) + (WIDTH - 1) * 2 + 1, 0);
+
+        LumaIngestor ingestor = new LumaIngestor();
+        LumaFrame frame = new LumaFrame(1);
+
+        assertFalse(ingestor.ingest(plane, WIDTH, HEIGHT, rowStride, 1, frame));
+
+        assertEquals(rowStride * (HEIGHT - 1) + WIDTH, frame.getData().remaining());
+        assertArrayEquals(reference(plane, rowStride, 1), packedRows(frame.getData(), frame.rowStride));
+
+        // A consumer that needs whole rows gets a copy that includes the missing padding.
+        ByteBuffer restrided = frame.getDataWithRowStride(rowStride);
+
+        assertEquals(rowStride * HEIGHT, restrided.remaining());
+        assertArrayEquals(reference(plane, rowStride, 1), packedRows(restrided, rowStride));
+
+        assertTrue(ingestor.ingest(interleaved, WIDTH, HEIGHT, rowStride, 2, frame));
+        assertArrayEquals(reference(interleaved, rowStride, 2), toArray(frame.getData()));
+    }
+
+    @Test
+    public void planeStartingPartWayThroughItsBufferIsLeftUnchanged() {
+
+        int rowStride = 16;
+        int offset = 5;
+        ByteBuffer plane = createPlane(offset + rowStride * HEIGHT + 3, offset);
+
+        plane.limit(plane.limit() - 3);
+
+        LumaIngestor ingestor = new LumaIngestor();
+        LumaFrame frame = new LumaFrame(1);
+
+        ingestor.ingest(plane, WIDTH, HEIGHT, rowStride, 1, frame);
+
+        assertEquals(offset, plane.position());
+        assertEquals(offset + rowStride * HEIGHT, plane.limit());
+        assertArrayEquals(reference(plane, rowStride, 1), packedRows(frame.getData(), frame.rowStride));
+
+        ingestor.ingest(plane, WIDTH, HEIGHT / 2, rowStride * 2, 2, frame);
+
+        assertEquals(offset, plane.position());
+        assertEquals(offset + rowStride * HEIGHT, plane.limit());
+    }
+
+    @Test
+    public void frameBufferIsReusedWhenLargeEnough() {
+
+        int rowStride = 16;
+        LumaIngestor ingestor = new LumaIngestor();
+        LumaFrame frame = new LumaFrame(rowStride * HEIGHT);
+
+        ByteBuffer data = frame.getData();
+
+        ingestor.ingest(createPlane(rowStride * HEIGHT, 0), WIDTH, HEIGHT, rowStride, 1, frame);
+        ingestor.ingest(createPlane(WIDTH * HEIGHT * 2, 0), WIDTH, HEIGHT, WIDTH * 2, 2, frame);
+
+        assertTrue(data == frame.getData());
+        assertTrue(frame.getData().isDirect());
+    }
+
+    @Test
+    public void planeTooSmallForItsLayoutIsRejected() {
+
+        int rowStride = 16;
+        ByteBuffer plane = createPlane(rowStride * (HEIGHT - 1) + WIDTH - 1, 0);
+
+        assertRejected(plane, WIDTH, HEIGHT, rowStride, 1);
+        assertRejected(plane, WIDTH, HEIGHT, rowStride, 2);
+    }
+
+    @Test
+    public void invalidStridesAndSizesAreRejected() {
+
+        ByteBuffer plane = createPlane(4096, 0);
+
+        // Rows that would overlap.
+        assertRejected(plane, WIDTH, HEIGHT, WIDTH - 1, 1);
+        assertRejected(plane, WIDTH, HEIGHT, WIDTH, 2);
+
+        assertRejected(plane, WIDTH, HEIGHT, WIDTH, 0);
+        assertRejected(plane, 0, HEIGHT, WIDTH, 1);
+        assertRejected(plane, WIDTH, 0, WIDTH, 1);
+    }
+
+    @Test
+    public void restrideRejectsRowsNarrowerThanTheFrame() {
+
+        LumaFrame frame = new LumaFrame(1);
+
+        new LumaIngestor().ingest(createPlane(WIDTH * HEIGHT, 0), WIDTH, HEIGHT, WIDTH, 1, frame);
+
+        assertTrue(frame.getDataWithRowStride(WIDTH) == frame.getData());
+
+        try {
+            frame.getDataWithRowStride(WIDTH - 1);
+            fail("Row stride narrower than the frame was accepted.");
+        }
+        catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    private static void assertRejected(ByteBuffer plane, int width, int height, int rowStride, int pixelStride) {
+
+        LumaIngestor ingestor = new LumaIngestor();
+
+        try {
+            ingestor.ingest(plane, width, height, rowStride, pixelStride, new LumaFrame(1));
+            fail("Layout " + width + "x" + height + " with row stride " + rowStride + " and pixel stride " + pixelStride + " was accepted.");
+        }
+        catch (IllegalArgumentException e) {
+            // Expected.
+        }
+
+        assertEquals(0, ingestor.getPassedThroughCount() + ingestor.getRepackedCount());
+    }
+
+    /**
+     * Creates a direct plane of distinct byte values, positioned at an offset.
+     */
+    private static ByteBuffer createPlane(int size, int position) {
+
+        ByteBuffer plane = ByteBuffer.allocateDirect(size);
+
+        for (int i = 0; i < size; i++) {
+            plane.put(i, (byte) (i * 31 + 7));
+        }
+
+        plane.position(position);
+
+        return plane;
+    }
+
+    /**
+     * Gathers the pixels of a plane into a tightly packed array one byte at a time.
+     */
+    private static byte[] reference(ByteBuffer plane, int rowStride, int pixelStride) {
+
+        byte[] packed = new byte[WIDTH * HEIGHT];
+
+        for (int row = 0; row < HEIGHT; row++) {
+
+            for (int column = 0; column < WIDTH; column++) {
+                packed[row * WIDTH + column] = plane.get(plane.position() + row * rowStride + column * pixelStride);
+            }
+        }
+
+        return packed;
+    }
+
+    /**
+     * Gathers the pixels of frame data with a given row stride into a tightly packed array.
+     */
+    private static byte[] packedRows(ByteBuffer data, int rowStride) {
+
+        byte[] packed = new byte[WIDTH * HEIGHT];
+
+        for (int row = 0; row < HEIGHT; row++) {
+
+            for (int column = 0; column < WIDTH; column++) {
+                packed[row * WIDTH + column] = data.get(data.position() + row * rowStride + column);
+            }
+        }
+
+        return packed;
+    }
+
+    /**
+     * Copies the remaining bytes of a buffer without moving it.
+     */
+    private static byte[] toArray(ByteBuffer buffer) {
+
+        byte[] bytes = new byte[buffer.remaining()];
+
+        buffer.duplicate().get(bytes);
+
+        return bytes;
+    }
+}
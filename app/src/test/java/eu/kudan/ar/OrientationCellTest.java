@@ -0,0 +1,126 @@
+package eu.kudan.ar;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that OrientationCell hands whole rotations from a writer thread to a reader thread.
+ */
+public class OrientationCellTest {
+
+    private static final int SAMPLES = 4096;
+    private static final int READS = 2000000;
+    private static final float EPSILON = 1e-5f;
+
+    @Test
+    public void readsAreUnitQuaternionsFromASinglePublishedSample() throws InterruptedException {
+
+        // Random rotations, normalised once, which the writer publishes in turn. Their w
+        // components are distinct, so a read identifies the sample its w came from.
+        final float[][] samples = new float[SAMPLES][];
+        Map<Float, Integer> sampleByW = new HashMap<>();
+        Random random = new Random(6);
+
+        while (sampleByW.size() < SAMPLES) {
+
+            float[] q = { (float) random.nextGaussian(), (float) random.nextGaussian(), (float) random.nextGaussian(), (float) random.nextGaussian() };
+            float length = (float) Math.sqrt(q[0] * q[0] + q[1] * q[1] + q[2] * q[2] + q[3] * q[3]);
+
+            for (int i = 0; i < 4; i++) {
+                q[i] /= length;
+            }
+
+            if (!sampleByW.containsKey(q[0]) && q[0] != 1) {
+                samples[sampleByW.size()] = q;
+                sampleByW.put(q[0], sampleByW.size());
+            }
+        }
+
+        final OrientationCell cell = new OrientationCell();
+        final AtomicBoolean reading = new AtomicBoolean(true);
+        final AtomicInteger written = new AtomicInteger();
+
+        // Write for as long as the reader runs, so every read can overlap a write.
+        Thread writer = new Thread() {
+
+            @Override
+            public void run() {
+
+                int i = 0;
+
+                while (reading.get()) {
+
+                    float[] q = samples[i % SAMPLES];
+
+                    cell.write(q[0], q[1], q[2], q[3]);
+
+                    i++;
+                }
+
+                written.set(i);
+            }
+        };
+
+        float[] read = new float[4];
+        float[] identity = { 1, 0, 0, 0 };
+        String error = null;
+        int changes = 0;
+        int previous = -1;
+
+        writer.start();
+
+        for (int reads = 0; reads < READS && error == null; reads++) {
+
+            cell.read(read);
+
+            float lengthSquared = read[0] * read[0] + read[1] * read[1] + read[2] * read[2] + read[3] * read[3];
+
+            if (Math.abs((float) Math.sqrt(lengthSquared) - 1) > EPSILON) {
+                error = "Read a quaternion of length " + Math.sqrt(lengthSquared) + ".";
+                break;
+            }
+
+            Integer sample = sampleByW.get(read[0]);
+            float[] expected = sample != null ? samples[sample] : identity;
+
+            for (int i = 1; i < 4; i++) {
+
+                if (read[i] != expected[i]) {
+                    error = "Read component " + i + " of " + read[i] + " from a different sample than w " + read[0] + ".";
+                    break;
+                }
+            }
+
+            int current = sample != null ? sample : -1;
+
+            if (current != previous) {
+                changes++;
+                previous = current;
+            }
+        }
+
+        reading.set(false);
+        writer.join();
+
+        assertNull(error);
+        assertTrue("Reader saw too few updates to overlap the writer: " + changes + ".", changes > 1);
+
+        // Once the writer has finished, the last sample is read.
+        cell.read(read);
+
+        float[] last = samples[(written.get() - 1) % SAMPLES];
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals(last[i], read[i], 0);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package eu.kudan.ar;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the One-Euro smoothing and prediction of PoseFilter.
+ */
+public class PoseFilterTest {
+
+    private static final long FRAME_NS = 33333333L;
+    private static final float EPSILON = 1e-4f;
+
+    /**
+     * A rotation of 60 degrees about the z axis.
+     */
+    private static final float[] ROTATION = { (float) Math.cos(Math.PI / 6), 0, 0, (float) Math.sin(Math.PI / 6) };
+
+    @Test
+    public void staticPoseIsPassedThroughWithoutLag() {
+
+        PoseFilter filter = new PoseFilter();
+
+        for (int frame = 0; frame < 60; frame++) {
+
+            TrackingResult result = createResult(0, 10, -20, 500, ROTATION);
+
+            filter.filter(result, frame * FRAME_NS, 50000000L);
+
+            assertPose(result, 10, -20, 500, ROTATION);
+        }
+    }
+
+    @Test
+    public void stepIsFollowedWithoutOvershoot() {
+
+        PoseFilter filter = new PoseFilter();
+        filter.setMaxPrediction(0);
+
+        long timestamp = 0;
+
+        for (int frame = 0; frame < 10; frame++, timestamp += FRAME_NS) {
+            filter.filter(createResult(0, 0, 0, 500, ROTATION), timestamp, 0);
+        }
+
+        float previous = 0;
+
+        for (int frame = 0; frame < 300; frame++, timestamp += FRAME_NS) {
+
+            TrackingResult result = createResult(0, 100, 0, 500, ROTATION);
+
+            filter.filter(result, timestamp, 0);
+
+            float x = position(result, 0);
+
+            // The smoothed position moves towards the step on every frame and never passes it.
+            assertTrue("Frame " + frame + " moved back from " + previous + " to " + x + ".", x >= previous);
+            assertTrue("Frame " + frame + " overshot to " + x + ".", x <= 100 + EPSILON);
+
+            if (frame == 0) {
+                assertTrue("The first frame after the step was not smoothed: " + x + ".", x > 0 && x < 100);
+            }
+
+            previous = x;
+        }
+
+        assertEquals(100, previous, 0.01f);
+    }
+
+    @Test
+    public void fasterMotionRaisesTheCutoff() {
+
+        // The same relative step is followed further on its first frame when it is larger, as its
+        // speed raises the cutoff.
+        float slow = firstFrameFraction(1);
+        float fast = firstFrameFraction(1000);
+
+        assertTrue("Slow step followed " + slow + " and fast step " + fast + ".", fast > slow);
+    }
+
+    @Test
+    public void oppositeQuaternionsAreNotFlipped() {
+
+        PoseFilter filter = new PoseFilter();
+
+        float[] negated = { -ROTATION[0], -ROTATION[1], -ROTATION[2], -ROTATION[3] };
+
+        for (int frame = 0; frame < 60; frame++) {
+
+            // q and -q describe the same rotation, so alternating them is a still orientation.
+            TrackingResult result = createResult(0, 0, 0, 500, frame % 2 == 0 ? ROTATION : negated);
+
+            filter.filter(result, frame * FRAME_NS, 50000000L);
+
+            // The output stays a unit quaternion on the side of the first measurement, rather than
+            // being averaged towards zero or flipped.
+            assertPose(result, 0, 0, 500, ROTATION);
+        }
+    }
+
+    @Test
+    public void reacquiredTrackableStartsFromItsMeasurement() {
+
+        PoseFilter filter = new PoseFilter();
+        long timestamp = 0;
+
+        for (int frame = 0; frame < 10; frame++, timestamp += FRAME_NS) {
+            filter.filter(createResult(0, 0, 0, 500, ROTATION), timestamp, 0);
+        }
+
+        // The trackable is lost while another is tracked, then found somewhere else.
+        filter.filter(createResult(1, 50, 50, 500, ROTATION), timestamp, 0);
+        timestamp += FRAME_NS;
+
+        TrackingResult reacquired = createResult(0, 200, 0, 800, ROTATION);
+        filter.filter(reacquired, timestamp, 0);
+        timestamp += FRAME_NS;
+
+        assertPose(reacquired, 200, 0, 800, ROTATION);
+
+        // A frame without a pose forgets every trackable.
+        TrackingResult lost = new TrackingResult();
+        filter.filter(lost, timestamp, 0);
+        timestamp += FRAME_NS;
+
+        TrackingResult found = createResult(0, -300, 0, 400, ROTATION);
+        filter.filter(found, timestamp, 0);
+
+        assertPose(found, -300, 0, 400, ROTATION);
+    }
+
+    @Test
+    public void predictionIsBoundedByTheMaximum() {
+
+        // Move at a constant 300 mm/s until the filter has settled, predicting ten frames ahead
+        // with a limit of one frame, exactly one frame ahead, and not at all.
+        float bounded = settledPosition(10 * FRAME_NS);
+        float oneFrame = settledPosition(FRAME_NS);
+        float unpredicted = settledPosition(0);
+
+        assertEquals(oneFrame, bounded, EPSILON);
+
+        // The prediction extrapolates by the filtered velocity, one frame being 10 mm.
+        assertEquals(10, bounded - unpredicted, 0.1f);
+    }
+
+    /**
+     * Gets the position output after moving at a constant velocity with a one-frame prediction
+     * limit.
+     */
+    private static float settledPosition(long predictionNs) {
+
+        PoseFilter filter = new PoseFilter();
+        filter.setMaxPrediction(FRAME_NS);
+
+        TrackingResult result = null;
+
+        for (int frame = 0; frame < 300; frame++) {
+
+            result = createResult(0, frame * 10, 0, 500, ROTATION);
+
+            filter.filter(result, frame * FRAME_NS, predictionNs);
+        }
+
+        return position(result, 0);
+    }
+
+    /**
+     * Steps a settled filter by a distance and gets the fraction of the step followed on the
+     * first frame.
+     */
+    private static float firstFrameFraction(float step) {
+
+        PoseFilter filter = new PoseFilter();
+        filter.setMaxPrediction(0);
+
+        long timestamp = 0;
+
+        for (int frame = 0; frame < 10; frame++, timestamp += FRAME_NS) {
+            filter.filter(createResult(0, 0, 0, 500, ROTATION), timestamp, 0);
+        }
+
+        TrackingResult result = createResult(0, step, 0, 500, ROTATION);
+
+        filter.filter(result, timestamp, 0);
+
+        return position(result, 0) / step;
+    }
+
+    private static TrackingResult createResult(int index, float x, float y, float z, float[] orientation) {
+
+        TrackingResult result = new TrackingResult();
+
+        result.status = TrackingResult.STATUS_TRACKED;
+        result.count = 1;
+
+        result.data[TrackingResult.INDEX] = index;
+        result.data[TrackingResult.POSITION] = x;
+        result.data[TrackingResult.POSITION + 1] = y;
+        result.data[TrackingResult.POSITION + 2] = z;
+
+        System.arraycopy(orientation, 0, result.data, TrackingResult.ORIENTATION, 4);
+
+        return result;
+    }
+
+    private static float position(TrackingResult result, int axis) {
+        return result.data[TrackingResult.POSITION + axis];
+    }
+
+    private static void assertPose(TrackingResult result, float x, float y, float z, float[] orientation) {
+
+        assertEquals(x, position(result, 0), EPSILON);
+        assertEquals(y, position(result, 1), EPSILON);
+        assertEquals(z, position(result, 2), EPSILON);
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals(orientation[i], result.data[TrackingResult.ORIENTATION + i], EPSILON);
+        }
+    }
+}
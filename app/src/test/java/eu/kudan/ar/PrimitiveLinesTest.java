@@ -0,0 +1,88 @@
+package eu.kudan.ar;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the line segments built by PrimitiveLines for the borders and grids of primitives.
+ */
+public class PrimitiveLinesTest {
+
+    /**
+     * A square from (0, 0) to (100, 100) and a quadrilateral, corners clockwise from top-left.
+     */
+    private static final int[] CORNERS = {
+            0, 0, 100, 0, 100, 100, 0, 100,
+            200, 10, 300, 20, 310, 120, 190, 110
+    };
+
+    @Test
+    public void bordersAreClosedClockwise() {
+
+        PrimitiveLines lines = new PrimitiveLines(2);
+
+        lines.set(CORNERS, 1, false);
+
+        float[] expected = {
+                0, 0, 100, 0,
+                100, 0, 100, 100,
+                100, 100, 0, 100,
+                0, 100, 0, 0
+        };
+
+        assertEquals(expected.length, lines.getLineFloats());
+        assertArrayEquals(expected, Arrays.copyOf(lines.getLines(), lines.getLineFloats()), 0);
+    }
+
+    @Test
+    public void gridsJoinTheMidpointsOfOppositeEdges() {
+
+        PrimitiveLines lines = new PrimitiveLines(2);
+
+        lines.set(CORNERS, 2, true);
+
+        assertEquals(2 * PrimitiveLines.LINE_FLOATS_PER_PRIMITIVE, lines.getLineFloats());
+        assertTrue(lines.isGrid());
+
+        // The grid lines of the square follow its border.
+        float[] grid = { 50, 0, 50, 100, 0, 50, 100, 50 };
+
+        assertArrayEquals(grid, Arrays.copyOfRange(lines.getLines(), 16, 24), 0);
+    }
+
+    @Test
+    public void onlyMovedCornersDiffer() {
+
+        PrimitiveLines lines = new PrimitiveLines(2);
+        int[] corners = CORNERS.clone();
+
+        lines.set(corners, 2, false);
+
+        assertFalse(lines.cornersDiffer(corners, 2));
+
+        // A corner of a primitive beyond the count compared is not looked at.
+        corners[12]++;
+
+        assertFalse(lines.cornersDiffer(corners, 1));
+        assertTrue(lines.cornersDiffer(corners, 2));
+
+        // The recorded corners are a copy of the caller's.
+        lines.set(corners, 2, false);
+        corners[0]++;
+
+        assertEquals(0, lines.getCornerX(0, 0));
+        assertEquals(311, lines.getCornerX(1, 2));
+        assertEquals(120, lines.getCornerY(1, 2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void countBeyondTheCapacityIsRejected() {
+        new PrimitiveLines(1).set(CORNERS, 2, false);
+    }
+}
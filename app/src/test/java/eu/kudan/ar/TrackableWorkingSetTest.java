@@ -0,0 +1,117 @@
+package eu.kudan.ar;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the rotation of a large catalog through a TrackableWorkingSet.
+ */
+public class TrackableWorkingSetTest {
+
+    /**
+     * Backend that mirrors the active set and counts the calls that would rebuild the tracker.
+     */
+    private static class RecordingBackend implements TrackableWorkingSet.Backend {
+
+        final Set<Integer> active = new HashSet<>();
+        final Set<Integer> everActive = new HashSet<>();
+        int deactivateCalls;
+
+        @Override
+        public boolean activate(int index) {
+
+            assertTrue(active.add(index));
+            everActive.add(index);
+
+            return true;
+        }
+
+        @Override
+        public void deactivate(int[] indices, int count) {
+
+            deactivateCalls++;
+
+            for (int i = 0; i < count; i++) {
+                assertTrue(active.remove(indices[i]));
+            }
+        }
+    }
+
+    @Test
+    public void evictionsAreBatchedOncePerRotationInterval() {
+
+        RecordingBackend backend = new RecordingBackend();
+        TrackableWorkingSet workingSet = new TrackableWorkingSet(backend, 4, 4);
+        TrackingResult miss = new TrackingResult();
+
+        for (int i = 0; i < 40; i++) {
+            workingSet.add(i, 0);
+        }
+
+        assertEquals(4, backend.active.size());
+
+        for (int run = 1; run <= 40; run++) {
+
+            workingSet.onDetection(miss, false, run);
+
+            // The tracker is rebuilt once every four misses, not once per miss.
+            assertEquals(run / 4, backend.deactivateCalls);
+            assertEquals(4, backend.active.size());
+            assertEquals(4, workingSet.getActiveCount());
+        }
+
+        assertEquals(10, workingSet.getRotationCount());
+        assertEquals(40, workingSet.getEvictionCount());
+
+        // Every trackable has had a turn.
+        assertEquals(40, backend.everActive.size());
+    }
+
+    @Test
+    public void higherPrioritiesStayActive() {
+
+        RecordingBackend backend = new RecordingBackend();
+        TrackableWorkingSet workingSet = new TrackableWorkingSet(backend, 4, 2);
+        TrackingResult miss = new TrackingResult();
+
+        for (int i = 0; i < 12; i++) {
+            workingSet.add(i, i < 2 ? 1 : 0);
+        }
+
+        for (int run = 0; run < 24; run++) {
+
+            workingSet.onDetection(miss, false, run);
+
+            assertTrue(workingSet.isActive(0));
+            assertTrue(workingSet.isActive(1));
+        }
+
+        assertEquals(12, workingSet.getRotationCount());
+    }
+
+    @Test
+    public void catalogThatFitsIsNeverRotated() {
+
+        RecordingBackend backend = new RecordingBackend();
+        TrackableWorkingSet workingSet = new TrackableWorkingSet(backend, 4, 1);
+        TrackingResult miss = new TrackingResult();
+
+        for (int i = 0; i < 3; i++) {
+            workingSet.add(i, 0);
+        }
+
+        for (int run = 0; run < 10; run++) {
+            workingSet.onDetection(miss, false, run);
+        }
+
+        assertEquals(0, backend.deactivateCalls);
+        assertEquals(0, workingSet.getRotationCount());
+        assertFalse(workingSet.isActive(3));
+    }
+}
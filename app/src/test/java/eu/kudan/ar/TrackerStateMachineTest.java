@@ -0,0 +1,315 @@
+package eu.kudan.ar;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Stress tests of TrackerStateMachine with concurrent submitters and a single draining thread, as
+ * the UI thread and the tracking stage use it.
+ */
+public class TrackerStateMachineTest {
+
+    private static final int SUBMITTERS = 4;
+    private static final int COMMANDS_PER_SUBMITTER = 20000;
+    private static final int TOGGLES = 2000;
+
+    /**
+     * Actions that count the tracker starts and stops, and record the first action run in a state
+     * it does not apply to.
+     */
+    private static class CheckingActions implements TrackerStateMachine.Actions {
+
+        final AtomicInteger starts = new AtomicInteger();
+        final AtomicInteger stops = new AtomicInteger();
+        final AtomicReference<String> error = new AtomicReference<>();
+
+        private final TrackerStateMachine mMachine;
+
+        CheckingActions(TrackerStateMachine machine) {
+            mMachine = machine;
+        }
+
+        @Override
+        public void startArbiTracker(boolean startFromImageTrackable) {
+
+            TrackerState state = mMachine.getState();
+
+            if (state == TrackerState.ARBITRACK || starts.get() != stops.get()) {
+                error.compareAndSet(null, "Markerless tracker started in " + state + " after " + starts.get() + " starts and " + stops.get() + " stops.");
+            }
+
+            if (startFromImageTrackable != (state == TrackerState.IMAGE_TRACKING)) {
+                error.compareAndSet(null, "Markerless tracker started from an image in " + state + ".");
+            }
+
+            starts.incrementAndGet();
+        }
+
+        @Override
+        public void stopArbiTracker() {
+
+            TrackerState state = mMachine.getState();
+
+            if (state != TrackerState.ARBITRACK || starts.get() != stops.get() + 1) {
+                error.compareAndSet(null, "Markerless tracker stopped in " + state + " after " + starts.get() + " starts and " + stops.get() + " stops.");
+            }
+
+            stops.incrementAndGet();
+        }
+    }
+
+    /**
+     * Drains commands in a loop until stopped, as the tracking stage does between frames.
+     */
+    private static class Drainer extends Thread {
+
+        final AtomicInteger applied = new AtomicInteger();
+        final AtomicBoolean running = new AtomicBoolean(true);
+
+        private final TrackerStateMachine mMachine;
+        private final CheckingActions mActions;
+        private final boolean mSimulateTracking;
+        private final Random mRandom = new Random(1);
+
+        Drainer(TrackerStateMachine machine, CheckingActions actions, boolean simulateTracking) {
+            mMachine = machine;
+            mActions = actions;
+            mSimulateTracking = simulateTracking;
+        }
+
+        @Override
+        public void run() {
+
+            while (running.get() || mMachine.hasPendingCommands()) {
+
+                applied.addAndGet(mMachine.drainCommands(mActions));
+
+                // Detect and lose an image now and then, as processed frames do.
+                if (mSimulateTracking) {
+
+                    TrackerState state = mMachine.getState();
+
+                    if (state == TrackerState.IMAGE_DETECTION && mRandom.nextInt(4) == 0) {
+                        mMachine.transition(state, TrackerState.IMAGE_TRACKING);
+                    }
+                    else if (state == TrackerState.IMAGE_TRACKING && mRandom.nextInt(4) == 0) {
+                        mMachine.transition(state, TrackerState.IMAGE_DETECTION);
+                    }
+                }
+            }
+
+            applied.addAndGet(mMachine.drainCommands(mActions));
+        }
+
+        void finish() throws InterruptedException {
+            running.set(false);
+            join();
+        }
+    }
+
+    @Test
+    public void concurrentCommandsAreEachRunExactlyOnceInSubmissionOrder() throws InterruptedException {
+
+        final TrackerStateMachine machine = new TrackerStateMachine();
+        CheckingActions actions = new CheckingActions(machine);
+        Drainer drainer = new Drainer(machine, actions, false);
+
+        // Submissions are logged under a lock so the log holds the order of the queue, while the
+        // drainer runs against the submitters without it.
+        final List<TrackerStateMachine.Command> log = new ArrayList<>();
+        final CountDownLatch start = new CountDownLatch(1);
+
+        List<Thread> submitters = new ArrayList<>();
+
+        for (int i = 0; i < SUBMITTERS; i++) {
+
+            final Random random = new Random(i);
+
+            submitters.add(new Thread() {
+
+                @Override
+                public void run() {
+
+                    awaitQuietly(start);
+
+                    for (int j = 0; j < COMMANDS_PER_SUBMITTER; j++) {
+
+                        TrackerStateMachine.Command command = random.nextBoolean() ? TrackerStateMachine.Command.START_ARBITRACK : TrackerStateMachine.Command.STOP_ARBITRACK;
+
+                        synchronized (log) {
+                            log.add(command);
+                            machine.submit(command);
+                        }
+                    }
+                }
+            });
+        }
+
+        drainer.start();
+        startAll(submitters, start);
+        drainer.finish();
+
+        // Replay the log on a sequential model of the state machine.
+        TrackerState expectedState = TrackerState.IMAGE_DETECTION;
+        int expectedStarts = 0;
+        int expectedStops = 0;
+
+        for (TrackerStateMachine.Command command : log) {
+
+            if (command == TrackerStateMachine.Command.START_ARBITRACK && expectedState != TrackerState.ARBITRACK) {
+                expectedStarts++;
+                expectedState = TrackerState.ARBITRACK;
+            }
+            else if (command == TrackerStateMachine.Command.STOP_ARBITRACK && expectedState == TrackerState.ARBITRACK) {
+                expectedStops++;
+                expectedState = TrackerState.IMAGE_DETECTION;
+            }
+        }
+
+        assertNull(actions.error.get());
+        assertFalse(machine.hasPendingCommands());
+        assertEquals(SUBMITTERS * COMMANDS_PER_SUBMITTER, log.size());
+        assertEquals(expectedStarts, actions.starts.get());
+        assertEquals(expectedStops, actions.stops.get());
+        assertEquals(expectedStarts + expectedStops, drainer.applied.get());
+        assertEquals(expectedState, machine.getState());
+    }
+
+    @Test
+    public void concurrentTogglesNeverMakeAnIllegalTransition() throws InterruptedException {
+
+        final TrackerStateMachine machine = new TrackerStateMachine();
+        CheckingActions actions = new CheckingActions(machine);
+        Drainer drainer = new Drainer(machine, actions, true);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean submitting = new AtomicBoolean(true);
+        final AtomicReference<String> error = new AtomicReference<>();
+
+        List<Thread> submitters = new ArrayList<>();
+
+        for (int i = 0; i < SUBMITTERS; i++) {
+
+            submitters.add(new Thread() {
+
+                @Override
+                public void run() {
+
+                    awaitQuietly(start);
+
+                    for (int j = 0; j < COMMANDS_PER_SUBMITTER; j++) {
+                        machine.submitToggle();
+                    }
+                }
+            });
+        }
+
+        // Markerless tracking is only ever reached through a start of the markerless tracker. The
+        // counters are read either side of the state so that they bound its value.
+        final CheckingActions observed = actions;
+
+        Thread observer = new Thread() {
+
+            @Override
+            public void run() {
+
+                while (submitting.get()) {
+
+                    int stopsBefore = observed.stops.get();
+                    TrackerState state = machine.getState();
+                    int startsAfter = observed.starts.get();
+
+                    if (state == TrackerState.ARBITRACK && (startsAfter == 0 || startsAfter < stopsBefore)) {
+                        error.compareAndSet(null, "ARBITRACK observed after " + startsAfter + " starts and " + stopsBefore + " stops.");
+                    }
+                }
+            }
+        };
+
+        drainer.start();
+        observer.start();
+        startAll(submitters, start);
+        drainer.finish();
+
+        submitting.set(false);
+        observer.join();
+
+        int net = actions.starts.get() - actions.stops.get();
+
+        assertNull(actions.error.get());
+        assertNull(error.get());
+        assertFalse(machine.hasPendingCommands());
+        assertEquals(actions.starts.get() + actions.stops.get(), drainer.applied.get());
+        assertEquals(net == 1, machine.getState() == TrackerState.ARBITRACK);
+    }
+
+    @Test
+    public void finalStateFollowsTheNetNumberOfToggles() throws InterruptedException {
+
+        TrackerStateMachine machine = new TrackerStateMachine();
+        CheckingActions actions = new CheckingActions(machine);
+        Drainer drainer = new Drainer(machine, actions, false);
+
+        drainer.start();
+
+        // Toggle as a user would, waiting for each toggle to take effect before the next.
+        for (int i = 0; i < TOGGLES; i++) {
+
+            TrackerState before = machine.getState();
+
+            machine.submitToggle();
+
+            while (machine.getState() == before) {
+                Thread.yield();
+            }
+        }
+
+        drainer.finish();
+
+        assertNull(actions.error.get());
+        assertEquals(TOGGLES / 2, actions.starts.get());
+        assertEquals(TOGGLES / 2, actions.stops.get());
+        assertEquals(TOGGLES, drainer.applied.get());
+        assertEquals(TrackerState.IMAGE_DETECTION, machine.getState());
+
+        // One more toggle leaves markerless tracking running.
+        machine.submitToggle();
+        machine.drainCommands(actions);
+
+        assertEquals(TrackerState.ARBITRACK, machine.getState());
+    }
+
+    private static void startAll(List<Thread> threads, CountDownLatch start) throws InterruptedException {
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        start.countDown();
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+
+        try {
+            latch.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package eu.kudan.ar;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the checks made on tracking result entries before they are drawn.
+ */
+public class TrackingResultTest {
+
+    @Test
+    public void finiteOutlineCanBeDrawn() {
+
+        TrackingResult result = createResult(2);
+
+        assertTrue(result.hasProjectedOutline(0));
+        assertTrue(result.hasProjectedOutline(1));
+    }
+
+    @Test
+    public void outlineBehindTheCameraIsNotDrawn() {
+
+        TrackingResult result = createResult(2);
+
+        // The native projection writes NaN for a point on or behind the camera plane, such as a
+        // corner of the markerless anchor after the camera turns away from it.
+        result.data[TrackingResult.ENTRY_LENGTH + TrackingResult.CORNERS + 5] = Float.NaN;
+
+        assertTrue(result.hasProjectedOutline(0));
+        assertFalse(result.hasProjectedOutline(1));
+
+        // The centre counts too, and so does a point projected to infinity.
+        result.data[TrackingResult.CENTRE] = Float.POSITIVE_INFINITY;
+
+        assertFalse(result.hasProjectedOutline(0));
+    }
+
+    @Test
+    public void poseAndExtentDoNotAffectTheOutline() {
+
+        TrackingResult result = createResult(1);
+
+        result.data[TrackingResult.POSITION] = Float.NaN;
+        result.data[TrackingResult.EXTENT] = Float.NaN;
+
+        assertTrue(result.hasProjectedOutline(0));
+    }
+
+    private static TrackingResult createResult(int count) {
+
+        TrackingResult result = new TrackingResult();
+
+        result.status = TrackingResult.STATUS_TRACKED;
+        result.count = count;
+
+        for (int entry = 0; entry < count; entry++) {
+
+            int offset = entry * TrackingResult.ENTRY_LENGTH;
+
+            result.data[offset + TrackingResult.INDEX] = entry;
+
+            for (int i = 0; i < 5 * 2; i++) {
+                result.data[offset + TrackingResult.CENTRE + i] = 100 * entry + i * 10;
+            }
+        }
+
+        return result;
+    }
+}
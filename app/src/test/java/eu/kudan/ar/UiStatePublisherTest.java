@@ -0,0 +1,169 @@
+package eu.kudan.ar;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that UiStatePublisher coalesces states into single updates of the UI thread.
+ */
+public class UiStatePublisherTest {
+
+    /**
+     * Queues posted tasks until the test runs them, standing in for the UI thread's Handler.
+     */
+    private static class QueueExecutor implements Executor {
+
+        final Queue<Runnable> queue = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable runnable) {
+            queue.add(runnable);
+        }
+
+        void runAll() {
+
+            Runnable runnable;
+
+            while ((runnable = queue.poll()) != null) {
+                runnable.run();
+            }
+        }
+    }
+
+    /**
+     * Records the states applied by the UI.
+     */
+    private static class RecordingListener implements UiStatePublisher.Listener {
+
+        final List<TrackerState> states = new ArrayList<>();
+
+        @Override
+        public void onUiState(TrackerState state) {
+            states.add(state);
+        }
+    }
+
+    @Test
+    public void burstIsCoalescedIntoOnePostedUpdate() {
+
+        QueueExecutor executor = new QueueExecutor();
+        RecordingListener listener = new RecordingListener();
+        UiStatePublisher publisher = createPublisher(executor, listener);
+
+        publisher.publish(TrackerState.IMAGE_DETECTION);
+        publisher.publish(TrackerState.IMAGE_TRACKING);
+        publisher.publish(TrackerState.ARBITRACK);
+        publisher.publish(TrackerState.IMAGE_DETECTION);
+
+        assertEquals(1, executor.queue.size());
+        assertEquals(1, publisher.getPostedCount());
+        assertEquals(3, publisher.getCoalescedCount());
+
+        executor.runAll();
+
+        assertEquals(1, listener.states.size());
+    }
+
+    @Test
+    public void latestStateWins() {
+
+        QueueExecutor executor = new QueueExecutor();
+        RecordingListener listener = new RecordingListener();
+        UiStatePublisher publisher = createPublisher(executor, listener);
+
+        publisher.publish(TrackerState.IMAGE_DETECTION);
+        publisher.publish(TrackerState.IMAGE_TRACKING);
+        publisher.publish(TrackerState.ARBITRACK);
+
+        executor.runAll();
+
+        assertEquals(TrackerState.ARBITRACK, listener.states.get(0));
+
+        // Once the update has run, the next change is posted again.
+        publisher.publish(TrackerState.IMAGE_DETECTION);
+
+        assertEquals(1, executor.queue.size());
+
+        executor.runAll();
+
+        assertEquals(2, listener.states.size());
+        assertEquals(TrackerState.IMAGE_DETECTION, listener.states.get(1));
+    }
+
+    @Test
+    public void unchangedStatesAreNotPosted() {
+
+        QueueExecutor executor = new QueueExecutor();
+        RecordingListener listener = new RecordingListener();
+        UiStatePublisher publisher = createPublisher(executor, listener);
+
+        publisher.publish(TrackerState.IMAGE_TRACKING);
+        executor.runAll();
+
+        for (int i = 0; i < 10; i++) {
+            publisher.publish(TrackerState.IMAGE_TRACKING);
+        }
+
+        assertTrue(executor.queue.isEmpty());
+        assertEquals(1, publisher.getPostedCount());
+        assertEquals(10, publisher.getUnchangedCount());
+        assertEquals(10, publisher.getSuppressedCount());
+    }
+
+    @Test
+    public void invalidateForcesARepublish() {
+
+        QueueExecutor executor = new QueueExecutor();
+        RecordingListener listener = new RecordingListener();
+        UiStatePublisher publisher = createPublisher(executor, listener);
+
+        publisher.publish(TrackerState.IMAGE_TRACKING);
+        executor.runAll();
+
+        publisher.invalidate();
+        publisher.publish(TrackerState.IMAGE_TRACKING);
+
+        assertEquals(1, executor.queue.size());
+
+        executor.runAll();
+
+        assertEquals(2, listener.states.size());
+        assertEquals(TrackerState.IMAGE_TRACKING, listener.states.get(1));
+    }
+
+    @Test
+    public void stateDroppedWithoutAListenerIsRepublishedOnceOneIsSet() {
+
+        QueueExecutor executor = new QueueExecutor();
+        RecordingListener listener = new RecordingListener();
+        UiStatePublisher publisher = createPublisher(executor, null);
+
+        publisher.publish(TrackerState.ARBITRACK);
+        executor.runAll();
+
+        // The fragment resumes, and the pipeline keeps publishing the same state.
+        publisher.setListener(listener);
+        publisher.publish(TrackerState.ARBITRACK);
+        executor.runAll();
+
+        assertEquals(1, listener.states.size());
+        assertEquals(TrackerState.ARBITRACK, listener.states.get(0));
+    }
+
+    private static UiStatePublisher createPublisher(Executor executor, UiStatePublisher.Listener listener) {
+
+        UiStatePublisher publisher = new UiStatePublisher(executor);
+
+        publisher.setListener(listener);
+
+        return publisher;
+    }
+}
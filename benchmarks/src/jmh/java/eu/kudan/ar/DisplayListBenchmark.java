@@ -0,0 +1,113 @@
+package eu.kudan.ar;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks the updates of the line segments of the display list drawn over each frame for
+ * tracked primitives.
+ *
+ * Drawing.DisplayList keeps its corner change check and line rebuild in PrimitiveLines, which is
+ * compiled from the app sources, so this measures the shipped code. DrawingPathBenchmark measures
+ * the path building it replaced.
+ */
+@State(Scope.Thread)
+public class DisplayListBenchmark {
+
+    /**
+     * The largest number of primitives measured, beyond TrackingResult.MAX_ENTRIES to show how
+     * updates scale.
+     */
+    private static final int CAPACITY = 32;
+
+    /**
+     * The number of primitives drawn in the frame.
+     */
+    @Param({"1", "4", "32"})
+    public int count;
+
+    private final PrimitiveLines mLines = new PrimitiveLines(CAPACITY);
+
+    /**
+     * The corners of the tracked primitives in the current frame.
+     */
+    private final int[] mCorners = new int[CAPACITY * PrimitiveLines.CORNER_VALUES_PER_PRIMITIVE];
+
+    private int mFrame;
+
+    @Setup
+    public void setup() {
+
+        for (int i = 0; i < CAPACITY; i++) {
+
+            int left = 100 + (i % 8) * 300;
+            int top = 100 + (i / 8) * 300;
+
+            setCorner(i, 0, left, top);
+            setCorner(i, 1, left + 200, top + 10);
+            setCorner(i, 2, left + 210, top + 220);
+            setCorner(i, 3, left - 5, top + 200);
+        }
+
+        mLines.set(mCorners, count, false);
+    }
+
+    /**
+     * DisplayList.update() for a still pose: the change check finds nothing to rebuild.
+     */
+    @Benchmark
+    public boolean unchanged() {
+        return mLines.cornersDiffer(mCorners, count);
+    }
+
+    /**
+     * DisplayList.update() for moving rectangles: the change check, then the border segments.
+     */
+    @Benchmark
+    public int rectangles() {
+
+        move();
+
+        if (mLines.cornersDiffer(mCorners, count)) {
+            mLines.set(mCorners, count, false);
+        }
+
+        return mLines.getLineFloats();
+    }
+
+    /**
+     * DisplayList.update() for moving grids: the change check, then the border and grid segments.
+     */
+    @Benchmark
+    public int grids() {
+
+        move();
+
+        if (mLines.cornersDiffer(mCorners, count)) {
+            mLines.set(mCorners, count, true);
+        }
+
+        return mLines.getLineFloats();
+    }
+
+    /**
+     * Moves every corner by a pixel, as a tracked pose changes between frames.
+     */
+    private void move() {
+
+        int offset = (mFrame++ & 1) == 0 ? 1 : -1;
+
+        for (int i = 0; i < count * PrimitiveLines.CORNER_VALUES_PER_PRIMITIVE; i += 2) {
+            mCorners[i] += offset;
+        }
+    }
+
+    private void setCorner(int primitive, int corner, int x, int y) {
+
+        mCorners[primitive * PrimitiveLines.CORNER_VALUES_PER_PRIMITIVE + corner * 2] = x;
+        mCorners[primitive * PrimitiveLines.CORNER_VALUES_PER_PRIMITIVE + corner * 2 + 1] = y;
+    }
+}
@@ -0,0 +1,116 @@
+package eu.kudan.ar;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks the construction of the paths that the Quadrilateral and Grid drawers built for
+ * tracked primitives on every frame, before Drawing.DisplayList replaced them.
+ *
+ * Kept as the baseline for DisplayListBenchmark. The old drawers depended on the Android graphics
+ * classes, so their path construction is mirrored here against JvmPath.
+ */
+@State(Scope.Thread)
+public class DrawingPathBenchmark {
+
+    /**
+     * The number of primitives drawn in the frame.
+     */
+    @Param({"1", "4"})
+    public int count;
+
+    private final JvmPath mPath = new JvmPath();
+
+    private final JvmPoint[] mCorners = new JvmPoint[TrackingResult.MAX_ENTRIES * 4];
+
+    @Setup
+    public void setup() {
+
+        for (int i = 0; i < TrackingResult.MAX_ENTRIES; i++) {
+
+            int left = 100 + i * 300;
+
+            mCorners[i * 4] = point(left, 100);
+            mCorners[i * 4 + 1] = point(left + 200, 110);
+            mCorners[i * 4 + 2] = point(left + 210, 320);
+            mCorners[i * 4 + 3] = point(left - 5, 300);
+        }
+
+        // Grow the path storage as the first drawn frame does.
+        rectangles();
+        grids();
+    }
+
+    /**
+     * Drawing.Quadrilateral.drawAll(): every border added to one path.
+     */
+    @Benchmark
+    public int rectangles() {
+
+        mPath.reset();
+
+        for (int i = 0; i < count; i++) {
+
+            JvmPoint p0 = mCorners[i * 4];
+
+            mPath.moveTo(p0.x, p0.y);
+            mPath.lineTo(mCorners[i * 4 + 1].x, mCorners[i * 4 + 1].y);
+            mPath.lineTo(mCorners[i * 4 + 2].x, mCorners[i * 4 + 2].y);
+            mPath.lineTo(mCorners[i * 4 + 3].x, mCorners[i * 4 + 3].y);
+
+            mPath.close();
+        }
+
+        return mPath.countPoints();
+    }
+
+    /**
+     * Drawing.Grid.draw() for each primitive: the interior grid path followed by the border path.
+     */
+    @Benchmark
+    public int grids() {
+
+        int points = 0;
+
+        for (int i = 0; i < count; i++) {
+
+            JvmPoint p0 = mCorners[i * 4];
+            JvmPoint p1 = mCorners[i * 4 + 1];
+            JvmPoint p2 = mCorners[i * 4 + 2];
+            JvmPoint p3 = mCorners[i * 4 + 3];
+
+            mPath.reset();
+
+            mPath.moveTo((p1.x + p0.x) / 2, (p1.y + p0.y) / 2);
+            mPath.lineTo((p3.x + p2.x) / 2, (p3.y + p2.y) / 2);
+            mPath.moveTo((p3.x + p0.x) / 2, (p3.y + p0.y) / 2);
+            mPath.lineTo((p1.x + p2.x) / 2, (p1.y + p2.y) / 2);
+
+            points += mPath.countPoints();
+
+            mPath.reset();
+
+            mPath.moveTo(p0.x, p0.y);
+            mPath.lineTo(p1.x, p1.y);
+            mPath.lineTo(p2.x, p2.y);
+            mPath.lineTo(p3.x, p3.y);
+
+            mPath.close();
+
+            points += mPath.countPoints();
+        }
+
+        return points;
+    }
+
+    private static JvmPoint point(int x, int y) {
+
+        JvmPoint point = new JvmPoint();
+        point.set(x, y);
+
+        return point;
+    }
+}
@@ -0,0 +1,98 @@
+package eu.kudan.ar;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Benchmarks the capture of a camera luma plane into a ring frame and its upload into the bitmap
+ * drawn by the render stage.
+ */
+@State(Scope.Thread)
+public class FrameCaptureBenchmark {
+
+    /**
+     * The size of the camera frame, as width x height.
+     */
+    @Param({"640x360", "1920x1080"})
+    public String resolution;
+
+    /**
+     * The padding at the end of each row of the camera plane in bytes.
+     */
+    @Param({"0", "64"})
+    public int rowPadding;
+
+    private int mWidth;
+    private int mHeight;
+    private int mRowStride;
+
+    /**
+     * A planar luma plane and an interleaved plane with a pixel stride of two.
+     */
+    private ByteBuffer mPlane;
+    private ByteBuffer mInterleavedPlane;
+
+    private final LumaIngestor mLumaIngestor = new LumaIngestor();
+
+    private LumaFrame mFrame;
+    private JvmBitmap mBitmap;
+
+    @Setup
+    public void setup() {
+
+        String[] size = resolution.split("x");
+
+        mWidth = Integer.parseInt(size[0]);
+        mHeight = Integer.parseInt(size[1]);
+        mRowStride = mWidth + rowPadding;
+
+        mPlane = ByteBuffer.allocateDirect(mRowStride * mHeight);
+        mInterleavedPlane = ByteBuffer.allocateDirect(mRowStride * 2 * mHeight);
+
+        for (int i = 0; i < mPlane.capacity(); i++) {
+            mPlane.put(i, (byte) i);
+        }
+
+        mFrame = new LumaFrame(mRowStride * mHeight);
+        mBitmap = new JvmBitmap(mWidth, mHeight);
+
+        mLumaIngestor.ingest(mPlane, mWidth, mHeight, mRowStride, 1, mFrame);
+    }
+
+    /**
+     * Capture of a planar luma plane, kept with its row stride.
+     */
+    @Benchmark
+    public boolean ingestPlanar() {
+        return mLumaIngestor.ingest(mPlane, mWidth, mHeight, mRowStride, 1, mFrame);
+    }
+
+    /**
+     * Capture of an interleaved luma plane, repacked pixel by pixel.
+     */
+    @Benchmark
+    public boolean ingestInterleaved() {
+        return mLumaIngestor.ingest(mInterleavedPlane, mWidth, mHeight, mRowStride * 2, 2, mFrame);
+    }
+
+    /**
+     * Upload of a captured frame into the render bitmap, restriding it if its row stride differs.
+     */
+    @Benchmark
+    public ByteBuffer uploadToBitmap() {
+
+        // Capture again so that the restride buffer is refilled as it is for every camera frame.
+        mLumaIngestor.ingest(mPlane, mWidth, mHeight, mRowStride, 1, mFrame);
+
+        ByteBuffer bitmapData = mFrame.getDataWithRowStride(mBitmap.getRowBytes());
+        mBitmap.copyPixelsFromBuffer(bitmapData);
+        bitmapData.rewind();
+
+        return bitmapData;
+    }
+}
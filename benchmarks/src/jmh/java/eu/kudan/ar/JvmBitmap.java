@@ -0,0 +1,69 @@
+package eu.kudan.ar;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pure-JVM stand-in for an ALPHA_8 Bitmap, holding its pixels in a direct buffer so that
+ * copyPixelsFromBuffer() costs a native-to-native copy as it does on a device.
+ */
+class JvmBitmap {
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mRowBytes;
+
+    private final ByteBuffer mPixels;
+
+    /**
+     * Constructs a JvmBitmap.
+     *
+     * @param width The width of the bitmap in pixels.
+     * @param height The height of the bitmap in pixels.
+     */
+    JvmBitmap(int width, int height) {
+
+        mWidth = width;
+        mHeight = height;
+
+        // Rows of alpha bitmaps are padded to four bytes.
+        mRowBytes = (width + 3) & ~3;
+
+        mPixels = ByteBuffer.allocateDirect(mRowBytes * height);
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    int getRowBytes() {
+        return mRowBytes;
+    }
+
+    /**
+     * Stand-in for Bitmap.copyPixelsFromBuffer(), copying one full bitmap of pixels and advancing
+     * the position of the source.
+     *
+     * @param src Buffer holding at least getRowBytes() * getHeight() bytes.
+     */
+    void copyPixelsFromBuffer(ByteBuffer src) {
+
+        int byteCount = mRowBytes * mHeight;
+
+        if (src.remaining() < byteCount) {
+            throw new RuntimeException("Buffer not large enough for pixels");
+        }
+
+        int limit = src.limit();
+
+        src.limit(src.position() + byteCount);
+
+        mPixels.clear();
+        mPixels.put(src);
+
+        src.limit(limit);
+    }
+}
@@ -0,0 +1,76 @@
+package eu.kudan.ar;
+
+/**
+ * Pure-JVM stand-in for Path, recording verbs and points into growable arrays as the platform path
+ * does, so that building a path costs the same stores and occasional growth.
+ */
+class JvmPath {
+
+    private static final byte VERB_MOVE = 0;
+    private static final byte VERB_LINE = 1;
+    private static final byte VERB_CLOSE = 2;
+
+    private byte[] mVerbs = new byte[16];
+    private float[] mPoints = new float[32];
+
+    private int mVerbCount;
+    private int mPointCount;
+
+    /**
+     * Stand-in for Path.reset(), keeping the storage for reuse.
+     */
+    void reset() {
+        mVerbCount = 0;
+        mPointCount = 0;
+    }
+
+    void moveTo(float x, float y) {
+        addVerb(VERB_MOVE);
+        addPoint(x, y);
+    }
+
+    void lineTo(float x, float y) {
+        addVerb(VERB_LINE);
+        addPoint(x, y);
+    }
+
+    void close() {
+        addVerb(VERB_CLOSE);
+    }
+
+    /**
+     * Gets the number of points in the path.
+     *
+     * @return The point count.
+     */
+    int countPoints() {
+        return mPointCount;
+    }
+
+    private void addVerb(byte verb) {
+
+        if (mVerbCount == mVerbs.length) {
+
+            byte[] verbs = new byte[mVerbs.length * 2];
+            System.arraycopy(mVerbs, 0, verbs, 0, mVerbCount);
+            mVerbs = verbs;
+        }
+
+        mVerbs[mVerbCount++] = verb;
+    }
+
+    private void addPoint(float x, float y) {
+
+        if (mPointCount * 2 == mPoints.length) {
+
+            float[] points = new float[mPoints.length * 2];
+            System.arraycopy(mPoints, 0, points, 0, mPointCount * 2);
+            mPoints = points;
+        }
+
+        mPoints[mPointCount * 2] = x;
+        mPoints[mPointCount * 2 + 1] = y;
+
+        mPointCount++;
+    }
+}
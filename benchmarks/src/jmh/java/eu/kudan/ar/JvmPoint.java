@@ -0,0 +1,15 @@
+package eu.kudan.ar;
+
+/**
+ * Pure-JVM stand-in for the integer Point that tracked corners are rounded into.
+ */
+class JvmPoint {
+
+    int x;
+    int y;
+
+    void set(int x, int y) {
+        this.x = x;
+        this.y = y;
+    }
+}
@@ -0,0 +1,124 @@
+package eu.kudan.ar;
+
+/**
+ * Pure-JVM stand-in for the SensorManager methods called on every rotation vector event, following
+ * the arithmetic of the platform implementation.
+ */
+class JvmSensorManager {
+
+    /**
+     * Axis codes, matching SensorManager.
+     */
+    static final int AXIS_X = 1;
+    static final int AXIS_Y = 2;
+    static final int AXIS_Z = 3;
+    static final int AXIS_MINUS_X = AXIS_X | 0x80;
+    static final int AXIS_MINUS_Y = AXIS_Y | 0x80;
+    static final int AXIS_MINUS_Z = AXIS_Z | 0x80;
+
+    /**
+     * Stand-in for SensorManager.getRotationMatrixFromVector() with a 4x4 output matrix.
+     *
+     * @param R Array of length 16 that receives the row-major rotation matrix.
+     * @param rotationVector The values of a rotation vector event.
+     */
+    static void getRotationMatrixFromVector(float[] R, float[] rotationVector) {
+
+        float q0;
+        float q1 = rotationVector[0];
+        float q2 = rotationVector[1];
+        float q3 = rotationVector[2];
+
+        if (rotationVector.length >= 4) {
+            q0 = rotationVector[3];
+        }
+        else {
+            q0 = 1 - q1 * q1 - q2 * q2 - q3 * q3;
+            q0 = (q0 > 0) ? (float) Math.sqrt(q0) : 0;
+        }
+
+        float sq_q1 = 2 * q1 * q1;
+        float sq_q2 = 2 * q2 * q2;
+        float sq_q3 = 2 * q3 * q3;
+        float q1_q2 = 2 * q1 * q2;
+        float q3_q0 = 2 * q3 * q0;
+        float q1_q3 = 2 * q1 * q3;
+        float q2_q0 = 2 * q2 * q0;
+        float q2_q3 = 2 * q2 * q3;
+        float q1_q0 = 2 * q1 * q0;
+
+        R[0] = 1 - sq_q2 - sq_q3;
+        R[1] = q1_q2 - q3_q0;
+        R[2] = q1_q3 + q2_q0;
+        R[3] = 0.0f;
+
+        R[4] = q1_q2 + q3_q0;
+        R[5] = 1 - sq_q1 - sq_q3;
+        R[6] = q2_q3 - q1_q0;
+        R[7] = 0.0f;
+
+        R[8] = q1_q3 - q2_q0;
+        R[9] = q2_q3 + q1_q0;
+        R[10] = 1 - sq_q1 - sq_q2;
+        R[11] = 0.0f;
+
+        R[12] = R[13] = R[14] = 0.0f;
+        R[15] = 1.0f;
+    }
+
+    /**
+     * Stand-in for SensorManager.remapCoordinateSystem() with 4x4 matrices.
+     *
+     * @param inR The row-major rotation matrix to remap.
+     * @param X The world axis that the device X axis is mapped onto.
+     * @param Y The world axis that the device Y axis is mapped onto.
+     * @param outR Array of length 16 that receives the remapped matrix. Must not be inR.
+     * @return Whether the axes were valid.
+     */
+    static boolean remapCoordinateSystem(float[] inR, int X, int Y, float[] outR) {
+
+        if ((X & 0x7C) != 0 || (Y & 0x7C) != 0) {
+            return false;
+        }
+
+        if ((X & 0x3) == (Y & 0x3)) {
+            return false;
+        }
+
+        // Z is the cross product of X and Y, with its sign corrected for the handedness of the
+        // axes chosen.
+        int Z = X ^ Y;
+
+        int x = (X & 0x3) - 1;
+        int y = (Y & 0x3) - 1;
+        int z = (Z & 0x3) - 1;
+
+        int axis_y = (z + 1) % 3;
+        int axis_z = (z + 2) % 3;
+
+        if (((x ^ axis_y) | (y ^ axis_z)) != 0) {
+            Z ^= 0x80;
+        }
+
+        boolean sx = (X >= 0x80);
+        boolean sy = (Y >= 0x80);
+        boolean sz = (Z >= 0x80);
+
+        for (int j = 0; j < 3; j++) {
+
+            int offset = j * 4;
+
+            for (int i = 0; i < 3; i++) {
+
+                if (x == i) outR[offset + i] = sx ? -inR[offset] : inR[offset];
+                if (y == i) outR[offset + i] = sy ? -inR[offset + 1] : inR[offset + 1];
+                if (z == i) outR[offset + i] = sz ? -inR[offset + 2] : inR[offset + 2];
+            }
+        }
+
+        outR[3] = outR[7] = outR[11] = outR[12] = outR[13] = outR[14] = 0;
+        outR[15] = 1;
+
+        return true;
+    }
+}
@@ -0,0 +1,87 @@
+package eu.kudan.ar;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks the conversion of rotation vector events into quaternions on the sensor thread and
+ * the orientation work done for each frame by the markerless tracking stage.
+ */
+@State(Scope.Thread)
+public class OrientationBenchmark {
+
+    /**
+     * Rotation vector events cycled through so that no result can be constant-folded.
+     */
+    private static final float[][] ROTATION_VECTORS = {
+            { 0.0f, 0.0f, 0.0f, 1.0f, 0.0f },
+            { 0.1f, -0.2f, 0.3f, 0.927f, 0.0f },
+            { 0.7f, 0.1f, -0.1f, 0.7f, 0.0f },
+            { -0.5f, 0.5f, 0.5f, 0.5f, 0.0f }
+    };
+
+    private final float[] mSensorRotationMatrix = new float[16];
+    private final float[] mRemappedRotationMatrix = new float[16];
+    private final float[] mSensorQuaternion = new float[4];
+    private final float[] mTrackingQuaternion = new float[4];
+
+    private final OrientationCell mRotationQuaternion = new OrientationCell();
+    private final OrientationHistory mOrientationHistory = new OrientationHistory();
+
+    private int mEvent;
+    private long mTimestamp;
+
+    @Setup
+    public void setup() {
+
+        // Fill the history with sensor events 5ms apart, as delivered by the rotation sensor.
+        for (int i = 0; i < 64; i++) {
+
+            float[] q = ROTATION_VECTORS[i % ROTATION_VECTORS.length];
+
+            mOrientationHistory.add(i * 5000000L, q[3], q[0], q[1], q[2]);
+        }
+
+        mTimestamp = 0;
+    }
+
+    /**
+     * The work of onSensorChanged: rotation vector to matrix, remapped to the tracker coordinate
+     * system and converted into a quaternion published to the tracking stage.
+     */
+    @Benchmark
+    public float sensorEventToQuaternion() {
+
+        float[] rotationVector = ROTATION_VECTORS[mEvent++ & 3];
+
+        JvmSensorManager.getRotationMatrixFromVector(mSensorRotationMatrix, rotationVector);
+        JvmSensorManager.remapCoordinateSystem(mSensorRotationMatrix, JvmSensorManager.AXIS_MINUS_Y, JvmSensorManager.AXIS_MINUS_X, mRemappedRotationMatrix);
+
+        Quaternions.fromRotationMatrix(mRemappedRotationMatrix, mSensorQuaternion);
+
+        mRotationQuaternion.write(mSensorQuaternion[0], mSensorQuaternion[1], mSensorQuaternion[2], mSensorQuaternion[3]);
+
+        return mSensorQuaternion[0];
+    }
+
+    /**
+     * The orientation work of processTracking for a markerless frame: the device rotation at the
+     * frame timestamp, inverted to counteract it in the tracker.
+     */
+    @Benchmark
+    public float frameOrientation() {
+
+        // Sample between the recorded events, wrapping around the history.
+        mTimestamp = (mTimestamp + 33000000L) % (63 * 5000000L);
+
+        if (!mOrientationHistory.sample(mTimestamp, mTrackingQuaternion)) {
+            mRotationQuaternion.read(mTrackingQuaternion);
+        }
+
+        Quaternions.invert(mTrackingQuaternion, mTrackingQuaternion);
+
+        return mTrackingQuaternion[0];
+    }
+}
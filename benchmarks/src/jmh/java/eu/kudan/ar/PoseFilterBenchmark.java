@@ -0,0 +1,58 @@
+package eu.kudan.ar;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks the smoothing and prediction of the poses of a tracking result on the render stage.
+ */
+@State(Scope.Thread)
+public class PoseFilterBenchmark {
+
+    /**
+     * The number of trackables tracked in the frame.
+     */
+    @Param({"1", "4"})
+    public int count;
+
+    private final PoseFilter mPoseFilter = new PoseFilter();
+
+    private final TrackingResult mTrackingResult = new TrackingResult();
+    private final TrackingResult mFilteredResult = new TrackingResult();
+
+    private long mTimestamp;
+
+    @Setup
+    public void setup() {
+
+        for (int entry = 0; entry < TrackingResult.MAX_ENTRIES; entry++) {
+
+            int base = entry * TrackingResult.ENTRY_LENGTH;
+
+            mTrackingResult.data[base + TrackingResult.INDEX] = entry;
+            mTrackingResult.data[base + TrackingResult.POSITION] = entry * 50;
+            mTrackingResult.data[base + TrackingResult.POSITION + 2] = 600;
+            mTrackingResult.data[base + TrackingResult.ORIENTATION] = 1;
+        }
+
+        mTrackingResult.status = TrackingResult.STATUS_TRACKED;
+        mTrackingResult.count = count;
+    }
+
+    /**
+     * The copy of a result and the filtering of each of its poses, one frame apart.
+     */
+    @Benchmark
+    public float filter() {
+
+        mTimestamp += 33333333L;
+
+        mFilteredResult.set(mTrackingResult);
+        mPoseFilter.filter(mFilteredResult, mTimestamp, 50000000L);
+
+        return mFilteredResult.data[TrackingResult.POSITION];
+    }
+}
@@ -0,0 +1,73 @@
+package eu.kudan.ar;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks the per-frame handling of tracking results: the copy of a result into the frame that
+ * carries it to the render stage, and the rounding of its corners into screen points.
+ */
+@State(Scope.Thread)
+public class TrackingResultBenchmark {
+
+    /**
+     * The number of trackables tracked in the frame.
+     */
+    @Param({"1", "4"})
+    public int count;
+
+    private final TrackingResult mTrackingResult = new TrackingResult();
+    private final TrackingResult mFrameResult = new TrackingResult();
+
+    private final JvmPoint[] mRenderedCorners = new JvmPoint[TrackingResult.MAX_ENTRIES * 4];
+
+    @Setup
+    public void setup() {
+
+        for (int i = 0; i < TrackingResult.LENGTH; i++) {
+            mTrackingResult.data[i] = i * 13.7f;
+        }
+
+        mTrackingResult.status = TrackingResult.STATUS_TRACKED;
+        mTrackingResult.count = count;
+
+        for (int i = 0; i < mRenderedCorners.length; i++) {
+            mRenderedCorners[i] = new JvmPoint();
+        }
+    }
+
+    /**
+     * The hand-off of a result from the tracking stage to the render stage.
+     */
+    @Benchmark
+    public int copyResult() {
+
+        mFrameResult.set(mTrackingResult);
+
+        return mFrameResult.count;
+    }
+
+    /**
+     * The rounding of every projected corner into the points drawn by the render stage.
+     */
+    @Benchmark
+    public int roundCorners() {
+
+        TrackingResult trackingResult = mTrackingResult;
+
+        for (int entry = 0; entry < trackingResult.count; entry++) {
+
+            for (int i = 0; i < 4; i++) {
+                mRenderedCorners[entry * 4 + i].set(
+                        Math.round(trackingResult.getCornerX(entry, i)),
+                        Math.round(trackingResult.getCornerY(entry, i))
+                );
+            }
+        }
+
+        return mRenderedCorners[0].x;
+    }
+}